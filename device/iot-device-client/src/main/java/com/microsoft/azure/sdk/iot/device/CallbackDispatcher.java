@@ -0,0 +1,272 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <p>
+ * Runs the callbacks of a device on an application-provided {@link Executor},
+ * so that slow callbacks do not hold up the thread that sends messages.
+ * </p>
+ * <p>
+ * Callbacks run one at a time, in the order in which they were dispatched,
+ * even if the executor has many threads. At most {@code capacity} callbacks
+ * wait to run; dispatching another one blocks until one of them has run, so
+ * that callbacks that cannot keep up slow down the sender instead of piling
+ * up in memory.
+ * </p>
+ */
+public final class CallbackDispatcher implements Executor
+{
+    /** The number of callbacks run before the executor thread is handed back. */
+    private static final int MAX_CALLBACKS_PER_RUN = 64;
+
+    protected final Executor executor;
+    protected final int capacity;
+
+    private final Object lock = new Object();
+    private final Queue<Runnable> callbacks = new ArrayDeque<>();
+    private boolean draining;
+    /** The thread running the callbacks, or {@code null} if none is. */
+    private volatile Thread drainThread;
+
+    private final CustomLogger logger = new CustomLogger(this.getClass());
+
+    private final Runnable drain = new Runnable()
+    {
+        public void run()
+        {
+            drainCallbacks();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param executor the executor on which the callbacks run.
+     * @param capacity the maximum number of callbacks waiting to run.
+     *
+     * @throws IllegalArgumentException if the executor is {@code null} or the
+     * capacity is less than 1.
+     */
+    public CallbackDispatcher(Executor executor, int capacity)
+    {
+        // Codes_SRS_CALLBACKDISPATCHER_21_001: [If the executor is null or the capacity is less than 1, the constructor shall throw an IllegalArgumentException.]
+        if (executor == null || capacity < 1)
+        {
+            throw new IllegalArgumentException("A callback dispatcher needs an executor and a capacity of at least 1.");
+        }
+
+        // Codes_SRS_CALLBACKDISPATCHER_21_002: [The constructor shall save the executor and the capacity.]
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queues a callback to run after the callbacks already dispatched. If
+     * {@code capacity} callbacks are already waiting, blocks until one of them
+     * has run.
+     *
+     * @param callback the callback to run.
+     *
+     * @throws IllegalStateException if the thread is interrupted while
+     * waiting for room.
+     */
+    public void execute(Runnable callback)
+    {
+        // Codes_SRS_CALLBACKDISPATCHER_21_003: [If the function is called by a callback of this dispatcher, the function shall run the callback on the calling thread.]
+        if (Thread.currentThread() == this.drainThread)
+        {
+            runCallback(callback);
+            return;
+        }
+
+        boolean startDrain;
+        synchronized (this.lock)
+        {
+            // Codes_SRS_CALLBACKDISPATCHER_21_004: [If capacity callbacks are waiting to run, the function shall wait until one of them has run.]
+            while (this.callbacks.size() >= this.capacity)
+            {
+                try
+                {
+                    this.lock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for room in the callback queue.");
+                }
+            }
+
+            // Codes_SRS_CALLBACKDISPATCHER_21_005: [The function shall queue the callback after the callbacks already dispatched.]
+            this.callbacks.add(callback);
+            startDrain = !this.draining;
+            this.draining = true;
+        }
+
+        // Codes_SRS_CALLBACKDISPATCHER_21_006: [If no callback is running, the function shall submit the queued callbacks to the executor.]
+        if (startDrain)
+        {
+            submitDrain();
+        }
+    }
+
+    /**
+     * Wraps an event callback so that it runs on this dispatcher.
+     *
+     * @param callback the callback to wrap. Can be {@code null}.
+     *
+     * @return the wrapped callback, or {@code null} if the callback is
+     * {@code null}.
+     */
+    public IotHubEventCallback wrap(final IotHubEventCallback callback)
+    {
+        // Codes_SRS_CALLBACKDISPATCHER_21_007: [If the callback is null, the function shall return null.]
+        if (callback == null)
+        {
+            return null;
+        }
+
+        // Codes_SRS_CALLBACKDISPATCHER_21_008: [The function shall return an event callback that dispatches the given callback with the same status and context.]
+        return new IotHubEventCallback()
+        {
+            public void execute(final IotHubStatusCode responseStatus, final Object callbackContext)
+            {
+                CallbackDispatcher.this.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        callback.execute(responseStatus, callbackContext);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Wraps a message callback so that it runs on this dispatcher. The
+     * wrapped callback waits for the message callback to run, since its result
+     * settles the message with the IoT Hub.
+     *
+     * @param callback the callback to wrap. Can be {@code null}.
+     *
+     * @return the wrapped callback, or {@code null} if the callback is
+     * {@code null}.
+     */
+    public MessageCallback wrap(final MessageCallback callback)
+    {
+        // Codes_SRS_CALLBACKDISPATCHER_21_007: [If the callback is null, the function shall return null.]
+        if (callback == null)
+        {
+            return null;
+        }
+
+        // Codes_SRS_CALLBACKDISPATCHER_21_009: [The function shall return a message callback that dispatches the given callback, waits for it to run, and returns its result.]
+        return new MessageCallback()
+        {
+            public IotHubMessageResult execute(final Message message, final Object callbackContext)
+            {
+                FutureTask<IotHubMessageResult> result = new FutureTask<>(new Callable<IotHubMessageResult>()
+                {
+                    public IotHubMessageResult call()
+                    {
+                        return callback.execute(message, callbackContext);
+                    }
+                });
+                CallbackDispatcher.this.execute(result);
+
+                try
+                {
+                    return result.get();
+                }
+                catch (InterruptedException e)
+                {
+                    // Codes_SRS_CALLBACKDISPATCHER_21_010: [If the thread is interrupted while waiting, the wrapped callback shall return ABANDON.]
+                    Thread.currentThread().interrupt();
+                    return IotHubMessageResult.ABANDON;
+                }
+                catch (ExecutionException e)
+                {
+                    // Codes_SRS_CALLBACKDISPATCHER_21_011: [If the message callback throws, the wrapped callback shall throw the same exception.]
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error)
+                    {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        };
+    }
+
+    private void submitDrain()
+    {
+        try
+        {
+            this.executor.execute(this.drain);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // the executor is shutting down, so the callbacks are run on the
+            // calling thread rather than lost.
+            drainCallbacks();
+        }
+    }
+
+    private void drainCallbacks()
+    {
+        this.drainThread = Thread.currentThread();
+        try
+        {
+            for (int run = 0; run < MAX_CALLBACKS_PER_RUN; run++)
+            {
+                Runnable callback;
+                synchronized (this.lock)
+                {
+                    callback = this.callbacks.poll();
+                    if (callback == null)
+                    {
+                        this.draining = false;
+                        return;
+                    }
+                    this.lock.notifyAll();
+                }
+
+                runCallback(callback);
+            }
+        }
+        finally
+        {
+            this.drainThread = null;
+        }
+
+        // more callbacks are waiting, but the executor thread is handed back
+        // so that the callbacks of other devices sharing it get to run.
+        submitDrain();
+    }
+
+    private void runCallback(Runnable callback)
+    {
+        try
+        {
+            callback.run();
+        }
+        // Codes_SRS_CALLBACKDISPATCHER_21_012: [A callback that throws shall not prevent the following callbacks from running.]
+        catch (Throwable e)
+        {
+            logger.LogError(e);
+        }
+    }
+}
@@ -2,21 +2,47 @@ package com.microsoft.azure.sdk.iot.device;
 
 import org.apache.log4j.*;
 
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Thin wrapper over log4j. The message is only formatted once the level is
+ * known to be enabled, so a call at a disabled level costs the level check
+ * and the varargs array. Arguments that are expensive to compute should be
+ * guarded with the matching {@code isXxxEnabled()} check at the call site.
+ */
 public class CustomLogger {
 
     private Logger logger;
     private static final int CALLING_METHOD_NAME_DEPTH = 2;
 
+    /** The number of payload bytes written by {@link #LogTracePayload}. */
+    public static final int MAX_LOGGED_PAYLOAD_BYTES = 256;
+
     public CustomLogger(Class<?> clazz)
     {
         logger = Logger.getLogger(clazz);
     }
 
+    public boolean isInfoEnabled()
+    {
+        return logger.isEnabledFor(Level.INFO);
+    }
+
+    public boolean isDebugEnabled()
+    {
+        return logger.isEnabledFor(Level.DEBUG);
+    }
+
+    public boolean isTraceEnabled()
+    {
+        return logger.isEnabledFor(Level.TRACE);
+    }
+
     public void LogInfo(String message, Object...params)
     {
         if(logger.isEnabledFor(Level.INFO))
         {
-            logger.info(String.format(message, params));
+            logger.info(format(message, params));
         }
     }
 
@@ -24,7 +50,7 @@ public class CustomLogger {
     {
         if(logger.isEnabledFor(Level.DEBUG))
         {
-            logger.debug(String.format(message, params));
+            logger.debug(format(message, params));
         }
     }
 
@@ -32,7 +58,7 @@ public class CustomLogger {
     {
         if(logger.isEnabledFor(Level.TRACE))
         {
-            logger.trace(String.format(message, params));
+            logger.trace(format(message, params));
         }
     }
 	
@@ -40,7 +66,7 @@ public class CustomLogger {
     {
         if(logger.isEnabledFor(Level.WARN))
         {
-            logger.warn(String.format(message, params));
+            logger.warn(format(message, params));
         }
     }
 	
@@ -48,7 +74,7 @@ public class CustomLogger {
     {
         if(logger.isEnabledFor(Level.FATAL))
         {
-            logger.fatal(String.format(message, params));
+            logger.fatal(format(message, params));
         }
     }
 
@@ -56,7 +82,37 @@ public class CustomLogger {
     {
         if(logger.isEnabledFor(Level.ERROR))
         {
-            logger.error(String.format(message, params));
+            logger.error(format(message, params));
+        }
+    }
+
+    /**
+     * Logs a message body at TRACE level, decoded as UTF-8 and cut to
+     * {@link #MAX_LOGGED_PAYLOAD_BYTES} bytes. Payloads are only logged if
+     * TRACE is enabled for the logger; otherwise nothing is allocated.
+     *
+     * @param message the log message, with a single {@code %s} for the payload.
+     * @param payload the message body. Can be {@code null}.
+     */
+    public void LogTracePayload(String message, byte[] payload)
+    {
+        if(logger.isEnabledFor(Level.TRACE))
+        {
+            String text;
+            if (payload == null)
+            {
+                text = "null";
+            }
+            else if (payload.length <= MAX_LOGGED_PAYLOAD_BYTES)
+            {
+                text = new String(payload, StandardCharsets.UTF_8);
+            }
+            else
+            {
+                text = new String(payload, 0, MAX_LOGGED_PAYLOAD_BYTES, StandardCharsets.UTF_8)
+                        + "... (" + payload.length + " bytes)";
+            }
+            logger.trace(String.format(message, text));
         }
     }
 
@@ -67,9 +123,26 @@ public class CustomLogger {
             logger.error(exception);
         }
     }
-	
+
+    /**
+     * Walks the stack to find the name of the calling method. This is costly,
+     * and is evaluated even when the level is disabled, so the SDK no longer
+     * calls it; log messages name their method directly.
+     *
+     * @return the name of the calling method.
+     *
+     * @deprecated name the method in the log message instead.
+     */
+    @Deprecated
     public String getMethodName()
     {
         return Thread.currentThread().getStackTrace()[CALLING_METHOD_NAME_DEPTH].getMethodName();
     }
+
+    private static String format(String message, Object[] params)
+    {
+        // messages without parameters are logged as they are, without going
+        // through the formatter.
+        return params == null || params.length == 0 ? message : String.format(message, params);
+    }
 }
@@ -3,8 +3,10 @@
 
 package com.microsoft.azure.sdk.iot.device;
 
+import com.google.gson.JsonObject;
 import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsTransport;
 import com.microsoft.azure.sdk.iot.device.transport.https.HttpsTransport;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubOutboundPacket;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubReceiveTask;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubSendTask;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubTransport;
@@ -18,8 +20,14 @@ import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -51,10 +59,25 @@ public final class DeviceClient implements Closeable
     protected final static String SET_MINIMUM_POLLING_INTERVAL = "SetMinimumPollingInterval";
     protected final static String SET_CERTIFICATE_PATH = "SetCertificatePath";
     protected final static String SET_SAS_TOKEN_EXPIRY_TIME = "SetSASTokenExpiryTime";
+    protected final static String SET_SEND_QUEUE_MAX_MESSAGES = "SetSendQueueMaxMessages";
+    protected final static String SET_SEND_QUEUE_MAX_BYTES = "SetSendQueueMaxBytes";
+    protected final static String SET_SEND_QUEUE_FULL_POLICY = "SetSendQueueFullPolicy";
+    protected final static String SET_SEND_JOURNAL_DIRECTORY = "SetSendJournalDirectory";
+    protected final static String SET_SEND_JOURNAL_MAX_BYTES = "SetSendJournalMaxBytes";
+    protected final static String SET_CALLBACK_EXECUTOR = "SetCallbackExecutor";
+    protected final static String SET_CALLBACK_QUEUE_CAPACITY = "SetCallbackQueueCapacity";
+    protected final static String SET_AMQP_SEND_SETTLED = "SetAmqpSendSettled";
+    protected final static String SET_AMQP_RECEIVE_CREDIT = "SetAmqpReceiveCredit";
+    protected final static String SET_MQTT_MAX_IN_FLIGHT = "SetMqttMaxInFlight";
+    protected final static String SET_MQTT_TELEMETRY_QOS0 = "SetMqttTelemetryQos0";
+
+    /** The default number of callbacks that may wait to run on the callback executor. */
+    public static final int DEFAULT_CALLBACK_QUEUE_CAPACITY = 1024;
 
     /**
-     * The number of milliseconds the transport will wait between
-     * sending out messages.
+     * The number of milliseconds the transport will wait before retrying to
+     * send messages that could not be sent. New messages are sent as soon as
+     * they are queued.
      */
     public static long SEND_PERIOD_MILLIS = 10l;
     /**
@@ -84,10 +107,22 @@ public final class DeviceClient implements Closeable
     protected IotHubTransport transport;
 
     protected ScheduledExecutorService taskScheduler;
+    protected ScheduledFuture<?> receiveTaskFuture;
+    /** The receive task the transport signals when messages arrive, or {@code null} if it is polled. */
+    protected IotHubReceiveTask receiveTask;
+    protected DeviceClientRuntime runtime;
     protected IotHubClientState state;
     protected long RECEIVE_PERIOD_MILLIS;
     protected CustomLogger logger;
 
+    /** The executor on which callbacks run, or {@code null} to run them on the client's own threads. */
+    protected Executor callbackExecutor;
+    protected int callbackQueueCapacity = DEFAULT_CALLBACK_QUEUE_CAPACITY;
+    /** Runs the callbacks on the callback executor, or {@code null} if there is none. */
+    protected CallbackDispatcher callbackDispatcher;
+    protected MessageCallback messageCallback;
+    protected Object messageCallbackContext;
+
     /**
      * Constructor that takes a connection string as an argument.
      *
@@ -155,7 +190,41 @@ public final class DeviceClient implements Closeable
 
         initIotHubClient(hostname, deviceId, sharedAccessKey, sharedAccessToken, protocol);
         this.logger = new CustomLogger(this.getClass());
-        logger.LogInfo("DeviceClient object is created successfully, method name is %s ", logger.getMethodName());
+        logger.LogInfo("DeviceClient object is created successfully, method name is DeviceClient ");
+    }
+
+    /**
+     * Constructor that takes a connection string and a runtime whose threads
+     * are shared with other clients. Use this constructor when a single
+     * process hosts many devices, so that the number of threads does not
+     * grow with the number of clients.
+     *
+     * @param connString the connection string. See
+     * {@link #DeviceClient(String, IotHubClientProtocol)}.
+     * @param protocol the communication protocol used (i.e. HTTPS).
+     * @param runtime the runtime that drives the client's send and receive
+     * tasks and its AMQP reactor.
+     *
+     * @throws IllegalArgumentException if any of {@code connString},
+     * {@code protocol}, or {@code runtime} are {@code null}; or if
+     * {@code connString} is missing one of the required attributes.
+     * @throws URISyntaxException if the IoT hub hostname does not conform to
+     * RFC 3986.
+     */
+    public DeviceClient(String connString, IotHubClientProtocol protocol, DeviceClientRuntime runtime)
+            throws URISyntaxException
+    {
+        this(connString, protocol);
+
+        // Codes_SRS_DEVICECLIENT_21_055: [If the runtime is null, the function shall throw an IllegalArgumentException.]
+        if (runtime == null)
+        {
+            throw new IllegalArgumentException("Runtime cannot be null.");
+        }
+
+        // Codes_SRS_DEVICECLIENT_21_056: [The constructor shall save the runtime and make it available to the transport through the configuration.]
+        this.runtime = runtime;
+        this.config.setRuntime(runtime);
     }
 
     /**
@@ -177,19 +246,41 @@ public final class DeviceClient implements Closeable
         // Codes_SRS_DEVICECLIENT_11_036: [If an error occurs in opening the transport, the function shall throw an IOException.]
         this.transport.open();
 
-        IotHubSendTask sendTask = new IotHubSendTask(this.transport);
-        IotHubReceiveTask receiveTask = new IotHubReceiveTask(this.transport);
+        if (this.runtime != null)
+        {
+            // Codes_SRS_DEVICECLIENT_21_057: [If the client was created with a runtime, the function shall run its tasks on the runtime's scheduler.]
+            this.taskScheduler = this.runtime.getScheduler();
+        }
+        else
+        {
+            this.taskScheduler = Executors.newScheduledThreadPool(2);
+        }
 
-        this.taskScheduler = Executors.newScheduledThreadPool(2);
-        // the scheduler waits until each execution is finished before
-        // scheduling the next one, so executions of a given task
-        // will never overlap.
-        // Codes_SRS_DEVICECLIENT_11_023: [The function shall schedule send tasks to run every SEND_PERIOD_MILLIS milliseconds.]
-        this.taskScheduler.scheduleAtFixedRate(sendTask, 0,
-                SEND_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
-        // Codes_SRS_DEVICECLIENT_11_024: [The function shall schedule receive tasks to run every RECEIVE_PERIOD_MILLIS milliseconds.]
-        this.taskScheduler.scheduleAtFixedRate(receiveTask, 0,
-                RECEIVE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        // the send task only runs when the transport signals that it has
+        // work, and retries every SEND_PERIOD_MILLIS milliseconds while work
+        // is left over, so an idle client does not wake up at all.
+        // Codes_SRS_DEVICECLIENT_11_023: [The function shall create a send task that is signalled by the transport whenever it has work, and that retries every SEND_PERIOD_MILLIS milliseconds while the transport is not empty.]
+        IotHubSendTask sendTask = new IotHubSendTask(this.transport, this.taskScheduler, SEND_PERIOD_MILLIS);
+        this.transport.setSendTask(sendTask);
+        // flush anything that was queued before the client was opened.
+        sendTask.signal();
+
+        IotHubReceiveTask receiveTask = new IotHubReceiveTask(this.transport, this.taskScheduler);
+        if (this.transport.setReceiveTask(receiveTask))
+        {
+            // Codes_SRS_DEVICECLIENT_21_083: [If the transport signals the receive task when messages arrive, the function shall not schedule the receive task, but run it once for the messages that arrived while the transport was opening.]
+            this.receiveTask = receiveTask;
+            receiveTask.signal();
+        }
+        else
+        {
+            // the scheduler waits until each execution is finished before
+            // scheduling the next one, so executions of a given task
+            // will never overlap.
+            // Codes_SRS_DEVICECLIENT_11_024: [The function shall schedule receive tasks to run every RECEIVE_PERIOD_MILLIS milliseconds.]
+            this.receiveTaskFuture = this.taskScheduler.scheduleAtFixedRate(receiveTask, 0,
+                    RECEIVE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
 
         this.state = IotHubClientState.OPEN;
     }
@@ -217,7 +308,23 @@ public final class DeviceClient implements Closeable
         {
 
         }
-        this.taskScheduler.shutdown();
+        this.transport.setSendTask(null);
+        this.transport.setReceiveTask(null);
+        this.receiveTask = null;
+        if (this.runtime != null)
+        {
+            // the scheduler belongs to the runtime and keeps serving other
+            // clients, so only this client's recurring task is cancelled.
+            // Codes_SRS_DEVICECLIENT_21_058: [If the client was created with a runtime, the function shall cancel its receive task and shall not shut down the runtime's scheduler.]
+            if (this.receiveTaskFuture != null)
+            {
+                this.receiveTaskFuture.cancel(false);
+            }
+        }
+        else
+        {
+            this.taskScheduler.shutdown();
+        }
         // Codes_SRS_DEVICECLIENT_11_037: [The function shall close the transport.]
         this.transport.close();
         this.state = IotHubClientState.CLOSED;
@@ -254,9 +361,149 @@ public final class DeviceClient implements Closeable
             throw new IllegalArgumentException("Cannot send message 'null'.");
         }
 
-        logger.LogInfo("Message with messageid %s along with callback and callbackcontext is added to the queue, method name is %s ", message.getMessageId(), logger.getMethodName());
+        logger.LogInfo("Message with messageid %s along with callback and callbackcontext is added to the queue, method name is sendEventAsync ", message.getMessageId());
         // Codes_SRS_DEVICECLIENT_11_006: [The function shall add the message, with its associated callback and callback context, to the transport.]
-        transport.addMessage(message, callback, callbackContext);
+        // Codes_SRS_DEVICECLIENT_21_075: [If a callback executor is set, the function shall give the transport a callback that runs the given callback on it.]
+        transport.addMessage(message, this.dispatch(callback), callbackContext);
+    }
+
+    /**
+     * Asynchronously sends an event message to the IoT Hub, returning a
+     * {@link Future} that completes with the IoT Hub's response status once
+     * the message is acknowledged. Producers can wait on it to pace
+     * themselves against the rate at which the IoT Hub accepts messages.
+     *
+     * @param message the message to be sent.
+     *
+     * @return a future for the status of the message.
+     *
+     * @throws IllegalArgumentException if the message provided is {@code null}.
+     * @throws IllegalStateException if the client has not been opened yet or is
+     * already closed, or if the send queue is full and the
+     * {@link SendQueueFullPolicy#FAIL_FAST} policy is configured.
+     */
+    public Future<IotHubStatusCode> sendEventAsync(Message message)
+    {
+        // Codes_SRS_DEVICECLIENT_21_059: [The function shall send the message with a callback that completes the returned future with the response status.]
+        IotHubEventFuture future = new IotHubEventFuture();
+        this.sendEventAsync(message, future, null);
+        return future;
+    }
+
+    /**
+     * Asynchronously sends a batch of event messages to the IoT Hub. The
+     * batch is handed to the transport as a single unit: AMQPS sends it in a
+     * single batched delivery, HTTPS in a single batched request if it fits,
+     * and MQTT publishes its messages back to back.
+     *
+     * @param messages the messages to be sent, in order.
+     * @param callback the callback to be invoked once a response is received
+     * for every message, with the status of each message in the order of the
+     * batch. Can be {@code null}.
+     * @param callbackContext a context to be passed to the callback. Can be
+     * {@code null} if no callback is provided.
+     *
+     * @throws IllegalArgumentException if the list of messages is {@code null}
+     * or empty, or holds a {@code null} message.
+     * @throws IllegalStateException if the client has not been opened yet or is
+     * already closed, or if the send queue is full and the
+     * {@link SendQueueFullPolicy#FAIL_FAST} policy is configured. In the
+     * latter case the messages already taken by the transport may still be
+     * sent, but the callback is not invoked.
+     */
+    public void sendEventBatchAsync(List<Message> messages,
+            IotHubBatchEventCallback callback,
+            Object callbackContext)
+    {
+        // Codes_SRS_DEVICECLIENT_21_069: [If the client is closed, the function shall throw an IllegalStateException.]
+        if (this.state == IotHubClientState.CLOSED)
+        {
+            throw new IllegalStateException(
+                    "Cannot send event from "
+                            + "an IoT Hub client that is closed.");
+        }
+
+        // Codes_SRS_DEVICECLIENT_21_070: [If the list of messages is null or empty, or holds a null message, the function shall throw an IllegalArgumentException.]
+        if (messages == null || messages.isEmpty() || messages.contains(null))
+        {
+            throw new IllegalArgumentException("Cannot send a null or empty batch of messages.");
+        }
+
+        // Codes_SRS_DEVICECLIENT_21_071: [The function shall give each message a callback that records its status, and invoke the batch callback once every message has one.]
+        // Codes_SRS_DEVICECLIENT_21_075: [If a callback executor is set, the function shall give the transport a callback that runs the given callback on it.]
+        IotHubEventCallback collector = callback == null
+                ? null : this.dispatch(new IotHubBatchEventCollector(messages.size(), callback, callbackContext));
+        List<IotHubOutboundPacket> batch = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++)
+        {
+            batch.add(new IotHubOutboundPacket(messages.get(i), collector, collector == null ? null : i));
+        }
+
+        logger.LogInfo("Batch of %s messages along with callback and callbackcontext is added to the queue, method name is sendEventBatchAsync ", messages.size());
+        // Codes_SRS_DEVICECLIENT_21_072: [The function shall add the batch to the transport as a single unit.]
+        this.transport.addMessageBatch(batch);
+    }
+
+    /**
+     * Updates reported properties of the device twin. The updates made within
+     * a short window are sent to the IoT Hub as one patch, which keeps the last
+     * value given to each property. The device twin is only available over
+     * MQTT.
+     *
+     * @param properties the values of the properties, {@code null} to remove one.
+     *
+     * @throws IllegalArgumentException if the properties are {@code null}.
+     * @throws IllegalStateException if the client has not been opened yet or is
+     * already closed.
+     * @throws UnsupportedOperationException if the client does not use MQTT.
+     * @throws IOException if the device twin could not be started.
+     */
+    public void updateReportedProperties(Map<String, ?> properties) throws IOException
+    {
+        // Codes_SRS_DEVICECLIENT_21_091: [If the properties are null, the function shall throw an IllegalArgumentException.]
+        if (properties == null)
+        {
+            throw new IllegalArgumentException("Reported properties cannot be null.");
+        }
+
+        // Codes_SRS_DEVICECLIENT_21_092: [The function shall hand the properties to the MQTT transport.]
+        this.twinTransport().updateReportedProperties(properties);
+    }
+
+    /**
+     * Returns the desired properties of the device twin, kept up to date as
+     * the IoT Hub sends their updates. The first call starts the device twin,
+     * and the properties are available once the IoT Hub has sent the twin.
+     * The device twin is only available over MQTT.
+     *
+     * @return a copy of the desired properties, without their version, or
+     * {@code null} until the twin is read.
+     *
+     * @throws IllegalStateException if the client has not been opened yet or is
+     * already closed.
+     * @throws UnsupportedOperationException if the client does not use MQTT.
+     * @throws IOException if the device twin could not be started.
+     */
+    public JsonObject getDesiredProperties() throws IOException
+    {
+        // Codes_SRS_DEVICECLIENT_21_093: [The function shall return the desired properties kept by the MQTT transport.]
+        return this.twinTransport().getDesiredProperties();
+    }
+
+    private MqttTransport twinTransport()
+    {
+        // Codes_SRS_DEVICECLIENT_21_094: [If the client is closed, the device twin functions shall throw an IllegalStateException.]
+        if (this.state == IotHubClientState.CLOSED)
+        {
+            throw new IllegalStateException("Cannot use the device twin of an IoT Hub client that is closed.");
+        }
+
+        // Codes_SRS_DEVICECLIENT_21_095: [If the client does not use MQTT, the device twin functions shall throw an UnsupportedOperationException.]
+        if (!(this.transport instanceof MqttTransport))
+        {
+            throw new UnsupportedOperationException("The device twin is only available over MQTT.");
+        }
+        return (MqttTransport) this.transport;
     }
 
     /**
@@ -284,10 +531,29 @@ public final class DeviceClient implements Closeable
         }
 
         // Codes_SRS_DEVICECLIENT_11_012: [The function shall set the message callback, with its associated context.]
-        this.config.setMessageCallback(callback, context);
+        // Codes_SRS_DEVICECLIENT_21_076: [If a callback executor is set, the function shall set a message callback that runs the given callback on it.]
+        this.messageCallback = callback;
+        this.messageCallbackContext = context;
+        this.config.setMessageCallback(this.dispatch(callback), context);
+        IotHubReceiveTask task = this.receiveTask;
+        if (task != null)
+        {
+            // Codes_SRS_DEVICECLIENT_21_084: [If the transport signals the receive task, the function shall signal it, so that messages that arrived while there was no callback are handled.]
+            task.signal();
+        }
         return this;
     }
 
+    private IotHubEventCallback dispatch(IotHubEventCallback callback)
+    {
+        return this.callbackDispatcher == null ? callback : this.callbackDispatcher.wrap(callback);
+    }
+
+    private MessageCallback dispatch(MessageCallback callback)
+    {
+        return this.callbackDispatcher == null ? callback : this.callbackDispatcher.wrap(callback);
+    }
+
     /**
      * Initializes an IoT Hub device client with the given parameters.
      *
@@ -380,7 +646,7 @@ public final class DeviceClient implements Closeable
 
     private void setOption_SetMinimumPollingInterval(Object value)
     {
-        logger.LogInfo("Setting MinimumPollingInterval as %s milliseconds, method name is %s ", value, logger.getMethodName());
+        logger.LogInfo("Setting MinimumPollingInterval as %s milliseconds, method name is setOption_SetMinimumPollingInterval ", value);
         if (!value.equals(null)) {
             if (this.state != IotHubClientState.CLOSED) {
                 throw new IllegalStateException("setOption " + SET_MINIMUM_POLLING_INTERVAL +
@@ -401,7 +667,7 @@ public final class DeviceClient implements Closeable
 
     private void setOption_SetCertificatePath(Object value)
     {
-        logger.LogInfo("Setting CertificatePath as %s, method name is %s ", value, logger.getMethodName());
+        logger.LogInfo("Setting CertificatePath as %s, method name is setOption_SetCertificatePath ", value);
         if (this.state != IotHubClientState.CLOSED) {
             throw new IllegalStateException("setOption " + SET_CERTIFICATE_PATH +
                     "only works when the transport is closed");
@@ -416,7 +682,7 @@ public final class DeviceClient implements Closeable
 
     private void setOption_SetSASTokenExpiryTime(Object value)
     {
-        logger.LogInfo("Setting SASTokenExpiryTime as %s seconds, method name is %s ", value, logger.getMethodName());
+        logger.LogInfo("Setting SASTokenExpiryTime as %s seconds, method name is setOption_SetSASTokenExpiryTime ", value);
         if (!value.equals(null)) {
             //**Codes_SRS_DEVICECLIENT_25_009: [**"SetSASTokenExpiryTime" should have value type long**.]**
             long validTimeInSeconds;
@@ -470,6 +736,184 @@ public final class DeviceClient implements Closeable
 
 
 
+    private void setOption_SetSendQueueLimit(String optionName, Object value)
+    {
+        logger.LogInfo("Setting %s as %s, method name is setOption_SetSendQueueLimit ", optionName, value);
+        // Codes_SRS_DEVICECLIENT_21_060: [The send queue options shall only be set while the client is closed.]
+        if (this.state != IotHubClientState.CLOSED)
+        {
+            throw new IllegalStateException("setOption " + optionName +
+                    " only works when the transport is closed");
+        }
+        if (value == null)
+        {
+            throw new IllegalArgumentException("value cannot be null");
+        }
+
+        switch (optionName)
+        {
+            case SET_SEND_QUEUE_MAX_MESSAGES:
+                // Codes_SRS_DEVICECLIENT_21_061: ["SetSendQueueMaxMessages" shall have value type int.]
+                if (!(value instanceof Integer))
+                {
+                    throw new IllegalArgumentException("value is not int = " + value);
+                }
+                this.config.setSendQueueMaxMessages((int) value);
+                break;
+            case SET_SEND_QUEUE_MAX_BYTES:
+                // Codes_SRS_DEVICECLIENT_21_062: ["SetSendQueueMaxBytes" shall have value type long.]
+                if (!(value instanceof Long))
+                {
+                    throw new IllegalArgumentException("value is not long = " + value);
+                }
+                this.config.setSendQueueMaxBytes((long) value);
+                break;
+            default:
+                // Codes_SRS_DEVICECLIENT_21_063: ["SetSendQueueFullPolicy" shall have value type SendQueueFullPolicy.]
+                if (!(value instanceof SendQueueFullPolicy))
+                {
+                    throw new IllegalArgumentException("value is not a SendQueueFullPolicy = " + value);
+                }
+                this.config.setSendQueueFullPolicy((SendQueueFullPolicy) value);
+                break;
+        }
+    }
+
+    private void setOption_SetSendJournal(String optionName, Object value)
+    {
+        logger.LogInfo("Setting %s as %s, method name is setOption_SetSendJournal ", optionName, value);
+        // Codes_SRS_DEVICECLIENT_21_066: [The send journal options shall only be set while the client is closed.]
+        if (this.state != IotHubClientState.CLOSED)
+        {
+            throw new IllegalStateException("setOption " + optionName +
+                    " only works when the transport is closed");
+        }
+
+        if (optionName.equals(SET_SEND_JOURNAL_DIRECTORY))
+        {
+            // Codes_SRS_DEVICECLIENT_21_067: ["SetSendJournalDirectory" shall have value type String, or be null to disable the journal.]
+            if (value != null && !(value instanceof String))
+            {
+                throw new IllegalArgumentException("value is not String = " + value);
+            }
+            this.config.setSendJournalDirectory((String) value);
+        }
+        else
+        {
+            // Codes_SRS_DEVICECLIENT_21_068: ["SetSendJournalMaxBytes" shall have value type long.]
+            if (!(value instanceof Long))
+            {
+                throw new IllegalArgumentException("value is not long = " + value);
+            }
+            this.config.setSendJournalMaxBytes((long) value);
+        }
+    }
+
+    private void setOption_SetCallbackExecutor(String optionName, Object value)
+    {
+        logger.LogInfo("Setting %s as %s, method name is setOption_SetCallbackExecutor ", optionName, value);
+        // Codes_SRS_DEVICECLIENT_21_073: [The callback executor options shall only be set while the client is closed.]
+        if (this.state != IotHubClientState.CLOSED)
+        {
+            throw new IllegalStateException("setOption " + optionName +
+                    " only works when the transport is closed");
+        }
+
+        if (optionName.equals(SET_CALLBACK_EXECUTOR))
+        {
+            // Codes_SRS_DEVICECLIENT_21_074: ["SetCallbackExecutor" shall have value type Executor, or be null to run callbacks on the client's own threads.]
+            if (value != null && !(value instanceof Executor))
+            {
+                throw new IllegalArgumentException("value is not an Executor = " + value);
+            }
+            this.callbackExecutor = (Executor) value;
+        }
+        else
+        {
+            // Codes_SRS_DEVICECLIENT_21_077: ["SetCallbackQueueCapacity" shall have value type int, and be at least 1.]
+            if (!(value instanceof Integer) || (int) value < 1)
+            {
+                throw new IllegalArgumentException("value is not a positive int = " + value);
+            }
+            this.callbackQueueCapacity = (int) value;
+        }
+
+        this.callbackDispatcher = this.callbackExecutor == null
+                ? null : new CallbackDispatcher(this.callbackExecutor, this.callbackQueueCapacity);
+        if (this.messageCallback != null)
+        {
+            // Codes_SRS_DEVICECLIENT_21_076: [If a callback executor is set, the function shall set a message callback that runs the given callback on it.]
+            this.config.setMessageCallback(this.dispatch(this.messageCallback), this.messageCallbackContext);
+        }
+    }
+
+    private void setOption_SetAmqpLink(String optionName, Object value)
+    {
+        logger.LogInfo("Setting %s as %s, method name is setOption_SetAmqpLink ", optionName, value);
+        // Codes_SRS_DEVICECLIENT_21_080: [The AMQP link options shall only be set while the client is closed.]
+        if (this.state != IotHubClientState.CLOSED)
+        {
+            throw new IllegalStateException("setOption " + optionName +
+                    " only works when the transport is closed");
+        }
+
+        if (optionName.equals(SET_AMQP_SEND_SETTLED))
+        {
+            // Codes_SRS_DEVICECLIENT_21_081: ["SetAmqpSendSettled" shall have value type boolean.]
+            if (!(value instanceof Boolean))
+            {
+                throw new IllegalArgumentException("value is not boolean = " + value);
+            }
+            this.config.setAmqpSendSettled((boolean) value);
+        }
+        else
+        {
+            // Codes_SRS_DEVICECLIENT_21_082: ["SetAmqpReceiveCredit" shall have value type int, and be at least 2.]
+            if (!(value instanceof Integer) || (int) value < 2)
+            {
+                throw new IllegalArgumentException("value is not an int of at least 2 = " + value);
+            }
+            this.config.setAmqpReceiveCredit((int) value);
+        }
+    }
+
+    private void setOption_SetMqttMaxInFlight(Object value)
+    {
+        logger.LogInfo("Setting MqttMaxInFlight as %s, method name is setOption_SetMqttMaxInFlight ", value);
+        // Codes_SRS_DEVICECLIENT_21_086: [The MQTT in-flight window shall only be set while the client is closed.]
+        if (this.state != IotHubClientState.CLOSED)
+        {
+            throw new IllegalStateException("setOption " + SET_MQTT_MAX_IN_FLIGHT +
+                    " only works when the transport is closed");
+        }
+
+        // Codes_SRS_DEVICECLIENT_21_087: ["SetMqttMaxInFlight" shall have value type int, between 1 and DeviceClientConfig.MAX_MQTT_IN_FLIGHT.]
+        if (!(value instanceof Integer) || (int) value < 1 || (int) value > DeviceClientConfig.MAX_MQTT_IN_FLIGHT)
+        {
+            throw new IllegalArgumentException("value is not an int between 1 and "
+                    + DeviceClientConfig.MAX_MQTT_IN_FLIGHT + " = " + value);
+        }
+        this.config.setMqttMaxInFlight((int) value);
+    }
+
+    private void setOption_SetMqttTelemetryQos0(Object value)
+    {
+        logger.LogInfo("Setting MqttTelemetryQos0 as %s, method name is setOption_SetMqttTelemetryQos0 ", value);
+        // Codes_SRS_DEVICECLIENT_21_089: [The MQTT QoS 0 telemetry mode shall only be set while the client is closed.]
+        if (this.state != IotHubClientState.CLOSED)
+        {
+            throw new IllegalStateException("setOption " + SET_MQTT_TELEMETRY_QOS0 +
+                    " only works when the transport is closed");
+        }
+
+        // Codes_SRS_DEVICECLIENT_21_090: ["SetMqttTelemetryQos0" shall have value type boolean.]
+        if (!(value instanceof Boolean))
+        {
+            throw new IllegalArgumentException("value is not boolean = " + value);
+        }
+        this.config.setMqttTelemetryQos0((boolean) value);
+    }
+
     /**
      * Sets a runtime option identified by parameter {@code optionName}
      * to {@code value}.
@@ -489,6 +933,71 @@ public final class DeviceClient implements Closeable
      *         SASToken expires. If the transport is already open then setting this
      *         option will restart the transport with the updated expiry time. The
      *         value is expected to be of type {@code long}.
+     *      - <b>SetSendQueueMaxMessages</b> - this option is applicable for HTTP/
+     *         AMQP/MQTT. This option specifies the maximum number of messages
+     *         that have been sent but not yet acknowledged by the IoT Hub, or 0
+     *         for no limit. The value is expected to be of type {@code int}.
+     *      - <b>SetSendQueueMaxBytes</b> - this option is applicable for HTTP/
+     *         AMQP/MQTT. This option specifies the maximum number of message
+     *         body bytes that have been sent but not yet acknowledged by the
+     *         IoT Hub, or 0 for no limit. The value is expected to be of type
+     *         {@code long}.
+     *      - <b>SetSendQueueFullPolicy</b> - this option is applicable for HTTP/
+     *         AMQP/MQTT. This option specifies what happens to a message sent
+     *         while the send queue is full. The value is expected to be of type
+     *         {@link SendQueueFullPolicy}, and is {@code BLOCK} by default.
+     *      - <b>SetSendJournalDirectory</b> - this option is applicable for HTTP/
+     *         AMQP/MQTT. This option specifies the directory in which messages
+     *         are journaled until the IoT Hub acknowledges them, so that they
+     *         are sent again after a restart of the process. The value is
+     *         expected to be of type {@code String}, and is {@code null}, which
+     *         disables the journal, by default.
+     *      - <b>SetSendJournalMaxBytes</b> - this option is applicable for HTTP/
+     *         AMQP/MQTT. This option specifies the disk space that the send
+     *         journal may use. The value is expected to be of type {@code long}.
+     *      - <b>SetCallbackExecutor</b> - this option is applicable for HTTP/
+     *         AMQP/MQTT. This option specifies the executor on which event and
+     *         message callbacks run, so that slow callbacks do not delay
+     *         sending. The callbacks of a client still run one at a time, in
+     *         order. The value is expected to be of type
+     *         {@link java.util.concurrent.Executor}, and is {@code null}, which
+     *         runs callbacks on the client's own threads, by default.
+     *      - <b>SetCallbackQueueCapacity</b> - this option is applicable for
+     *         HTTP/AMQP/MQTT. This option specifies how many callbacks may wait
+     *         to run on the callback executor before the client waits for them.
+     *         The value is expected to be of type {@code int}.
+     *      - <b>SetAmqpSendSettled</b> - this option is applicable only when
+     *         the transport configured with this client is AMQP. This option
+     *         specifies that messages are settled as they are sent, and that
+     *         their callbacks complete with {@code OK_EMPTY} without waiting
+     *         for the IoT Hub to acknowledge them. A message lost on the way
+     *         is not sent again, so this suits high-rate telemetry that
+     *         tolerates an occasional loss. The value is expected to be of
+     *         type {@code boolean}, and is {@code false} by default.
+     *      - <b>SetAmqpReceiveCredit</b> - this option is applicable only when
+     *         the transport configured with this client is AMQP. This option
+     *         specifies how many messages the IoT Hub may send ahead of their
+     *         handling by the message callback, and should match what the
+     *         callback handles between two runs of the receive task. The
+     *         value is expected to be of type {@code int}, at least 2, and is
+     *         {@link DeviceClientConfig#DEFAULT_AMQP_RECEIVE_CREDIT} by default.
+     *      - <b>SetMqttMaxInFlight</b> - this option is applicable only when
+     *         the transport configured with this client is MQTT. This option
+     *         specifies how many messages may be published before the IoT Hub
+     *         acknowledges the first of them. Each message completes when its
+     *         acknowledgement arrives. The value is expected to be of type
+     *         {@code int}, between 1 and
+     *         {@link DeviceClientConfig#MAX_MQTT_IN_FLIGHT}, which is also the
+     *         default.
+     *      - <b>SetMqttTelemetryQos0</b> - this option is applicable only when
+     *         the transport configured with this client is MQTT. This option
+     *         specifies that messages are published at QoS 0, and that their
+     *         callbacks complete with {@code OK_EMPTY} without waiting for the
+     *         IoT Hub to acknowledge them. A message lost on the way is not
+     *         sent again, so this suits high-rate telemetry that tolerates an
+     *         occasional loss. Device methods and device twin keep QoS 1 on
+     *         the same connection. The value is expected to be of type
+     *         {@code boolean}, and is {@code false} by default.
      *
      * @param optionName the option name to modify
      * @param value an object of the appropriate type for the option's value
@@ -509,7 +1018,7 @@ public final class DeviceClient implements Closeable
                         setOption_SetMinimumPollingInterval(value);
 
                     } else {
-                        logger.LogError("optionName is unknown = %s for %s, method name is %s ", optionName, this.transport.getClass(), logger.getMethodName());
+                        logger.LogError("optionName is unknown = %s for %s, method name is setOption ", optionName, this.transport.getClass());
                         // Codes_SRS_DEVICECLIENT_02_001: [If optionName is null or not an option
                         // handled by the client, then it shall throw IllegalArgumentException.]
                         throw new IllegalArgumentException("optionName is unknown = " + optionName
@@ -527,7 +1036,7 @@ public final class DeviceClient implements Closeable
                         setOption_SetCertificatePath(value);
 
                     } else {
-                        logger.LogError("optionName is unknown = %s for %s, method name is %s ", optionName, this.transport.getClass(), logger.getMethodName());
+                        logger.LogError("optionName is unknown = %s for %s, method name is setOption ", optionName, this.transport.getClass());
                         // Codes_SRS_DEVICECLIENT_02_001: [If optionName is null or not an option handled by the
                         // client, then it shall throw IllegalArgumentException.]
                         throw new IllegalArgumentException("optionName is unknown = " + optionName +
@@ -544,7 +1053,81 @@ public final class DeviceClient implements Closeable
                         setOption_SetSASTokenExpiryTime(value);
 
                     } else {
-                        logger.LogError("optionName is unknown = %s for %s, method name is %s ", optionName, this.transport.getClass(), logger.getMethodName());
+                        logger.LogError("optionName is unknown = %s for %s, method name is setOption ", optionName, this.transport.getClass());
+                        // Codes_SRS_DEVICECLIENT_02_001: [If optionName is null or not an option handled by the
+                        // client, then it shall throw IllegalArgumentException.]
+                        throw new IllegalArgumentException("optionName is unknown = " + optionName +
+                                " for " + this.transport.getClass());
+                    }
+                    break;
+                }
+
+                //**Codes_SRS_DEVICECLIENT_21_064: [**"SetSendQueueMaxMessages", "SetSendQueueMaxBytes" and "SetSendQueueFullPolicy" are available for HTTPS/AMQP/MQTT.**]**
+                case SET_SEND_QUEUE_MAX_MESSAGES:
+                case SET_SEND_QUEUE_MAX_BYTES:
+                case SET_SEND_QUEUE_FULL_POLICY: {
+                    setOption_SetSendQueueLimit(optionName, value);
+                    break;
+                }
+
+                //**Codes_SRS_DEVICECLIENT_21_065: [**"SetSendJournalDirectory" and "SetSendJournalMaxBytes" are available for HTTPS/AMQP/MQTT.**]**
+                case SET_SEND_JOURNAL_DIRECTORY:
+                case SET_SEND_JOURNAL_MAX_BYTES: {
+                    setOption_SetSendJournal(optionName, value);
+                    break;
+                }
+
+                //**Codes_SRS_DEVICECLIENT_21_078: [**"SetCallbackExecutor" and "SetCallbackQueueCapacity" are available for HTTPS/AMQP/MQTT.**]**
+                case SET_CALLBACK_EXECUTOR:
+                case SET_CALLBACK_QUEUE_CAPACITY: {
+                    setOption_SetCallbackExecutor(optionName, value);
+                    break;
+                }
+
+                //**Codes_SRS_DEVICECLIENT_21_079: [**"SetAmqpSendSettled" and "SetAmqpReceiveCredit" are available only for AMQP.**]**
+                case SET_AMQP_SEND_SETTLED:
+                case SET_AMQP_RECEIVE_CREDIT: {
+                    if (this.transport.getClass() == AmqpsTransport.class)
+                    {
+                        setOption_SetAmqpLink(optionName, value);
+                    }
+                    else
+                    {
+                        logger.LogError("optionName is unknown = %s for %s, method name is setOption ", optionName, this.transport.getClass());
+                        // Codes_SRS_DEVICECLIENT_02_001: [If optionName is null or not an option handled by the
+                        // client, then it shall throw IllegalArgumentException.]
+                        throw new IllegalArgumentException("optionName is unknown = " + optionName +
+                                " for " + this.transport.getClass());
+                    }
+                    break;
+                }
+
+                //**Codes_SRS_DEVICECLIENT_21_085: [**"SetMqttMaxInFlight" is available only for MQTT.**]**
+                case SET_MQTT_MAX_IN_FLIGHT: {
+                    if (this.transport.getClass() == MqttTransport.class)
+                    {
+                        setOption_SetMqttMaxInFlight(value);
+                    }
+                    else
+                    {
+                        logger.LogError("optionName is unknown = %s for %s, method name is setOption ", optionName, this.transport.getClass());
+                        // Codes_SRS_DEVICECLIENT_02_001: [If optionName is null or not an option handled by the
+                        // client, then it shall throw IllegalArgumentException.]
+                        throw new IllegalArgumentException("optionName is unknown = " + optionName +
+                                " for " + this.transport.getClass());
+                    }
+                    break;
+                }
+
+                //**Codes_SRS_DEVICECLIENT_21_088: [**"SetMqttTelemetryQos0" is available only for MQTT.**]**
+                case SET_MQTT_TELEMETRY_QOS0: {
+                    if (this.transport.getClass() == MqttTransport.class)
+                    {
+                        setOption_SetMqttTelemetryQos0(value);
+                    }
+                    else
+                    {
+                        logger.LogError("optionName is unknown = %s for %s, method name is setOption ", optionName, this.transport.getClass());
                         // Codes_SRS_DEVICECLIENT_02_001: [If optionName is null or not an option handled by the
                         // client, then it shall throw IllegalArgumentException.]
                         throw new IllegalArgumentException("optionName is unknown = " + optionName +
@@ -40,6 +40,42 @@ public final class DeviceClientConfig
     /** The context to be passed in to the message callback. */
     protected Object messageContext;
 
+    /** The runtime shared with other clients, or {@code null} if the client owns its threads. */
+    protected DeviceClientRuntime runtime;
+
+    /** The maximum number of unacknowledged messages, or 0 for no limit. */
+    protected int sendQueueMaxMessages;
+    /** The maximum number of unacknowledged message body bytes, or 0 for no limit. */
+    protected long sendQueueMaxBytes;
+    /** What to do when a message is sent while the send queue is full. */
+    protected SendQueueFullPolicy sendQueueFullPolicy = SendQueueFullPolicy.BLOCK;
+
+    /** The default value for sendJournalMaxBytes. */
+    public static final long DEFAULT_SEND_JOURNAL_MAX_BYTES = 64L * 1024 * 1024;
+
+    /** The directory in which unacknowledged messages are journaled, or {@code null} to keep them in memory only. */
+    protected String sendJournalDirectory;
+    /** The disk space that the send journal may use. */
+    protected long sendJournalMaxBytes = DEFAULT_SEND_JOURNAL_MAX_BYTES;
+
+    /** Whether AMQP messages are settled when sent, instead of when the IoT Hub acknowledges them. */
+    protected boolean amqpSendSettled;
+
+    /** The default value for amqpReceiveCredit. */
+    public static final int DEFAULT_AMQP_RECEIVE_CREDIT = 1024;
+
+    /** The number of messages the IoT Hub may send on the AMQP receive link ahead of their handling. */
+    protected int amqpReceiveCredit = DEFAULT_AMQP_RECEIVE_CREDIT;
+
+    /** The most MQTT messages the paho client keeps in flight, which is also the default for mqttMaxInFlight. */
+    public static final int MAX_MQTT_IN_FLIGHT = 10;
+
+    /** The number of MQTT messages that may be published ahead of their acknowledgement. */
+    protected int mqttMaxInFlight = MAX_MQTT_IN_FLIGHT;
+
+    /** Whether MQTT telemetry is published at QoS 0, instead of QoS 1. */
+    protected boolean mqttTelemetryQos0;
+
     protected CustomLogger logger;
     /**
      * Constructor.
@@ -81,7 +117,7 @@ public final class DeviceClientConfig
         // Codes_SRS_DEVICECLIENTCONFIG_25_017: [**The constructor shall save sharedAccessToken.**] **
         this.sharedAccessToken = sharedAccessToken;
         this.logger = new CustomLogger(this.getClass());
-        logger.LogInfo("DeviceClientConfig object is created successfully with IotHubName=%s, deviceID=%s , method name is %s ", this.iotHubName, this.deviceId, logger.getMethodName());
+        logger.LogInfo("DeviceClientConfig object is created successfully with IotHubName=%s, deviceID=%s , method name is DeviceClientConfig ", this.iotHubName, this.deviceId);
     }
 
     /**
@@ -108,6 +144,297 @@ public final class DeviceClientConfig
         this.messageContext = context;
     }
 
+    /**
+     * Setter for the runtime whose threads the client shares with other
+     * clients. Can be {@code null}.
+     *
+     * @param runtime the shared runtime. Can be {@code null}.
+     */
+    public void setRuntime(DeviceClientRuntime runtime)
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_019: [The function shall save the runtime.]
+        this.runtime = runtime;
+    }
+
+    /**
+     * Getter for the runtime whose threads the client shares with other
+     * clients.
+     *
+     * @return the shared runtime, or {@code null} if the client owns its
+     * threads.
+     */
+    public DeviceClientRuntime getRuntime()
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_020: [The function shall return the runtime, or null if none was set.]
+        return this.runtime;
+    }
+
+    /**
+     * Setter for the maximum number of messages that have been sent but not
+     * yet acknowledged by the IoT Hub.
+     *
+     * @param maxMessages the maximum number of messages, or 0 for no limit.
+     *
+     * @throws IllegalArgumentException if {@code maxMessages} is negative.
+     */
+    public void setSendQueueMaxMessages(int maxMessages)
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_021: [If the limit is negative, the function shall throw an IllegalArgumentException.]
+        if (maxMessages < 0)
+        {
+            throw new IllegalArgumentException("Send queue limit cannot be negative.");
+        }
+
+        // Codes_SRS_DEVICECLIENTCONFIG_21_022: [The function shall save the limit.]
+        this.sendQueueMaxMessages = maxMessages;
+    }
+
+    /**
+     * Setter for the maximum number of message body bytes that have been
+     * sent but not yet acknowledged by the IoT Hub.
+     *
+     * @param maxBytes the maximum number of bytes, or 0 for no limit.
+     *
+     * @throws IllegalArgumentException if {@code maxBytes} is negative.
+     */
+    public void setSendQueueMaxBytes(long maxBytes)
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_021: [If the limit is negative, the function shall throw an IllegalArgumentException.]
+        if (maxBytes < 0)
+        {
+            throw new IllegalArgumentException("Send queue limit cannot be negative.");
+        }
+
+        // Codes_SRS_DEVICECLIENTCONFIG_21_022: [The function shall save the limit.]
+        this.sendQueueMaxBytes = maxBytes;
+    }
+
+    /**
+     * Setter for what to do when a message is sent while the send queue is
+     * full.
+     *
+     * @param policy the send queue policy.
+     *
+     * @throws IllegalArgumentException if {@code policy} is {@code null}.
+     */
+    public void setSendQueueFullPolicy(SendQueueFullPolicy policy)
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_026: [If the policy is null, the function shall throw an IllegalArgumentException.]
+        if (policy == null)
+        {
+            throw new IllegalArgumentException("Send queue policy cannot be null.");
+        }
+
+        // Codes_SRS_DEVICECLIENTCONFIG_21_027: [The function shall save the policy.]
+        this.sendQueueFullPolicy = policy;
+    }
+
+    /**
+     * Getter for the maximum number of unacknowledged messages.
+     *
+     * @return the maximum number of messages, or 0 if there is no limit.
+     */
+    public int getSendQueueMaxMessages()
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_023: [The function shall return the maximum number of messages, which is 0 by default.]
+        return this.sendQueueMaxMessages;
+    }
+
+    /**
+     * Getter for the maximum number of unacknowledged message body bytes.
+     *
+     * @return the maximum number of bytes, or 0 if there is no limit.
+     */
+    public long getSendQueueMaxBytes()
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_024: [The function shall return the maximum number of bytes, which is 0 by default.]
+        return this.sendQueueMaxBytes;
+    }
+
+    /**
+     * Getter for what to do when a message is sent while the send queue is
+     * full.
+     *
+     * @return the send queue policy.
+     */
+    public SendQueueFullPolicy getSendQueueFullPolicy()
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_025: [The function shall return the send queue policy, which is BLOCK by default.]
+        return this.sendQueueFullPolicy;
+    }
+
+    /**
+     * Setter for the directory in which messages are journaled until the IoT
+     * Hub acknowledges them, so that they survive a restart of the process.
+     *
+     * @param directory the journal directory, or {@code null} to keep
+     * unacknowledged messages in memory only.
+     */
+    public void setSendJournalDirectory(String directory)
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_028: [The function shall save the journal directory.]
+        this.sendJournalDirectory = directory;
+    }
+
+    /**
+     * Getter for the directory in which messages are journaled.
+     *
+     * @return the journal directory, or {@code null} if messages are kept in
+     * memory only.
+     */
+    public String getSendJournalDirectory()
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_029: [The function shall return the journal directory, which is null by default.]
+        return this.sendJournalDirectory;
+    }
+
+    /**
+     * Setter for the disk space that the send journal may use.
+     *
+     * @param maxBytes the maximum size of the journal, in bytes.
+     *
+     * @throws IllegalArgumentException if {@code maxBytes} is not positive.
+     */
+    public void setSendJournalMaxBytes(long maxBytes)
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_030: [If the size is not positive, the function shall throw an IllegalArgumentException.]
+        if (maxBytes <= 0)
+        {
+            throw new IllegalArgumentException("Send journal size must be positive.");
+        }
+
+        // Codes_SRS_DEVICECLIENTCONFIG_21_031: [The function shall save the size.]
+        this.sendJournalMaxBytes = maxBytes;
+    }
+
+    /**
+     * Getter for the disk space that the send journal may use.
+     *
+     * @return the maximum size of the journal, in bytes.
+     */
+    public long getSendJournalMaxBytes()
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_032: [The function shall return the maximum size of the journal, which is DEFAULT_SEND_JOURNAL_MAX_BYTES by default.]
+        return this.sendJournalMaxBytes;
+    }
+
+    /**
+     * Setter for the AMQP settled send mode. In this mode messages are
+     * settled as they are sent, and their callbacks are completed without
+     * waiting for the IoT Hub to acknowledge them, so a message lost on the
+     * way is not sent again.
+     *
+     * @param sendSettled whether messages are settled when sent.
+     */
+    public void setAmqpSendSettled(boolean sendSettled)
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_033: [The function shall save the AMQP settled send mode.]
+        this.amqpSendSettled = sendSettled;
+    }
+
+    /**
+     * Getter for the AMQP settled send mode.
+     *
+     * @return whether AMQP messages are settled when sent.
+     */
+    public boolean isAmqpSendSettled()
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_034: [The function shall return the AMQP settled send mode, which is false by default.]
+        return this.amqpSendSettled;
+    }
+
+    /**
+     * Setter for the AMQP receive link credit, which is the number of
+     * messages the IoT Hub may send ahead of their handling by the message
+     * callback. It should match what the callback can handle between two
+     * runs of the receive task.
+     *
+     * @param credit the receive link credit.
+     *
+     * @throws IllegalArgumentException if {@code credit} is less than 2.
+     */
+    public void setAmqpReceiveCredit(int credit)
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_035: [If the credit is less than 2, the function shall throw an IllegalArgumentException.]
+        // a credit of 1 is not kept up, since the settlement of the only message may go unnoticed.
+        if (credit < 2)
+        {
+            throw new IllegalArgumentException("AMQP receive credit must be at least 2.");
+        }
+
+        // Codes_SRS_DEVICECLIENTCONFIG_21_036: [The function shall save the credit.]
+        this.amqpReceiveCredit = credit;
+    }
+
+    /**
+     * Getter for the AMQP receive link credit.
+     *
+     * @return the receive link credit.
+     */
+    public int getAmqpReceiveCredit()
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_037: [The function shall return the AMQP receive credit, which is DEFAULT_AMQP_RECEIVE_CREDIT by default.]
+        return this.amqpReceiveCredit;
+    }
+
+    /**
+     * Setter for the MQTT in-flight window, which is the number of messages
+     * that may be published before the IoT Hub acknowledges the first of
+     * them.
+     *
+     * @param maxInFlight the in-flight window.
+     *
+     * @throws IllegalArgumentException if {@code maxInFlight} is less than 1
+     * or greater than {@link #MAX_MQTT_IN_FLIGHT}.
+     */
+    public void setMqttMaxInFlight(int maxInFlight)
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_038: [If the window is less than 1 or greater than MAX_MQTT_IN_FLIGHT, the function shall throw an IllegalArgumentException.]
+        if (maxInFlight < 1 || maxInFlight > MAX_MQTT_IN_FLIGHT)
+        {
+            throw new IllegalArgumentException("MQTT in-flight window must be between 1 and " + MAX_MQTT_IN_FLIGHT + ".");
+        }
+
+        // Codes_SRS_DEVICECLIENTCONFIG_21_039: [The function shall save the window.]
+        this.mqttMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * Getter for the MQTT in-flight window.
+     *
+     * @return the in-flight window.
+     */
+    public int getMqttMaxInFlight()
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_040: [The function shall return the MQTT in-flight window, which is MAX_MQTT_IN_FLIGHT by default.]
+        return this.mqttMaxInFlight;
+    }
+
+    /**
+     * Setter for the MQTT QoS 0 telemetry mode. In this mode telemetry is
+     * published at QoS 0, and its callbacks are completed without waiting
+     * for the IoT Hub to acknowledge it, so a message lost on the way is not
+     * sent again. Device methods and device twin keep QoS 1.
+     *
+     * @param telemetryQos0 whether telemetry is published at QoS 0.
+     */
+    public void setMqttTelemetryQos0(boolean telemetryQos0)
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_041: [The function shall save the MQTT QoS 0 telemetry mode.]
+        this.mqttTelemetryQos0 = telemetryQos0;
+    }
+
+    /**
+     * Getter for the MQTT QoS 0 telemetry mode.
+     *
+     * @return whether MQTT telemetry is published at QoS 0.
+     */
+    public boolean isMqttTelemetryQos0()
+    {
+        // Codes_SRS_DEVICECLIENTCONFIG_21_042: [The function shall return the MQTT QoS 0 telemetry mode, which is false by default.]
+        return this.mqttTelemetryQos0;
+    }
+
     /**
      * Getter for the IoT Hub hostname.
      *
@@ -0,0 +1,266 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device;
+
+import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsMultiplexedConnection;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A set of threads that can be shared by many {@link DeviceClient} instances.
+ * </p>
+ * <p>
+ * The runtime owns a small scheduler that drives the send and receive tasks
+ * of every client created with it, whose size does not depend on the number
+ * of devices, and a pool on which the AMQP reactors of those clients run.
+ * The reactor pool starts threads as they are needed: a reactor holds a
+ * thread for as long as its connection is open, so each AMQPS client that
+ * does not share its connection holds one thread of its own. At most
+ * {@code maxReactors} such clients can be open at once; opening another one
+ * fails with an {@link java.io.IOException} instead of starting yet another
+ * thread. The runtime must be closed only after all the clients using it
+ * have been closed.
+ * </p>
+ * <p>
+ * A runtime created with AMQP multiplexing also lets the AMQPS clients
+ * created with it share one AMQP connection per IoT Hub, on which each
+ * device is authorized with its own SAS token, instead of opening one
+ * connection, and holding one reactor thread, per device.
+ * </p>
+ */
+public final class DeviceClientRuntime implements Closeable
+{
+    private static final String THREAD_NAME_PREFIX = "azure-iot-sdk-";
+    /** The default for the most AMQP connections of their own open at once. */
+    public static final int DEFAULT_MAX_REACTORS = 256;
+
+    protected final ScheduledExecutorService scheduler;
+    protected final ExecutorService reactorExecutor;
+    protected final boolean amqpMultiplexed;
+    protected final int maxReactors;
+
+    /** The number of reactor threads reserved, guarded by this. */
+    private int reservedReactors;
+
+    /** The shared AMQP connections, by IoT Hub host name and web sockets use. */
+    private final Map<String, AmqpsMultiplexedConnection> multiplexedConnections = new HashMap<>();
+
+    /**
+     * Constructor that sizes the scheduler to the number of available
+     * processors.
+     */
+    public DeviceClientRuntime()
+    {
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_001: [The constructor shall create a scheduler with as many threads as there are available processors.]
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threadCount the number of threads that drive the send and
+     * receive tasks of the clients.
+     *
+     * @throws IllegalArgumentException if {@code threadCount} is less than 1.
+     */
+    public DeviceClientRuntime(int threadCount)
+    {
+        this(threadCount, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threadCount the number of threads that drive the send and
+     * receive tasks of the clients.
+     * @param amqpMultiplexed whether the AMQPS clients created with the
+     * runtime share one AMQP connection per IoT Hub.
+     *
+     * @throws IllegalArgumentException if {@code threadCount} is less than 1.
+     */
+    public DeviceClientRuntime(int threadCount, boolean amqpMultiplexed)
+    {
+        this(threadCount, amqpMultiplexed, DEFAULT_MAX_REACTORS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threadCount the number of threads that drive the send and
+     * receive tasks of the clients.
+     * @param amqpMultiplexed whether the AMQPS clients created with the
+     * runtime share one AMQP connection per IoT Hub.
+     * @param maxReactors the most AMQPS clients with a connection of their
+     * own, and so a reactor thread of their own, open at once.
+     *
+     * @throws IllegalArgumentException if {@code threadCount} or
+     * {@code maxReactors} is less than 1.
+     */
+    public DeviceClientRuntime(int threadCount, boolean amqpMultiplexed, int maxReactors)
+    {
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_002: [If threadCount is less than 1, the constructor shall throw an IllegalArgumentException.]
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("threadCount must be at least 1.");
+        }
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_012: [If maxReactors is less than 1, the constructor shall throw an IllegalArgumentException.]
+        if (maxReactors < 1)
+        {
+            throw new IllegalArgumentException("maxReactors must be at least 1.");
+        }
+        this.maxReactors = maxReactors;
+
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_003: [The constructor shall create a scheduler with threadCount threads.]
+        this.scheduler = Executors.newScheduledThreadPool(threadCount, new NamedThreadFactory("scheduler"));
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_004: [The constructor shall create a pool for the AMQP reactors that reuses idle threads.]
+        this.reactorExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("reactor"));
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_008: [The constructor shall save whether the AMQPS clients share their connections.]
+        this.amqpMultiplexed = amqpMultiplexed;
+    }
+
+    /**
+     * Getter for the scheduler that drives the send and receive tasks.
+     *
+     * @return the shared scheduler.
+     */
+    public ScheduledExecutorService getScheduler()
+    {
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_005: [The function shall return the shared scheduler.]
+        return this.scheduler;
+    }
+
+    /**
+     * Getter for the executor that runs the AMQP reactors.
+     *
+     * @return the shared reactor executor.
+     */
+    public ExecutorService getReactorExecutor()
+    {
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_006: [The function shall return the shared reactor executor.]
+        return this.reactorExecutor;
+    }
+
+    /**
+     * Reserves a reactor thread for an AMQP connection of its own, which
+     * holds it until the connection is closed.
+     *
+     * @throws IllegalStateException if {@code maxReactors} reactor threads are
+     * already reserved.
+     */
+    public synchronized void reserveReactor()
+    {
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_013: [If maxReactors reactor threads are already reserved, the function shall throw an IllegalStateException.]
+        if (this.reservedReactors >= this.maxReactors)
+        {
+            throw new IllegalStateException("All " + this.maxReactors + " reactor threads of the runtime are taken; close other AMQPS clients, "
+                    + "create the runtime with AMQP multiplexing, or allow it more reactors.");
+        }
+
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_014: [The function shall count the reactor thread as reserved.]
+        this.reservedReactors++;
+    }
+
+    /**
+     * Releases a reactor thread reserved with {@link #reserveReactor()}.
+     *
+     * @throws IllegalStateException if no reactor thread is reserved.
+     */
+    public synchronized void releaseReactor()
+    {
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_016: [If no reactor thread is reserved, the function shall throw an IllegalStateException.]
+        if (this.reservedReactors == 0)
+        {
+            throw new IllegalStateException("No reactor thread of the runtime is reserved.");
+        }
+
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_015: [The function shall count one reactor thread less as reserved.]
+        this.reservedReactors--;
+    }
+
+    /**
+     * Returns {@code true} if the AMQPS clients created with the runtime share
+     * one AMQP connection per IoT Hub.
+     *
+     * @return whether AMQP connections are shared.
+     */
+    public boolean isAmqpMultiplexed()
+    {
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_009: [The function shall return whether the AMQPS clients share their connections.]
+        return this.amqpMultiplexed;
+    }
+
+    /**
+     * Getter for the AMQP connection shared by the clients of an IoT Hub. The
+     * connection is created for the first client, and opened and closed as
+     * clients join and leave it.
+     *
+     * @param config the configuration of the client.
+     * @param useWebSockets whether the client uses web sockets.
+     *
+     * @return the shared connection.
+     *
+     * @throws IllegalStateException if the runtime was not created with AMQP
+     * multiplexing.
+     */
+    public synchronized AmqpsMultiplexedConnection getMultiplexedConnection(DeviceClientConfig config, boolean useWebSockets)
+    {
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_010: [If the runtime was not created with AMQP multiplexing, the function shall throw an IllegalStateException.]
+        if (!this.amqpMultiplexed)
+        {
+            throw new IllegalStateException("The runtime was not created with AMQP multiplexing.");
+        }
+
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_011: [The function shall return the connection shared by the clients of the same IoT Hub host and web sockets use, creating it for the first one.]
+        String key = config.getIotHubHostname() + (useWebSockets ? "/ws" : "");
+        AmqpsMultiplexedConnection connection = this.multiplexedConnections.get(key);
+        if (connection == null)
+        {
+            connection = new AmqpsMultiplexedConnection(config, useWebSockets, this.reactorExecutor);
+            this.multiplexedConnections.put(key, connection);
+        }
+        return connection;
+    }
+
+    /**
+     * Stops all the threads owned by the runtime. Clients using the runtime
+     * must be closed before the runtime is closed.
+     */
+    public void close()
+    {
+        // Codes_SRS_DEVICECLIENTRUNTIME_21_007: [The function shall shut down the scheduler and the reactor executor.]
+        this.scheduler.shutdown();
+        this.reactorExecutor.shutdown();
+    }
+
+    /**
+     * Names the runtime threads so that they can be told apart in a thread
+     * dump.
+     */
+    private static final class NamedThreadFactory implements ThreadFactory
+    {
+        private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String namePrefix;
+
+        NamedThreadFactory(String poolName)
+        {
+            this.namePrefix = THREAD_NAME_PREFIX + poolName + "-";
+        }
+
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = this.defaultFactory.newThread(runnable);
+            thread.setName(this.namePrefix + this.threadNumber.getAndIncrement());
+            return thread;
+        }
+    }
+}
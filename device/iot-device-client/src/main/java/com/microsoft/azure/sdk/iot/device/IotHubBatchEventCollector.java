@@ -0,0 +1,94 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the response status of each message of a batch, and executes the
+ * batch callback once every message has completed. It is itself the event
+ * callback of each message of the batch, whose callback context must be the
+ * {@link Integer} position of the message in the batch.
+ */
+public final class IotHubBatchEventCollector implements IotHubEventCallback
+{
+    private final IotHubStatusCode[] statuses;
+    private final IotHubBatchEventCallback callback;
+    private final Object callbackContext;
+    private int pending;
+
+    /**
+     * Constructor.
+     *
+     * @param size the number of messages in the batch.
+     * @param callback the callback to be executed once every message has
+     * completed.
+     * @param callbackContext the context to be passed to the callback.
+     *
+     * @throws IllegalArgumentException if the size is not positive or the
+     * callback is {@code null}.
+     */
+    public IotHubBatchEventCollector(int size, IotHubBatchEventCallback callback, Object callbackContext)
+    {
+        // Codes_SRS_IOTHUBBATCHEVENTCOLLECTOR_21_001: [If the size is not positive or the callback is null, the constructor shall throw an IllegalArgumentException.]
+        if (size <= 0 || callback == null)
+        {
+            throw new IllegalArgumentException("A batch callback needs a callback and at least one message.");
+        }
+
+        // Codes_SRS_IOTHUBBATCHEVENTCOLLECTOR_21_002: [The constructor shall save the callback and its context, and wait for the status of `size` messages.]
+        this.statuses = new IotHubStatusCode[size];
+        this.callback = callback;
+        this.callbackContext = callbackContext;
+        this.pending = size;
+    }
+
+    /**
+     * Records the status of one message of the batch, and executes the batch
+     * callback if it was the last one pending.
+     *
+     * @param responseStatus the response status code of the message.
+     * @param callbackContext the {@link Integer} position of the message in
+     * the batch.
+     *
+     * @throws IllegalArgumentException if the context is not the position of
+     * a message in the batch.
+     */
+    public void execute(IotHubStatusCode responseStatus, Object callbackContext)
+    {
+        // Codes_SRS_IOTHUBBATCHEVENTCOLLECTOR_21_003: [If the context is not the Integer position of a message in the batch, the function shall throw an IllegalArgumentException.]
+        if (!(callbackContext instanceof Integer)
+                || (Integer) callbackContext < 0
+                || (Integer) callbackContext >= this.statuses.length)
+        {
+            throw new IllegalArgumentException("The callback context is not a position in the batch.");
+        }
+
+        List<IotHubStatusCode> completed = null;
+        synchronized (this.statuses)
+        {
+            int position = (Integer) callbackContext;
+            // Codes_SRS_IOTHUBBATCHEVENTCOLLECTOR_21_004: [The function shall record the status of the message, ignoring any later status for the same message.]
+            if (this.statuses[position] != null)
+            {
+                return;
+            }
+            this.statuses[position] = responseStatus;
+
+            if (--this.pending == 0)
+            {
+                completed = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(this.statuses)));
+            }
+        }
+
+        // Codes_SRS_IOTHUBBATCHEVENTCOLLECTOR_21_005: [Once the status of every message is recorded, the function shall execute the batch callback with the statuses in the order of the batch.]
+        if (completed != null)
+        {
+            this.callback.execute(completed, this.callbackContext);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Future} for the status of an event sent to an IoT Hub. It is
+ * itself the event callback, and completes the first time it is executed.
+ * Queued messages cannot be recalled, so the future cannot be cancelled.
+ */
+public final class IotHubEventFuture implements Future<IotHubStatusCode>, IotHubEventCallback
+{
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private final AtomicReference<IotHubStatusCode> status = new AtomicReference<>();
+
+    /**
+     * Completes the future with the given status. Only the first call has an
+     * effect.
+     *
+     * @param responseStatus the response status code.
+     * @param callbackContext unused.
+     */
+    public void execute(IotHubStatusCode responseStatus, Object callbackContext)
+    {
+        // Codes_SRS_IOTHUBEVENTFUTURE_21_001: [The function shall complete the future with the given status if it is not already complete.]
+        if (this.status.compareAndSet(null, responseStatus))
+        {
+            this.completed.countDown();
+        }
+    }
+
+    /**
+     * Does nothing, since a message cannot be recalled once queued.
+     *
+     * @param mayInterruptIfRunning ignored.
+     *
+     * @return {@code false}.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        // Codes_SRS_IOTHUBEVENTFUTURE_21_002: [The function shall return false.]
+        return false;
+    }
+
+    public boolean isCancelled()
+    {
+        // Codes_SRS_IOTHUBEVENTFUTURE_21_003: [The function shall return false.]
+        return false;
+    }
+
+    public boolean isDone()
+    {
+        // Codes_SRS_IOTHUBEVENTFUTURE_21_004: [The function shall return true if the future is complete and false otherwise.]
+        return this.completed.getCount() == 0;
+    }
+
+    public IotHubStatusCode get() throws InterruptedException
+    {
+        // Codes_SRS_IOTHUBEVENTFUTURE_21_005: [The function shall wait for the future to complete and return its status.]
+        this.completed.await();
+        return this.status.get();
+    }
+
+    public IotHubStatusCode get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+    {
+        // Codes_SRS_IOTHUBEVENTFUTURE_21_006: [If the future does not complete within the timeout, the function shall throw a TimeoutException.]
+        if (!this.completed.await(timeout, unit))
+        {
+            throw new TimeoutException("The IoT Hub did not respond in time.");
+        }
+
+        // Codes_SRS_IOTHUBEVENTFUTURE_21_005: [The function shall wait for the future to complete and return its status.]
+        return this.status.get();
+    }
+}
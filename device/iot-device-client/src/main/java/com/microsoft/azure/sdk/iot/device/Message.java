@@ -192,6 +192,16 @@ public class Message
         return bodyClone;
     }
 
+    /**
+     * The length of the body, without copying it.
+     * @return The number of bytes in this Message body, or 0 if it has none.
+     */
+    public int getBodyLength()
+    {
+        // Codes_SRS_MESSAGE_21_037: [The function shall return the length of the message body, or 0 if the message has no body.]
+        return this.body == null ? 0 : this.body.length;
+    }
+
     /**
      * Gets the values of user-defined properties of this Message.
      * @param name Name of the user-defined property to search for.
@@ -248,7 +258,7 @@ public class Message
             this.properties.remove(messageProperty);
         }
 
-        logger.LogInfo("Setting message property with name=%s and value=%s, method name is %s ", name, value, logger.getMethodName());
+        logger.LogInfo("Setting message property with name=%s and value=%s, method name is setProperty ", name, value);
         this.properties.add(new MessageProperty(name, value));
     }
 
@@ -270,7 +280,6 @@ public class Message
     private void initialize() {
         this.lockToken = UUID.randomUUID().toString();
         this.messageId = generateId(127); // 1 in 2.03035346985252E-242 chances of collision. Might be safe enough...
-        this.correlationId = generateId(127);
         this.feedbackStatusCode = FeedbackStatusCodeEnum.none;
         this.ack = FeedbackStatusCodeEnum.none;
         this.properties = new ArrayList<MessageProperty>();
@@ -317,7 +326,7 @@ public class Message
             long currentTime = System.currentTimeMillis();
             if (currentTime > expiryTime)
             {
-                logger.LogWarn("The message with messageid %s expired on %s, method name is %s ", this.getMessageId(), new Date(), logger.getMethodName());
+                logger.LogWarn("The message with messageid %s expired on %s, method name is isExpired ", this.getMessageId(), new Date());
                 messageExpired = true;
             }
             else
@@ -348,11 +357,13 @@ public class Message
     }
 
     /**
-     * Getter for the correlationId property
-     * @return The property value
+     * Getter for the correlationId property. A message has no correlation
+     * id until one is set, since a generated one would correlate to nothing.
+     * @return The property value, or {@code null} if none was set
      */
     public String getCorrelationId()
     {
+        // Codes_SRS_MESSAGE_21_039: [The function shall return the correlation id set on the message, or null if none was set.]
         return correlationId;
     }
 
@@ -365,6 +376,16 @@ public class Message
         this.correlationId = correlationId;
     }
 
+    /**
+     * Getter for the expiryTime property
+     * @return The time at which the message expires, in milliseconds since the epoch, or 0 if it never expires.
+     */
+    public long getExpiryTime()
+    {
+        // Codes_SRS_MESSAGE_21_038: [The function shall return the expiry time of the message, or 0 if it never expires.]
+        return expiryTime;
+    }
+
     /**
      * Setter for the expiryTime property
      * @param timeOut The time out for the message, in milliseconds.
@@ -373,6 +394,9 @@ public class Message
     {
         long currentTime = System.currentTimeMillis();
         this.expiryTime = currentTime + timeOut;
-        logger.LogInfo("The message with messageid %s has expiry time as %s milliseconds and the message will expire on %s, method name is %s ", this.getMessageId(), timeOut, new Date(this.expiryTime), logger.getMethodName());
+        if (logger.isInfoEnabled())
+        {
+            logger.LogInfo("The message with messageid %s has expiry time as %s milliseconds and the message will expire on %s, method name is setExpiryTime ", this.getMessageId(), timeOut, new Date(this.expiryTime));
+        }
     }
 }
\ No newline at end of file
@@ -56,25 +56,25 @@ public final class MessageProperty {
     public MessageProperty(String name, String value) {
         this.logger = new CustomLogger(this.getClass());
         if (name == null) {
-            logger.LogError("Property argument 'name' cannot be null, method name is %s ", logger.getMethodName());
+            logger.LogError("Property argument 'name' cannot be null, method name is MessageProperty ");
             throw new IllegalArgumentException("Property argument 'name' cannot be null.");
         }
 
         if (value == null) {
-            logger.LogError("Property argument 'value' cannot be null, method name is %s ", logger.getMethodName());
+            logger.LogError("Property argument 'value' cannot be null, method name is MessageProperty ");
             throw new IllegalArgumentException("Property argument 'value' cannot be null.");
         }
 
         // Codes_SRS_MESSAGEPROPERTY_11_002: [If the name contains a character that is not in US-ASCII, the function shall throw an IllegalArgumentException.]
         if (!usesValidChars(name)) {
-            logger.LogError("%s is not a valid IoT Hub message property name, method name is %s ", name, logger.getMethodName());
+            logger.LogError("%s is not a valid IoT Hub message property name, method name is MessageProperty ", name);
 			String errMsg = String.format("%s is not a valid IoT Hub message property name.\n", name);
             throw new IllegalArgumentException(errMsg);
         }
 
         // Codes_SRS_MESSAGEPROPERTY_11_008: [If the name is a reserved property name, the function shall throw an IllegalArgumentException.]
         if (RESERVED_PROPERTY_NAMES.contains(name)) {
-            logger.LogError("%s is a reserved IoT Hub message property name, method name is %s ", name, logger.getMethodName());
+            logger.LogError("%s is a reserved IoT Hub message property name, method name is MessageProperty ", name);
 			String errMsg = String.format("%s is a reserved IoT Hub message property name.\n", name);
             throw new IllegalArgumentException(errMsg);
         }
@@ -82,7 +82,7 @@ public final class MessageProperty {
         // Codes_SRS_MESSAGEPROPERTY_11_003: [If the value contains a character that is not in US-ASCII, the function shall throw an IllegalArgumentException.]
         if (!usesValidChars(value))
         {
-            logger.LogError("%s is a reserved IoT Hub message property name, method name is %s ", name, logger.getMethodName());
+            logger.LogError("%s is a reserved IoT Hub message property name, method name is MessageProperty ", name);
             String errMsg = String.format("%s is not a valid IoT Hub message property value.\n", value);
             throw new IllegalArgumentException(errMsg);
         }
@@ -160,11 +160,15 @@ public final class MessageProperty {
      * @return whether the string only uses US-ASCII 
      */
     protected static boolean usesValidChars(String s) {
-        boolean isValid = false;
+        boolean isValid = true;
 
-        if (s.matches("\\p{ASCII}*"))
+        for (int i = 0; i < s.length(); i++)
         {
-            isValid = true;
+            if (s.charAt(i) > 0x7F)
+            {
+                isValid = false;
+                break;
+            }
         }
 
         return isValid;
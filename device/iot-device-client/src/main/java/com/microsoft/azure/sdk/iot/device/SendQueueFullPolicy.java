@@ -0,0 +1,21 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device;
+
+/**
+ * What the client does when a message is sent while its send queue already
+ * holds the maximum number of messages or bytes.
+ */
+public enum SendQueueFullPolicy
+{
+    /** Wait until enough queued messages have been acknowledged. */
+    BLOCK,
+    /** Reject the new message with an {@link IllegalStateException}. */
+    FAIL_FAST,
+    /**
+     * Discard the oldest messages that have not been sent yet, completing
+     * their callbacks with {@link IotHubStatusCode#ERROR}.
+     */
+    DROP_OLDEST
+}
@@ -6,6 +6,8 @@ package com.microsoft.azure.sdk.iot.device.transport;
 import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
 import com.microsoft.azure.sdk.iot.device.Message;
 
+import java.util.List;
+
 /**
  * A packet containing the data needed for an IoT Hub transport to send a
  * message.
@@ -15,6 +17,13 @@ public final class IotHubOutboundPacket
     protected final Message message;
     protected final IotHubEventCallback callback;
     protected final Object callbackContext;
+    protected final int messageSize;
+    /** The position of the message in the send journal, or -1 if it is not journaled. */
+    protected long journalSequence = -1;
+    /** The packets of the batch the message was queued with, or null if it was queued alone. */
+    protected List<IotHubOutboundPacket> batch;
+    /** Whether the message holds room in the send queue, guarded by the send queue limiter. */
+    protected boolean queued;
 
     /**
      * Constructor.
@@ -32,6 +41,8 @@ public final class IotHubOutboundPacket
         this.message = message;
         this.callback = callback;
         this.callbackContext = callbackContext;
+        // Codes_SRS_IOTHUBOUTBOUNDPACKET_21_005: [The constructor shall save the length of the message body, or 0 if there is no message.]
+        this.messageSize = message == null ? 0 : message.getBodyLength();
     }
 
     /**
@@ -66,4 +77,85 @@ public final class IotHubOutboundPacket
         // Codes_SRS_IOTHUBOUTBOUNDPACKET_11_004: [The function shall return the callback context given in the constructor.]
         return callbackContext;
     }
+
+    /**
+     * Getter for the length of the body of the message to be sent.
+     *
+     * @return the number of bytes in the message body.
+     */
+    public int getMessageSize()
+    {
+        // Codes_SRS_IOTHUBOUTBOUNDPACKET_21_006: [The function shall return the length of the message body saved by the constructor.]
+        return messageSize;
+    }
+
+    /**
+     * Setter for the position of the message in the send journal.
+     *
+     * @param journalSequence the journal sequence number.
+     */
+    public void setJournalSequence(long journalSequence)
+    {
+        // Codes_SRS_IOTHUBOUTBOUNDPACKET_21_007: [The function shall save the journal sequence number.]
+        this.journalSequence = journalSequence;
+    }
+
+    /**
+     * Getter for the position of the message in the send journal.
+     *
+     * @return the journal sequence number, or -1 if the message is not
+     * journaled.
+     */
+    public long getJournalSequence()
+    {
+        // Codes_SRS_IOTHUBOUTBOUNDPACKET_21_008: [The function shall return the journal sequence number, which is -1 if the message is not journaled.]
+        return journalSequence;
+    }
+
+    /**
+     * Setter for the batch the message was queued with.
+     *
+     * @param batch the packets of the batch, in order, including this one.
+     */
+    public void setBatch(List<IotHubOutboundPacket> batch)
+    {
+        // Codes_SRS_IOTHUBOUTBOUNDPACKET_21_009: [The function shall save the batch.]
+        this.batch = batch;
+    }
+
+    /**
+     * Getter for the batch the message was queued with.
+     *
+     * @return the packets of the batch, in order, or {@code null} if the
+     * message was queued alone.
+     */
+    public List<IotHubOutboundPacket> getBatch()
+    {
+        // Codes_SRS_IOTHUBOUTBOUNDPACKET_21_010: [The function shall return the batch, which is null if the message was queued alone.]
+        return batch;
+    }
+
+    /**
+     * Setter for whether the message holds room in the send queue.
+     *
+     * @param queued {@code true} once room is reserved for the message,
+     * {@code false} once it is released.
+     */
+    public void setQueued(boolean queued)
+    {
+        // Codes_SRS_IOTHUBOUTBOUNDPACKET_21_011: [The function shall save whether the message holds room in the send queue.]
+        this.queued = queued;
+    }
+
+    /**
+     * Getter for whether the message holds room in the send queue.
+     *
+     * @return {@code true} if room is reserved for the message and not yet
+     * released.
+     */
+    public boolean isQueued()
+    {
+        // Codes_SRS_IOTHUBOUTBOUNDPACKET_21_012: [The function shall return whether the message holds room in the send queue, which is false until room is reserved for it.]
+        return queued;
+    }
 }
@@ -3,36 +3,79 @@
 
 package com.microsoft.azure.sdk.iot.device.transport;
 
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Polls an IoT Hub for messages and invokes a callback if one is found.
- * Meant to be used with an executor that continuously calls run().
+ * Meant to be used with an executor that continuously calls run(). When
+ * constructed with a scheduler, the task can instead be signal-driven: a
+ * transport that is told of arriving messages calls {@link #signal()}, and
+ * the task only runs on the scheduler in response.
  */
-public final class IotHubReceiveTask implements Runnable
+public final class IotHubReceiveTask extends SignalDrivenTask
 {
     protected final IotHubTransport transport;
 
     public IotHubReceiveTask(IotHubTransport transport)
     {
+        // Codes_SRS_IOTHUBRECEIVETASK_11_001: [The constructor shall save the transport.]
+        this(transport, null);
+    }
+
+    /**
+     * Constructor for a receive task that can be signal-driven.
+     *
+     * @param transport the transport to receive messages on.
+     * @param scheduler the scheduler on which the task runs when signalled.
+     */
+    public IotHubReceiveTask(IotHubTransport transport, ScheduledExecutorService scheduler)
+    {
+        // Codes_SRS_IOTHUBRECEIVETASK_21_006: [The constructor shall save the scheduler.]
+        super(scheduler);
         // Codes_SRS_IOTHUBRECEIVETASK_11_001: [The constructor shall save the transport.]
         this.transport = transport;
     }
 
-    public void run()
+    /**
+     * Signals the task once the given delay has passed, so that work waiting
+     * for a timeout is picked up even if no message arrives in the meantime.
+     *
+     * @param delayMillis the delay, in milliseconds.
+     */
+    public void signal(long delayMillis)
     {
-        try
+        // Codes_SRS_IOTHUBRECEIVETASK_21_007: [If the task has no scheduler, the function shall do nothing.]
+        if (this.scheduler == null)
         {
-            // Codes_SRS_IOTHUBRECEIVETASK_11_002: [The function shall poll an IoT Hub for messages, invoke the message callback if one exists, and return one of COMPLETE, ABANDON, or REJECT to the IoT Hub.]
-            this.transport.handleMessage();
+            return;
         }
-        // Codes_SRS_IOTHUBRECEIVETASK_11_004: [The function shall not crash because of an IOException thrown by the transport.]
-        // Codes_SRS_IOTHUBRECEIVETASK_11_005: [The function shall not crash because of any error or exception thrown by the transport.]
-        catch (Throwable e)
+
+        // Codes_SRS_IOTHUBRECEIVETASK_21_012: [The function shall have the scheduler signal the task once the delay has passed.]
+        try
         {
-            System.out.println(e.toString() + ": " + e.getMessage());
-            for (StackTraceElement el : e.getStackTrace())
+            this.scheduler.schedule(new Runnable()
             {
-                System.out.println(el);
-            }
+                public void run()
+                {
+                    signal();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // the scheduler is shutting down, so there is nothing left to drive.
         }
     }
-}
\ No newline at end of file
+
+    // Codes_SRS_IOTHUBRECEIVETASK_11_004: [The function shall not crash because of an IOException thrown by the transport.]
+    // Codes_SRS_IOTHUBRECEIVETASK_11_005: [The function shall not crash because of any error or exception thrown by the transport.]
+    @Override
+    void runOnce() throws IOException
+    {
+        // Codes_SRS_IOTHUBRECEIVETASK_11_002: [The function shall poll an IoT Hub for messages, invoke the message callback if one exists, and return one of COMPLETE, ABANDON, or REJECT to the IoT Hub.]
+        this.transport.handleMessage();
+    }
+}
@@ -3,38 +3,91 @@
 
 package com.microsoft.azure.sdk.iot.device.transport;
 
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
- * Sends batched messages and invokes callbacks on completed requests. Meant to
- * be used with an executor that continuously calls run().
+ * Sends batched messages and invokes callbacks on completed requests. When
+ * constructed with a scheduler, the task is signal-driven: the transport calls
+ * {@link #signal()} whenever it has new work, and the task only runs on the
+ * scheduler in response to a signal or to retry work that could not be
+ * completed.
  */
-public final class IotHubSendTask implements Runnable
+public final class IotHubSendTask extends SignalDrivenTask
 {
     protected final IotHubTransport transport;
+    protected final long retryPeriodMillis;
+
+    private final AtomicBoolean retryScheduled = new AtomicBoolean(false);
+
+    private final Runnable retry = new Runnable()
+    {
+        public void run()
+        {
+            retryScheduled.set(false);
+            signal();
+        }
+    };
 
     public IotHubSendTask(IotHubTransport transport)
     {
+        // Codes_SRS_IOTHUBSENDTASK_11_001: [The constructor shall save the transport.]
+        this(transport, null, 0);
+    }
+
+    /**
+     * Constructor for a signal-driven send task.
+     *
+     * @param transport the transport to send messages on.
+     * @param scheduler the scheduler on which the task runs when signalled.
+     * @param retryPeriodMillis the number of milliseconds to wait before
+     * running again if the transport still has work left after a run.
+     */
+    public IotHubSendTask(IotHubTransport transport, ScheduledExecutorService scheduler, long retryPeriodMillis)
+    {
+        // Codes_SRS_IOTHUBSENDTASK_21_009: [The constructor shall save the scheduler and the retry period.]
+        super(scheduler);
         // Codes_SRS_IOTHUBSENDTASK_11_001: [The constructor shall save the transport.]
         this.transport = transport;
+        this.retryPeriodMillis = retryPeriodMillis;
     }
 
-    public void run()
+    // Codes_SRS_IOTHUBSENDTASK_11_005: [The function shall not crash because of an IOException thrown by the transport.]
+    // Codes_SRS_IOTHUBSENDTASK_11_008: [The function shall not crash because of any error or exception thrown by the transport.]
+    @Override
+    void runOnce() throws IOException
     {
-        try
+        // Codes_SRS_IOTHUBSENDTASK_11_002: [The function shall send all messages on the transport queue.]
+        this.transport.sendMessages();
+        // Codes_SRS_IOTHUBSENDTASK_11_003: [The function shall invoke all callbacks on the transport's callback queue.]
+        this.transport.invokeCallbacks();
+    }
+
+    @Override
+    void onIdle()
+    {
+        // Codes_SRS_IOTHUBSENDTASK_21_014: [If the transport is not empty after the run, the function shall signal the task again after the retry period.]
+        if (!this.transport.isEmpty())
         {
-            // Codes_SRS_IOTHUBSENDTASK_11_002: [The function shall send all messages on the transport queue.]
-            this.transport.sendMessages();
-            // Codes_SRS_IOTHUBSENDTASK_11_003: [The function shall invoke all callbacks on the transport's callback queue.]
-            this.transport.invokeCallbacks();
+            scheduleRetry();
         }
-        // Codes_SRS_IOTHUBSENDTASK_11_005: [The function shall not crash because of an IOException thrown by the transport.]
-        // Codes_SRS_IOTHUBSENDTASK_11_008: [The function shall not crash because of any error or exception thrown by the transport.]
-        catch (Throwable e)
+    }
+
+    private void scheduleRetry()
+    {
+        if (this.retryScheduled.compareAndSet(false, true))
         {
-            System.out.println(e.toString() + ": " + e.getMessage());
-            for (StackTraceElement el : e.getStackTrace())
+            try
+            {
+                this.scheduler.schedule(this.retry, this.retryPeriodMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e)
             {
-                System.out.println(el);
+                this.retryScheduled.set(false);
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -8,6 +8,7 @@ import com.microsoft.azure.sdk.iot.device.Message;
 import java.io.Closeable;
 
 import java.io.IOException;
+import java.util.List;
 
 /** An interface for an IoT Hub transport. */
 public interface IotHubTransport extends Closeable
@@ -43,6 +44,35 @@ public interface IotHubTransport extends Closeable
             IotHubEventCallback callback,
             Object callbackContext);
 
+    /**
+     * Adds a batch of messages to the transport queue, to be sent as a single
+     * unit where the protocol allows it. The callback of each packet is
+     * invoked once a response for its message is received.
+     *
+     * @param batch the packets of the batch, in order.
+     */
+    void addMessageBatch(List<IotHubOutboundPacket> batch);
+
+    /**
+     * Registers the send task to be signalled whenever the transport has new
+     * work for it, such as a newly queued message or a completed request.
+     *
+     * @param sendTask the send task to signal. Can be {@code null}.
+     */
+    void setSendTask(IotHubSendTask sendTask);
+
+    /**
+     * Registers the receive task to be signalled whenever messages arrive.
+     * A transport that is not told of arriving messages must be polled
+     * instead.
+     *
+     * @param receiveTask the receive task to signal. Can be {@code null}.
+     *
+     * @return {@code true} if the transport signals the receive task when
+     * messages arrive, and {@code false} if it must be polled.
+     */
+    boolean setReceiveTask(IotHubReceiveTask receiveTask);
+
     /**
      * Sends all messages on the transport queue. If a previous send attempt had
      * failed, the function will attempt to resend the messages in the previous
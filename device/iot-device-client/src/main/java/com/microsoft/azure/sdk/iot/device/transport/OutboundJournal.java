@@ -0,0 +1,641 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device.transport;
+
+import com.microsoft.azure.sdk.iot.device.CustomLogger;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageProperty;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * <p>
+ * An append-only journal, on disk, of the messages that a transport holds
+ * until the IoT Hub acknowledges them, so that they can be sent again after a
+ * restart of the process.
+ * </p>
+ * <p>
+ * The journal is a series of fixed-size segment files that are mapped into
+ * memory. A message is appended to the newest segment as a record whose
+ * status byte is written last, so that a record torn by a crash is ignored
+ * when the journal is replayed. Acknowledging a message overwrites its status
+ * byte in place, and a segment is deleted as soon as none of its messages is
+ * pending. The number of segments is bounded by the disk budget.
+ * </p>
+ * <p>
+ * Writes reach the operating system when they are made, so that they survive
+ * the process; they are forced to the disk when a segment is filled, when
+ * the journal is flushed, and when it is closed. Closing the journal also
+ * releases the mappings of its segments.
+ * </p>
+ */
+public final class OutboundJournal
+{
+    /** The size of a segment file, unless the disk budget is smaller. */
+    public static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "outbound-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_PENDING = 1;
+    private static final byte RECORD_ACKNOWLEDGED = 2;
+    /** A record starts with its status byte and the length of its payload. */
+    private static final int RECORD_HEADER_BYTES = 5;
+
+    protected final File directory;
+    protected final int segmentBytes;
+    protected final int maxSegments;
+
+    /** The segments holding pending messages, oldest first. */
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    /** The pending messages, by sequence number. */
+    private final Map<Long, Entry> pending = new HashMap<>();
+    /**
+     * The next sequence number. It is not reset when the journal is closed,
+     * so that a packet numbered before is never taken for a message of the
+     * journal once it is opened again.
+     */
+    private long nextSequence = 0;
+    /** The pending messages found when the journal was opened, oldest first. */
+    private final Queue<Entry> replay = new ArrayDeque<>();
+    private IotHubOutboundPacket nextReplay;
+
+    private Segment active;
+    private long nextSegmentNumber;
+    private boolean opened;
+
+    private final CustomLogger logger;
+
+    /**
+     * Constructor.
+     *
+     * @param directory the directory holding the segment files.
+     * @param maxBytes the disk space that the segment files may use.
+     *
+     * @throws IllegalArgumentException if {@code directory} is {@code null}
+     * or {@code maxBytes} is not positive.
+     */
+    public OutboundJournal(File directory, long maxBytes)
+    {
+        // Codes_SRS_OUTBOUNDJOURNAL_21_001: [If the directory is null or the size is not positive, the constructor shall throw an IllegalArgumentException.]
+        if (directory == null)
+        {
+            throw new IllegalArgumentException("Send journal directory cannot be null.");
+        }
+        if (maxBytes <= 0)
+        {
+            throw new IllegalArgumentException("Send journal size must be positive.");
+        }
+
+        // Codes_SRS_OUTBOUNDJOURNAL_21_002: [The constructor shall split the disk budget into segments of at most DEFAULT_SEGMENT_BYTES.]
+        this.directory = directory;
+        this.segmentBytes = (int) Math.min(DEFAULT_SEGMENT_BYTES, maxBytes);
+        this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / this.segmentBytes));
+        this.logger = new CustomLogger(this.getClass());
+    }
+
+    /**
+     * Opens the journal, finding the messages that were pending when it was
+     * last used. If the journal is already open, the function does nothing.
+     *
+     * @throws IOException if the directory or the segment files cannot be
+     * read.
+     */
+    public synchronized void open() throws IOException
+    {
+        // Codes_SRS_OUTBOUNDJOURNAL_21_003: [If the journal is already open, the function shall do nothing.]
+        if (this.opened)
+        {
+            return;
+        }
+
+        // Codes_SRS_OUTBOUNDJOURNAL_21_004: [The function shall create the directory if it does not exist.]
+        if (!this.directory.isDirectory() && !this.directory.mkdirs())
+        {
+            throw new IOException("Cannot create the send journal directory " + this.directory + ".");
+        }
+
+        File[] files = this.directory.listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String name)
+            {
+                return segmentNumber(name) >= 0;
+            }
+        });
+        if (files == null)
+        {
+            throw new IOException("Cannot list the send journal directory " + this.directory + ".");
+        }
+        Arrays.sort(files, new Comparator<File>()
+        {
+            public int compare(File first, File second)
+            {
+                long difference = segmentNumber(first.getName()) - segmentNumber(second.getName());
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        // Codes_SRS_OUTBOUNDJOURNAL_21_005: [The function shall queue for replay, oldest first, every message of every segment that is still pending, and shall delete the segments with no pending message.]
+        for (File file : files)
+        {
+            this.load(file);
+            this.nextSegmentNumber = segmentNumber(file.getName()) + 1;
+        }
+
+        this.opened = true;
+        logger.LogInfo("Opened the send journal in %s with %d pending messages, method name is open ", this.directory, this.pending.size());
+    }
+
+    /**
+     * Appends a message to the journal and records its position in the
+     * packet.
+     *
+     * @param packet the packet holding the message.
+     *
+     * @throws IllegalStateException if the journal is not open, or if the disk
+     * budget is used up.
+     * @throws IllegalArgumentException if the message does not fit in a
+     * segment.
+     * @throws IOException if the message cannot be written.
+     */
+    public synchronized void append(IotHubOutboundPacket packet) throws IOException
+    {
+        // Codes_SRS_OUTBOUNDJOURNAL_21_006: [If the journal is not open, the function shall throw an IllegalStateException.]
+        if (!this.opened)
+        {
+            throw new IllegalStateException("The send journal is not open.");
+        }
+
+        byte[] payload = encode(packet.getMessage());
+        int recordBytes = RECORD_HEADER_BYTES + payload.length;
+        // Codes_SRS_OUTBOUNDJOURNAL_21_007: [If the message does not fit in a segment, the function shall throw an IllegalArgumentException.]
+        if (recordBytes > this.segmentBytes)
+        {
+            throw new IllegalArgumentException("The message is too large for the send journal.");
+        }
+
+        if (this.active == null || this.active.writePosition + recordBytes > this.active.buffer.capacity())
+        {
+            this.rotate();
+        }
+
+        // Codes_SRS_OUTBOUNDJOURNAL_21_008: [The function shall write the message to the newest segment, writing the record status last.]
+        int position = this.active.writePosition;
+        this.active.buffer.putInt(position + 1, payload.length);
+        ByteBuffer view = this.active.buffer.duplicate();
+        view.position(position + RECORD_HEADER_BYTES);
+        view.put(payload);
+        this.active.buffer.put(position, RECORD_PENDING);
+        this.active.writePosition += recordBytes;
+
+        // Codes_SRS_OUTBOUNDJOURNAL_21_009: [The function shall save the sequence number of the message in the packet.]
+        // Codes_SRS_OUTBOUNDJOURNAL_21_021: [Sequence numbers shall be unique within the journal, and shall not be reused once it is closed and opened again.]
+        Entry entry = new Entry(this.active, position, this.nextSequence++);
+        this.track(entry);
+        packet.setJournalSequence(entry.sequence);
+    }
+
+    /**
+     * Marks the message held by a packet as acknowledged, so that it is not
+     * replayed. Packets that are not journaled are ignored.
+     *
+     * @param packet the packet holding the acknowledged message.
+     */
+    public synchronized void acknowledge(IotHubOutboundPacket packet)
+    {
+        this.acknowledge(packet.getJournalSequence());
+    }
+
+    private void acknowledge(long sequence)
+    {
+        // Codes_SRS_OUTBOUNDJOURNAL_21_010: [If the message is not pending in the journal, the function shall do nothing.]
+        Entry entry = this.pending.remove(sequence);
+        if (entry == null)
+        {
+            return;
+        }
+
+        // Codes_SRS_OUTBOUNDJOURNAL_21_011: [The function shall mark the message as acknowledged in its segment.]
+        entry.segment.buffer.put(entry.position, RECORD_ACKNOWLEDGED);
+        entry.segment.pending--;
+
+        // Codes_SRS_OUTBOUNDJOURNAL_21_012: [If the segment no longer holds a pending message and is not the newest segment, the function shall delete it.]
+        if (entry.segment.pending == 0 && entry.segment != this.active)
+        {
+            this.delete(entry.segment);
+        }
+    }
+
+    /**
+     * Returns the oldest message found pending when the journal was opened
+     * that has not been replayed yet, without removing it.
+     *
+     * @return the packet for the message, with no callback, or {@code null}
+     * if there is nothing left to replay.
+     */
+    public synchronized IotHubOutboundPacket peekReplay()
+    {
+        while (this.nextReplay == null && !this.replay.isEmpty())
+        {
+            Entry entry = this.replay.poll();
+            if (!this.pending.containsKey(entry.sequence))
+            {
+                continue;
+            }
+
+            try
+            {
+                // Codes_SRS_OUTBOUNDJOURNAL_21_013: [The function shall return a packet, with no callback, for the oldest message left to replay.]
+                IotHubOutboundPacket packet = new IotHubOutboundPacket(decode(entry), null, null);
+                packet.setJournalSequence(entry.sequence);
+                this.nextReplay = packet;
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // Codes_SRS_OUTBOUNDJOURNAL_21_014: [If a message cannot be read back, the function shall acknowledge it and skip it.]
+                logger.LogError("Dropping a message that cannot be read from the send journal, method name is peekReplay ");
+                logger.LogError(e);
+                this.acknowledge(entry.sequence);
+            }
+        }
+
+        // Codes_SRS_OUTBOUNDJOURNAL_21_015: [If there is nothing left to replay, the function shall return null.]
+        return this.nextReplay;
+    }
+
+    /**
+     * Removes and returns the oldest message left to replay.
+     *
+     * @return the packet for the message, with no callback, or {@code null}
+     * if there is nothing left to replay.
+     */
+    public synchronized IotHubOutboundPacket pollReplay()
+    {
+        // Codes_SRS_OUTBOUNDJOURNAL_21_016: [The function shall return the packet that peekReplay returns, and move on to the next message.]
+        IotHubOutboundPacket packet = this.peekReplay();
+        this.nextReplay = null;
+        return packet;
+    }
+
+    /**
+     * Forces every write made to the journal to the disk.
+     */
+    public synchronized void flush()
+    {
+        // Codes_SRS_OUTBOUNDJOURNAL_21_017: [The function shall force every segment to the disk.]
+        for (Segment segment : this.segments)
+        {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Forces the journal to the disk and releases the mappings of its
+     * segments. The messages still pending stay in the segment files, and are
+     * replayed when the journal is opened again. If the journal is not open,
+     * the function does nothing.
+     */
+    public synchronized void close()
+    {
+        // Codes_SRS_OUTBOUNDJOURNAL_21_019: [If the journal is not open, the function shall do nothing.]
+        if (!this.opened)
+        {
+            return;
+        }
+
+        // Codes_SRS_OUTBOUNDJOURNAL_21_020: [The function shall force every segment to the disk, release its mapping, and forget the pending messages, leaving them in the segment files.]
+        for (Segment segment : this.segments)
+        {
+            segment.buffer.force();
+            this.unmap(segment.buffer);
+        }
+        this.segments.clear();
+        this.pending.clear();
+        this.replay.clear();
+        this.nextReplay = null;
+        this.active = null;
+        this.opened = false;
+        logger.LogInfo("Closed the send journal in %s, method name is close ", this.directory);
+    }
+
+    private void rotate() throws IOException
+    {
+        if (this.active != null)
+        {
+            this.active.buffer.force();
+            if (this.active.pending == 0)
+            {
+                this.delete(this.active);
+            }
+            this.active = null;
+        }
+
+        // Codes_SRS_OUTBOUNDJOURNAL_21_018: [If a new segment is needed and the disk budget is used up, the function shall throw an IllegalStateException.]
+        if (this.segments.size() >= this.maxSegments)
+        {
+            throw new IllegalStateException("The send journal is full.");
+        }
+
+        File file = new File(this.directory, SEGMENT_PREFIX + this.nextSegmentNumber + SEGMENT_SUFFIX);
+        this.nextSegmentNumber++;
+        this.active = new Segment(file, map(file, this.segmentBytes));
+        this.segments.add(this.active);
+    }
+
+    private void load(File file) throws IOException
+    {
+        // segments are scanned from the heap first, so that segments with
+        // nothing left to send can be deleted without ever being mapped.
+        ByteBuffer contents = ByteBuffer.allocate((int) file.length());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            FileChannel channel = raf.getChannel();
+            while (contents.hasRemaining())
+            {
+                if (channel.read(contents) < 0)
+                {
+                    break;
+                }
+            }
+        }
+
+        LinkedList<Integer> positions = new LinkedList<>();
+        int position = 0;
+        while (position + RECORD_HEADER_BYTES <= contents.capacity())
+        {
+            byte status = contents.get(position);
+            int length = contents.getInt(position + 1);
+            // the end of the written records, or a record torn by a crash.
+            if (status == RECORD_END
+                    || (status != RECORD_PENDING && status != RECORD_ACKNOWLEDGED)
+                    || length < 0 || length > contents.capacity() - position - RECORD_HEADER_BYTES)
+            {
+                break;
+            }
+            if (status == RECORD_PENDING)
+            {
+                positions.add(position);
+            }
+            position += RECORD_HEADER_BYTES + length;
+        }
+
+        if (positions.isEmpty())
+        {
+            if (!file.delete())
+            {
+                logger.LogWarn("Cannot delete the send journal segment %s, method name is load ", file);
+            }
+            return;
+        }
+
+        Segment segment = new Segment(file, map(file, contents.capacity()));
+        segment.writePosition = position;
+        this.segments.add(segment);
+        for (int pendingPosition : positions)
+        {
+            Entry entry = new Entry(segment, pendingPosition, this.nextSequence++);
+            this.track(entry);
+            this.replay.add(entry);
+        }
+    }
+
+    private void track(Entry entry)
+    {
+        entry.segment.pending++;
+        this.pending.put(entry.sequence, entry);
+    }
+
+    private void delete(Segment segment)
+    {
+        this.segments.remove(segment);
+        this.unmap(segment.buffer);
+        if (!segment.file.delete())
+        {
+            // a file that is still mapped cannot be deleted on every platform;
+            // it is deleted when the journal is next opened instead.
+            logger.LogWarn("Cannot delete the send journal segment %s, method name is delete ", segment.file);
+        }
+    }
+
+    /**
+     * Releases the mapping of a segment, which must not be used afterwards.
+     * Java offers no public way to do so: Java 9 and later release it through
+     * sun.misc.Unsafe, and older versions through the cleaner of the buffer.
+     * If neither is available, the mapping is left to the garbage collector,
+     * and a segment file that cannot be deleted until then is deleted when
+     * the journal is next opened.
+     */
+    private void unmap(MappedByteBuffer buffer)
+    {
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try
+            {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            }
+            catch (NoSuchMethodException e)
+            {
+                invokeCleaner = null;
+            }
+
+            if (invokeCleaner != null)
+            {
+                // the cleaner of the buffer is not accessible since Java 9.
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            }
+            else
+            {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            logger.LogWarn("Cannot release the mapping of a send journal segment because %s, it is released once garbage collected, method name is unmap ", e.toString());
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException
+    {
+        // the mapping stays valid once the file is closed.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            if (raf.length() < size)
+            {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long segmentNumber(String fileName)
+    {
+        if (!fileName.startsWith(SEGMENT_PREFIX) || !fileName.endsWith(SEGMENT_SUFFIX))
+        {
+            return -1;
+        }
+
+        try
+        {
+            return Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    private static byte[] encode(Message message) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.getBodyLength() + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        writeNullableString(out, message.getMessageId());
+        writeNullableString(out, message.getCorrelationId());
+        out.writeLong(message.getExpiryTime());
+
+        MessageProperty[] properties = message.getProperties();
+        out.writeInt(properties.length);
+        for (MessageProperty property : properties)
+        {
+            out.writeUTF(property.getName());
+            out.writeUTF(property.getValue());
+        }
+
+        byte[] body = message.getBytes();
+        if (body == null)
+        {
+            out.writeInt(-1);
+        }
+        else
+        {
+            out.writeInt(body.length);
+            out.write(body);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Message decode(Entry entry) throws IOException
+    {
+        ByteBuffer view = entry.segment.buffer.duplicate();
+        byte[] payload = new byte[view.getInt(entry.position + 1)];
+        view.position(entry.position + RECORD_HEADER_BYTES);
+        view.get(payload);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        String messageId = readNullableString(in);
+        String correlationId = readNullableString(in);
+        long expiryTime = in.readLong();
+
+        int propertyCount = in.readInt();
+        String[] properties = new String[propertyCount * 2];
+        for (int i = 0; i < properties.length; i++)
+        {
+            properties[i] = in.readUTF();
+        }
+
+        int bodyLength = in.readInt();
+        Message message;
+        if (bodyLength < 0)
+        {
+            message = new Message();
+        }
+        else
+        {
+            byte[] body = new byte[bodyLength];
+            in.readFully(body);
+            message = new Message(body);
+        }
+
+        message.setMessageId(messageId);
+        message.setCorrelationId(correlationId);
+        for (int i = 0; i < properties.length; i += 2)
+        {
+            message.setProperty(properties[i], properties[i + 1]);
+        }
+        if (expiryTime != 0)
+        {
+            // a message that expired while it was on disk stays expired.
+            long remaining = expiryTime - System.currentTimeMillis();
+            message.setExpiryTime(remaining > 0 ? remaining : -1);
+        }
+
+        return message;
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /** A segment file and its mapping. */
+    private static final class Segment
+    {
+        final File file;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        int pending;
+
+        Segment(File file, MappedByteBuffer buffer)
+        {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /** The position of a pending message in the journal. */
+    private static final class Entry
+    {
+        final Segment segment;
+        final int position;
+        final long sequence;
+
+        Entry(Segment segment, int position, long sequence)
+        {
+            this.segment = segment;
+            this.position = position;
+            this.sequence = sequence;
+        }
+    }
+}
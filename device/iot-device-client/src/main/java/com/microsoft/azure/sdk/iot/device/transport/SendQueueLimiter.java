@@ -0,0 +1,400 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device.transport;
+
+import com.microsoft.azure.sdk.iot.device.CustomLogger;
+import com.microsoft.azure.sdk.iot.device.DeviceClientConfig;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.SendQueueFullPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * <p>
+ * Bounds the number of messages, and of message body bytes, that a transport
+ * holds between {@code addMessage} and the IoT Hub's acknowledgement. The
+ * limits and the policy applied when they are reached are read from the
+ * {@link DeviceClientConfig}; a limit of 0 means no limit.
+ * </p>
+ * <p>
+ * If the configuration names a send journal directory, every message that
+ * enters the queue is also written to an {@link OutboundJournal}, and is
+ * checkpointed there when it leaves the queue. The messages left in the
+ * journal by a previous process are fed back into the queue as room allows,
+ * and no more than {@code MAX_REPLAYED_MESSAGES} messages or
+ * {@code MAX_REPLAYED_BYTES} body bytes of them at a time, even with no
+ * queue limits, so that a large backlog is not held in memory all at once.
+ * </p>
+ */
+public final class SendQueueLimiter
+{
+    /** The most replayed messages held in memory at a time. */
+    public static final int MAX_REPLAYED_MESSAGES = 100;
+    /** The most message body bytes of replayed messages held in memory at a time. */
+    public static final long MAX_REPLAYED_BYTES = 1024 * 1024;
+
+    protected final DeviceClientConfig config;
+
+    private final Object lock = new Object();
+    private int queuedMessages;
+    private long queuedBytes;
+
+    /** The journal, or {@code null} if it is not open or if there is none. */
+    private OutboundJournal journal;
+    /**
+     * The journal once closed. It is opened again rather than replaced, since
+     * the sequence numbers of packets it numbered are unique only within it.
+     */
+    private OutboundJournal closedJournal;
+    /** The waiting list into which journaled messages are replayed. */
+    private Queue<IotHubOutboundPacket> replayList;
+    /** The replayed packets still holding room in the queue. */
+    private final Set<IotHubOutboundPacket> replayedPackets = new HashSet<>();
+    private long replayedBytes;
+
+    private final CustomLogger logger = new CustomLogger(this.getClass());
+
+    /**
+     * Constructor.
+     *
+     * @param config the configuration holding the limits and the policy.
+     */
+    public SendQueueLimiter(DeviceClientConfig config)
+    {
+        // Codes_SRS_SENDQUEUELIMITER_21_001: [The constructor shall save the configuration.]
+        this.config = config;
+    }
+
+    /**
+     * Reserves room for a packet before it is added to the waiting list,
+     * applying the configured policy if the queue is full.
+     *
+     * @param packet the packet about to be queued.
+     * @param waitingList the transport's list of packets waiting to be sent,
+     * from which the oldest packets are dropped under
+     * {@link SendQueueFullPolicy#DROP_OLDEST}.
+     * @param callbackList the transport's list of callbacks waiting to be
+     * invoked, to which the callbacks of dropped packets are added.
+     *
+     * @throws IllegalStateException if the queue is full and the policy is
+     * {@link SendQueueFullPolicy#FAIL_FAST}, if the thread is interrupted
+     * while waiting for room, or if the packet cannot be written to the send
+     * journal.
+     */
+    public void acquire(IotHubOutboundPacket packet,
+            Queue<IotHubOutboundPacket> waitingList,
+            Queue<IotHubCallbackPacket> callbackList)
+    {
+        long size = sizeOf(packet);
+        OutboundJournal journal;
+
+        synchronized (this.lock)
+        {
+            while (!hasRoom(size))
+            {
+                SendQueueFullPolicy policy = this.config.getSendQueueFullPolicy();
+                if (policy == SendQueueFullPolicy.FAIL_FAST)
+                {
+                    // Codes_SRS_SENDQUEUELIMITER_21_003: [If the queue is full and the policy is FAIL_FAST, the function shall throw an IllegalStateException.]
+                    throw new IllegalStateException("The send queue is full.");
+                }
+
+                if (policy == SendQueueFullPolicy.DROP_OLDEST)
+                {
+                    IotHubOutboundPacket oldest = waitingList.poll();
+                    if (oldest != null)
+                    {
+                        // Codes_SRS_SENDQUEUELIMITER_21_004: [If the queue is full and the policy is DROP_OLDEST, the function shall remove the oldest waiting packet, release its room, and complete its callback with status ERROR.]
+                        this.releaseLocked(oldest, sizeOf(oldest));
+                        if (this.journal != null)
+                        {
+                            this.journal.acknowledge(oldest);
+                        }
+                        if (oldest.getCallback() != null)
+                        {
+                            callbackList.add(new IotHubCallbackPacket(IotHubStatusCode.ERROR,
+                                    oldest.getCallback(), oldest.getContext()));
+                        }
+                        continue;
+                    }
+                }
+
+                // Codes_SRS_SENDQUEUELIMITER_21_005: [If the queue is full and the policy is BLOCK, or no packet is left waiting to be dropped, the function shall wait until room is released.]
+                try
+                {
+                    this.lock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for room in the send queue.");
+                }
+            }
+
+            // Codes_SRS_SENDQUEUELIMITER_21_002: [The function shall reserve room for the packet, and mark the packet as queued.]
+            this.queuedMessages++;
+            this.queuedBytes += size;
+            packet.setQueued(true);
+            journal = this.journal;
+        }
+
+        if (journal != null)
+        {
+            try
+            {
+                // Codes_SRS_SENDQUEUELIMITER_21_009: [If the send journal is open, the function shall write the packet to it.]
+                journal.append(packet);
+            }
+            catch (IOException e)
+            {
+                // Codes_SRS_SENDQUEUELIMITER_21_010: [If the packet cannot be written to the journal, the function shall release its room and throw an IllegalStateException.]
+                this.release(packet);
+                throw new IllegalStateException("Cannot write the message to the send journal.", e);
+            }
+            catch (RuntimeException e)
+            {
+                // Codes_SRS_SENDQUEUELIMITER_21_010: [If the packet cannot be written to the journal, the function shall release its room and throw an IllegalStateException.]
+                this.release(packet);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Reserves room for each packet of a batch and adds it to the waiting
+     * list, tagged with the batch so that the transport can send the packets
+     * still waiting together. Room is reserved one packet at a time, so that
+     * a batch larger than the queue can drain while it is being added.
+     *
+     * @param batch the packets of the batch, in order.
+     * @param waitingList the transport's list of packets waiting to be sent.
+     * @param callbackList the transport's list of callbacks waiting to be
+     * invoked.
+     *
+     * @throws IllegalStateException if room cannot be reserved for a packet,
+     * in which case the packets of the batch still waiting are removed.
+     * Packets the transport had already taken off the waiting list are still
+     * sent.
+     */
+    public void acquireBatch(List<IotHubOutboundPacket> batch,
+            Queue<IotHubOutboundPacket> waitingList,
+            Queue<IotHubCallbackPacket> callbackList)
+    {
+        int queued = 0;
+        try
+        {
+            for (IotHubOutboundPacket packet : batch)
+            {
+                // Codes_SRS_SENDQUEUELIMITER_21_016: [The function shall tag each packet with the batch, reserve room for it, and add it to the waiting list, in order.]
+                packet.setBatch(batch);
+                this.acquire(packet, waitingList, callbackList);
+                waitingList.add(packet);
+                queued++;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // Codes_SRS_SENDQUEUELIMITER_21_017: [If room cannot be reserved for a packet, the function shall remove the packets of the batch still waiting, release their room, and rethrow the exception.]
+            for (IotHubOutboundPacket packet : batch.subList(0, queued))
+            {
+                if (waitingList.remove(packet))
+                {
+                    this.release(packet);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the room held by a packet once the IoT Hub has responded to
+     * it, or once it has been discarded. Releasing a packet that holds no
+     * room does nothing, so a packet completed twice is only counted once.
+     *
+     * @param packet the completed packet.
+     */
+    public void release(IotHubOutboundPacket packet)
+    {
+        long size = sizeOf(packet);
+        synchronized (this.lock)
+        {
+            // Codes_SRS_SENDQUEUELIMITER_21_020: [If the packet holds no room in the queue, the function shall do nothing.]
+            if (packet == null || !packet.isQueued())
+            {
+                return;
+            }
+
+            if (this.journal != null)
+            {
+                // Codes_SRS_SENDQUEUELIMITER_21_011: [If the send journal is open, the function shall checkpoint the packet in it.]
+                this.journal.acknowledge(packet);
+            }
+
+            // Codes_SRS_SENDQUEUELIMITER_21_006: [The function shall release the room held by the packet, mark the packet as no longer queued, and wake up the threads waiting for room.]
+            this.releaseLocked(packet, size);
+
+            // Codes_SRS_SENDQUEUELIMITER_21_012: [The function shall replay journaled messages into the waiting list while there is room for them.]
+            this.replayLocked();
+        }
+    }
+
+    /**
+     * Opens the send journal named by the configuration, if any, and replays
+     * the messages it holds into the waiting list as room allows. If the
+     * journal is already open, or the configuration names none, the function
+     * does nothing.
+     *
+     * @param waitingList the transport's list of packets waiting to be sent.
+     *
+     * @throws IOException if the journal cannot be opened.
+     */
+    public void openJournal(Queue<IotHubOutboundPacket> waitingList) throws IOException
+    {
+        synchronized (this.lock)
+        {
+            // Codes_SRS_SENDQUEUELIMITER_21_013: [If the journal is already open or no journal directory is configured, the function shall do nothing.]
+            String directory = this.config.getSendJournalDirectory();
+            if (this.journal != null || directory == null)
+            {
+                return;
+            }
+
+            // Codes_SRS_SENDQUEUELIMITER_21_014: [The function shall open the journal in the configured directory with the configured disk budget.]
+            // Codes_SRS_SENDQUEUELIMITER_21_022: [If the journal was opened before, the function shall open the same journal again.]
+            OutboundJournal journal = this.closedJournal;
+            if (journal == null)
+            {
+                journal = new OutboundJournal(new File(directory), this.config.getSendJournalMaxBytes());
+            }
+            journal.open();
+            this.journal = journal;
+            this.replayList = waitingList;
+
+            // Codes_SRS_SENDQUEUELIMITER_21_012: [The function shall replay journaled messages into the waiting list while there is room for them.]
+            this.replayLocked();
+        }
+    }
+
+    /**
+     * Closes the send journal, if it is open, which forces it to the disk and
+     * releases its memory. The messages it still holds are replayed when it
+     * is opened again.
+     */
+    public void closeJournal()
+    {
+        synchronized (this.lock)
+        {
+            // Codes_SRS_SENDQUEUELIMITER_21_019: [If the send journal is open, the function shall close it, and stop replaying its messages.]
+            if (this.journal != null)
+            {
+                this.journal.close();
+                this.closedJournal = this.journal;
+                this.journal = null;
+                this.replayList = null;
+                this.replayedPackets.clear();
+                this.replayedBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Getter for the number of messages currently holding room in the queue.
+     *
+     * @return the number of queued messages.
+     */
+    public int getQueuedMessages()
+    {
+        synchronized (this.lock)
+        {
+            // Codes_SRS_SENDQUEUELIMITER_21_007: [The function shall return the number of messages holding room in the queue.]
+            return this.queuedMessages;
+        }
+    }
+
+    /**
+     * Getter for the number of message body bytes currently holding room in
+     * the queue.
+     *
+     * @return the number of queued bytes.
+     */
+    public long getQueuedBytes()
+    {
+        synchronized (this.lock)
+        {
+            // Codes_SRS_SENDQUEUELIMITER_21_008: [The function shall return the number of message body bytes holding room in the queue.]
+            return this.queuedBytes;
+        }
+    }
+
+    private void releaseLocked(IotHubOutboundPacket packet, long size)
+    {
+        if (this.replayedPackets.remove(packet))
+        {
+            this.replayedBytes -= size;
+        }
+
+        packet.setQueued(false);
+        this.queuedMessages--;
+        this.queuedBytes -= size;
+        // Codes_SRS_SENDQUEUELIMITER_21_021: [If releasing the packet leaves a negative count of queued messages or bytes, the function shall log an error.]
+        if (this.queuedMessages < 0 || this.queuedBytes < 0)
+        {
+            logger.LogError("The send queue released more than it reserved, %s messages and %s bytes are queued, method name is release ",
+                    this.queuedMessages, this.queuedBytes);
+        }
+        this.lock.notifyAll();
+    }
+
+    private void replayLocked()
+    {
+        if (this.journal == null)
+        {
+            return;
+        }
+
+        // Codes_SRS_SENDQUEUELIMITER_21_018: [At most MAX_REPLAYED_MESSAGES replayed messages, and MAX_REPLAYED_BYTES body bytes of them, shall hold room in the queue at a time, whatever the queue limits.]
+        IotHubOutboundPacket packet;
+        while ((packet = this.journal.peekReplay()) != null
+                && hasRoom(sizeOf(packet)) && hasReplayRoom(sizeOf(packet)))
+        {
+            this.journal.pollReplay();
+            this.queuedMessages++;
+            this.queuedBytes += sizeOf(packet);
+            packet.setQueued(true);
+            this.replayedPackets.add(packet);
+            this.replayedBytes += sizeOf(packet);
+            this.replayList.add(packet);
+        }
+    }
+
+    private boolean hasReplayRoom(long size)
+    {
+        // a replayed message larger than the byte bound is still let through
+        // on its own, otherwise it could never be sent.
+        return this.replayedPackets.isEmpty()
+                || (this.replayedPackets.size() < MAX_REPLAYED_MESSAGES && this.replayedBytes + size <= MAX_REPLAYED_BYTES);
+    }
+
+    private boolean hasRoom(long size)
+    {
+        int maxMessages = this.config.getSendQueueMaxMessages();
+        long maxBytes = this.config.getSendQueueMaxBytes();
+
+        boolean messagesFit = maxMessages <= 0 || this.queuedMessages < maxMessages;
+        // a message larger than the byte limit is still let through on its
+        // own, otherwise it could never be sent.
+        boolean bytesFit = maxBytes <= 0 || this.queuedMessages == 0 || this.queuedBytes + size <= maxBytes;
+        return messagesFit && bytesFit;
+    }
+
+    private static long sizeOf(IotHubOutboundPacket packet)
+    {
+        return packet == null ? 0 : packet.getMessageSize();
+    }
+}
@@ -0,0 +1,140 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device.transport;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base for the transport tasks that can be signal-driven. When constructed
+ * with a scheduler, the task only runs on the scheduler in response to
+ * {@link #signal()}. Executions of a given task never overlap, and signals
+ * that arrive while the task is queued or running are coalesced into a single
+ * extra run.
+ */
+abstract class SignalDrivenTask implements Runnable
+{
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int RUNNING = 2;
+    private static final int SIGNALLED = 3;
+
+    protected final ScheduledExecutorService scheduler;
+
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+
+    SignalDrivenTask(ScheduledExecutorService scheduler)
+    {
+        // Codes_SRS_SIGNALDRIVENTASK_21_001: [The constructor shall save the scheduler.]
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Does the work of the task for a single run.
+     *
+     * @throws Throwable if the work failed. The failure is logged and does
+     * not stop the task from being signalled again.
+     */
+    abstract void runOnce() throws Throwable;
+
+    /**
+     * Called on the scheduler thread when a run ends without the task having
+     * been signalled in the meantime.
+     */
+    void onIdle()
+    {
+    }
+
+    /**
+     * Notifies the task that it has work to do. If the task is idle, it is
+     * submitted to the scheduler; if it is already queued, the signal is
+     * dropped; if it is running, it will run once more when done.
+     */
+    public void signal()
+    {
+        // Codes_SRS_SIGNALDRIVENTASK_21_002: [If the task has no scheduler, the function shall do nothing.]
+        if (this.scheduler == null)
+        {
+            return;
+        }
+
+        while (true)
+        {
+            int current = this.state.get();
+            if (current == IDLE)
+            {
+                // Codes_SRS_SIGNALDRIVENTASK_21_003: [If the task is idle, the function shall submit it to the scheduler.]
+                if (this.state.compareAndSet(IDLE, SCHEDULED))
+                {
+                    submit();
+                    return;
+                }
+            }
+            else if (current == RUNNING)
+            {
+                // Codes_SRS_SIGNALDRIVENTASK_21_004: [If the task is running, the function shall cause it to run once more after the current run.]
+                if (this.state.compareAndSet(RUNNING, SIGNALLED))
+                {
+                    return;
+                }
+            }
+            else
+            {
+                // Codes_SRS_SIGNALDRIVENTASK_21_005: [If the task is already queued to run, the function shall do nothing.]
+                return;
+            }
+        }
+    }
+
+    public final void run()
+    {
+        this.state.set(RUNNING);
+        try
+        {
+            // Codes_SRS_SIGNALDRIVENTASK_21_006: [The function shall do the work of the task once.]
+            runOnce();
+        }
+        // Codes_SRS_SIGNALDRIVENTASK_21_007: [The function shall not crash because of any error or exception thrown by the work of the task.]
+        catch (Throwable e)
+        {
+            System.out.println(e.toString() + ": " + e.getMessage());
+            for (StackTraceElement el : e.getStackTrace())
+            {
+                System.out.println(el);
+            }
+        }
+
+        if (this.scheduler == null)
+        {
+            this.state.set(IDLE);
+            return;
+        }
+
+        if (this.state.compareAndSet(RUNNING, IDLE))
+        {
+            // Codes_SRS_SIGNALDRIVENTASK_21_009: [If the task was not signalled while running, the function shall let the task react to becoming idle.]
+            onIdle();
+        }
+        else
+        {
+            // Codes_SRS_SIGNALDRIVENTASK_21_008: [If the task was signalled while running, the function shall submit it to the scheduler again.]
+            this.state.set(SCHEDULED);
+            submit();
+        }
+    }
+
+    private void submit()
+    {
+        try
+        {
+            this.scheduler.execute(this);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // the scheduler is shutting down, so there is nothing left to drive.
+            this.state.set(IDLE);
+        }
+    }
+}
@@ -3,6 +3,8 @@
 
 package com.microsoft.azure.sdk.iot.device.transport;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 public class TransportUtils
 {
     public static String javaDeviceClientIdentifier = "com.microsoft.azure.sdk.iot.iot-device-client/";
@@ -30,4 +32,24 @@ public class TransportUtils
             return 0;
         }
     }
+
+    /** Generates a reconnection time with an exponential backoff, as
+     * {@link #generateSleepInterval(int)} does, picked at random between
+     * half of it and all of it, so that clients dropped together do not
+     * all reconnect at the same time.
+     *
+     * @param currentAttempt the number of attempts
+     * @return the sleep interval in milliseconds until the next attempt.
+     */
+    public static int generateJitteredSleepInterval(int currentAttempt)
+    {
+        int interval = generateSleepInterval(currentAttempt);
+        if (interval <= 0)
+        {
+            return interval;
+        }
+
+        int half = interval / 2;
+        return half + ThreadLocalRandom.current().nextInt(interval - half + 1);
+    }
 }
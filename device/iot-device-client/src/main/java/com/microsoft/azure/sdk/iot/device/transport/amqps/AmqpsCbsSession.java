@@ -0,0 +1,248 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device.transport.amqps;
+
+import com.microsoft.azure.sdk.iot.device.CustomLogger;
+import org.apache.qpid.proton.Proton;
+import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.apache.qpid.proton.amqp.messaging.AmqpValue;
+import org.apache.qpid.proton.amqp.messaging.ApplicationProperties;
+import org.apache.qpid.proton.amqp.messaging.Properties;
+import org.apache.qpid.proton.amqp.messaging.Source;
+import org.apache.qpid.proton.amqp.messaging.Target;
+import org.apache.qpid.proton.engine.Connection;
+import org.apache.qpid.proton.engine.Delivery;
+import org.apache.qpid.proton.engine.Link;
+import org.apache.qpid.proton.engine.Receiver;
+import org.apache.qpid.proton.engine.Sender;
+import org.apache.qpid.proton.engine.Session;
+import org.apache.qpid.proton.message.Message;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The claims-based security (CBS) session of an AMQP connection to an IoT
+ * Hub. SAS tokens are put on it to authorize the links of devices, and put
+ * again before they expire, so that the connection outlives its tokens.
+ * Every method runs on the reactor thread.
+ */
+public final class AmqpsCbsSession
+{
+    /** Told of the answer of the IoT Hub to a put-token request. */
+    interface PutTokenCallback
+    {
+        /**
+         * Called with the answer of the IoT Hub to a put-token request.
+         *
+         * @param statusCode the status code of the answer.
+         * @param statusDescription the status description of the answer, if any.
+         */
+        void onPutTokenResponse(int statusCode, String statusDescription);
+    }
+
+    private static final String cbsAddress = "$cbs";
+    private static final String cbsSendTag = "cbs-sender";
+    private static final String cbsReceiveTag = "cbs-receiver";
+    private static final String cbsReplyTo = "cbs";
+
+    private static final String putTokenOperationKey = "operation";
+    private static final String putTokenOperation = "put-token";
+    private static final String putTokenTypeKey = "type";
+    private static final String putTokenType = "azure-devices.net:sastoken";
+    private static final String putTokenNameKey = "name";
+    private static final String statusCodeKey = "status-code";
+    private static final String statusDescriptionKey = "status-description";
+
+    /** The share of the lifetime of a token after which it is put again. */
+    private static final int RENEWAL_PERCENT = 75;
+    /** The shortest delay before a token is put again. */
+    private static final int MIN_RENEWAL_DELAY_MILLIS = 1000;
+
+    private final Session session;
+    private final Sender sender;
+    private final Receiver receiver;
+
+    /** The callbacks waiting for the answer to their put-token request, by request id. */
+    private final Map<String, PutTokenCallback> pendingRequests = new HashMap<>();
+    private long nextRequestId = 0;
+
+    private final CustomLogger logger = new CustomLogger(this.getClass());
+
+    /**
+     * Constructor. Opens the CBS session and links on the connection.
+     *
+     * @param connection the connection, which must already be open.
+     */
+    AmqpsCbsSession(Connection connection)
+    {
+        // Codes_SRS_AMQPSCBSSESSION_21_001: [The constructor shall open a session on the connection, with a sender and a receiver link on the $cbs node.]
+        this.session = connection.session();
+        this.sender = this.session.sender(cbsSendTag);
+        this.receiver = this.session.receiver(cbsReceiveTag);
+
+        Target target = new Target();
+        target.setAddress(cbsAddress);
+        this.sender.setTarget(target);
+        Source source = new Source();
+        source.setAddress(cbsAddress);
+        this.receiver.setSource(source);
+
+        this.session.open();
+        this.sender.open();
+        this.receiver.open();
+    }
+
+    /**
+     * Builds a put-token request.
+     *
+     * @param requestId the id of the request, which the answer carries as its correlation id.
+     * @param audience the audience of the token.
+     * @param sasToken the SAS token.
+     * @return the request.
+     */
+    static Message createPutTokenMessage(String requestId, String audience, String sasToken)
+    {
+        // Codes_SRS_AMQPSCBSSESSION_21_002: [The put-token request shall be sent to the $cbs node with the operation, type and name application properties, the request id as message id, and the SAS token as body.]
+        Message message = Proton.message();
+        Properties properties = new Properties();
+        properties.setMessageId(requestId);
+        properties.setTo(cbsAddress);
+        properties.setReplyTo(cbsReplyTo);
+        message.setProperties(properties);
+
+        Map<String, Object> applicationProperties = new HashMap<>();
+        applicationProperties.put(putTokenOperationKey, putTokenOperation);
+        applicationProperties.put(putTokenTypeKey, putTokenType);
+        applicationProperties.put(putTokenNameKey, audience);
+        message.setApplicationProperties(new ApplicationProperties(applicationProperties));
+
+        message.setBody(new AmqpValue(sasToken));
+        return message;
+    }
+
+    /**
+     * Returns the delay after which a token is put again, ahead of its
+     * expiry.
+     *
+     * @param tokenValidSecs the lifetime of the token, in seconds.
+     * @return the delay, in milliseconds.
+     */
+    static int renewalDelayMillis(long tokenValidSecs)
+    {
+        // Codes_SRS_AMQPSCBSSESSION_21_003: [A token shall be put again once three quarters of its lifetime have passed, and no sooner than a second after it was put.]
+        long delay = tokenValidSecs * 10L * RENEWAL_PERCENT;
+        return (int) Math.max(MIN_RENEWAL_DELAY_MILLIS, Math.min(Integer.MAX_VALUE, delay));
+    }
+
+    /**
+     * Returns {@code true} if the status code of an answer to a put-token
+     * request means the token was accepted.
+     *
+     * @param statusCode the status code of the answer.
+     * @return whether the token was accepted.
+     */
+    static boolean isSuccess(int statusCode)
+    {
+        return statusCode == 200 || statusCode == 202;
+    }
+
+    /**
+     * Sends a put-token request. The callback is told of the answer.
+     *
+     * @param audience the audience of the token.
+     * @param sasToken the SAS token.
+     * @param callback the callback told of the answer.
+     */
+    void putToken(String audience, String sasToken, PutTokenCallback callback)
+    {
+        // Codes_SRS_AMQPSCBSSESSION_21_004: [The function shall send the put-token request on the sender link, and keep the callback until the answer to the request arrives.]
+        String requestId = "put-token-" + this.nextRequestId++;
+        this.pendingRequests.put(requestId, callback);
+
+        Binary data = AmqpsIotHubConnection.encodeMessage(createPutTokenMessage(requestId, audience, sasToken));
+        this.sender.delivery(requestId.getBytes());
+        this.sender.send(data.getArray(), data.getArrayOffset(), data.getLength());
+        this.sender.advance();
+    }
+
+    /**
+     * Returns {@code true} if the link is one of the CBS links.
+     *
+     * @param link the link.
+     * @return whether the link is one of the CBS links.
+     */
+    boolean isCbsLink(Link link)
+    {
+        return link == this.sender || link == this.receiver;
+    }
+
+    /**
+     * Handles a delivery on one of the CBS links.
+     *
+     * @param delivery the delivery.
+     */
+    void onDelivery(Delivery delivery)
+    {
+        if (delivery.getLink() == this.receiver)
+        {
+            if (delivery.isReadable() && !delivery.isPartial())
+            {
+                // Codes_SRS_AMQPSCBSSESSION_21_005: [An answer shall be accepted and settled, and handed to the callback of its request, found by its correlation id.]
+                byte[] buffer = new byte[delivery.pending()];
+                int read = this.receiver.recv(buffer, 0, buffer.length);
+                this.receiver.advance();
+                delivery.disposition(Accepted.getInstance());
+                delivery.settle();
+
+                Message response = Proton.message();
+                response.decode(buffer, 0, read);
+                onPutTokenResponse(response);
+            }
+        }
+        else if (delivery.getRemoteState() != null)
+        {
+            // Codes_SRS_AMQPSCBSSESSION_21_006: [A request settled by the IoT Hub shall be settled.]
+            delivery.settle();
+        }
+    }
+
+    /**
+     * Closes the CBS links and session.
+     */
+    void close()
+    {
+        // Codes_SRS_AMQPSCBSSESSION_21_007: [The function shall close the links and the session, and drop the pending requests.]
+        this.sender.close();
+        this.receiver.close();
+        this.session.close();
+        this.pendingRequests.clear();
+    }
+
+    private void onPutTokenResponse(Message response)
+    {
+        Object correlationId = response.getCorrelationId();
+        PutTokenCallback callback = correlationId == null ? null : this.pendingRequests.remove(correlationId.toString());
+        if (callback == null)
+        {
+            logger.LogInfo("Ignoring the answer to a put-token request that is not pending, method name is onPutTokenResponse ");
+            return;
+        }
+
+        int statusCode = 0;
+        String statusDescription = null;
+        if (response.getApplicationProperties() != null && response.getApplicationProperties().getValue() != null)
+        {
+            Object code = response.getApplicationProperties().getValue().get(statusCodeKey);
+            if (code instanceof Number)
+            {
+                statusCode = ((Number) code).intValue();
+            }
+            Object description = response.getApplicationProperties().getValue().get(statusDescriptionKey);
+            statusDescription = description == null ? null : description.toString();
+        }
+        callback.onPutTokenResponse(statusCode, statusDescription);
+    }
+}
@@ -0,0 +1,74 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device.transport.amqps;
+
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import org.apache.qpid.proton.message.Message;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The links over which the {@link AmqpsTransport} of a device exchanges
+ * messages with an IoT Hub, whether they run on a connection of their own or
+ * on a connection shared with other devices.
+ */
+public interface AmqpsDeviceConnection
+{
+    /**
+     * Opens the links of the device.
+     *
+     * @throws IOException if the links cannot be opened.
+     */
+    void open() throws IOException;
+
+    /**
+     * Closes the links of the device.
+     *
+     * @throws IOException if the links cannot be closed.
+     */
+    void close() throws IOException;
+
+    /**
+     * Sends a message.
+     *
+     * @param message the message to send.
+     * @return the id of the delivery, which is reported to the listeners when it is settled, or -1 if the links are closed.
+     */
+    long sendMessage(Message message);
+
+    /**
+     * Sends several messages as a single batched delivery.
+     *
+     * @param messages the messages to send, in order.
+     * @return the id of the delivery, which is reported to the listeners when it is settled, or -1 if the links are closed.
+     */
+    long sendMessageBatch(List<Message> messages);
+
+    /**
+     * Settles a message received from the IoT Hub.
+     *
+     * @param message the message to settle.
+     * @param result the result of the message callback.
+     * @return {@code true} if the message was settled, and {@code false} otherwise.
+     */
+    Boolean sendMessageResult(AmqpsMessage message, IotHubMessageResult result);
+
+    /**
+     * Settles several messages received from the IoT Hub together, so that
+     * their dispositions go out in a single pass of the reactor.
+     *
+     * @param messages the messages to settle.
+     * @param results the results of the message callback, one for each message, in the same order.
+     * @return {@code true} if the messages were settled, and {@code false} otherwise.
+     */
+    Boolean sendMessageResults(List<AmqpsMessage> messages, List<IotHubMessageResult> results);
+
+    /**
+     * Subscribes a listener to the events of the links.
+     *
+     * @param listener the listener to subscribe.
+     */
+    void addListener(ServerListener listener);
+}
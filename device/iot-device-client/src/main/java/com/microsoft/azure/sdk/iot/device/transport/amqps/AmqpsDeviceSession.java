@@ -0,0 +1,619 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device.transport.amqps;
+
+import com.microsoft.azure.sdk.iot.device.CustomLogger;
+import com.microsoft.azure.sdk.iot.device.DeviceClientConfig;
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import com.microsoft.azure.sdk.iot.device.ObjectLock;
+import com.microsoft.azure.sdk.iot.device.auth.IotHubSasToken;
+import com.microsoft.azure.sdk.iot.device.net.IotHubUri;
+import com.microsoft.azure.sdk.iot.device.transport.State;
+import com.microsoft.azure.sdk.iot.device.transport.TransportUtils;
+import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.Symbol;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.apache.qpid.proton.amqp.messaging.Source;
+import org.apache.qpid.proton.amqp.messaging.Target;
+import org.apache.qpid.proton.amqp.transport.SenderSettleMode;
+import org.apache.qpid.proton.engine.Connection;
+import org.apache.qpid.proton.engine.Delivery;
+import org.apache.qpid.proton.engine.Link;
+import org.apache.qpid.proton.engine.Receiver;
+import org.apache.qpid.proton.engine.Sender;
+import org.apache.qpid.proton.engine.Session;
+import org.apache.qpid.proton.message.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The session and links of one device on an {@link AmqpsMultiplexedConnection}
+ * shared with other devices. The device is authorized on the shared
+ * connection with a claims-based security (CBS) put-token request, after
+ * which its session and links are opened.
+ */
+public final class AmqpsDeviceSession implements AmqpsDeviceConnection
+{
+    private static final String sendTagPrefix = "sender_";
+    private static final String receiveTagPrefix = "receiver_";
+    private static final String versionIdentifierKey = "com.microsoft:client-version";
+
+    private static final String sendEndpointFormat = "/devices/%s/messages/events";
+    private static final String receiveEndpointFormat = "/devices/%s/messages/devicebound";
+
+    private int maxWaitTimeForOpeningConnection = 3*60*1000;
+
+    protected final DeviceClientConfig config;
+    protected final AmqpsMultiplexedConnection multiplexedConnection;
+    protected volatile State state;
+
+    private final String sendEndpoint;
+    private final String receiveEndpoint;
+
+    /** The session and links of the device. Only used on the reactor thread. */
+    private Session session;
+    private Sender sender;
+    private Receiver receiver;
+
+    private volatile int linkCredit = -1;
+    /** The id given to the next delivery, which is its tag and is reported to the listeners when it is settled. */
+    private final AtomicLong nextDeliveryId = new AtomicLong();
+    /** Whether the IoT Hub turned down the last put-token request of the device. */
+    private volatile boolean authorizationFailed;
+    /** The number of times the links were lost since they were last open. Only used on the reactor thread. */
+    private int currentReconnectionAttempt = 0;
+
+    private final List<ServerListener> listeners = new CopyOnWriteArrayList<>();
+    private final ObjectLock openLock = new ObjectLock();
+
+    private final CustomLogger logger = new CustomLogger(this.getClass());
+
+    /**
+     * Constructor.
+     *
+     * @param config the configuration of the device.
+     * @param multiplexedConnection the connection shared with other devices.
+     *
+     * @throws IllegalArgumentException if the configuration or the connection
+     * is {@code null}, or if the configuration has no device id.
+     */
+    public AmqpsDeviceSession(DeviceClientConfig config, AmqpsMultiplexedConnection multiplexedConnection)
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_001: [If the configuration or the connection is null, or the configuration has no device id, the constructor shall throw an IllegalArgumentException.]
+        if (config == null || multiplexedConnection == null)
+        {
+            throw new IllegalArgumentException("A device session needs a configuration and a connection.");
+        }
+        if (config.getDeviceId() == null || config.getDeviceId().length() == 0)
+        {
+            throw new IllegalArgumentException("deviceID cannot be null or empty.");
+        }
+
+        // Codes_SRS_AMQPSDEVICESESSION_21_002: [The constructor shall save the configuration and the connection, set the endpoints of the device, and set its state to CLOSED.]
+        this.config = config;
+        this.multiplexedConnection = multiplexedConnection;
+        this.sendEndpoint = String.format(sendEndpointFormat, config.getDeviceId());
+        this.receiveEndpoint = String.format(receiveEndpointFormat, config.getDeviceId());
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Registers the device on the shared connection, and waits until the IoT
+     * Hub has authorized it and opened its links.
+     *
+     * @throws IOException if the links are not open in time, or if the IoT
+     * Hub does not authorize the device.
+     */
+    public void open() throws IOException
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_003: [If the session is already open, the function shall do nothing.]
+        if (this.state == State.OPEN)
+        {
+            return;
+        }
+
+        // Codes_SRS_AMQPSDEVICESESSION_21_004: [The function shall register the device on the shared connection, and wait for its links to open.]
+        this.authorizationFailed = false;
+        this.multiplexedConnection.register(this);
+        try
+        {
+            long deadline = System.currentTimeMillis() + this.maxWaitTimeForOpeningConnection;
+            synchronized (this.openLock)
+            {
+                long remaining = this.maxWaitTimeForOpeningConnection;
+                while (this.state != State.OPEN && !this.authorizationFailed && remaining > 0)
+                {
+                    this.openLock.waitLock(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            logger.LogError(e);
+            Thread.currentThread().interrupt();
+        }
+
+        // Codes_SRS_AMQPSDEVICESESSION_21_005: [If the links are not open in time, or the IoT Hub did not authorize the device, the function shall unregister the device and throw an IOException.]
+        if (this.state != State.OPEN)
+        {
+            this.multiplexedConnection.unregister(this);
+            throw new IOException(this.authorizationFailed
+                    ? "The IoT Hub did not authorize the device on the shared connection."
+                    : "Waited too long for the device links to open.");
+        }
+    }
+
+    /**
+     * Closes the links of the device and unregisters it from the shared
+     * connection, which is closed once no device is left on it.
+     *
+     * @throws IOException if the shared connection cannot be closed.
+     */
+    public void close() throws IOException
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_006: [The function shall set the state to CLOSED and unregister the device from the shared connection.]
+        this.state = State.CLOSED;
+        this.multiplexedConnection.unregister(this);
+    }
+
+    /**
+     * Sends a message on the sender link of the device.
+     *
+     * @param message the message to send.
+     * @return the id of the delivery, or -1 if the links are closed.
+     */
+    public long sendMessage(Message message)
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_007: [If the session is closed or there is not enough credit, the function shall return -1.]
+        if (this.state == State.CLOSED || this.linkCredit <= 0)
+        {
+            return -1;
+        }
+
+        // Codes_SRS_AMQPSDEVICESESSION_21_008: [The function shall encode the message, hand its delivery to the reactor thread, and return the id of the delivery.]
+        Binary encoded = AmqpsIotHubConnection.encodeMessage(message);
+        final byte[] data = encoded.getArray();
+        final int dataLength = encoded.getLength();
+        final long deliveryId = this.nextDeliveryId.getAndIncrement();
+        this.multiplexedConnection.runOnReactor(new Runnable()
+        {
+            public void run()
+            {
+                deliver(data, dataLength, null, deliveryId);
+            }
+        });
+        return deliveryId;
+    }
+
+    /**
+     * Sends several messages as a single batched delivery on the sender link
+     * of the device.
+     *
+     * @param messages the messages to send, in order.
+     * @return the id of the delivery, or -1 if the links are closed.
+     */
+    public long sendMessageBatch(List<Message> messages)
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_007: [If the session is closed or there is not enough credit, the function shall return -1.]
+        if (this.state == State.CLOSED || this.linkCredit <= 0)
+        {
+            return -1;
+        }
+
+        // Codes_SRS_AMQPSDEVICESESSION_21_009: [The function shall encode the messages into the body of a batch, hand its delivery to the reactor thread with the batch message format, and return the id of the delivery.]
+        final byte[] data = AmqpsIotHubConnection.encodeBatch(messages);
+        final long deliveryId = this.nextDeliveryId.getAndIncrement();
+        this.multiplexedConnection.runOnReactor(new Runnable()
+        {
+            public void run()
+            {
+                deliver(data, data.length, AmqpsIotHubConnection.AMQP_BATCH_MESSAGE_FORMAT, deliveryId);
+            }
+        });
+        return deliveryId;
+    }
+
+    /**
+     * Settles a message received from the IoT Hub.
+     *
+     * @param message the message to settle.
+     * @param result the result of the message callback.
+     * @return {@code true} if the settlement was handed to the reactor thread,
+     * and {@code false} if the session is closed.
+     */
+    public Boolean sendMessageResult(final AmqpsMessage message, IotHubMessageResult result)
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_010: [If the session is closed, the function shall return false.]
+        if (this.state == State.CLOSED)
+        {
+            return false;
+        }
+
+        final AmqpsMessage.ACK_TYPE ackType;
+        switch (result)
+        {
+            case COMPLETE:
+                ackType = AmqpsMessage.ACK_TYPE.COMPLETE;
+                break;
+            case REJECT:
+                ackType = AmqpsMessage.ACK_TYPE.REJECT;
+                break;
+            case ABANDON:
+                ackType = AmqpsMessage.ACK_TYPE.ABANDON;
+                break;
+            default:
+                // should never happen.
+                logger.LogError("Invalid IoT Hub message result (%s), method name is sendMessageResult ", result.name());
+                return false;
+        }
+
+        // Codes_SRS_AMQPSDEVICESESSION_21_011: [The function shall hand the acknowledgement of the message to the reactor thread and return true.]
+        this.multiplexedConnection.runOnReactor(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    message.acknowledge(ackType);
+                }
+                catch (Exception e)
+                {
+                    logger.LogError(e);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Settles several messages received from the IoT Hub together, in a
+     * single piece of work on the reactor thread.
+     *
+     * @param messages the messages to settle.
+     * @param results the results of the message callback, one for each message, in the same order.
+     * @return {@code true} if the acknowledgements were handed to the reactor, and {@code false} otherwise.
+     */
+    public Boolean sendMessageResults(List<AmqpsMessage> messages, List<IotHubMessageResult> results)
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_022: [If the session is closed, or a result is not one of COMPLETE, ABANDON, or REJECT, the function shall return false.]
+        if (this.state == State.CLOSED)
+        {
+            return false;
+        }
+
+        final List<AmqpsMessage> acknowledged = new ArrayList<>(messages);
+        final List<AmqpsMessage.ACK_TYPE> ackTypes = new ArrayList<>(results.size());
+        for (IotHubMessageResult result : results)
+        {
+            AmqpsMessage.ACK_TYPE ackType = AmqpsMessage.ACK_TYPE.of(result);
+            if (ackType == null)
+            {
+                logger.LogError("Invalid IoT Hub message result (%s), method name is sendMessageResults ", result);
+                return false;
+            }
+            ackTypes.add(ackType);
+        }
+
+        // Codes_SRS_AMQPSDEVICESESSION_21_023: [The function shall hand the acknowledgements of all the messages to the reactor thread as a single task, and return true.]
+        this.multiplexedConnection.runOnReactor(new Runnable()
+        {
+            public void run()
+            {
+                for (int i = 0; i < acknowledged.size(); i++)
+                {
+                    try
+                    {
+                        acknowledged.get(i).acknowledge(ackTypes.get(i));
+                    }
+                    catch (Exception e)
+                    {
+                        logger.LogError(e);
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Subscribes a listener to the events of the device links.
+     *
+     * @param listener the listener to subscribe.
+     */
+    public void addListener(ServerListener listener)
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_012: [The function shall add the listener to the listeners of the session.]
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Getter for the audience of the device's SAS token, which names the
+     * device in the put-token request.
+     *
+     * @return the audience of the device's SAS token.
+     */
+    String getAudience()
+    {
+        return IotHubUri.getResourceUri(this.config.getIotHubHostname(), this.config.getDeviceId());
+    }
+
+    /**
+     * Creates the SAS token sent in the put-token request of the device.
+     *
+     * @return a new SAS token valid for the duration given in the configuration.
+     */
+    String createSasToken()
+    {
+        return new IotHubSasToken(this.config, System.currentTimeMillis() / 1000L
+                + this.config.getTokenValidSecs() + 1L).toString();
+    }
+
+    /**
+     * Returns how long after its token is accepted the device puts a new one.
+     *
+     * @return the renewal delay given by the token lifetime in the configuration.
+     */
+    int getTokenRenewalDelayMillis()
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_025: [The token of the device shall be renewed as the token lifetime of its own configuration requires.]
+        return AmqpsCbsSession.renewalDelayMillis(this.config.getTokenValidSecs());
+    }
+
+    /**
+     * Returns the credit the receiver link of the device is kept at.
+     *
+     * @return the AMQP receive credit of the configuration.
+     */
+    int getReceiveCredit()
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_026: [The receiver link of the device shall be kept at the AMQP receive credit of its own configuration.]
+        return this.config.getAmqpReceiveCredit();
+    }
+
+    /**
+     * Opens the session and links of the device once the IoT Hub has
+     * authorized it. Runs on the reactor thread.
+     *
+     * @param connection the shared Proton connection.
+     */
+    void openLinks(Connection connection)
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_013: [Once the device is authorized, its session, sender and receiver shall be opened, with link names unique to the device on the shared connection.]
+        closeLinks();
+        this.session = connection.session();
+        this.sender = this.session.sender(sendTagPrefix + this.config.getDeviceId());
+        this.receiver = this.session.receiver(receiveTagPrefix + this.config.getDeviceId());
+        this.sender.setContext(this);
+        this.receiver.setContext(this);
+
+        Map<Symbol, Object> properties = new HashMap<>();
+        properties.put(Symbol.getSymbol(versionIdentifierKey), TransportUtils.javaDeviceClientIdentifier + TransportUtils.clientVersion);
+        this.sender.setProperties(properties);
+        this.receiver.setProperties(properties);
+
+        Target target = new Target();
+        target.setAddress(this.sendEndpoint);
+        this.sender.setTarget(target);
+        // Codes_SRS_AMQPSDEVICESESSION_21_021: [If the configuration asks for settled sends, the sender shall be opened in the SETTLED mode, and every delivery settled once it is sent.]
+        this.sender.setSenderSettleMode(this.config.isAmqpSendSettled() ? SenderSettleMode.SETTLED : SenderSettleMode.UNSETTLED);
+
+        Source source = new Source();
+        source.setAddress(this.receiveEndpoint);
+        this.receiver.setSource(source);
+
+        this.session.open();
+        this.sender.open();
+        this.receiver.open();
+    }
+
+    /**
+     * Closes the session and links of the device. Runs on the reactor thread.
+     */
+    void closeLinks()
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_014: [Closing the links shall close the sender, the receiver and the session of the device.]
+        if (this.sender != null)
+        {
+            this.sender.close();
+            this.sender = null;
+        }
+        if (this.receiver != null)
+        {
+            this.receiver.close();
+            this.receiver = null;
+        }
+        if (this.session != null)
+        {
+            this.session.close();
+            this.session = null;
+        }
+        this.linkCredit = -1;
+    }
+
+    /**
+     * Called when the IoT Hub turns down the put-token request of the
+     * device. Runs on the reactor thread.
+     *
+     * @param statusCode the status code of the answer.
+     * @param description the status description of the answer, if any.
+     */
+    void onAuthorizationFailed(int statusCode, String description)
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_015: [If the IoT Hub turns down the put-token request, the session shall wake up the thread waiting for it to open.]
+        logger.LogError("The IoT Hub did not authorize device %s, status %s (%s), method name is onAuthorizationFailed ",
+                this.config.getDeviceId(), statusCode, description);
+        this.authorizationFailed = true;
+        synchronized (this.openLock)
+        {
+            this.openLock.notifyLock();
+        }
+    }
+
+    /**
+     * Called when a link of the device is opened by the IoT Hub. Runs on the
+     * reactor thread.
+     *
+     * @param link the opened link.
+     */
+    void onLinkRemoteOpen(Link link)
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_016: [The session shall be OPEN once its sender link is open remotely, and shall wake up the thread waiting for it to open.]
+        if (link == this.sender)
+        {
+            this.currentReconnectionAttempt = 0;
+            this.state = State.OPEN;
+            synchronized (this.openLock)
+            {
+                this.openLock.notifyLock();
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if the link is the sender link of the device.
+     * Runs on the reactor thread.
+     *
+     * @param link the link.
+     * @return {@code true} if the link is the sender link of the device, and
+     * {@code false} otherwise.
+     */
+    boolean isSender(Link link)
+    {
+        return link != null && link == this.sender;
+    }
+
+    /**
+     * Returns {@code true} if the links of the device are open, or being
+     * opened. Runs on the reactor thread.
+     *
+     * @return whether the device has links.
+     */
+    boolean hasLinks()
+    {
+        return this.sender != null;
+    }
+
+    /**
+     * Called when the credit of a link of the device changes. Runs on the
+     * reactor thread.
+     *
+     * @param link the link.
+     */
+    void onLinkFlow(Link link)
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_017: [The session shall save the credit of its sender link.]
+        if (link == this.sender)
+        {
+            this.linkCredit = link.getCredit();
+        }
+    }
+
+    /**
+     * Called on a delivery on a link of the device. Runs on the reactor
+     * thread.
+     *
+     * @param link the link.
+     * @param delivery the delivery.
+     */
+    void onDelivery(Link link, Delivery delivery)
+    {
+        if (link == this.receiver)
+        {
+            if (delivery.isReadable() && !delivery.isPartial())
+            {
+                // Codes_SRS_AMQPSDEVICESESSION_21_018: [A message received on the receiver link shall be decoded and handed to the listeners.]
+                byte[] buffer = new byte[delivery.pending()];
+                int read = this.receiver.recv(buffer, 0, buffer.length);
+                this.receiver.advance();
+
+                AmqpsMessage message = new AmqpsMessage();
+                message.setDelivery(delivery);
+                message.decode(buffer, 0, read);
+                for (ServerListener listener : this.listeners)
+                {
+                    listener.messageReceived(message);
+                }
+            }
+        }
+        else if (link == this.sender && delivery.getRemoteState() != null)
+        {
+            // Codes_SRS_AMQPSDEVICESESSION_21_019: [A settled delivery on the sender link shall be reported to the listeners by the id read back from its tag.]
+            byte[] tag = delivery.getTag();
+            if (tag != null && tag.length == AmqpsIotHubConnection.DELIVERY_TAG_BYTES)
+            {
+                long deliveryId = AmqpsIotHubConnection.fromDeliveryTag(tag);
+                boolean accepted = delivery.getRemoteState().equals(Accepted.getInstance());
+                for (ServerListener listener : this.listeners)
+                {
+                    listener.messageSent(deliveryId, accepted);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when the links of the device are lost, either on their own or
+     * with the shared connection. Runs on the reactor thread.
+     *
+     * @return the number of times the links were lost since they were last
+     * open, to space out the attempts to open them again.
+     */
+    int onLinksLost()
+    {
+        // Codes_SRS_AMQPSDEVICESESSION_21_020: [When the links are lost, the session shall set its state to CLOSED, drop its links, and notify the listeners that the connection was lost.]
+        this.state = State.CLOSED;
+        this.linkCredit = -1;
+        // the links belong to a connection that is gone, so they are
+        // dropped rather than closed.
+        this.sender = null;
+        this.receiver = null;
+        this.session = null;
+        for (ServerListener listener : this.listeners)
+        {
+            listener.connectionLost();
+        }
+
+        if (this.currentReconnectionAttempt < Integer.MAX_VALUE)
+        {
+            this.currentReconnectionAttempt++;
+        }
+        return this.currentReconnectionAttempt;
+    }
+
+    /**
+     * Sends encoded data as a new delivery on the sender link. Runs on the
+     * reactor thread.
+     */
+    private void deliver(byte[] data, int length, Integer messageFormat, long deliveryId)
+    {
+        if (this.state == State.CLOSED || this.sender == null)
+        {
+            // Codes_SRS_AMQPSDEVICESESSION_21_024: [If the links went down after the delivery was handed over, the delivery shall be reported to the listeners as not delivered, so that it is sent again.]
+            for (ServerListener listener : this.listeners)
+            {
+                listener.messageSent(deliveryId, false);
+            }
+            return;
+        }
+
+        Delivery delivery = this.sender.delivery(AmqpsIotHubConnection.toDeliveryTag(deliveryId));
+        if (messageFormat != null)
+        {
+            delivery.setMessageFormat(messageFormat);
+        }
+        this.sender.send(data, 0, length);
+        this.sender.advance();
+        if (this.config.isAmqpSendSettled())
+        {
+            delivery.settle();
+        }
+    }
+}
@@ -6,17 +6,21 @@
 package com.microsoft.azure.sdk.iot.device.transport.amqps;
 
 import com.microsoft.azure.sdk.iot.device.DeviceClientConfig;
+import com.microsoft.azure.sdk.iot.device.DeviceClientRuntime;
 import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
 import com.microsoft.azure.sdk.iot.device.ObjectLock;
 import com.microsoft.azure.sdk.iot.device.auth.IotHubSasToken;
+import com.microsoft.azure.sdk.iot.device.net.IotHubUri;
 import com.microsoft.azure.sdk.iot.device.transport.State;
 import com.microsoft.azure.sdk.iot.device.transport.TransportUtils;
 //import com.microsoft.azure.sdk.iot
 import com.microsoft.azure.sdk.iot.deps.ws.impl.WebSocketImpl;
 import com.microsoft.azure.sdk.iot.device.CustomLogger;
 import org.apache.qpid.proton.Proton;
+import org.apache.qpid.proton.amqp.Binary;
 import org.apache.qpid.proton.amqp.Symbol;
 import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.apache.qpid.proton.amqp.messaging.Data;
 import org.apache.qpid.proton.amqp.messaging.Source;
 import org.apache.qpid.proton.amqp.messaging.Target;
 import org.apache.qpid.proton.amqp.transport.DeliveryState;
@@ -27,16 +31,22 @@ import org.apache.qpid.proton.message.Message;
 import org.apache.qpid.proton.reactor.FlowController;
 import org.apache.qpid.proton.reactor.Handshaker;
 import org.apache.qpid.proton.reactor.Reactor;
+import org.apache.qpid.proton.reactor.Task;
 import org.bouncycastle.openssl.PEMReader;
 import org.bouncycastle.openssl.PEMWriter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOError;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.nio.BufferOverflowException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
@@ -46,6 +56,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 
@@ -53,7 +64,7 @@ import java.util.concurrent.TimeUnit;
  * An AMQPS IotHub connection between a device and an IoTHub. This class contains functionality for sending/receiving
  * a message, and logic to re-establish the connection with the IoTHub in case it gets lost.
  */
-public final class AmqpsIotHubConnection extends BaseHandler
+public final class AmqpsIotHubConnection extends BaseHandler implements AmqpsDeviceConnection
 {
     private int maxWaitTimeForOpeningClosingConnection = 3*60*1000;
     private int maxWaitTimeForTerminateExecutor = 30;
@@ -67,38 +78,82 @@ public final class AmqpsIotHubConnection extends BaseHandler
     private static final String receiveEndpointFormat = "/devices/%s/messages/devicebound";
     private final String receiveEndpoint;
 
-    private int linkCredit = -1;
-    /** The {@link Delivery} tag. */
-    private long nextTag = 0;
+    /** The smallest buffer a message is encoded into. */
+    private static final int MIN_ENCODE_BUFFER_BYTES = 1024;
+    /** The room left, on top of the body and application properties, for the header and properties of an encoded message. */
+    private static final int ENCODE_OVERHEAD_BYTES = 512;
+
+    /** The message format of a batch, whose body holds one encoded message per data section. */
+    public static final int AMQP_BATCH_MESSAGE_FORMAT = 0x80013700;
+
+    private volatile int linkCredit = -1;
+    /** The length of a {@link Delivery} tag, which holds the delivery id as a big-endian long. */
+    static final int DELIVERY_TAG_BYTES = 8;
+    /** The id given to the next delivery, which is its tag and is reported to the listeners when it is settled. */
+    private final AtomicLong nextDeliveryId = new AtomicLong();
     private static final String versionIdentifierKey = "com.microsoft:client-version";
-    private static final String webSocketPath = "/$iothub/websocket";
-    private static final String webSocketSubProtocol = "AMQPWSB10";
-    private static final int amqpPort = 5671;
-    private static final int amqpWebSocketPort = 443;
+    static final String webSocketPath = "/$iothub/websocket";
+    static final String webSocketSubProtocol = "AMQPWSB10";
+    static final int amqpPort = 5671;
+    static final int amqpWebSocketPort = 443;
     private String sasToken;
 
     private Sender sender;
     private Receiver receiver;
     private Connection connection;
     private Session session;
+    /** The CBS session on which the SAS token is put, and put again before it expires. */
+    private AmqpsCbsSession cbsSession;
+    /** The timer that puts the SAS token again before it expires. */
+    private Task renewalTask;
+    /** Whether the device links were opened on the current connection. Only used on the reactor thread. */
+    private boolean linksOpened;
 
     private String hostName;
-    private String userName;
 
     private final Boolean useWebSockets;
     protected DeviceClientConfig config;
 
     private List<ServerListener> listeners = new ArrayList<>();
     private ExecutorService executorService;
+    private boolean executorServiceShared = false;
+    /** Whether a reactor thread of the runtime is reserved for this connection. */
+    private boolean reactorReserved = false;
 
     private ObjectLock openLock = new ObjectLock();
     private ObjectLock closeLock = new ObjectLock();
 
     private Reactor reactor;
+    /** Runs the reactor, and the engine work handed to it, or {@code null} until the connection is opened. */
+    private IotHubReactor iotHubReactor;
 
     private Boolean reconnectCall = false;
     private int currentReconnectionAttempt = 1;
+    /** The pending reconnection, run by the reactor once its backoff expires. */
+    private Task reconnectTask;
     protected CustomLogger logger;
+    /** Logs the errors met while reading the trusted certificate, which is shared with the multiplexed connections. */
+    private static final CustomLogger certificateLogger = new CustomLogger(AmqpsIotHubConnection.class);
+
+    /** The maximum number of client SSL domains kept for reuse. */
+    private static final int MAX_CLIENT_DOMAINS = 16;
+
+    /**
+     * The client SSL domains, by digest of their trusted certificate, least
+     * recently used first. A domain keeps the SSL context it builds from its
+     * trusted certificate, so reusing it spares each connect the parsing of the
+     * certificate. Keying on the contents lets the devices that each write the
+     * same default certificate to their own file share one domain.
+     */
+    private static final Map<String, SslDomain> clientDomains =
+            new LinkedHashMap<String, SslDomain>(MAX_CLIENT_DOMAINS, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SslDomain> eldest)
+                {
+                    return size() > MAX_CLIENT_DOMAINS;
+                }
+            };
 
     /**
      * Constructor to set up connection parameters using the {@link DeviceClientConfig}.
@@ -137,9 +192,6 @@ public final class AmqpsIotHubConnection extends BaseHandler
         this.config = config;
 
         String deviceId = this.config.getDeviceId();
-        String iotHubName = this.config.getIotHubName();
-
-        this.userName = deviceId + "@sas." + iotHubName;
 
         this.useWebSockets = useWebSockets;
         if (useWebSockets)
@@ -161,7 +213,8 @@ public final class AmqpsIotHubConnection extends BaseHandler
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_005: [The constructor shall initialize a new FlowController
         // (Proton) object to handle communication flow.]
         add(new Handshaker());
-        add(new FlowController());
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_072: [The FlowController shall keep the receive link credit at the AMQP receive credit of the configuration.]
+        add(new FlowController(config.getAmqpReceiveCredit()));
 
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_006: [The constructor shall set its state to CLOSED.]
         this.state = State.CLOSED;
@@ -175,7 +228,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
             logger.LogError(e);
             throw new IOException("Could not create Proton reactor");
         }
-        logger.LogInfo("AmqpsIotHubConnection object is created successfully using port %s in %s method ", useWebSockets ? amqpWebSocketPort : amqpPort, logger.getMethodName());
+        logger.LogInfo("AmqpsIotHubConnection object is created successfully using port %s in AmqpsIotHubConnection method ", useWebSockets ? amqpWebSocketPort : amqpPort);
     }
 
     /**
@@ -193,6 +246,22 @@ public final class AmqpsIotHubConnection extends BaseHandler
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_007: [If the AMQPS connection is already open, the function shall do nothing.]
         if(this.state == State.CLOSED)
         {
+            DeviceClientRuntime runtime = this.config.getRuntime();
+            if (runtime != null && !this.reactorReserved)
+            {
+                try
+                {
+                    // Codes_SRS_AMQPSIOTHUBCONNECTION_21_075: [If the configuration has a runtime, the function shall reserve
+                    // one of its reactor threads, and throw an IOException if none is left.]
+                    runtime.reserveReactor();
+                }
+                catch (IllegalStateException e)
+                {
+                    throw new IOException("Error opening Amqp connection: " + e.getMessage());
+                }
+                this.reactorReserved = true;
+            }
+
             try
             {
                 // Codes_SRS_AMQPSIOTHUBCONNECTION_15_009: [The function shall trigger the Reactor (Proton) to begin running.]
@@ -232,9 +301,18 @@ public final class AmqpsIotHubConnection extends BaseHandler
      */
     public void close() throws IOException
     {
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_067: [The function shall drop a pending reconnection, so that the connection is not opened again once closed.]
+        this.reconnectCall = false;
 
         closeAsync();
 
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_076: [The function shall release the reactor thread reserved on the runtime, if any.]
+        if (this.reactorReserved)
+        {
+            this.reactorReserved = false;
+            this.config.getRuntime().releaseReactor();
+        }
+
         try
         {
             synchronized (closeLock)
@@ -247,8 +325,9 @@ public final class AmqpsIotHubConnection extends BaseHandler
             throw new IOException("Waited too long for the connection to close.");
         }
 
-        if (this.executorService != null) {
-            logger.LogInfo("Shutdown of executor service has started, method name is %s ", logger.getMethodName());
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_051: [If the reactor runs on the executor of a shared runtime, the function shall not shut the executor down.]
+        if (this.executorService != null && !this.executorServiceShared) {
+            logger.LogInfo("Shutdown of executor service has started, method name is close ");
             this.executorService.shutdown();
             try {
                 // Wait a while for existing tasks to terminate
@@ -264,7 +343,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
                 // (Re-)Cancel if current thread also interrupted
                 this.executorService.shutdownNow();
             }
-            logger.LogInfo("Shutdown of executor service completed, method name is %s ", logger.getMethodName());
+            logger.LogInfo("Shutdown of executor service completed, method name is close ");
         }
     }
 
@@ -272,10 +351,9 @@ public final class AmqpsIotHubConnection extends BaseHandler
     {
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_008: [The function shall create a new sasToken valid for the duration
         // specified in config to be used for the communication with IoTHub.]
-        this.sasToken = new IotHubSasToken(this.config, System.currentTimeMillis() / 1000L +
-                this.config.getTokenValidSecs() + 1L).toString();
+        this.sasToken = createSasToken();
 				
-        logger.LogInfo("SAS Token is created successfully, method name is %s ", logger.getMethodName());
+        logger.LogInfo("SAS Token is created successfully, method name is openAsync ");
 
         if (this.reactor == null)
         {
@@ -284,13 +362,22 @@ public final class AmqpsIotHubConnection extends BaseHandler
 
         if (executorService == null)
         {
-            executorService = Executors.newFixedThreadPool(1);
+            if (this.config.getRuntime() != null)
+            {
+                // Codes_SRS_AMQPSIOTHUBCONNECTION_21_050: [If the configuration has a runtime, the function shall run the reactor on the runtime's reactor executor.]
+                executorService = this.config.getRuntime().getReactorExecutor();
+                executorServiceShared = true;
+            }
+            else
+            {
+                executorService = Executors.newFixedThreadPool(1);
+            }
         }
 
-        IotHubReactor iotHubReactor = new IotHubReactor(reactor);
-        ReactorRunner reactorRunner = new ReactorRunner(iotHubReactor);
+        this.iotHubReactor = new IotHubReactor(reactor);
+        ReactorRunner reactorRunner = new ReactorRunner(this.iotHubReactor);
         executorService.submit(reactorRunner);
-        logger.LogInfo("Reactor is assigned to executor service, method name is %s ", logger.getMethodName());
+        logger.LogInfo("Reactor is assigned to executor service, method name is openAsync ");
     }
 
     private void closeAsync()
@@ -299,31 +386,109 @@ public final class AmqpsIotHubConnection extends BaseHandler
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_012: [The function shall set the status of the AMQPS connection to CLOSED.]
         this.state = State.CLOSED;
 
-        // Codes_SRS_AMQPSIOTHUBCONNECTION_15_013: [The function shall close the AMQPS sender and receiver links,
-        // the AMQPS session and the AMQPS connection.]
-        if (this.sender != null)
-            this.sender.close();
-        if (this.receiver != null)
-            this.receiver.close();
-        if (this.session != null)
-            this.session.close();
-        if (this.connection != null)
-            this.connection.close();
+        final Reactor reactor = this.reactor;
+        runOnReactor(new Runnable()
+        {
+            public void run()
+            {
+                if (reconnectTask != null)
+                {
+                    reconnectTask.cancel();
+                    reconnectTask = null;
+                }
+                if (renewalTask != null)
+                {
+                    renewalTask.cancel();
+                    renewalTask = null;
+                }
+                if (cbsSession != null)
+                {
+                    cbsSession.close();
+                    cbsSession = null;
+                }
 
-        // Codes_SRS_AMQPSIOTHUBCONNECTION_15_014: [The function shall stop the Proton reactor.]
+                // Codes_SRS_AMQPSIOTHUBCONNECTION_15_013: [The function shall close the AMQPS sender and receiver links,
+                // the AMQPS session and the AMQPS connection.]
+                if (sender != null)
+                    sender.close();
+                if (receiver != null)
+                    receiver.close();
+                if (session != null)
+                    session.close();
+                if (connection != null)
+                    connection.close();
+
+                // Codes_SRS_AMQPSIOTHUBCONNECTION_15_014: [The function shall stop the Proton reactor.]
+                reactor.stop();
+                logger.LogInfo("Proton reactor has been stopped, method name is closeAsync ");
+            }
+        });
+    }
 
-        this.reactor.stop();
-        logger.LogInfo("Proton reactor has been stopped, method name is %s ", logger.getMethodName());
+    /**
+     * Runs work that touches the Proton engine on the reactor thread.
+     *
+     * @param task the work to run.
+     */
+    private void runOnReactor(Runnable task)
+    {
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_056: [Work on the Proton engine shall be handed to the reactor thread, or run on the calling thread if the reactor was never started.]
+        if (this.iotHubReactor == null)
+        {
+            task.run();
+        }
+        else
+        {
+            this.iotHubReactor.execute(task);
+        }
+    }
+
+    /**
+     * Sends encoded data as a new delivery on the sender link. Must run on
+     * the reactor thread.
+     */
+    private void deliver(byte[] data, int length, Integer messageFormat, long deliveryId)
+    {
+        if (this.state == State.CLOSED || this.sender == null)
+        {
+            // Codes_SRS_AMQPSIOTHUBCONNECTION_21_074: [If the link went down after the delivery was handed over, the delivery shall be reported to the listeners as not delivered, so that it is sent again.]
+            for (ServerListener listener : listeners)
+            {
+                listener.messageSent(deliveryId, false);
+            }
+            return;
+        }
+
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_15_017: [The function shall set the delivery tag for the sender to the delivery id, as an 8 byte big-endian long.]
+        Delivery dlv = sender.delivery(toDeliveryTag(deliveryId));
+        if (messageFormat != null)
+        {
+            dlv.setMessageFormat(messageFormat);
+        }
+
+        logger.LogInfo("Attempting to send the message using the sender link, method name is deliver ");
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_15_018: [The function shall attempt to send the message using the sender link.]
+        sender.send(data, 0, length);
+
+        logger.LogInfo("Advancing the sender link, method name is deliver ");
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_15_019: [The function shall advance the sender link.]
+        sender.advance();
+
+        if (this.config.isAmqpSendSettled())
+        {
+            // Codes_SRS_AMQPSIOTHUBCONNECTION_21_069: [If the configuration asks for settled sends, the function shall settle the delivery once it is sent.]
+            dlv.settle();
+        }
     }
 
     /**
      * Creates a binary message using the given content and messageId. Sends the created message using the sender link.
      * @param message The message to be sent.
-     * @return An {@link Integer} representing the hash of the message, or -1 if the connection is closed.
+     * @return the id of the delivery, which is reported to the listeners when it is settled, or -1 if the connection is closed.
      */
-    public Integer sendMessage(Message message)
+    public long sendMessage(Message message)
     {
-        Integer deliveryHash;
+        long deliveryHash;
 
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_015: [If the state of the connection is CLOSED or there is not enough
         // credit, the function shall return -1.]
@@ -335,45 +500,62 @@ public final class AmqpsIotHubConnection extends BaseHandler
         {
 
             // Codes_SRS_AMQPSIOTHUBCONNECTION_15_016: [The function shall encode the message and copy the contents to the byte buffer.]
-            byte[] msgData = new byte[1024];
-            int length;
-
-            logger.LogInfo("Started encoding of message - entering in while loop, method name is %s ", logger.getMethodName());
-            while (true)
+            logger.LogInfo("Started encoding of message, method name is sendMessage ");
+            Binary encoded = encodeMessage(message);
+            logger.LogInfo("Completed encoding of message, length is %s, method name is sendMessage ", encoded.getLength());
+
+            // Codes_SRS_AMQPSIOTHUBCONNECTION_21_058: [The function shall give the delivery a new id, hand the delivery to the reactor thread, and return the id as the delivery hash.]
+            deliveryHash = this.nextDeliveryId.getAndIncrement();
+            final byte[] data = encoded.getArray();
+            final int dataLength = encoded.getLength();
+            final long deliveryId = deliveryHash;
+            runOnReactor(new Runnable()
             {
-                try
-                {
-                    length = message.encode(msgData, 0, msgData.length);
-                    logger.LogInfo("Completed encoding of message, length is %s - breaking the while loop to come out, method name is %s ", length, logger.getMethodName());
-                    break;
-                }
-                catch (BufferOverflowException e)
+                public void run()
                 {
-                    logger.LogError(e);
-                    msgData = new byte[msgData.length * 2];
+                    deliver(data, dataLength, null, deliveryId);
                 }
-            }
-            // Codes_SRS_AMQPSIOTHUBCONNECTION_15_017: [The function shall set the delivery tag for the sender.]
-            byte[] tag = String.valueOf(this. nextTag++).getBytes();
-            Delivery dlv = sender.delivery(tag);
-
-            logger.LogInfo("Attempting to send the message using the sender link, method name is %s ", logger.getMethodName());
-            // Codes_SRS_AMQPSIOTHUBCONNECTION_15_018: [The function shall attempt to send the message using the sender link.]
-            sender.send(msgData, 0, length);
-            
-            logger.LogInfo("Advancing the sender link, method name is %s ", logger.getMethodName());
-            // Codes_SRS_AMQPSIOTHUBCONNECTION_15_019: [The function shall advance the sender link.]
-            sender.advance();
-
-            // Codes_SRS_AMQPSIOTHUBCONNECTION_15_020: [The function shall set the delivery hash to the value returned by the sender link.]
-            deliveryHash = dlv.hashCode();
-            logger.LogInfo("Delivery hash returned by the sender link %s, method name is %s ", deliveryHash, logger.getMethodName());
+            });
+            logger.LogInfo("Delivery hash given to the message %s, method name is sendMessage ", deliveryHash);
         }
 
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_021: [The function shall return the delivery hash.]
         return deliveryHash;
     }
 
+    /**
+     * Sends several messages as a single batched delivery, whose body holds
+     * one data section per encoded message. The IoT Hub settles the batch as
+     * a whole.
+     *
+     * @param messages The messages to be sent, in order.
+     * @return the id of the delivery, which is reported to the listeners when it is settled, or -1 if the connection is closed.
+     */
+    public long sendMessageBatch(List<Message> messages)
+    {
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_052: [If the state of the connection is CLOSED or there is not enough
+        // credit, the function shall return -1.]
+        if (this.state == State.CLOSED || this.linkCredit <= 0)
+        {
+            return -1;
+        }
+
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_053: [The function shall encode each message into a data section of the batch body, in order.]
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_054: [The function shall send the batch body with the batch message format using the sender link, and advance the link.]
+        final byte[] data = encodeBatch(messages);
+        final long deliveryId = this.nextDeliveryId.getAndIncrement();
+        runOnReactor(new Runnable()
+        {
+            public void run()
+            {
+                deliver(data, data.length, AMQP_BATCH_MESSAGE_FORMAT, deliveryId);
+            }
+        });
+
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_055: [The function shall return the delivery hash.]
+        return deliveryId;
+    }
+
     /**
      * Sends the message result for the previously received message.
      *
@@ -381,7 +563,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
      * @param result the message result (one of {@link IotHubMessageResult#COMPLETE},
      *               {@link IotHubMessageResult#ABANDON}, or {@link IotHubMessageResult#REJECT}).
      */
-    public Boolean sendMessageResult(AmqpsMessage message, IotHubMessageResult result)
+    public Boolean sendMessageResult(final AmqpsMessage message, IotHubMessageResult result)
     {
         Boolean ackResult = false;
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_022: [If the AMQPS Connection is closed, the function shall return false.]
@@ -389,27 +571,43 @@ public final class AmqpsIotHubConnection extends BaseHandler
         {
             try
             {
-                logger.LogInfo("Acknowledgement for received message is %s, method name is %s ", result.name(), logger.getMethodName());
+                logger.LogInfo("Acknowledgement for received message is %s, method name is sendMessageResult ", result.name());
                 // Codes_SRS_AMQPSIOTHUBCONNECTION_15_023: [If the message result is COMPLETE, ABANDON, or REJECT,
                 // the function shall acknowledge the last message with acknowledgement type COMPLETE, ABANDON, or REJECT respectively.]
+                final AmqpsMessage.ACK_TYPE ackType;
                 switch (result)
                 {
                     case COMPLETE:
-                        message.acknowledge(AmqpsMessage.ACK_TYPE.COMPLETE);
+                        ackType = AmqpsMessage.ACK_TYPE.COMPLETE;
                         break;
                     case REJECT:
-                        message.acknowledge(AmqpsMessage.ACK_TYPE.REJECT);
+                        ackType = AmqpsMessage.ACK_TYPE.REJECT;
                         break;
                     case ABANDON:
-                        message.acknowledge(AmqpsMessage.ACK_TYPE.ABANDON);
+                        ackType = AmqpsMessage.ACK_TYPE.ABANDON;
                         break;
                     default:
                         // should never happen.
-                        logger.LogError("Invalid IoT Hub message result (%s), method name is %s ", result.name(), logger.getMethodName());
+                        logger.LogError("Invalid IoT Hub message result (%s), method name is sendMessageResult ", result.name());
                         throw new IllegalStateException("Invalid IoT Hub message result.");
                 }
 
-                // Codes_SRS_AMQPSIOTHUBCONNECTION_15_024: [The function shall return true after the message was acknowledged.]
+                runOnReactor(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            message.acknowledge(ackType);
+                        }
+                        catch (Exception e)
+                        {
+                            logger.LogError(e);
+                        }
+                    }
+                });
+
+                // Codes_SRS_AMQPSIOTHUBCONNECTION_15_024: [The function shall return true after the message was acknowledged, or the acknowledgement handed to the reactor thread.]
                 ackResult = true;
             }
             catch (Exception e)
@@ -421,6 +619,57 @@ public final class AmqpsIotHubConnection extends BaseHandler
         return ackResult;
     }
 
+    /**
+     * Sends the results of several messages received from the IoT Hub
+     * together. Their acknowledgements are handed to the reactor thread as
+     * a single piece of work, so that their dispositions go out in one pass.
+     * @param messages The messages to acknowledge.
+     * @param results The results of the message callback, one for each message, in the same order.
+     * @return Whether the results were sent or not.
+     */
+    public Boolean sendMessageResults(List<AmqpsMessage> messages, List<IotHubMessageResult> results)
+    {
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_070: [If the AMQPS Connection is closed, or a result is not one of COMPLETE, ABANDON, or REJECT, the function shall return false.]
+        if (this.state == State.CLOSED)
+        {
+            return false;
+        }
+
+        final List<AmqpsMessage> acknowledged = new ArrayList<>(messages);
+        final List<AmqpsMessage.ACK_TYPE> ackTypes = new ArrayList<>(results.size());
+        for (IotHubMessageResult result : results)
+        {
+            AmqpsMessage.ACK_TYPE ackType = AmqpsMessage.ACK_TYPE.of(result);
+            if (ackType == null)
+            {
+                logger.LogError("Invalid IoT Hub message result (%s), method name is sendMessageResults ", result);
+                return false;
+            }
+            ackTypes.add(ackType);
+        }
+
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_071: [The function shall hand the acknowledgements of all the messages to the reactor thread as a single task, and return true.]
+        logger.LogInfo("Acknowledging %s received messages, method name is sendMessageResults ", acknowledged.size());
+        runOnReactor(new Runnable()
+        {
+            public void run()
+            {
+                for (int i = 0; i < acknowledged.size(); i++)
+                {
+                    try
+                    {
+                        acknowledged.get(i).acknowledge(ackTypes.get(i));
+                    }
+                    catch (Exception e)
+                    {
+                        logger.LogError(e);
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
     /**
      * Event handler for the connection init event
      * @param event The Proton Event object.
@@ -428,7 +677,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
     @Override
     public void onConnectionInit(Event event)
     {
-        logger.LogDebug("Entered in method %s", logger.getMethodName());
+        logger.LogDebug("Entered in method onConnectionInit");
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_025: [The event handler shall get the Connection (Proton) object from the event handler and set the host name on the connection.]
         this.connection = event.getConnection();
         this.connection.setHostname(this.hostName);
@@ -448,10 +697,111 @@ public final class AmqpsIotHubConnection extends BaseHandler
 
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_029: [The event handler shall open the connection, session, sender and receiver objects.]
         this.connection.open();
-        this.session.open();
-        receiver.open();
-        sender.open();
-        logger.LogDebug("Exited from method %s", logger.getMethodName());
+
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_059: [The event handler shall open a CBS session on the connection and put the SAS token on it, and shall open the session, sender and receiver once the IoT Hub accepts the token.]
+        this.linksOpened = false;
+        this.cbsSession = new AmqpsCbsSession(this.connection);
+        putToken(this.sasToken);
+        logger.LogDebug("Exited from method onConnectionInit");
+    }
+
+    /**
+     * Puts a SAS token on the CBS session. Runs on the reactor thread.
+     *
+     * @param token the SAS token.
+     */
+    private void putToken(String token)
+    {
+        this.cbsSession.putToken(IotHubUri.getResourceUri(this.config.getIotHubHostname(), this.config.getDeviceId()), token,
+                new AmqpsCbsSession.PutTokenCallback()
+                {
+                    public void onPutTokenResponse(int statusCode, String statusDescription)
+                    {
+                        onTokenResponse(statusCode, statusDescription);
+                    }
+                });
+    }
+
+    /**
+     * Handles the answer of the IoT Hub to a put-token request. Runs on the
+     * reactor thread.
+     */
+    private void onTokenResponse(int statusCode, String statusDescription)
+    {
+        if (this.state == State.CLOSED && this.linksOpened)
+        {
+            // the links went down while the token was being put.
+            return;
+        }
+
+        if (AmqpsCbsSession.isSuccess(statusCode))
+        {
+            if (!this.linksOpened)
+            {
+                this.linksOpened = true;
+                this.session.open();
+                this.receiver.open();
+                this.sender.open();
+            }
+            else
+            {
+                logger.LogInfo("The SAS token was renewed, method name is onTokenResponse ");
+            }
+            // Codes_SRS_AMQPSIOTHUBCONNECTION_21_060: [Once the IoT Hub accepts a SAS token, a new token shall be put on the same connection before the accepted one expires, without closing the links.]
+            scheduleTokenRenewal(AmqpsCbsSession.renewalDelayMillis(this.config.getTokenValidSecs()));
+        }
+        else if (this.linksOpened)
+        {
+            // Codes_SRS_AMQPSIOTHUBCONNECTION_21_061: [If the IoT Hub turns down a renewed token, the links shall be kept and the renewal tried again after a backoff.]
+            logger.LogError("The IoT Hub did not renew the SAS token, status %s (%s), method name is onTokenResponse ", statusCode, statusDescription);
+            scheduleTokenRenewal(TransportUtils.generateSleepInterval(1));
+        }
+        else
+        {
+            // Codes_SRS_AMQPSIOTHUBCONNECTION_21_062: [If the IoT Hub turns down the first token, the event handler shall attempt to startReconnect to IoTHub.]
+            logger.LogError("The IoT Hub did not accept the SAS token, status %s (%s), method name is onTokenResponse ", statusCode, statusDescription);
+            this.state = State.CLOSED;
+            startReconnect();
+        }
+    }
+
+    /**
+     * Schedules the next put-token request. Runs on the reactor thread.
+     */
+    private void scheduleTokenRenewal(int delayMillis)
+    {
+        if (this.renewalTask != null)
+        {
+            this.renewalTask.cancel();
+        }
+        this.renewalTask = this.reactor.schedule(delayMillis, new BaseHandler()
+        {
+            @Override
+            public void onTimerTask(Event event)
+            {
+                renewalTask = null;
+                if (cbsSession != null && state == State.OPEN)
+                {
+                    try
+                    {
+                        putToken(createSasToken());
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.LogError(e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates a SAS token valid for the duration given in the configuration.
+     */
+    private String createSasToken()
+    {
+        return new IotHubSasToken(this.config, System.currentTimeMillis() / 1000L +
+                this.config.getTokenValidSecs() + 1L).toString();
     }
 
     /**
@@ -461,7 +811,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
     @Override
     public void onConnectionBound(Event event)
     {
-        logger.LogDebug("Entered in method %s", logger.getMethodName());
+        logger.LogDebug("Entered in method onConnectionBound");
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_030: [The event handler shall get the Transport (Proton) object from the event.]
         Transport transport = event.getConnection().getTransport();
         if(transport != null){
@@ -473,9 +823,9 @@ public final class AmqpsIotHubConnection extends BaseHandler
                 ((TransportInternal)transport).addTransportLayer(webSocket);
             }
 
-            // Codes_SRS_AMQPSIOTHUBCONNECTION_15_031: [The event handler shall set the SASL_PLAIN authentication on the transport using the given user name and sas token.]
+            // Codes_SRS_AMQPSIOTHUBCONNECTION_21_064: [The event handler shall set the SASL ANONYMOUS authentication on the transport, since the SAS token is put on the CBS session.]
             Sasl sasl = transport.sasl();
-            sasl.plain(this.userName, this.sasToken);
+            sasl.setMechanisms("ANONYMOUS");
 
             SslDomain domain = makeDomain(SslDomain.Mode.CLIENT);
             transport.ssl(domain);
@@ -484,15 +834,15 @@ public final class AmqpsIotHubConnection extends BaseHandler
         {
             openLock.notifyLock();
         }
-        logger.LogDebug("Exited from method %s", logger.getMethodName());
+        logger.LogDebug("Exited from method onConnectionBound");
     }
 
     @Override
     public void onConnectionUnbound(Event event)
     {
-        logger.LogDebug("Entered in method %s", logger.getMethodName());
+        logger.LogDebug("Entered in method onConnectionUnbound");
         this.state = State.CLOSED;
-        logger.LogDebug("Exited from method %s", logger.getMethodName());
+        logger.LogDebug("Exited from method onConnectionUnbound");
     }
 
     /**
@@ -502,7 +852,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
     @Override
     public void onReactorInit(Event event)
     {
-        logger.LogDebug("Entered in method %s", logger.getMethodName());
+        logger.LogDebug("Entered in method onReactorInit");
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_033: [The event handler shall set the current handler to handle the connection events.]
         if(this.useWebSockets)
         {
@@ -513,19 +863,23 @@ public final class AmqpsIotHubConnection extends BaseHandler
         {
             event.getReactor().connectionToHost(this.config.getIotHubHostname(), amqpPort, this);
         }
-        logger.LogDebug("Exited from method %s", logger.getMethodName());
+        logger.LogDebug("Exited from method onReactorInit");
     }
 
     @Override
     public void onReactorFinal(Event event)
     {
-        logger.LogDebug("Entered in method %s", logger.getMethodName());
+        logger.LogDebug("Entered in method onReactorFinal");
         synchronized (closeLock)
         {
             closeLock.notifyLock();
         }
 
         this.reactor = null;
+        // the timers of the stopped reactor never fire.
+        this.renewalTask = null;
+        this.reconnectTask = null;
+        this.cbsSession = null;
 
         if (reconnectCall)
         {
@@ -539,7 +893,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
                 e.printStackTrace();
             }
         }
-        logger.LogDebug("Exited from method %s", logger.getMethodName());
+        logger.LogDebug("Exited from method onReactorFinal");
     }
 
     /**
@@ -549,29 +903,34 @@ public final class AmqpsIotHubConnection extends BaseHandler
     @Override
     public void onDelivery(Event event)
     {
-        logger.LogDebug("Entered in method %s", logger.getMethodName());
-        if(event.getLink().getName().equals(receiveTag))
+        logger.LogDebug("Entered in method onDelivery");
+        if (this.cbsSession != null && this.cbsSession.isCbsLink(event.getLink()))
+        {
+            // Codes_SRS_AMQPSIOTHUBCONNECTION_21_063: [A delivery on the CBS links shall be handed to the CBS session.]
+            this.cbsSession.onDelivery(event.getDelivery());
+        }
+        else if(event.getLink().getName().equals(receiveTag))
         {
-            logger.LogInfo("Reading the receiver link, method name is %s ", logger.getMethodName());
+            logger.LogInfo("Reading the receiver link, method name is onDelivery ");
             // Codes_SRS_AMQPSIOTHUBCONNECTION_15_034: [If this link is the Receiver link, the event handler shall get the Receiver and Delivery (Proton) objects from the event.]
             Receiver receiveLink = (Receiver) event.getLink();
             Delivery delivery = receiveLink.current();
             if (delivery.isReadable() && !delivery.isPartial()) {
-                logger.LogInfo("Reading the received buffer, method name is %s ", logger.getMethodName());
+                logger.LogInfo("Reading the received buffer, method name is onDelivery ");
                 // Codes_SRS_AMQPSIOTHUBCONNECTION_15_035: [The event handler shall read the received buffer.]
                 int size = delivery.pending();
                 byte[] buffer = new byte[size];
                 int read = receiveLink.recv(buffer, 0, buffer.length);
                 receiveLink.advance();
-                logger.LogInfo("Reading the received buffer completed, method name is %s ", logger.getMethodName());
+                logger.LogInfo("Reading the received buffer completed, method name is onDelivery ");
                 // Codes_SRS_AMQPSIOTHUBCONNECTION_15_036: [The event handler shall create an AmqpsMessage object from the decoded buffer.]
                 AmqpsMessage msg = new AmqpsMessage();
 
                 // Codes_SRS_AMQPSIOTHUBCONNECTION_15_037: [The event handler shall set the AmqpsMessage Deliver (Proton) object.]
                 msg.setDelivery(delivery);
-                logger.LogInfo("Decoding the received message , method name is %s ", logger.getMethodName());
+                logger.LogInfo("Decoding the received message , method name is onDelivery ");
                 msg.decode(buffer, 0, read);
-                logger.LogInfo("Decoding the received message completed , method name is %s ", logger.getMethodName());
+                logger.LogInfo("Decoding the received message completed , method name is onDelivery ");
                 // Codes_SRS_AMQPSIOTHUBCONNECTION_15_049: [All the listeners shall be notified that a message was received from the server.]
                 this.messageReceivedFromServer(msg);
             }
@@ -581,23 +940,29 @@ public final class AmqpsIotHubConnection extends BaseHandler
             //Sender specific section for dispositions it receives
             if(event.getType() == Event.Type.DELIVERY)
             {
-                logger.LogInfo("Reading the delivery event in Sender link, method name is %s ", logger.getMethodName());
+                logger.LogInfo("Reading the delivery event in Sender link, method name is onDelivery ");
                 // Codes_SRS_AMQPSIOTHUBCONNECTION_15_038: [If this link is the Sender link and the event type is DELIVERY, the event handler shall get the Delivery (Proton) object from the event.]
                 Delivery d = event.getDelivery();
                 DeliveryState remoteState = d.getRemoteState();
 
-                // Codes_SRS_AMQPSIOTHUBCONNECTION_15_039: [The event handler shall note the remote delivery state and use it and the Delivery (Proton) hash code to inform the AmqpsIotHubConnection of the message receipt.]
+                // Codes_SRS_AMQPSIOTHUBCONNECTION_15_039: [The event handler shall note the remote delivery state and use it and the delivery id to inform the AmqpsIotHubConnection of the message receipt.]
                 boolean state = remoteState.equals(Accepted.getInstance());
-                logger.LogInfo("Is state of remote Delivery COMPLETE ? %s, method name is %s ", state, logger.getMethodName());
-                logger.LogInfo("Inform listener that a message has been sent to IoT Hub along with remote state, method name is %s ", logger.getMethodName());
+                logger.LogInfo("Is state of remote Delivery COMPLETE ? %s, method name is onDelivery ", state);
+                logger.LogInfo("Inform listener that a message has been sent to IoT Hub along with remote state, method name is onDelivery ");
                 //let any listener know that the message was received by the server
-                for(ServerListener listener : listeners)
+                // Codes_SRS_AMQPSIOTHUBCONNECTION_21_057: [The delivery shall be reported by the id read back from its tag. A delivery whose tag is not 8 bytes long shall not be reported.]
+                byte[] tag = d.getTag();
+                if (tag != null && tag.length == DELIVERY_TAG_BYTES)
                 {
-                    listener.messageSent(d.hashCode(), state);
+                    long deliveryId = fromDeliveryTag(tag);
+                    for(ServerListener listener : listeners)
+                    {
+                        listener.messageSent(deliveryId, state);
+                    }
                 }
             }
         }
-        logger.LogDebug("Exited from method %s", logger.getMethodName());
+        logger.LogDebug("Exited from method onDelivery");
     }
 
     /**
@@ -607,11 +972,15 @@ public final class AmqpsIotHubConnection extends BaseHandler
     @Override
     public void onLinkFlow(Event event)
     {
-        logger.LogDebug("Entered in method %s", logger.getMethodName());
+        logger.LogDebug("Entered in method onLinkFlow");
+        if (this.cbsSession != null && this.cbsSession.isCbsLink(event.getLink()))
+        {
+            return;
+        }
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_040: [The event handler shall save the remaining link credit.]
         this.linkCredit = event.getLink().getCredit();
-		logger.LogDebug("The link credit value is %s, method name is %s", this.linkCredit, logger.getMethodName());
-        logger.LogDebug("Exited from method %s", logger.getMethodName());
+		logger.LogDebug("The link credit value is %s, method name is onLinkFlow", this.linkCredit);
+        logger.LogDebug("Exited from method onLinkFlow");
     }
 
     /**
@@ -622,14 +991,14 @@ public final class AmqpsIotHubConnection extends BaseHandler
     @Override
     public void onLinkRemoteOpen(Event event)
     {
-        logger.LogDebug("Entered in method %s", logger.getMethodName());
+        logger.LogDebug("Entered in method onLinkRemoteOpen");
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_041: [The connection state shall be considered OPEN when the sender link is open remotely.]
         Link link = event.getLink();
         if (link.getName().equals(sendTag))
         {
             this.state = State.OPEN;
         }
-        logger.LogDebug("Exited from method %s", logger.getMethodName());
+        logger.LogDebug("Exited from method onLinkRemoteOpen");
     }
 
     /**
@@ -641,17 +1010,17 @@ public final class AmqpsIotHubConnection extends BaseHandler
     @Override
     public void onLinkRemoteClose(Event event)
     {
-        logger.LogDebug("Entered in method %s", logger.getMethodName());
+        logger.LogDebug("Entered in method onLinkRemoteClose");
         this.state = State.CLOSED;
 
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_042 [The event handler shall attempt to startReconnect to the IoTHub.]
         if (event.getLink().getName().equals(sendTag))
         {
-            logger.LogInfo("Starting to reconnect to IotHub, method name is %s ", logger.getMethodName());
+            logger.LogInfo("Starting to reconnect to IotHub, method name is onLinkRemoteClose ");
             // Codes_SRS_AMQPSIOTHUBCONNECTION_15_048: [The event handler shall attempt to startReconnect to IoTHub.]
             startReconnect();
         }
-        logger.LogDebug("Exited from method %s", logger.getMethodName());
+        logger.LogDebug("Exited from method onLinkRemoteClose");
     }
 
     /**
@@ -661,9 +1030,10 @@ public final class AmqpsIotHubConnection extends BaseHandler
     @Override
     public void onLinkInit(Event event)
     {
-        logger.LogDebug("Entered in method %s", logger.getMethodName());
+        logger.LogDebug("Entered in method onLinkInit");
         Link link = event.getLink();
-        if(link.getName().equals(sendTag))
+        String linkName = link.getName();
+        if(linkName.equals(sendTag))
         {
             // Codes_SRS_AMQPSIOTHUBCONNECTION_15_043: [If the link is the Sender link, the event handler shall create a new Target (Proton) object using the sender endpoint address member variable.]
             Target t = new Target();
@@ -673,9 +1043,10 @@ public final class AmqpsIotHubConnection extends BaseHandler
             link.setTarget(t);
 
             // Codes_SRS_AMQPSIOTHUBCONNECTION_14_045: [If the link is the Sender link, the event handler shall set the SenderSettleMode to UNSETTLED.]
-            link.setSenderSettleMode(SenderSettleMode.UNSETTLED);
+            // Codes_SRS_AMQPSIOTHUBCONNECTION_21_068: [If the configuration asks for settled sends, the event handler shall set the SenderSettleMode of the Sender link to SETTLED.]
+            link.setSenderSettleMode(this.config.isAmqpSendSettled() ? SenderSettleMode.SETTLED : SenderSettleMode.UNSETTLED);
         }
-        else
+        else if(linkName.equals(receiveTag))
         {
             // Codes_SRS_AMQPSIOTHUBCONNECTION_14_046: [If the link is the Receiver link, the event handler shall create a new Source (Proton) object using the receiver endpoint address member variable.]
             Source source = new Source();
@@ -684,7 +1055,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
             // Codes_SRS_AMQPSIOTHUBCONNECTION_14_047: [If the link is the Receiver link, the event handler shall set its source to the created Source (Proton) object.]
             link.setSource(source);
         }
-        logger.LogDebug("Exited from method %s", logger.getMethodName());
+        logger.LogDebug("Exited from method onLinkInit");
     }
 
     /**
@@ -694,12 +1065,12 @@ public final class AmqpsIotHubConnection extends BaseHandler
     @Override
     public void onTransportError(Event event)
     {
-        logger.LogDebug("Entered in method %s", logger.getMethodName());
+        logger.LogDebug("Entered in method onTransportError");
         this.state = State.CLOSED;
-        logger.LogInfo("Starting to reconnect to IotHub, method name is %s ", logger.getMethodName());
+        logger.LogInfo("Starting to reconnect to IotHub, method name is onTransportError ");
         // Codes_SRS_AMQPSIOTHUBCONNECTION_15_048: [The event handler shall attempt to startReconnect to IoTHub.]
         startReconnect();
-        logger.LogDebug("Exited from method %s", logger.getMethodName());
+        logger.LogDebug("Exited from method onTransportError");
     }
 
     /**
@@ -713,10 +1084,18 @@ public final class AmqpsIotHubConnection extends BaseHandler
 
     /**
      * Notifies all listeners that the connection was lost and attempts to startReconnect to the IoTHub
-     * using an exponential backoff interval.
+     * using an exponential backoff interval. Runs on the reactor thread, which keeps running the
+     * other connections of the reactor while the backoff expires.
      */
     private void startReconnect()
     {
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_066: [If a reconnection is already pending, the function shall do nothing.]
+        if (this.reconnectTask != null)
+        {
+            logger.LogInfo("A reconnection is already pending, method name is startReconnect ");
+            return;
+        }
+
         reconnectCall = true;
 
         for(ServerListener listener : listeners)
@@ -728,16 +1107,18 @@ public final class AmqpsIotHubConnection extends BaseHandler
             currentReconnectionAttempt = 0;
 
         System.out.println("Lost connection to the server. Reconnection attempt " + currentReconnectionAttempt++ + "...");
-        logger.LogInfo("Lost connection to the server. Reconnection attempt %s, method name is %s ", currentReconnectionAttempt, logger.getMethodName());
-        try
-        {
-            Thread.sleep(TransportUtils.generateSleepInterval(currentReconnectionAttempt));
-        } catch (InterruptedException e)
-        {
-            Thread.currentThread().interrupt();
-        }
+        logger.LogInfo("Lost connection to the server. Reconnection attempt %s, method name is startReconnect ", currentReconnectionAttempt);
 
-        closeAsync();
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_065: [The function shall not block the reactor thread, but schedule the reconnection on the reactor after a jittered exponential backoff.]
+        this.reconnectTask = this.reactor.schedule(TransportUtils.generateJitteredSleepInterval(currentReconnectionAttempt), new BaseHandler()
+        {
+            @Override
+            public void onTimerTask(Event event)
+            {
+                reconnectTask = null;
+                closeAsync();
+            }
+        });
     }
 
     /**
@@ -746,7 +1127,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
      */
     private void messageReceivedFromServer(AmqpsMessage msg)
     {
-        logger.LogInfo("All the listeners are informed that a message has been received, method name is %s ", logger.getMethodName());
+        logger.LogInfo("All the listeners are informed that a message has been received, method name is messageReceivedFromServer ");
         for(ServerListener listener : listeners)
         {
             listener.messageReceived(msg);
@@ -759,9 +1140,77 @@ public final class AmqpsIotHubConnection extends BaseHandler
      * @return the created Ssl domain
      */
     private SslDomain makeDomain(SslDomain.Mode mode)
+    {
+        return makeDomain(mode, this.config.getPathToCertificate());
+    }
+
+    /**
+     * Create Proton SslDomain object that trusts the given certificate, using the given Ssl mode
+     * @param mode Proton enum value of requested Ssl mode
+     * @param pathToCertificate the path to the trusted certificate, in PEM or DER format
+     * @return the created Ssl domain
+     */
+    static SslDomain makeDomain(SslDomain.Mode mode, String pathToCertificate)
+    {
+        if (mode != SslDomain.Mode.CLIENT || pathToCertificate == null)
+        {
+            return createDomain(mode, pathToCertificate);
+        }
+
+        // Codes_SRS_AMQPSIOTHUBCONNECTION_21_073: [The client SSL domain shall be built once per trusted certificate contents, and reused by every connection that trusts a certificate with the same contents, keeping at most 16 domains.]
+        String digest = certificateDigest(pathToCertificate);
+        if (digest == null)
+        {
+            return createDomain(mode, pathToCertificate);
+        }
+
+        synchronized (clientDomains)
+        {
+            SslDomain domain = clientDomains.get(digest);
+            if (domain == null)
+            {
+                domain = createDomain(mode, pathToCertificate);
+                clientDomains.put(digest, domain);
+            }
+            return domain;
+        }
+    }
+
+    /**
+     * Digests the contents of the trusted certificate.
+     * @param pathToCertificate the path to the trusted certificate
+     * @return the SHA-256 digest of the certificate file in hexadecimal, or
+     * {@code null} if the file cannot be read
+     */
+    private static String certificateDigest(String pathToCertificate)
+    {
+        try (InputStream in = new FileInputStream(pathToCertificate))
+        {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+            {
+                messageDigest.update(buffer, 0, read);
+            }
+
+            StringBuilder digest = new StringBuilder();
+            for (byte b : messageDigest.digest())
+            {
+                digest.append(String.format("%02x", b));
+            }
+            return digest.toString();
+        }
+        catch (IOException | NoSuchAlgorithmException e)
+        {
+            certificateLogger.LogDebug("Could not digest the certificate %s, so its SSL domain is not reused, method name is certificateDigest ", pathToCertificate);
+            return null;
+        }
+    }
+
+    private static SslDomain createDomain(SslDomain.Mode mode, String pathToCertificate)
     {
         SslDomain domain = Proton.sslDomain();
-        String trustedDB = getPemFormat(this.config.getPathToCertificate());
+        String trustedDB = getPemFormat(pathToCertificate);
 
         if (trustedDB != null )
         {
@@ -782,13 +1231,13 @@ public final class AmqpsIotHubConnection extends BaseHandler
         return domain;
     }
 
-    private String getPemFormat(String certPath) {
+    private static String getPemFormat(String certPath) {
         if (!isPemFile(certPath))
             certPath = convertToPem(certPath);
         return certPath;
     }
 
-    private boolean isPemFile(String path) {
+    private static boolean isPemFile(String path) {
         PEMReader pemReader = null;
         Reader reader = null;
         try {
@@ -801,7 +1250,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
         }
         catch (IOException e)
         {
-            logger.LogError(e);
+            certificateLogger.LogError(e);
             throw new IOError(e);
         }
         finally
@@ -810,7 +1259,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
                 try {
                     pemReader.close();
                 } catch (IOException e) {
-                    logger.LogError(e);
+                    certificateLogger.LogError(e);
                     System.out.println("Couldn't close PEM Reader");
                 }
             }
@@ -819,7 +1268,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
                 try {
                     reader.close();
                 } catch (IOException e) {
-                    logger.LogError(e);
+                    certificateLogger.LogError(e);
                     System.out.println("Couldn't close reader");
                 }
             }
@@ -828,7 +1277,7 @@ public final class AmqpsIotHubConnection extends BaseHandler
         return false;
     }
 
-    private String  convertToPem(String derPath) {
+    private static String  convertToPem(String derPath) {
         FileInputStream in = null;
         FileWriter writer = null;
         PEMWriter pemWriter = null;
@@ -919,5 +1368,89 @@ public final class AmqpsIotHubConnection extends BaseHandler
             return null;
         }
     }
-}
 
+    static byte[] toDeliveryTag(long deliveryId)
+    {
+        byte[] tag = new byte[DELIVERY_TAG_BYTES];
+        for (int i = DELIVERY_TAG_BYTES - 1; i >= 0; i--)
+        {
+            tag[i] = (byte) deliveryId;
+            deliveryId >>>= 8;
+        }
+        return tag;
+    }
+
+    static long fromDeliveryTag(byte[] tag)
+    {
+        long deliveryId = 0;
+        for (int i = 0; i < DELIVERY_TAG_BYTES; i++)
+        {
+            deliveryId = (deliveryId << 8) | (tag[i] & 0xFF);
+        }
+        return deliveryId;
+    }
+
+    /**
+     * Encodes a message in a single pass into a buffer sized from its body
+     * and application properties. The buffer is only grown, and the message
+     * encoded again, if the estimate falls short.
+     *
+     * @param message the message to encode.
+     * @return the encoded message, at the start of its backing array.
+     */
+    static Binary encodeMessage(Message message)
+    {
+        byte[] data = new byte[estimateEncodedSize(message)];
+        while (true)
+        {
+            try
+            {
+                int length = message.encode(data, 0, data.length);
+                return new Binary(data, 0, length);
+            }
+            catch (BufferOverflowException e)
+            {
+                data = new byte[data.length * 2];
+            }
+        }
+    }
+
+    /**
+     * Encodes the body of a batch, which holds one data section per encoded
+     * message.
+     *
+     * @param messages the messages of the batch, in order.
+     * @return the encoded body.
+     */
+    static byte[] encodeBatch(List<Message> messages)
+    {
+        ByteArrayOutputStream batchData = new ByteArrayOutputStream();
+        for (Message message : messages)
+        {
+            Message section = Proton.message();
+            section.setBody(new Data(encodeMessage(message)));
+            Binary sectionData = encodeMessage(section);
+            batchData.write(sectionData.getArray(), sectionData.getArrayOffset(), sectionData.getLength());
+        }
+        return batchData.toByteArray();
+    }
+
+    private static int estimateEncodedSize(Message message)
+    {
+        long size = ENCODE_OVERHEAD_BYTES;
+        if (message.getBody() instanceof Data && ((Data) message.getBody()).getValue() != null)
+        {
+            size += ((Data) message.getBody()).getValue().getLength();
+        }
+        if (message.getApplicationProperties() != null && message.getApplicationProperties().getValue() != null)
+        {
+            for (Object entry : message.getApplicationProperties().getValue().entrySet())
+            {
+                // the key, the value, and the type codes and lengths of both.
+                size += String.valueOf(((Map.Entry) entry).getKey()).length()
+                        + String.valueOf(((Map.Entry) entry).getValue()).length() + 10;
+            }
+        }
+        return (int) Math.min(Math.max(size, MIN_ENCODE_BUFFER_BYTES), Integer.MAX_VALUE - 8);
+    }
+}
@@ -5,6 +5,7 @@
 
 package com.microsoft.azure.sdk.iot.device.transport.amqps;
 
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
 import org.apache.qpid.proton.amqp.messaging.Accepted;
 import org.apache.qpid.proton.amqp.messaging.Rejected;
 import org.apache.qpid.proton.amqp.messaging.Released;
@@ -23,7 +24,27 @@ public class AmqpsMessage extends MessageImpl
     {
         COMPLETE,
         ABANDON,
-        REJECT
+        REJECT;
+
+        /**
+         * Returns the acknowledgement type of a message callback result.
+         * @param result the result of the message callback.
+         * @return the acknowledgement type, or {@code null} if the result is unknown.
+         */
+        static ACK_TYPE of(IotHubMessageResult result)
+        {
+            switch (result)
+            {
+                case COMPLETE:
+                    return COMPLETE;
+                case REJECT:
+                    return REJECT;
+                case ABANDON:
+                    return ABANDON;
+                default:
+                    return null;
+            }
+        }
     }
 
     /**
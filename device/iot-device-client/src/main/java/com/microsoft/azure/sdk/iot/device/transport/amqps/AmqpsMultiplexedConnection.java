@@ -0,0 +1,622 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device.transport.amqps;
+
+import com.microsoft.azure.sdk.iot.deps.ws.impl.WebSocketImpl;
+import com.microsoft.azure.sdk.iot.device.CustomLogger;
+import com.microsoft.azure.sdk.iot.device.DeviceClientConfig;
+import com.microsoft.azure.sdk.iot.device.transport.TransportUtils;
+import org.apache.qpid.proton.Proton;
+import org.apache.qpid.proton.engine.BaseHandler;
+import org.apache.qpid.proton.engine.Connection;
+import org.apache.qpid.proton.engine.Delivery;
+import org.apache.qpid.proton.engine.Event;
+import org.apache.qpid.proton.engine.Link;
+import org.apache.qpid.proton.engine.Receiver;
+import org.apache.qpid.proton.engine.Sasl;
+import org.apache.qpid.proton.engine.SslDomain;
+import org.apache.qpid.proton.engine.Transport;
+import org.apache.qpid.proton.engine.impl.TransportInternal;
+import org.apache.qpid.proton.reactor.Handshaker;
+import org.apache.qpid.proton.reactor.Reactor;
+import org.apache.qpid.proton.reactor.Task;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * <p>
+ * A single AMQP connection to an IoT Hub that many devices share, so that a
+ * gateway holds one TLS session instead of one per device.
+ * </p>
+ * <p>
+ * The connection itself is not tied to a device: it is opened with SASL
+ * ANONYMOUS, and each {@link AmqpsDeviceSession} registered on it is
+ * authorized with a claims-based security (CBS) put-token request carrying
+ * the device's SAS token, before its own session and links are opened. The
+ * connection is opened when the first device registers, and closed when the
+ * last one leaves. The token of each device is put again ahead of its expiry,
+ * so that the connection and the links of the devices outlive their tokens.
+ * </p>
+ */
+public final class AmqpsMultiplexedConnection extends BaseHandler
+{
+    private int maxWaitTimeForClosingConnection = 3*60*1000;
+
+    protected final DeviceClientConfig config;
+    protected final boolean useWebSockets;
+    protected final ExecutorService executorService;
+    private final String hostName;
+
+    /** The devices registered on the connection. Read on the reactor thread, changed under the lock of this object. */
+    private final List<AmqpsDeviceSession> deviceSessions = new CopyOnWriteArrayList<>();
+    /** The timers that put the token of each device again before it expires. Only used on the reactor thread. */
+    private final Map<AmqpsDeviceSession, Task> renewalTasks = new HashMap<>();
+
+    /** Guards the reactor and whether it is being closed, which the reactor thread changes when it reconnects. */
+    private final Object reactorLock = new Object();
+    private Reactor reactor;
+    /** Runs the reactor, and the engine work handed to it, or {@code null} if the connection is not open. */
+    private volatile IotHubReactor iotHubReactor;
+    private boolean closing;
+
+    /** The Proton objects of the connection. Only used on the reactor thread. */
+    private Connection connection;
+    private AmqpsCbsSession cbsSession;
+
+    private boolean reconnectCall = false;
+    private int currentReconnectionAttempt = 1;
+    /** The pending reconnection, run by the reactor once its backoff expires. */
+    private Task reconnectTask;
+
+    private final CustomLogger logger = new CustomLogger(this.getClass());
+
+    /**
+     * Constructor.
+     *
+     * @param config the configuration of the first device, which gives the
+     * IoT Hub host name and the trusted certificate of the connection.
+     * @param useWebSockets whether the connection uses web sockets.
+     * @param executorService the executor on which the reactor runs.
+     *
+     * @throws IllegalArgumentException if the configuration or the executor
+     * is {@code null}, or if the configuration has no host name.
+     */
+    public AmqpsMultiplexedConnection(DeviceClientConfig config, boolean useWebSockets, ExecutorService executorService)
+    {
+        // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_001: [If the configuration or the executor is null, or the configuration has no host name, the constructor shall throw an IllegalArgumentException.]
+        if (config == null || executorService == null)
+        {
+            throw new IllegalArgumentException("A multiplexed connection needs a configuration and an executor.");
+        }
+        if (config.getIotHubHostname() == null || config.getIotHubHostname().length() == 0)
+        {
+            throw new IllegalArgumentException("hostName cannot be null or empty.");
+        }
+
+        // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_002: [The constructor shall save the configuration, the web sockets flag and the executor.]
+        this.config = config;
+        this.useWebSockets = useWebSockets;
+        this.executorService = executorService;
+        this.hostName = String.format("%s:%d", config.getIotHubHostname(),
+                useWebSockets ? AmqpsIotHubConnection.amqpWebSocketPort : AmqpsIotHubConnection.amqpPort);
+
+        add(new Handshaker());
+        // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_022: [The receive link credit of every device shall be kept at the AMQP receive credit of the device's own configuration, and that of the CBS receiver at the credit of the configuration the connection was created with.]
+        add(new ReceiveCreditController(config.getAmqpReceiveCredit()));
+    }
+
+    /**
+     * Registers a device on the connection, opening the connection if it is
+     * the first device, and starts authorizing it.
+     *
+     * @param deviceSession the device to register.
+     *
+     * @throws IOException if the reactor cannot be created.
+     */
+    public synchronized void register(final AmqpsDeviceSession deviceSession) throws IOException
+    {
+        if (!this.deviceSessions.contains(deviceSession))
+        {
+            this.deviceSessions.add(deviceSession);
+        }
+
+        synchronized (this.reactorLock)
+        {
+            if (this.iotHubReactor == null)
+            {
+                // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_003: [If the connection is not open, the function shall start the reactor, which authorizes every registered device once the connection is up.]
+                this.closing = false;
+                startReactor();
+                return;
+            }
+        }
+
+        // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_004: [If the connection is open, the function shall hand the authorization of the device to the reactor thread.]
+        runOnReactor(new Runnable()
+        {
+            public void run()
+            {
+                // before the connection is up, the device is authorized
+                // with the others in onConnectionInit.
+                if (cbsSession != null)
+                {
+                    authorize(deviceSession);
+                }
+            }
+        });
+    }
+
+    /**
+     * Unregisters a device, closing its links, and closes the connection if
+     * no device is left on it.
+     *
+     * @param deviceSession the device to unregister.
+     *
+     * @throws IOException if the connection does not close in time.
+     */
+    public synchronized void unregister(final AmqpsDeviceSession deviceSession) throws IOException
+    {
+        if (!this.deviceSessions.remove(deviceSession))
+        {
+            return;
+        }
+
+        // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_005: [The function shall hand the closing of the device links to the reactor thread.]
+        runOnReactor(new Runnable()
+        {
+            public void run()
+            {
+                cancelRenewal(deviceSession);
+                deviceSession.closeLinks();
+            }
+        });
+
+        if (this.deviceSessions.isEmpty())
+        {
+            // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_006: [If no device is left, the function shall close the connection and wait for the reactor to stop.]
+            closeConnection();
+        }
+    }
+
+    /**
+     * Runs work that touches the Proton engine on the reactor thread.
+     *
+     * @param task the work to run.
+     */
+    void runOnReactor(Runnable task)
+    {
+        // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_007: [Work on the Proton engine shall be handed to the reactor thread, or run on the calling thread if the reactor is not running.]
+        IotHubReactor iotHubReactor = this.iotHubReactor;
+        if (iotHubReactor == null)
+        {
+            task.run();
+        }
+        else
+        {
+            iotHubReactor.execute(task);
+        }
+    }
+
+    @Override
+    public void onReactorInit(Event event)
+    {
+        // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_009: [When the reactor starts, it shall connect to the IoT Hub host.]
+        event.getReactor().connectionToHost(this.config.getIotHubHostname(),
+                this.useWebSockets ? AmqpsIotHubConnection.amqpWebSocketPort : AmqpsIotHubConnection.amqpPort, this);
+    }
+
+    @Override
+    public void onConnectionInit(Event event)
+    {
+        // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_010: [When the connection is created, it shall open the connection and the CBS session and links, and authorize every registered device.]
+        this.connection = event.getConnection();
+        this.connection.setHostname(this.hostName);
+        this.connection.open();
+
+        this.cbsSession = new AmqpsCbsSession(this.connection);
+
+        for (AmqpsDeviceSession deviceSession : this.deviceSessions)
+        {
+            authorize(deviceSession);
+        }
+    }
+
+    @Override
+    public void onConnectionBound(Event event)
+    {
+        Transport transport = event.getConnection().getTransport();
+        if (transport != null)
+        {
+            if (this.useWebSockets)
+            {
+                WebSocketImpl webSocket = new WebSocketImpl();
+                webSocket.configure(this.hostName, AmqpsIotHubConnection.webSocketPath, 0,
+                        AmqpsIotHubConnection.webSocketSubProtocol, null, null);
+                ((TransportInternal) transport).addTransportLayer(webSocket);
+            }
+
+            // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_011: [The connection shall authenticate with SASL ANONYMOUS, since the devices are authorized through CBS, over TLS.]
+            Sasl sasl = transport.sasl();
+            sasl.setMechanisms("ANONYMOUS");
+
+            transport.ssl(AmqpsIotHubConnection.makeDomain(SslDomain.Mode.CLIENT, this.config.getPathToCertificate()));
+        }
+    }
+
+    @Override
+    public void onLinkRemoteOpen(Event event)
+    {
+        Link link = event.getLink();
+        if (link.getContext() instanceof AmqpsDeviceSession)
+        {
+            ((AmqpsDeviceSession) link.getContext()).onLinkRemoteOpen(link);
+        }
+    }
+
+    @Override
+    public void onLinkFlow(Event event)
+    {
+        Link link = event.getLink();
+        if (link.getContext() instanceof AmqpsDeviceSession)
+        {
+            ((AmqpsDeviceSession) link.getContext()).onLinkFlow(link);
+        }
+    }
+
+    @Override
+    public void onDelivery(Event event)
+    {
+        Link link = event.getLink();
+        Delivery delivery = event.getDelivery();
+        if (link.getContext() instanceof AmqpsDeviceSession)
+        {
+            // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_012: [A delivery on the links of a device shall be handed to that device.]
+            ((AmqpsDeviceSession) link.getContext()).onDelivery(link, delivery);
+        }
+        else if (this.cbsSession != null && this.cbsSession.isCbsLink(link))
+        {
+            this.cbsSession.onDelivery(delivery);
+        }
+    }
+
+    @Override
+    public void onLinkRemoteClose(Event event)
+    {
+        Link link = event.getLink();
+        if (!(link.getContext() instanceof AmqpsDeviceSession))
+        {
+            return;
+        }
+
+        final AmqpsDeviceSession deviceSession = (AmqpsDeviceSession) link.getContext();
+        if (deviceSession.isSender(link) && this.deviceSessions.contains(deviceSession))
+        {
+            // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_013: [If the IoT Hub closes the links of a device, the connection shall close them, notify the device, and authorize it again after a backoff, without disturbing the other devices.]
+            cancelRenewal(deviceSession);
+            deviceSession.closeLinks();
+            int attempt = deviceSession.onLinksLost();
+            logger.LogInfo("The links of a device were closed by the IoT Hub, authorizing it again in attempt %s, method name is onLinkRemoteClose ", attempt);
+            // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_020: [Every backoff shall be jittered, so that devices dropped together are not authorized again at the same time.]
+            event.getReactor().schedule(TransportUtils.generateJitteredSleepInterval(attempt), new BaseHandler()
+            {
+                @Override
+                public void onTimerTask(Event timerEvent)
+                {
+                    if (deviceSessions.contains(deviceSession) && cbsSession != null)
+                    {
+                        authorize(deviceSession);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onConnectionUnbound(Event event)
+    {
+        this.cbsSession = null;
+    }
+
+    @Override
+    public void onTransportError(Event event)
+    {
+        // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_014: [If the connection is lost, every registered device shall be notified, and the connection shall be opened again.]
+        logger.LogInfo("Starting to reconnect the multiplexed connection to IotHub, method name is onTransportError ");
+        for (AmqpsDeviceSession deviceSession : this.deviceSessions)
+        {
+            deviceSession.onLinksLost();
+        }
+
+        if (this.reconnectTask != null)
+        {
+            return;
+        }
+
+        this.reconnectCall = true;
+        if (this.currentReconnectionAttempt == Integer.MAX_VALUE)
+        {
+            this.currentReconnectionAttempt = 0;
+        }
+
+        // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_021: [The connection shall not block the reactor thread, but stop the lost connection on a reactor timer after a jittered exponential backoff, once per loss.]
+        final Reactor reactor = event.getReactor();
+        this.reconnectTask = reactor.schedule(TransportUtils.generateJitteredSleepInterval(this.currentReconnectionAttempt++), new BaseHandler()
+        {
+            @Override
+            public void onTimerTask(Event timerEvent)
+            {
+                reconnectTask = null;
+                stopConnection(reactor);
+            }
+        });
+    }
+
+    @Override
+    public void onReactorFinal(Event event)
+    {
+        synchronized (this.reactorLock)
+        {
+            // the timers of the stopped reactor never fire.
+            this.cbsSession = null;
+            this.renewalTasks.clear();
+            this.reconnectTask = null;
+            if (this.reconnectCall && !this.closing && !this.deviceSessions.isEmpty())
+            {
+                this.reconnectCall = false;
+                try
+                {
+                    startReactor();
+                    return;
+                }
+                catch (IOException e)
+                {
+                    logger.LogError(e);
+                }
+            }
+
+            this.reconnectCall = false;
+            this.reactor = null;
+            this.iotHubReactor = null;
+            this.reactorLock.notifyAll();
+        }
+    }
+
+    /**
+     * Puts the token of a device, opening its links once the IoT Hub accepts
+     * it, or keeping them open if it is a renewal. Runs on the reactor thread.
+     */
+    private void authorize(final AmqpsDeviceSession deviceSession)
+    {
+        String sasToken;
+        try
+        {
+            sasToken = deviceSession.createSasToken();
+        }
+        catch (RuntimeException e)
+        {
+            logger.LogError(e);
+            deviceSession.onAuthorizationFailed(0, e.getMessage());
+            return;
+        }
+
+        this.cbsSession.putToken(deviceSession.getAudience(), sasToken, new AmqpsCbsSession.PutTokenCallback()
+        {
+            public void onPutTokenResponse(int statusCode, String statusDescription)
+            {
+                onAuthorizationResponse(deviceSession, statusCode, statusDescription);
+            }
+        });
+    }
+
+    /**
+     * Handles the answer to the put-token request of a device. Runs on the
+     * reactor thread.
+     */
+    private void onAuthorizationResponse(AmqpsDeviceSession deviceSession, int statusCode, String statusDescription)
+    {
+        if (!this.deviceSessions.contains(deviceSession))
+        {
+            // the device left while its token was being put.
+            return;
+        }
+
+        if (AmqpsCbsSession.isSuccess(statusCode))
+        {
+            if (deviceSession.hasLinks())
+            {
+                // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_017: [If the renewed token of a device is accepted, the connection shall keep the links of the device as they are.]
+                logger.LogInfo("The token of a device was renewed, method name is onAuthorizationResponse ");
+            }
+            else
+            {
+                // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_015: [If the put-token request of a device succeeds, the connection shall open the session and links of the device.]
+                deviceSession.openLinks(this.connection);
+            }
+            // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_018: [Once the token of a device is accepted, the connection shall put a new token for the device before the accepted one expires, as the configuration of the device requires.]
+            scheduleRenewal(deviceSession, deviceSession.getTokenRenewalDelayMillis());
+        }
+        else if (deviceSession.hasLinks())
+        {
+            // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_019: [If the renewed token of a device is turned down, the connection shall keep the links of the device and try again after a backoff.]
+            logger.LogError("The IoT Hub did not renew the token of a device, status %s (%s), method name is onAuthorizationResponse ",
+                    statusCode, statusDescription);
+            scheduleRenewal(deviceSession, TransportUtils.generateJitteredSleepInterval(1));
+        }
+        else
+        {
+            // Codes_SRS_AMQPSMULTIPLEXEDCONNECTION_21_016: [If the put-token request of a device fails, the connection shall report the failure to the device.]
+            deviceSession.onAuthorizationFailed(statusCode, statusDescription);
+        }
+    }
+
+    /**
+     * Schedules the next put-token request of a device, replacing the one
+     * already scheduled. Runs on the reactor thread.
+     */
+    private void scheduleRenewal(final AmqpsDeviceSession deviceSession, int delayMillis)
+    {
+        cancelRenewal(deviceSession);
+        Task task = this.reactor.schedule(delayMillis, new BaseHandler()
+        {
+            @Override
+            public void onTimerTask(Event timerEvent)
+            {
+                renewalTasks.remove(deviceSession);
+                if (deviceSessions.contains(deviceSession) && deviceSession.hasLinks() && cbsSession != null)
+                {
+                    authorize(deviceSession);
+                }
+            }
+        });
+        this.renewalTasks.put(deviceSession, task);
+    }
+
+    /**
+     * Cancels the next put-token request of a device. Runs on the reactor
+     * thread.
+     */
+    private void cancelRenewal(AmqpsDeviceSession deviceSession)
+    {
+        Task task = this.renewalTasks.remove(deviceSession);
+        if (task != null)
+        {
+            task.cancel();
+        }
+    }
+
+    private void startReactor() throws IOException
+    {
+        this.reactor = Proton.reactor(this);
+        final IotHubReactor iotHubReactor = new IotHubReactor(this.reactor);
+        this.iotHubReactor = iotHubReactor;
+        this.executorService.submit(new Runnable()
+        {
+            public void run()
+            {
+                iotHubReactor.run();
+            }
+        });
+        logger.LogInfo("Reactor of the multiplexed connection is assigned to executor service, method name is startReactor ");
+    }
+
+    private void closeConnection() throws IOException
+    {
+        final Reactor reactor;
+        synchronized (this.reactorLock)
+        {
+            this.closing = true;
+            reactor = this.reactor;
+        }
+        if (reactor == null)
+        {
+            return;
+        }
+
+        runOnReactor(new Runnable()
+        {
+            public void run()
+            {
+                stopConnection(reactor);
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + this.maxWaitTimeForClosingConnection;
+        synchronized (this.reactorLock)
+        {
+            long remaining = this.maxWaitTimeForClosingConnection;
+            while (this.iotHubReactor != null && remaining > 0)
+            {
+                try
+                {
+                    this.reactorLock.wait(remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the multiplexed connection to close.");
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+
+            if (this.iotHubReactor != null)
+            {
+                // the reactor is left to stop on its own.
+                this.reactor = null;
+                this.iotHubReactor = null;
+                throw new IOException("Waited too long for the multiplexed connection to close.");
+            }
+        }
+    }
+
+    /**
+     * Closes the CBS links and the connection, and stops the reactor. Runs on
+     * the reactor thread.
+     */
+    private void stopConnection(Reactor reactor)
+    {
+        if (this.reconnectTask != null)
+        {
+            this.reconnectTask.cancel();
+            this.reconnectTask = null;
+        }
+        if (this.cbsSession != null)
+        {
+            this.cbsSession.close();
+        }
+        if (this.connection != null)
+        {
+            this.connection.close();
+        }
+        this.cbsSession = null;
+        reactor.stop();
+    }
+
+    /**
+     * Keeps the credit of every receiver link topped up, as the Proton
+     * FlowController does, but at the receive credit of the device the link
+     * belongs to. The CBS receiver is kept at the credit the connection was
+     * created with.
+     */
+    private static final class ReceiveCreditController extends BaseHandler
+    {
+        private final int connectionCredit;
+
+        ReceiveCreditController(int connectionCredit)
+        {
+            this.connectionCredit = connectionCredit;
+        }
+
+        @Override
+        public void onUnhandled(Event event)
+        {
+            switch (event.getType())
+            {
+                case LINK_LOCAL_OPEN:
+                case LINK_REMOTE_OPEN:
+                case LINK_FLOW:
+                case DELIVERY:
+                    Link link = event.getLink();
+                    if (link instanceof Receiver && link.drained() == 0)
+                    {
+                        int credit = link.getContext() instanceof AmqpsDeviceSession
+                                ? ((AmqpsDeviceSession) link.getContext()).getReceiveCredit()
+                                : this.connectionCredit;
+                        int delta = credit - link.getCredit();
+                        if (delta > 0)
+                        {
+                            ((Receiver) link).flow(delta);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -7,7 +7,10 @@ import com.microsoft.azure.sdk.iot.device.*;
 import com.microsoft.azure.sdk.iot.device.Message;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubCallbackPacket;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubOutboundPacket;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubReceiveTask;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubSendTask;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubTransport;
+import com.microsoft.azure.sdk.iot.device.transport.SendQueueLimiter;
 import com.microsoft.azure.sdk.iot.device.transport.State;
 import com.microsoft.azure.sdk.iot.device.CustomLogger;
 import org.apache.qpid.proton.Proton;
@@ -19,8 +22,6 @@ import org.apache.qpid.proton.amqp.messaging.Section;
 import org.apache.qpid.proton.message.impl.MessageImpl;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
@@ -40,14 +41,24 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
     /** The state of the AMQPS transport. */
     private State state;
 
-    /** The {@link AmqpsIotHubConnection} underlying this transport. */
-    private AmqpsIotHubConnection connection;
+    /** The links underlying this transport, on a connection of their own or on one shared with other devices. */
+    private AmqpsDeviceConnection connection;
 
     /** Messages waiting to be sent to the IoT Hub. */
     private final Queue<IotHubOutboundPacket> waitingMessages = new LinkedBlockingDeque<>();
 
     /** Messages which are sent to the IoT Hub but did not receive ack yet. */
-    private Map<Integer, IotHubOutboundPacket> inProgressMessages = new ConcurrentHashMap<>();
+    private DeliveryTagMap<IotHubOutboundPacket> inProgressMessages = new DeliveryTagMap<>();
+
+    /** Batches which are sent to the IoT Hub as a single delivery but did not receive ack yet. */
+    private DeliveryTagMap<List<IotHubOutboundPacket>> inProgressBatches = new DeliveryTagMap<>();
+
+    /**
+     * Deliveries reported as not delivered before they were held in progress,
+     * which happens if the links go down while the delivery is handed to the
+     * reactor thread. Guarded by itself, together with the puts in progress.
+     */
+    private final Set<Long> droppedDeliveries = new HashSet<>();
 
     /** Messages received from the IoT Hub */
     private Queue<AmqpsMessage> receivedMessages = new LinkedBlockingQueue<>();
@@ -57,8 +68,14 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
 
     private final DeviceClientConfig config;
 
+    /** Bounds the messages held between addMessage and their acknowledgement. */
+    private final SendQueueLimiter sendQueueLimiter;
+
     private final Boolean useWebSockets;
 
+    /** The send task to signal when new work is available. */
+    private volatile IotHubSendTask sendTask;
+
     private CustomLogger logger;
     /**
      * Constructs an instance from the given {@link DeviceClientConfig}
@@ -73,6 +90,7 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
         // Codes_SRS_AMQPSTRANSPORT_15_001: [The constructor shall save the input parameters into instance variables.]
         this.config = config;
         this.useWebSockets = useWebSockets;
+        this.sendQueueLimiter = new SendQueueLimiter(config);
 
         // Codes_SRS_AMQPSTRANSPORT_15_002: [The constructor shall set the transport state to CLOSED.]
         this.state = State.CLOSED;
@@ -92,9 +110,21 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
         {
             return;
         }
-        logger.LogInfo("Opening the connection..., method name is %s ", logger.getMethodName());
-        // Codes_SRS_AMQPSTRANSPORT_15_004: [The function shall open an AMQPS connection with the IoT Hub given in the configuration.]
-        this.connection = new AmqpsIotHubConnection(this.config, this.useWebSockets);
+        logger.LogInfo("Opening the connection..., method name is open ");
+        // Codes_SRS_AMQPSTRANSPORT_21_045: [The function shall open the send journal, if one is configured, and replay the messages it holds.]
+        this.sendQueueLimiter.openJournal(this.waitingMessages);
+
+        DeviceClientRuntime runtime = this.config.getRuntime();
+        if (runtime != null && runtime.isAmqpMultiplexed())
+        {
+            // Codes_SRS_AMQPSTRANSPORT_21_055: [If the configuration has a runtime with AMQP multiplexing, the function shall open a session for the device on the connection the runtime shares between the devices of the IoT Hub.]
+            this.connection = new AmqpsDeviceSession(this.config, runtime.getMultiplexedConnection(this.config, this.useWebSockets));
+        }
+        else
+        {
+            // Codes_SRS_AMQPSTRANSPORT_15_004: [The function shall open an AMQPS connection with the IoT Hub given in the configuration.]
+            this.connection = new AmqpsIotHubConnection(this.config, this.useWebSockets);
+        }
         try
         {
             // Codes_SRS_AMQPSTRANSPORT_15_005: [The function shall add the transport to the list of listeners subscribed to the connection events.]
@@ -110,7 +140,7 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
 
         // Codes_SRS_AMQPSTRANSPORT_15_006: [If the connection was opened successfully, the transport state shall be set to OPEN.]
         this.state = State.OPEN;
-        logger.LogInfo("Connection has been opened, method name is %s ", logger.getMethodName());
+        logger.LogInfo("Connection has been opened, method name is open ");
     }
 
     /**
@@ -125,17 +155,45 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
         // Codes_SRS_AMQPSTRANSPORT_15_007: [If the AMQPS connection is closed, the function shall do nothing.]
         if (this.state == State.CLOSED)
         {
-            logger.LogInfo("The connection is already in closed state, method name is %s ", logger.getMethodName());
+            logger.LogInfo("The connection is already in closed state, method name is close ");
             return;
         }
 
-        logger.LogInfo("Starting to close the connection..., method name is %s ", logger.getMethodName());
+        logger.LogInfo("Starting to close the connection..., method name is close ");
         // Codes_SRS_AMQPSTRANSPORT_15_008: [The function shall close an AMQPS connection with the IoT Hub given in the configuration.]
         this.connection.close();
 
+        // Codes_SRS_AMQPSTRANSPORT_21_046: [The function shall close the send journal, if one is open, which forces it to the disk.]
+        this.sendQueueLimiter.closeJournal();
+
         // Codes_SRS_AMQPSTRANSPORT_15_009: [The function shall set the transport state to CLOSED.]
         this.state = State.CLOSED;
-        logger.LogInfo("Connection has been closed, method name is %s ", logger.getMethodName());
+        logger.LogInfo("Connection has been closed, method name is close ");
+    }
+
+    /**
+     * Registers the send task to be signalled whenever the transport has new work for it.
+     *
+     * @param sendTask the send task to signal. Can be {@code null}.
+     */
+    public void setSendTask(IotHubSendTask sendTask)
+    {
+        // Codes_SRS_AMQPSTRANSPORT_21_040: [The function shall save the send task.]
+        this.sendTask = sendTask;
+    }
+
+    /**
+     * The transport is polled for messages, so it does not signal the receive
+     * task.
+     *
+     * @param receiveTask the receive task. Can be {@code null}.
+     *
+     * @return {@code false}, since the transport must be polled.
+     */
+    public boolean setReceiveTask(IotHubReceiveTask receiveTask)
+    {
+        // Codes_SRS_AMQPSTRANSPORT_21_059: [The function shall return false, since the transport must be polled for messages.]
+        return false;
     }
 
     /**
@@ -145,20 +203,52 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
      * @param callback the callback to be invoked when a response for the message is received.
      * @param callbackContext the context to be passed in when the callback is invoked.
      *
-     * @throws IllegalStateException if the transport is closed.
+     * @throws IllegalStateException if the transport is closed, or if the send
+     * queue is full and the configured policy is to fail fast.
      */
     public void addMessage(Message message, IotHubEventCallback callback, Object callbackContext) throws IllegalStateException
     {
         // Codes_SRS_AMQPSTRANSPORT_15_010: [If the AMQPS session is closed, the function shall throw an IllegalStateException.]
         if (this.state == State.CLOSED)
         {
-            logger.LogError("Cannot add a message when the AMQPS transport is closed, method name is %s ", logger.getMethodName());
+            logger.LogError("Cannot add a message when the AMQPS transport is closed, method name is addMessage ");
             throw new IllegalStateException("Cannot add a message when the AMQPS transport is closed.");
         }
 
         // Codes_SRS_AMQPSTRANSPORT_15_011: [The function shall add a packet containing the message, callback, and callback context to the queue of messages waiting to be sent.]
         IotHubOutboundPacket packet = new IotHubOutboundPacket(message, callback, callbackContext);
+        // Codes_SRS_AMQPSTRANSPORT_21_043: [The function shall reserve room for the packet in the send queue, applying the configured policy if the queue is full.]
+        this.sendQueueLimiter.acquire(packet, this.waitingMessages, this.callbackList);
         this.waitingMessages.add(packet);
+
+        // Codes_SRS_AMQPSTRANSPORT_21_041: [The function shall signal the send task that a message is waiting to be sent.]
+        signalSendTask();
+    }
+
+    /**
+     * Adds a batch of messages to the transport queue. The messages of the
+     * batch still waiting when the first of them is sent are sent together
+     * in a single delivery using the batched message format.
+     *
+     * @param batch the packets of the batch, in order.
+     *
+     * @throws IllegalStateException if the transport is closed, or if the send
+     * queue is full and the configured policy is to fail fast.
+     */
+    public void addMessageBatch(List<IotHubOutboundPacket> batch) throws IllegalStateException
+    {
+        // Codes_SRS_AMQPSTRANSPORT_21_048: [If the AMQPS session is closed, the function shall throw an IllegalStateException.]
+        if (this.state == State.CLOSED)
+        {
+            logger.LogError("Cannot add a message when the AMQPS transport is closed, method name is addMessageBatch ");
+            throw new IllegalStateException("Cannot add a message when the AMQPS transport is closed.");
+        }
+
+        // Codes_SRS_AMQPSTRANSPORT_21_049: [The function shall reserve room for each packet of the batch and add it to the queue of messages waiting to be sent, in order.]
+        this.sendQueueLimiter.acquireBatch(batch, this.waitingMessages, this.callbackList);
+
+        // Codes_SRS_AMQPSTRANSPORT_21_041: [The function shall signal the send task that a message is waiting to be sent.]
+        signalSendTask();
     }
 
     /**
@@ -177,7 +267,7 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
         // Codes_SRS_AMQPSTRANSPORT_15_012: [If the AMQPS session is closed, the function shall throw an IllegalStateException.]
         if (this.state == State.CLOSED)
         {
-            logger.LogError("Cannot send messages when the AMQPS transport is closed, method name is %s ", logger.getMethodName());
+            logger.LogError("Cannot send messages when the AMQPS transport is closed, method name is sendMessages ");
             throw new IllegalStateException("Cannot send messages when the AMQPS transport is closed.");
         }
 
@@ -190,10 +280,20 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
         Collection<IotHubOutboundPacket> failedMessages = new ArrayList<>() ;
 
         // Codes_SRS_AMQPSTRANSPORT_15_014: [The function shall attempt to send every message on its waiting list, one at a time.]
-        while (!this.waitingMessages.isEmpty())
+        // the queue may also be drained by addMessage when it drops the
+        // oldest messages, so poll instead of checking for emptiness first.
+        IotHubOutboundPacket packet;
+        while ((packet = this.waitingMessages.poll()) != null)
         {
-           logger.LogInfo("Get the message from waiting message queue to be sent to IoT Hub, method name is %s ", logger.getMethodName());
-           IotHubOutboundPacket packet = this.waitingMessages.remove();
+           logger.LogInfo("Get the message from waiting message queue to be sent to IoT Hub, method name is sendMessages ");
+
+            // Codes_SRS_AMQPSTRANSPORT_21_050: [The function shall send the messages of a batch still waiting together, in a single batched delivery.]
+            List<IotHubOutboundPacket> batch = packet.getBatch();
+            if (batch != null && batch.size() > 1)
+            {
+                this.sendBatch(packet, failedMessages);
+                continue;
+            }
 
             Message message = packet.getMessage();
 
@@ -204,23 +304,25 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
                 // with the MESSAGE_EXPIRED status and add it to the callback list.]
                 if (message.isExpired())
                 {
-                    logger.LogInfo("Creating a callback for the expired message with MESSAGE_EXPIRED status, method name is %s ", logger.getMethodName());
+                    logger.LogInfo("Creating a callback for the expired message with MESSAGE_EXPIRED status, method name is sendMessages ");
                     IotHubCallbackPacket callbackPacket = new IotHubCallbackPacket(IotHubStatusCode.MESSAGE_EXPIRED, packet.getCallback(), packet.getContext());
                     this.callbackList.add(callbackPacket);
+                    // Codes_SRS_AMQPSTRANSPORT_21_044: [The function shall release the room held in the send queue by a message once it is acknowledged, expired or skipped.]
+                    this.sendQueueLimiter.release(packet);
                 }
                 else
                 {
-                    logger.LogInfo("Converting the IoT Hub message into AmqpsMessage, method name is %s ", logger.getMethodName());
+                    logger.LogInfo("Converting the IoT Hub message into AmqpsMessage, method name is sendMessages ");
                     // Codes_SRS_AMQPSTRANSPORT_15_036: [The function shall create a new Proton message from the IoTHub message.]
                     MessageImpl protonMessage = iotHubMessageToProtonMessage(message);
 
                     // Codes_SRS_AMQPSTRANSPORT_15_037: [The function shall attempt to send the Proton message to IoTHub using the underlying AMQPS connection.]
-                    Integer sendHash = connection.sendMessage(protonMessage);
+                    long sendHash = connection.sendMessage(protonMessage);
 
                     // Codes_SRS_AMQPSTRANSPORT_15_016: [If the sent message hash is valid, it shall be added to the in progress map.]
                     if (sendHash != -1)
                     {
-                        this.inProgressMessages.put(sendHash, packet);
+                        this.onSent(sendHash, packet, failedMessages);
                     }
                     // Codes_SRS_AMQPSTRANSPORT_15_017: [If the sent message hash is not valid, it shall be buffered to be sent in a subsequent attempt.]
                     else
@@ -229,11 +331,155 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
                     }
                 }
             }
+            else
+            {
+                // Codes_SRS_AMQPSTRANSPORT_21_044: [The function shall release the room held in the send queue by a message once it is acknowledged, expired or skipped.]
+                this.sendQueueLimiter.release(packet);
+            }
         }
 
         this.waitingMessages.addAll(failedMessages);
     }
 
+    /**
+     * Sends the given packet together with the packets of its batch that are
+     * still waiting. Expired and empty messages are completed on their own.
+     *
+     * @param first the first packet of the batch taken off the waiting list.
+     * @param failedMessages the packets to be sent again on the next attempt.
+     */
+    private void sendBatch(IotHubOutboundPacket first, Collection<IotHubOutboundPacket> failedMessages)
+    {
+        List<IotHubOutboundPacket> members = new ArrayList<>();
+        members.add(first);
+        for (IotHubOutboundPacket member : first.getBatch())
+        {
+            if (member != first && this.waitingMessages.remove(member))
+            {
+                members.add(member);
+            }
+        }
+
+        List<IotHubOutboundPacket> sendable = new ArrayList<>();
+        List<org.apache.qpid.proton.message.Message> protonMessages = new ArrayList<>();
+        for (IotHubOutboundPacket member : members)
+        {
+            Message message = member.getMessage();
+            if (message == null || message.getBytes().length == 0)
+            {
+                // Codes_SRS_AMQPSTRANSPORT_21_044: [The function shall release the room held in the send queue by a message once it is acknowledged, expired or skipped.]
+                this.sendQueueLimiter.release(member);
+            }
+            else if (message.isExpired())
+            {
+                this.callbackList.add(new IotHubCallbackPacket(IotHubStatusCode.MESSAGE_EXPIRED, member.getCallback(), member.getContext()));
+                // Codes_SRS_AMQPSTRANSPORT_21_044: [The function shall release the room held in the send queue by a message once it is acknowledged, expired or skipped.]
+                this.sendQueueLimiter.release(member);
+            }
+            else
+            {
+                sendable.add(member);
+                protonMessages.add(iotHubMessageToProtonMessage(message));
+            }
+        }
+
+        if (sendable.isEmpty())
+        {
+            return;
+        }
+
+        logger.LogInfo("Sending a batch of %s messages to IoT Hub, method name is sendBatch ", sendable.size());
+        if (sendable.size() == 1)
+        {
+            long sendHash = connection.sendMessage(protonMessages.get(0));
+            if (sendHash != -1)
+            {
+                this.onSent(sendHash, sendable.get(0), failedMessages);
+            }
+            else
+            {
+                failedMessages.add(sendable.get(0));
+            }
+            return;
+        }
+
+        long sendHash = connection.sendMessageBatch(protonMessages);
+        // Codes_SRS_AMQPSTRANSPORT_21_051: [If the batch hash is valid, the batch shall be added to the in progress batches, otherwise it shall be buffered to be sent in a subsequent attempt.]
+        if (sendHash != -1)
+        {
+            if (this.config.isAmqpSendSettled())
+            {
+                for (IotHubOutboundPacket member : sendable)
+                {
+                    this.completeSettled(member);
+                }
+            }
+            else
+            {
+                synchronized (this.droppedDeliveries)
+                {
+                    if (this.droppedDeliveries.remove(sendHash))
+                    {
+                        failedMessages.addAll(sendable);
+                    }
+                    else
+                    {
+                        this.inProgressBatches.put(sendHash, sendable);
+                    }
+                }
+            }
+        }
+        else
+        {
+            failedMessages.addAll(sendable);
+        }
+    }
+
+    /**
+     * Holds a sent message until the IoT Hub acknowledges it, or completes it
+     * at once if messages are settled when sent.
+     *
+     * @param sendHash the id of the delivery of the message.
+     * @param packet the sent message.
+     * @param failedMessages the packets to be sent again on the next attempt.
+     */
+    private void onSent(long sendHash, IotHubOutboundPacket packet, Collection<IotHubOutboundPacket> failedMessages)
+    {
+        if (this.config.isAmqpSendSettled())
+        {
+            this.completeSettled(packet);
+        }
+        else
+        {
+            synchronized (this.droppedDeliveries)
+            {
+                // Codes_SRS_AMQPSTRANSPORT_21_060: [A message whose delivery was reported as not delivered before it was held in progress shall be buffered to be sent again.]
+                if (this.droppedDeliveries.remove(sendHash))
+                {
+                    failedMessages.add(packet);
+                }
+                else
+                {
+                    this.inProgressMessages.put(sendHash, packet);
+                }
+            }
+        }
+    }
+
+    /**
+     * Completes a message settled when sent, which the IoT Hub does not
+     * acknowledge.
+     *
+     * @param packet the sent message.
+     */
+    private void completeSettled(IotHubOutboundPacket packet)
+    {
+        // Codes_SRS_AMQPSTRANSPORT_21_056: [If the configuration asks for settled sends, a sent message shall not be held in progress, but its callback shall be added to the callback list with the OK_EMPTY status, and its room in the send queue released.]
+        this.callbackList.add(new IotHubCallbackPacket(IotHubStatusCode.OK_EMPTY, packet.getCallback(), packet.getContext()));
+        // Codes_SRS_AMQPSTRANSPORT_21_044: [The function shall release the room held in the send queue by a message once it is acknowledged, expired or skipped.]
+        this.sendQueueLimiter.release(packet);
+    }
+
     /**
      * Invokes the callbacks for all completed requests.
      *
@@ -244,7 +490,7 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
         // Codes_SRS_AMQPSTRANSPORT_15_019: [If the transport closed, the function shall throw an IllegalStateException.]
         if (this.state == State.CLOSED)
         {
-            logger.LogError("Cannot invoke callbacks when AMQPS transport is closed, method name is %s ", logger.getMethodName());
+            logger.LogError("Cannot invoke callbacks when AMQPS transport is closed, method name is invokeCallbacks ");
             throw new IllegalStateException("Cannot invoke callbacks when AMQPS transport is closed.");
         }
 
@@ -257,7 +503,13 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
             IotHubEventCallback callback = packet.getCallback();
             Object context = packet.getContext();
             
-            logger.LogInfo("Invoking the callback function for sent message, IoT Hub responded to message with status %s, method name is %s ", status.name(), logger.getMethodName());
+            // Codes_SRS_AMQPSTRANSPORT_21_047: [The function shall skip callback packets with no callback, such as those of messages replayed from the send journal.]
+            if (callback == null)
+            {
+                continue;
+            }
+
+            logger.LogInfo("Invoking the callback function for sent message, IoT Hub responded to message with status %s, method name is invokeCallbacks ", status.name());
             callback.execute(status, context);
         }
     }
@@ -277,47 +529,62 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
         // Codes_SRS_AMQPSTRANSPORT_15_021: [If the transport is closed, the function shall throw an IllegalStateException.]
         if (this.state == State.CLOSED)
         {
-            logger.LogError("Cannot handle messages when AMQPS transport is closed, method name is %s ", logger.getMethodName());
+            logger.LogError("Cannot handle messages when AMQPS transport is closed, method name is handleMessage ");
             throw new IllegalStateException("Cannot handle messages when AMQPS transport is closed.");
         }
         
-        logger.LogInfo("Get the callback function for the received message, method name is %s ", logger.getMethodName());
+        logger.LogInfo("Get the callback function for the received message, method name is handleMessage ");
         MessageCallback callback = this.config.getMessageCallback();
 
         // Codes_SRS_AMQPSTRANSPORT_15_025: [If no callback is defined, the list of received messages is cleared.]
         if (callback == null)
         {
-            logger.LogError("Callback is not defined therefore response to IoT Hub cannot be generated. All received messages will be removed from receive message queue, method name is %s ", logger.getMethodName());
+            logger.LogError("Callback is not defined therefore response to IoT Hub cannot be generated. All received messages will be removed from receive message queue, method name is handleMessage ");
             this.receivedMessages.clear();
             return;
         }
 
         // Codes_SRS_AMQPSTRANSPORT_15_023: [The function shall attempt to consume a message from the IoT Hub.]
         // Codes_SRS_AMQPSTRANSPORT_15_024: [If no message was received from IotHub, the function shall return.]
-        if (this.receivedMessages.size() > 0)
+        // Codes_SRS_AMQPSTRANSPORT_21_057: [The function shall consume every message received before it was called, not only the first one.]
+        // messages put back below are left for the next call.
+        int available = this.receivedMessages.size();
+        if (available <= 0)
+        {
+            return;
+        }
+
+        List<AmqpsMessage> handledMessages = new ArrayList<>(available);
+        List<IotHubMessageResult> results = new ArrayList<>(available);
+        AmqpsMessage receivedMessage;
+        while (handledMessages.size() < available && (receivedMessage = this.receivedMessages.poll()) != null)
         {
-            logger.LogInfo("Consuming a message received from IoT Hub using receive message queue, method name is %s ", logger.getMethodName());
-            AmqpsMessage receivedMessage = this.receivedMessages.remove();
-            logger.LogInfo("Converting the AmqpsMessage to IoT Hub message, method name is %s ", logger.getMethodName());
+            logger.LogInfo("Converting the AmqpsMessage to IoT Hub message, method name is handleMessage ");
             Message message = protonMessageToIoTHubMessage(receivedMessage);
 
-			// set  messageId from messageId property if it exists. Fix for GitHub issue #990
-            if (message.getProperty("messageId") !=null)
-			{
-			  message.setMessageId(message.getProperty("messageId"));
-			}
-                    
-            logger.LogInfo("Executing the callback function for received message, method name is %s ", logger.getMethodName());
+            logger.LogInfo("Executing the callback function for received message, method name is handleMessage ");
             // Codes_SRS_AMQPSTRANSPORT_15_026: [The function shall invoke the callback on the message.]
-            IotHubMessageResult result = callback.execute(message, this.config.getMessageContext());
+            results.add(callback.execute(message, this.config.getMessageContext()));
+            handledMessages.add(receivedMessage);
+        }
 
-            // Codes_SRS_AMQPSTRANSPORT_15_027: [The function shall return the message result (one of COMPLETE, ABANDON, or REJECT) to the IoT Hub.]
-            Boolean ackResult = this.connection.sendMessageResult(receivedMessage, result);
-            // Codes_SRS_AMQPSTRANSPORT_15_028: [If the result could not be sent to IoTHub, the message shall be put back in the received messages queue to be processed again.]
-            if (!ackResult)
+        // Codes_SRS_AMQPSTRANSPORT_15_027: [The function shall return the message result (one of COMPLETE, ABANDON, or REJECT) to the IoT Hub.]
+        // Codes_SRS_AMQPSTRANSPORT_21_058: [The results of several messages shall be returned to the IoT Hub together.]
+        Boolean ackResult = handledMessages.size() == 1
+                ? this.connection.sendMessageResult(handledMessages.get(0), results.get(0))
+                : this.connection.sendMessageResults(handledMessages, results);
+        if (!ackResult)
+        {
+            if (handledMessages.size() == 1)
             {
-                logger.LogWarn("Callback did not return a response for IoT Hub. Message has been added in the queue to be processed again, method name is %s", logger.getMethodName());
-                receivedMessages.add(receivedMessage);
+                // Codes_SRS_AMQPSTRANSPORT_15_028: [If the result could not be sent to IoTHub, the message shall be put back in the received messages queue to be processed again.]
+                logger.LogWarn("Callback did not return a response for IoT Hub. Message has been added in the queue to be processed again, method name is handleMessage");
+                this.receivedMessages.add(handledMessages.get(0));
+            }
+            else
+            {
+                // Codes_SRS_AMQPSTRANSPORT_21_061: [If the results of several messages could not be handed to the connection, the messages shall be dropped rather than their callbacks run again, since the IoT Hub delivers them again once the connection is back.]
+                logger.LogWarn("Results for %s received messages could not be returned to IoT Hub, which will deliver them again, so they have been dropped, method name is handleMessage ", handledMessages.size());
             }
         }
     }
@@ -326,28 +593,71 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
      * When a message is acknowledged by IoTHub, it is removed from the list of in progress messages and its callback
      * is added to the list of callbacks to be executed. If the message was not successfully delivered, it is buffered
      * to be sent again.
-     * @param messageHash The hash of the message.
+     * @param deliveryId The id of the delivery.
      * @param deliveryState The state of the delivery.
      */
-    public void messageSent(Integer messageHash, Boolean deliveryState)
+    public void messageSent(long deliveryId, Boolean deliveryState)
     {
-        // Codes_SRS_AMQPSTRANSPORT_15_029: [If the hash cannot be found in the list of keys for the messages in progress, the method returns.]
-        if (inProgressMessages.containsKey(messageHash))
+        if (!deliveryState && !this.config.isAmqpSendSettled())
         {
-            IotHubOutboundPacket packet = inProgressMessages.remove(messageHash);
+            synchronized (this.droppedDeliveries)
+            {
+                if (this.inProgressBatches.get(deliveryId) == null && this.inProgressMessages.get(deliveryId) == null)
+                {
+                    // Codes_SRS_AMQPSTRANSPORT_21_060: [A message whose delivery was reported as not delivered before it was held in progress shall be buffered to be sent again.]
+                    this.droppedDeliveries.add(deliveryId);
+                    return;
+                }
+            }
+        }
+
+        List<IotHubOutboundPacket> batch = inProgressBatches.remove(deliveryId);
+        if (batch != null)
+        {
+            // Codes_SRS_AMQPSTRANSPORT_21_052: [If the hash is the one of a batch, the delivery state shall apply to every message of the batch.]
+            for (IotHubOutboundPacket packet : batch)
+            {
+                if (deliveryState)
+                {
+                    this.callbackList.add(new IotHubCallbackPacket(IotHubStatusCode.OK_EMPTY, packet.getCallback(), packet.getContext()));
+                    this.sendQueueLimiter.release(packet);
+                }
+                else
+                {
+                    waitingMessages.add(packet);
+                }
+            }
+
+            // Codes_SRS_AMQPSTRANSPORT_21_042: [The function shall signal the send task that a callback or a message is waiting.]
+            signalSendTask();
+        }
+        else
+        {
+            IotHubOutboundPacket packet = inProgressMessages.remove(deliveryId);
+            // Codes_SRS_AMQPSTRANSPORT_15_029: [If the hash cannot be found in the list of keys for the messages in progress, the method returns.]
+            if (packet == null)
+            {
+                return;
+            }
+
             if (deliveryState)
             {
-                logger.LogInfo("Message with messageid %s has been successfully delivered to IoTHub, adding a callback to callbacklist with IotHubStatusCode.OK_EMPTY, method name is %s ", packet.getMessage().getMessageId(), logger.getMethodName());
+                logger.LogInfo("Message with messageid %s has been successfully delivered to IoTHub, adding a callback to callbacklist with IotHubStatusCode.OK_EMPTY, method name is messageSent ", packet.getMessage().getMessageId());
                 // Codes_SRS_AMQPSTRANSPORT_15_030: [If the message was successfully delivered,
                 // its callback is added to the list of callbacks to be executed.]
                 IotHubCallbackPacket callbackPacket = new IotHubCallbackPacket(IotHubStatusCode.OK_EMPTY, packet.getCallback(), packet.getContext());
                 this.callbackList.add(callbackPacket);
+                // Codes_SRS_AMQPSTRANSPORT_21_044: [The function shall release the room held in the send queue by a message once it is acknowledged, expired or skipped.]
+                this.sendQueueLimiter.release(packet);
             } else
             {
-                logger.LogInfo("Message with messageid %s was not delivered to IoTHub, it is buffered to be sent again, method name is %s ", packet.getMessage().getMessageId(), logger.getMethodName());
+                logger.LogInfo("Message with messageid %s was not delivered to IoTHub, it is buffered to be sent again, method name is messageSent ", packet.getMessage().getMessageId());
                 // Codes_SRS_AMQPSTRANSPORT_15_031: [If the message was not delivered successfully, it is buffered to be sent again.]
                 waitingMessages.add(packet);
             }
+
+            // Codes_SRS_AMQPSTRANSPORT_21_042: [The function shall signal the send task that a callback or a message is waiting.]
+            signalSendTask();
         }
     }
 
@@ -356,15 +666,15 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
      */
     public void connectionLost()
     {
-        logger.LogInfo("The messages in progress are buffered to be sent again due to a connection loss, method name is %s ", logger.getMethodName());
+        logger.LogInfo("The messages in progress are buffered to be sent again due to a connection loss, method name is connectionLost ");
         // Codes_SRS_AMQPSTRANSPORT_15_032: [The messages in progress are buffered to be sent again.]
-        for (Map.Entry<Integer, IotHubOutboundPacket> entry : inProgressMessages.entrySet())
+        // Codes_SRS_AMQPSTRANSPORT_15_033: [The map of messages in progress is cleared.]
+        this.waitingMessages.addAll(inProgressMessages.removeAll());
+
+        for (List<IotHubOutboundPacket> batch : inProgressBatches.removeAll())
         {
-            this.waitingMessages.add(entry.getValue());
+            this.waitingMessages.addAll(batch);
         }
-
-        // Codes_SRS_AMQPSTRANSPORT_15_033: [The map of messages in progress is cleared.]
-        inProgressMessages.clear();
     }
 
     /**
@@ -373,7 +683,10 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
      */
     public void messageReceived(AmqpsMessage message)
     {
-        logger.LogInfo("Message with hashcode %s is received from IotHub on %s, method name is %s ", message.hashCode(), new Date(), logger.getMethodName());
+        if (logger.isInfoEnabled())
+        {
+            logger.LogInfo("Message with hashcode %s is received from IotHub on %s, method name is messageReceived ", message.hashCode(), new Date());
+        }
         // Codes_SRS_AMQPSTRANSPORT_15_034: [The message received is added to the list of messages to be processed.]
         this.receivedMessages.add(message);
     }
@@ -389,10 +702,23 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
     {
         // Codes_SRS_AMQPSTRANSPORT_15_035: [The function shall return true if the waiting list,
         // in progress list and callback list are all empty, and false otherwise.]
-        return this.waitingMessages.isEmpty() && this.inProgressMessages.size() == 0 && this.callbackList.isEmpty();
+        return this.waitingMessages.isEmpty() && this.inProgressMessages.size() == 0
+                && this.inProgressBatches.isEmpty() && this.callbackList.isEmpty();
 
     }
 
+    /**
+     * Signals the send task, if one is registered, that there is work for it.
+     */
+    private void signalSendTask()
+    {
+        IotHubSendTask task = this.sendTask;
+        if (task != null)
+        {
+            task.signal();
+        }
+    }
+
     /**
      * Converts an AMQPS message to a corresponding IoT Hub message.
      *
@@ -402,7 +728,7 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
      */
     private Message protonMessageToIoTHubMessage(MessageImpl protonMsg)
     {
-        logger.LogInfo("Started converting AmpqsMessage into IoT Hub message, method name is %s ", logger.getMethodName());
+        logger.LogInfo("Started converting AmpqsMessage into IoT Hub message, method name is protonMessageToIoTHubMessage ");
         Data d = (Data) protonMsg.getBody();
         Binary b = d.getValue();
         byte[] msgBody = new byte[b.getLength()];
@@ -410,38 +736,33 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
         buffer.get(msgBody);
 
         Message msg = new Message(msgBody);
-        logger.LogInfo("Content of received message is %s, method name is %s ", new String(msg.getBytes(), Message.DEFAULT_IOTHUB_MESSAGE_CHARSET), logger.getMethodName());
+        logger.LogTracePayload("Content of received message is %s, method name is protonMessageToIoTHubMessage ", msgBody);
+        // Codes_SRS_AMQPSTRANSPORT_21_053: [The function shall copy each field of the Proton message properties that is set into the IoT Hub message properties, named after the field, unless the name is reserved or the value is not US-ASCII.]
         Properties properties = protonMsg.getProperties();
-        //Call all of the getters for the Proton message Properties and set those properties
-        //in the IoT Hub message properties if they exist.
-        for (Method m : properties.getClass().getMethods())
+        if (properties != null)
         {
-            if (m.getName().startsWith("get"))
+            copyProperty(msg, "messageId", properties.getMessageId());
+            copyProperty(msg, "userId", properties.getUserId());
+            copyProperty(msg, "to", properties.getTo());
+            copyProperty(msg, "subject", properties.getSubject());
+            copyProperty(msg, "replyTo", properties.getReplyTo());
+            copyProperty(msg, "correlationId", properties.getCorrelationId());
+            copyProperty(msg, "contentType", properties.getContentType());
+            copyProperty(msg, "contentEncoding", properties.getContentEncoding());
+            copyProperty(msg, "absoluteExpiryTime", properties.getAbsoluteExpiryTime());
+            copyProperty(msg, "creationTime", properties.getCreationTime());
+            copyProperty(msg, "groupId", properties.getGroupId());
+            copyProperty(msg, "groupSequence", properties.getGroupSequence());
+            copyProperty(msg, "replyToGroupId", properties.getReplyToGroupId());
+
+            // Codes_SRS_AMQPSTRANSPORT_21_054: [The function shall set the message id and correlation id of the IoT Hub message from the Proton message properties.]
+            if (properties.getMessageId() != null)
             {
-                try
-                {
-                    String propertyName = Character.toLowerCase(m.getName().charAt(3)) + m.getName().substring(4);
-                    Object value = m.invoke(properties);
-                    if (value != null && !propertyName.equals("class"))
-                    {
-                        String val = value.toString();
-
-                        if (MessageProperty.isValidAppProperty(propertyName, val))
-                        {
-                            msg.setProperty(propertyName, val);
-                        }
-                    }
-                }
-                catch (IllegalAccessException e)
-                {
-                    logger.LogError(e);
-                    System.err.println("Attempted to access private or protected member of class during message conversion.");
-                }
-                catch (InvocationTargetException e)
-                {
-                   logger.LogError(e); 
-                   System.err.println("Exception thrown while attempting to get member variable. See: " + e.getMessage());
-                }
+                msg.setMessageId(properties.getMessageId().toString());
+            }
+            if (properties.getCorrelationId() != null)
+            {
+                msg.setCorrelationId(properties.getCorrelationId().toString());
             }
         }
 
@@ -458,10 +779,30 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
                 }
             }
         }
-        logger.LogInfo("Completed the conversion of AmpqsMessage into IoT Hub message, method name is %s ", logger.getMethodName());
+        logger.LogInfo("Completed the conversion of AmpqsMessage into IoT Hub message, method name is protonMessageToIoTHubMessage ");
         return msg;
     }
 
+    /**
+     * Copies a field of the Proton message properties into the IoT Hub
+     * message properties, if it is set and is a valid application property.
+     *
+     * @param msg the IoT Hub message.
+     * @param name the name of the field.
+     * @param value the value of the field, or {@code null} if it is not set.
+     */
+    private static void copyProperty(Message msg, String name, Object value)
+    {
+        if (value != null)
+        {
+            String val = value.toString();
+            if (MessageProperty.isValidAppProperty(name, val))
+            {
+                msg.setProperty(name, val);
+            }
+        }
+    }
+
     /**
      * Creates a proton message from the IoTHub message.
      * @param message the IoTHub input message.
@@ -469,9 +810,11 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
      */
     private MessageImpl iotHubMessageToProtonMessage(com.microsoft.azure.sdk.iot.device.Message message)
     {
-        logger.LogInfo("Started converting IoT Hub message into AmpqsMessage, method name is %s ", logger.getMethodName());
+        logger.LogInfo("Started converting IoT Hub message into AmpqsMessage, method name is iotHubMessageToProtonMessage ");
         MessageImpl outgoingMessage = (MessageImpl) Proton.message();
-        logger.LogInfo("Content of message is %s, method name is %s ", new String(message.getBytes(), Message.DEFAULT_IOTHUB_MESSAGE_CHARSET), logger.getMethodName());
+        // the body is copied once, for the proton message, and logged from that copy.
+        byte[] body = message.getBytes();
+        logger.LogTracePayload("Content of message is %s, method name is iotHubMessageToProtonMessage ", body);
         Properties properties = new Properties();
         if(message.getMessageId() != null)
         {
@@ -496,10 +839,10 @@ public final class AmqpsTransport implements IotHubTransport, ServerListener
             outgoingMessage.setApplicationProperties(applicationProperties);
         }
 
-        Binary binary = new Binary(message.getBytes());
+        Binary binary = new Binary(body);
         Section section = new Data(binary);
         outgoingMessage.setBody(section);
-        logger.LogInfo("Started converting IoT Hub message into AmpqsMessage, method name is %s ", logger.getMethodName());
+        logger.LogInfo("Started converting IoT Hub message into AmpqsMessage, method name is iotHubMessageToProtonMessage ");
         return outgoingMessage;
     }
 }
\ No newline at end of file
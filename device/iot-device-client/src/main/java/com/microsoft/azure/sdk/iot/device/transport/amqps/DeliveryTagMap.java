@@ -0,0 +1,228 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device.transport.amqps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Maps the delivery tags of the messages in flight to the messages, without
+ * boxing the tags. The tags are handed out in increasing order and are
+ * mostly acknowledged in that order, so the table is a ring indexed by the
+ * low bits of the tag: a tag lands in its own slot unless the ring has
+ * wrapped around onto a delivery that is still in flight, in which case the
+ * next free slot is used.
+ * </p>
+ * <p>
+ * The map is safe to use from the thread that sends the messages and from
+ * the reactor thread that reports their acknowledgements.
+ * </p>
+ *
+ * @param <V> the type of the values held in the map.
+ */
+public final class DeliveryTagMap<V>
+{
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private long[] tags;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * Constructor.
+     */
+    public DeliveryTagMap()
+    {
+        // Codes_SRS_DELIVERYTAGMAP_21_001: [The constructor shall create an empty map.]
+        this.tags = new long[DEFAULT_CAPACITY];
+        this.values = new Object[DEFAULT_CAPACITY];
+        this.mask = DEFAULT_CAPACITY - 1;
+    }
+
+    /**
+     * Adds a value for a tag, replacing the value already held for it.
+     *
+     * @param tag the delivery tag.
+     * @param value the value. Cannot be {@code null}.
+     *
+     * @throws IllegalArgumentException if the value is {@code null}.
+     */
+    public synchronized void put(long tag, V value)
+    {
+        // Codes_SRS_DELIVERYTAGMAP_21_002: [If the value is null, the function shall throw an IllegalArgumentException.]
+        if (value == null)
+        {
+            throw new IllegalArgumentException("A delivery tag cannot be mapped to null.");
+        }
+
+        // Codes_SRS_DELIVERYTAGMAP_21_003: [The function shall map the tag to the value, replacing the value already mapped to the tag.]
+        int index = indexOf(tag);
+        if (this.values[index] == null)
+        {
+            // Codes_SRS_DELIVERYTAGMAP_21_004: [If the map is three quarters full, the function shall double its capacity.]
+            if (this.size + 1 > (this.values.length >> 2) * 3)
+            {
+                grow();
+                index = indexOf(tag);
+            }
+            this.size++;
+        }
+        this.tags[index] = tag;
+        this.values[index] = value;
+    }
+
+    /**
+     * Getter for the value of a tag.
+     *
+     * @param tag the delivery tag.
+     *
+     * @return the value mapped to the tag, or {@code null} if there is none.
+     */
+    public synchronized V get(long tag)
+    {
+        // Codes_SRS_DELIVERYTAGMAP_21_005: [The function shall return the value mapped to the tag, or null if there is none.]
+        return valueAt(indexOf(tag));
+    }
+
+    /**
+     * Removes the value of a tag.
+     *
+     * @param tag the delivery tag.
+     *
+     * @return the value that was mapped to the tag, or {@code null} if there
+     * was none.
+     */
+    public synchronized V remove(long tag)
+    {
+        int index = indexOf(tag);
+        V value = valueAt(index);
+        if (value != null)
+        {
+            // Codes_SRS_DELIVERYTAGMAP_21_006: [The function shall remove the tag from the map and return the value that was mapped to it, or null if there was none.]
+            removeAt(index);
+        }
+        return value;
+    }
+
+    /**
+     * Removes every value from the map.
+     *
+     * @return the values that were in the map, in increasing order of their
+     * tags.
+     */
+    public synchronized List<V> removeAll()
+    {
+        long[] held = new long[this.size];
+        int count = 0;
+        for (int index = 0; index < this.values.length; index++)
+        {
+            if (this.values[index] != null)
+            {
+                held[count++] = this.tags[index];
+            }
+        }
+        Arrays.sort(held);
+
+        // Codes_SRS_DELIVERYTAGMAP_21_007: [The function shall empty the map and return the values it held, in increasing order of their tags.]
+        List<V> removed = new ArrayList<>(count);
+        for (long tag : held)
+        {
+            removed.add(valueAt(indexOf(tag)));
+        }
+        Arrays.fill(this.values, null);
+        this.size = 0;
+        return removed;
+    }
+
+    /**
+     * Getter for the number of tags in the map.
+     *
+     * @return the number of tags in the map.
+     */
+    public synchronized int size()
+    {
+        // Codes_SRS_DELIVERYTAGMAP_21_008: [The function shall return the number of tags in the map.]
+        return this.size;
+    }
+
+    /**
+     * Returns {@code true} if the map holds no tag.
+     *
+     * @return {@code true} if the map holds no tag, and {@code false}
+     * otherwise.
+     */
+    public synchronized boolean isEmpty()
+    {
+        // Codes_SRS_DELIVERYTAGMAP_21_009: [The function shall return true if the map holds no tag, and false otherwise.]
+        return this.size == 0;
+    }
+
+    /**
+     * Finds the slot of a tag, or the free slot where it belongs.
+     */
+    private int indexOf(long tag)
+    {
+        int index = (int) tag & this.mask;
+        while (this.values[index] != null && this.tags[index] != tag)
+        {
+            index = (index + 1) & this.mask;
+        }
+        return index;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueAt(int index)
+    {
+        return (V) this.values[index];
+    }
+
+    /**
+     * Empties a slot, and moves back the tags that had to skip over it so
+     * that every tag can still be found from its own slot.
+     */
+    private void removeAt(int index)
+    {
+        int free = index;
+        int next = (free + 1) & this.mask;
+        while (this.values[next] != null)
+        {
+            int home = (int) this.tags[next] & this.mask;
+            // the tag at next can move to the free slot only if its own slot
+            // is not between the free slot and next.
+            boolean canMove = free <= next
+                    ? home <= free || home > next
+                    : home <= free && home > next;
+            if (canMove)
+            {
+                this.tags[free] = this.tags[next];
+                this.values[free] = this.values[next];
+                free = next;
+            }
+            next = (next + 1) & this.mask;
+        }
+        this.values[free] = null;
+        this.size--;
+    }
+
+    private void grow()
+    {
+        long[] oldTags = this.tags;
+        Object[] oldValues = this.values;
+        this.tags = new long[oldTags.length << 1];
+        this.values = new Object[oldValues.length << 1];
+        this.mask = this.values.length - 1;
+        for (int index = 0; index < oldValues.length; index++)
+        {
+            if (oldValues[index] != null)
+            {
+                int slot = indexOf(oldTags[index]);
+                this.tags[slot] = oldTags[index];
+                this.values[slot] = oldValues[index];
+            }
+        }
+    }
+}
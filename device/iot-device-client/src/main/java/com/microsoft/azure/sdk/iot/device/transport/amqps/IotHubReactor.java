@@ -5,27 +5,110 @@
 
 package com.microsoft.azure.sdk.iot.device.transport.amqps;
 
+import com.microsoft.azure.sdk.iot.device.CustomLogger;
 import org.apache.qpid.proton.engine.HandlerException;
 import org.apache.qpid.proton.reactor.Reactor;
 
-import java.util.concurrent.Future;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Runs a Proton {@link Reactor}, and owns the queue of work that other
+ * threads hand to it. Proton is not thread safe, so every access to the
+ * engine goes through {@link #execute(Runnable)} and runs on the reactor
+ * thread, between two passes of the reactor.
+ */
 public class IotHubReactor
 {
     Reactor reactor;
 
+    /** The work handed to the reactor thread. Many threads add, only the reactor thread polls. */
+    private final Queue<Runnable> work = new ConcurrentLinkedQueue<>();
+    /** Whether a wakeup has been sent that the reactor thread has not acted on yet. */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    /** The thread running the reactor, or {@code null} if it is not running. */
+    private volatile Thread reactorThread;
+    private volatile boolean finished;
+
+    private final CustomLogger logger = new CustomLogger(this.getClass());
+
     public IotHubReactor(Reactor reactor)
     {
         this.reactor = reactor;
     }
-    
+
     public void run() throws HandlerException
     {
-        this.reactor.setTimeout(10);
-        this.reactor.start();
-        while(this.reactor.process()){}
-        this.reactor.stop();
-        this.reactor.process();
-        this.reactor.free();
+        this.reactorThread = Thread.currentThread();
+        try
+        {
+            this.reactor.setTimeout(10);
+            this.reactor.start();
+            while(this.reactor.process())
+            {
+                runPendingWork();
+            }
+            this.reactor.stop();
+            this.reactor.process();
+            this.reactor.free();
+        }
+        finally
+        {
+            this.finished = true;
+            this.reactorThread = null;
+            // work added while the reactor was stopping has no engine left
+            // to race with, so it is run here rather than lost.
+            runPendingWork();
+        }
+    }
+
+    /**
+     * Runs work on the reactor thread. If called on the reactor thread, or
+     * once the reactor has finished, the work runs at once on the calling
+     * thread; otherwise it is queued, and the reactor is woken up to run it.
+     *
+     * @param task the work to run.
+     */
+    public void execute(Runnable task)
+    {
+        // Codes_SRS_IOTHUBREACTOR_21_001: [If the function is called on the reactor thread, or the reactor has finished, the function shall run the task on the calling thread.]
+        if (Thread.currentThread() == this.reactorThread || this.finished)
+        {
+            task.run();
+            return;
+        }
+
+        // Codes_SRS_IOTHUBREACTOR_21_002: [Otherwise the function shall queue the task and wake the reactor up, unless a wakeup is already pending.]
+        this.work.add(task);
+        if (this.wakeupPending.compareAndSet(false, true))
+        {
+            this.reactor.wakeup();
+        }
+
+        if (this.finished)
+        {
+            // the reactor finished while the task was being queued.
+            runPendingWork();
+        }
+    }
+
+    private void runPendingWork()
+    {
+        // Codes_SRS_IOTHUBREACTOR_21_003: [The reactor thread shall run the queued tasks in order between two passes of the reactor.]
+        this.wakeupPending.set(false);
+        Runnable task;
+        while ((task = this.work.poll()) != null)
+        {
+            try
+            {
+                task.run();
+            }
+            // Codes_SRS_IOTHUBREACTOR_21_004: [A task that throws shall be logged, and shall not prevent the following tasks from running.]
+            catch (RuntimeException e)
+            {
+                logger.LogError(e);
+            }
+        }
     }
-}
\ No newline at end of file
+}
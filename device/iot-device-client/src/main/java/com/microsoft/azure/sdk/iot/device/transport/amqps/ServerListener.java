@@ -10,10 +10,10 @@ public interface ServerListener
 {
     /**
      * Method executed when a message was acknowledged by IoTHub.
-     * @param messageHash The hash of the message.
+     * @param deliveryId The id of the delivery, as returned when the message was sent.
      * @param deliveryState The state of the delivery.
      */
-    void messageSent(Integer messageHash, Boolean deliveryState);
+    void messageSent(long deliveryId, Boolean deliveryState);
 
     /**
      * Method executed when a message was received from IoTHub.
@@ -7,10 +7,14 @@ import com.microsoft.azure.sdk.iot.device.*;
 import com.microsoft.azure.sdk.iot.device.MessageCallback;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubCallbackPacket;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubOutboundPacket;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubReceiveTask;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubSendTask;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubTransport;
+import com.microsoft.azure.sdk.iot.device.transport.SendQueueLimiter;
 
 import java.io.IOException;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingDeque;
@@ -51,6 +55,12 @@ public final class HttpsTransport implements IotHubTransport
 
     protected final DeviceClientConfig config;
 
+    /** Bounds the messages held between addMessage and their acknowledgement. */
+    protected final SendQueueLimiter sendQueueLimiter;
+
+    /** The send task to signal when new work is available. */
+    protected volatile IotHubSendTask sendTask;
+
     /**
      * Constructs an instance from the given {@link DeviceClientConfig}
      * object.
@@ -66,6 +76,7 @@ public final class HttpsTransport implements IotHubTransport
         this.callbackList = new LinkedBlockingDeque<>();
 
         this.config = config;
+        this.sendQueueLimiter = new SendQueueLimiter(config);
 
         this.state = HttpsTransportState.CLOSED;
     }
@@ -84,6 +95,9 @@ public final class HttpsTransport implements IotHubTransport
             return;
         }
 
+        // Codes_SRS_HTTPSTRANSPORT_21_040: [The function shall open the send journal, if one is configured, and replay the messages it holds.]
+        this.sendQueueLimiter.openJournal(this.waitingList);
+
         // Codes_SRS_HTTPSTRANSPORT_11_023: [If the transport is already closed, the function shall throw an IllegalStateException.]
         // Codes_SRS_HTTPSTRANSPORT_11_021: [The function shall establish an HTTPS connection with the IoT Hub given in the configuration.]
         this.connection = new HttpsIotHubConnection(this.config);
@@ -101,10 +115,38 @@ public final class HttpsTransport implements IotHubTransport
     {
         // the HTTPS connection does not contain state
         // that needs to be explicitly destroyed.
+        // Codes_SRS_HTTPSTRANSPORT_21_041: [The function shall close the send journal, if one is open, which forces it to the disk.]
+        this.sendQueueLimiter.closeJournal();
         // Codes_SRS_HTTPSTRANSPORT_11_035: [The function shall mark the transport as being closed.]
         this.state = HttpsTransportState.CLOSED;
     }
 
+    /**
+     * Registers the send task to be signalled whenever the transport has new
+     * work for it.
+     *
+     * @param sendTask the send task to signal. Can be {@code null}.
+     */
+    public void setSendTask(IotHubSendTask sendTask)
+    {
+        // Codes_SRS_HTTPSTRANSPORT_21_036: [The function shall save the send task.]
+        this.sendTask = sendTask;
+    }
+
+    /**
+     * The transport is polled for messages, so it does not signal the receive
+     * task.
+     *
+     * @param receiveTask the receive task. Can be {@code null}.
+     *
+     * @return {@code false}, since the transport must be polled.
+     */
+    public boolean setReceiveTask(IotHubReceiveTask receiveTask)
+    {
+        // Codes_SRS_HTTPSTRANSPORT_21_046: [The function shall return false, since the transport must be polled for messages.]
+        return false;
+    }
+
     /**
      * Adds a message to the transport queue.
      *
@@ -115,7 +157,8 @@ public final class HttpsTransport implements IotHubTransport
      * invoked.
      *
      * @throws IllegalStateException if the transport has not been opened or is
-     * already closed.
+     * already closed, or if the send queue is full and the configured policy
+     * is to fail fast.
      */
     public void addMessage(Message message,
             IotHubEventCallback callback,
@@ -128,7 +171,44 @@ public final class HttpsTransport implements IotHubTransport
 
         // Codes_SRS_HTTPSTRANSPORT_11_003: [The function shall add a packet containing the message, callback, and callback context to the transport queue.]
         IotHubOutboundPacket packet = new IotHubOutboundPacket(message, callback, callbackContext);
+        // Codes_SRS_HTTPSTRANSPORT_21_038: [The function shall reserve room for the packet in the send queue, applying the configured policy if the queue is full.]
+        this.sendQueueLimiter.acquire(packet, this.waitingList, this.callbackList);
         this.waitingList.add(packet);
+
+        // Codes_SRS_HTTPSTRANSPORT_21_037: [The function shall signal the send task that a message is waiting to be sent.]
+        IotHubSendTask task = this.sendTask;
+        if (task != null)
+        {
+            task.signal();
+        }
+    }
+
+    /**
+     * Adds a batch of messages to the transport queue. The messages of the
+     * batch are sent in batched requests of their own.
+     *
+     * @param batch the packets of the batch, in order.
+     *
+     * @throws IllegalStateException if the transport has not been opened or is
+     * already closed, or if the send queue is full and the configured policy
+     * is to fail fast.
+     */
+    public void addMessageBatch(List<IotHubOutboundPacket> batch)
+    {
+        // Codes_SRS_HTTPSTRANSPORT_21_043: [If the transport is closed, the function shall throw an IllegalStateException.]
+        if (this.state == HttpsTransportState.CLOSED) {
+            throw new IllegalStateException("Cannot add a message to an HTTPS transport that is closed.");
+        }
+
+        // Codes_SRS_HTTPSTRANSPORT_21_044: [The function shall reserve room for each packet of the batch and add it to the transport queue, in order.]
+        this.sendQueueLimiter.acquireBatch(batch, this.waitingList, this.callbackList);
+
+        // Codes_SRS_HTTPSTRANSPORT_21_037: [The function shall signal the send task that a message is waiting to be sent.]
+        IotHubSendTask task = this.sendTask;
+        if (task != null)
+        {
+            task.signal();
+        }
     }
 
     /**
@@ -209,7 +289,11 @@ public final class HttpsTransport implements IotHubTransport
             IotHubEventCallback callback = packet.getCallback();
             Object context = packet.getContext();
 
-            callback.execute(status, context);
+            // Codes_SRS_HTTPSTRANSPORT_21_042: [The function shall skip callback packets with no callback, such as those of messages replayed from the send journal.]
+            if (callback != null)
+            {
+                callback.execute(status, context);
+            }
         }
     }
 
@@ -277,14 +361,22 @@ public final class HttpsTransport implements IotHubTransport
      * Moves as many messages as can be sent in one HTTPS request from the
      * waiting list to the in-progress list. If a single message is moved to the
      * in-progress list, this indicates that the message is to be sent in the
-     * un-batched message format.
+     * un-batched message format. The messages of a batch given to
+     * {@link #addMessageBatch(List)} are moved on their own.
      */
     protected void moveWaitingListToInProgressList()
     {
         HttpsBatchMessage batch = new HttpsBatchMessage();
+        IotHubOutboundPacket first = this.waitingList.peek();
         while (!this.waitingList.isEmpty())
         {
             IotHubOutboundPacket packet = this.waitingList.peek();
+            // Codes_SRS_HTTPSTRANSPORT_21_045: [The function shall not mix the messages of a batch given to addMessageBatch with other messages in a request.]
+            if (first == null || packet == null || packet.getBatch() != first.getBatch())
+            {
+                break;
+            }
+
             try
             {
                 HttpsSingleMessage httpsMsg =
@@ -297,14 +389,21 @@ public final class HttpsTransport implements IotHubTransport
                 break;
             }
 
-            this.waitingList.remove();
-            this.inProgressList.add(packet);
+            // the packet may have been dropped by addMessage since it was
+            // peeked, in which case it is no longer ours to send.
+            if (this.waitingList.remove(packet))
+            {
+                this.inProgressList.add(packet);
+            }
         }
 
-        if (!this.waitingList.isEmpty() && batch.numMessages() <= 0)
+        if (batch.numMessages() <= 0)
         {
-            IotHubOutboundPacket packet = this.waitingList.remove();
-            this.inProgressList.add(packet);
+            IotHubOutboundPacket packet = this.waitingList.poll();
+            if (packet != null)
+            {
+                this.inProgressList.add(packet);
+            }
         }
     }
 
@@ -361,6 +460,8 @@ public final class HttpsTransport implements IotHubTransport
         while (!this.inProgressList.isEmpty())
         {
             IotHubOutboundPacket packet = this.inProgressList.remove();
+            // Codes_SRS_HTTPSTRANSPORT_21_039: [The function shall release the room held in the send queue by each message that the IoT Hub responded to.]
+            this.sendQueueLimiter.release(packet);
 
             IotHubEventCallback callback = packet.getCallback();
             if (callback != null)
@@ -3,14 +3,24 @@
 
 package com.microsoft.azure.sdk.iot.device.transport.mqtt;
 
+import com.microsoft.azure.sdk.iot.device.CustomLogger;
 import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubReceiveTask;
 import com.microsoft.azure.sdk.iot.device.transport.TransportUtils;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 import java.io.IOException;
 import java.security.InvalidParameterException;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 abstract public class Mqtt implements MqttCallback
 {
@@ -20,13 +30,45 @@ abstract public class Mqtt implements MqttCallback
     abstract void onReconnect() throws IOException;
     abstract void onReconnectComplete(boolean status) throws IOException;
 
+    /**
+     * The most messages held, per subscription, until they are received. A
+     * message arriving while its queue is full is dropped rather than wait for
+     * room, since paho delivers the acknowledgements of the published messages
+     * and runs the keepalive on the thread that hands over the arrived ones.
+     */
+    static final int MAX_RECEIVED_MESSAGES = 1024;
+
+    private static final CustomLogger logger = new CustomLogger(Mqtt.class);
+
+    /** The QoS of messages that may be lost on the way. */
+    protected static final int QOS_AT_MOST_ONCE = 0;
+
+    /** The QoS of messages sent again until they are acknowledged. */
+    protected static final int QOS_AT_LEAST_ONCE = 1;
+
+    /** The name of the thread which reconnects a lost connection. */
+    private static final String RECONNECT_THREAD_NAME = "azure-iot-sdk-mqtt-reconnect";
+
+    /** The states of the connection with the MQTT broker. */
+    enum ConnectionState
+    {
+        DISCONNECTED, CONNECTED, RECONNECTING
+    }
+
     /*
-     Variables which apply to all the concrete classes as well as to Mqtt and are to be instantiated only once
-     in lifetime.
+     Variables which hold the state of one MQTT connection. They are shared by the concrete classes
+     working over that connection, and by no other connection, so many connections can live in one process.
      */
-    private static MqttConnectionInfo info ;
-    protected static ConcurrentSkipListMap<String, byte[]> allReceivedMessages;
-    private static Object MQTT_LOCK;
+    private MqttConnectionInfo info;
+    /** The received messages of each subscription of the connection, by topic prefix, in arrival order. */
+    protected ConcurrentMap<String, BlockingQueue<Map.Entry<String, byte[]>>> allReceivedMessages;
+    private Object MQTT_LOCK;
+
+    /** The receive task to signal when a message arrives. */
+    private volatile IotHubReceiveTask receiveTask;
+
+    /** The listener told when a published message is acknowledged. */
+    private volatile MqttDeliveryListener deliveryListener;
 
     /*
       Inner class which holds the basic information related to Mqtt Client Async.
@@ -40,11 +82,23 @@ abstract public class Mqtt implements MqttCallback
         private static final int keepAliveInterval = 20;
         private static final int mqttVersion = 4;
         private static final boolean setCleanSession = false;
-        private static final int qos = 1;
+        private static final int qos = QOS_AT_LEAST_ONCE;
 
         // paho mqtt only supports 10 messages in flight at the same time
         private static final int maxInFlightCount = 10;
 
+        // the permits of the messages that may be published ahead of their acknowledgement
+        private Semaphore inFlightWindow = new Semaphore(maxInFlightCount);
+
+        // the state of the connection, which the reconnect supervisor moves on without the lock
+        private final AtomicReference<ConnectionState> state = new AtomicReference<>(ConnectionState.DISCONNECTED);
+
+        // the thread reconnecting the connection, if it was lost
+        private volatile Thread supervisor = null;
+
+        // the id of the last request the IoT Hub answers on the connection
+        private final AtomicInteger requestId = new AtomicInteger();
+
         MqttConnectionInfo(String serverURI, String clientId, String userName, String password) throws IOException
         {
             try
@@ -84,18 +138,136 @@ abstract public class Mqtt implements MqttCallback
     private void setMqttInfo(String serverURI, String clientId, String userName, String password) throws IOException
     {
         /*
-        **Codes_SRS_Mqtt_25_003: [**The constructor shall use the configuration to instantiate an instance of the inner class MqttConnectionInfo if not already created.**]**
+        **Codes_SRS_Mqtt_25_003: [**The constructor shall use the configuration to instantiate an instance of the inner class MqttConnectionInfo owned by this connection.**]**
+         */
+        this.info = new MqttConnectionInfo(serverURI, clientId, userName, password);
+        this.allReceivedMessages = new ConcurrentHashMap<String, BlockingQueue<Map.Entry<String, byte[]>>>();
+        this.MQTT_LOCK = new Object();
+    }
+
+    /**
+     * Returns the queue in which the messages arriving on topics starting
+     * with the given prefix are held, in arrival order, until they are received.
+     *
+     * @param topicPrefix the topic prefix of the subscription.
+     * @return the queue of the subscription.
+     */
+    protected BlockingQueue<Map.Entry<String, byte[]>> addReceiveQueue(String topicPrefix) throws IOException
+    {
+        if (this.allReceivedMessages == null)
+        {
+            throw new IOException("Mqtt client should be initialised atleast once before using it");
+        }
+
+        /*
+        **Codes_SRS_Mqtt_21_003: [**The function shall return the bounded queue of the subscription to the topic prefix, creating it if the connection has none.**]**
          */
+        BlockingQueue<Map.Entry<String, byte[]>> queue = new LinkedBlockingQueue<Map.Entry<String, byte[]>>(MAX_RECEIVED_MESSAGES);
+        BlockingQueue<Map.Entry<String, byte[]>> existing = this.allReceivedMessages.putIfAbsent(topicPrefix, queue);
+        return existing == null ? queue : existing;
+    }
+
+    /**
+     * Registers the receive task to be signalled whenever a message arrives.
+     *
+     * @param receiveTask the receive task to signal. Can be {@code null}.
+     */
+    void setReceiveTask(IotHubReceiveTask receiveTask)
+    {
         /*
-        ** Codes_SRS_Mqtt_25_004: [**If an instance of the inner class MqttConnectionInfo is already created than it shall return doing nothing.**]**
+        **Codes_SRS_Mqtt_21_004: [**The function shall save the receive task.**]**
          */
-        if (Mqtt.info == null)
+        this.receiveTask = receiveTask;
+    }
+
+    /**
+     * Signals the receive task once the given delay has passed, so that work
+     * waiting for a timeout is picked up even if no message arrives.
+     *
+     * @param delayMillis the delay, in milliseconds.
+     */
+    void signalReceiveTask(long delayMillis)
+    {
+        /*
+        **Codes_SRS_Mqtt_21_022: [**The function shall have the receive task signalled once the delay has passed, if a receive task is registered.**]**
+         */
+        IotHubReceiveTask task = this.receiveTask;
+        if (task != null)
+        {
+            task.signal(delayMillis);
+        }
+    }
+
+    /**
+     * Registers the listener told whenever a message published with a
+     * context is acknowledged.
+     *
+     * @param deliveryListener the listener. Can be {@code null}.
+     */
+    void setDeliveryListener(MqttDeliveryListener deliveryListener)
+    {
+        /*
+        **Codes_SRS_Mqtt_21_008: [**The function shall save the delivery listener.**]**
+         */
+        this.deliveryListener = deliveryListener;
+    }
+
+    /**
+     * Sets how many messages may be published ahead of their acknowledgement
+     * over the connection. Must be called before the connection is used.
+     *
+     * @param maxInFlight the in-flight window.
+     */
+    void setMaxInFlight(int maxInFlight) throws IOException
+    {
+        if (this.info == null)
         {
-            Mqtt.info = new MqttConnectionInfo(serverURI, clientId, userName, password);
-            Mqtt.allReceivedMessages = new ConcurrentSkipListMap<String, byte[]>();
-            Mqtt.MQTT_LOCK = new Object();
+            throw new IOException("Mqtt client should be initialised atleast once before using it");
         }
 
+        if (maxInFlight < 1 || maxInFlight > MqttConnectionInfo.maxInFlightCount)
+        {
+            /*
+            **Codes_SRS_Mqtt_21_009: [**If the window is less than 1 or greater than the 10 messages paho keeps in flight, the function shall throw an InvalidParameterException.**]**
+             */
+            throw new InvalidParameterException("In-flight window must be between 1 and " + MqttConnectionInfo.maxInFlightCount);
+        }
+
+        /*
+        **Codes_SRS_Mqtt_21_010: [**The function shall set the in-flight window of the connection.**]**
+         */
+        this.info.inFlightWindow = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Returns a request id not used before on the connection, which the IoT
+     * Hub answers the request with.
+     *
+     * @return the request id.
+     */
+    int nextRequestId() throws IOException
+    {
+        if (this.info == null)
+        {
+            throw new IOException("Mqtt client should be initialised atleast once before using it");
+        }
+
+        /*
+        **Codes_SRS_Mqtt_21_021: [**The function shall return a request id not returned before by any instance working over the same connection.**]**
+         */
+        return this.info.requestId.incrementAndGet();
+    }
+
+    /**
+     * Sets the properties carried by the topic of a received message on the
+     * message. Does nothing unless a concrete class knows the properties of
+     * its topics.
+     *
+     * @param topic the topic on which the message arrived.
+     * @param message the received message.
+     */
+    void parseProperties(String topic, Message message)
+    {
     }
 
 
@@ -109,11 +281,31 @@ abstract public class Mqtt implements MqttCallback
         /*
         ** Codes_SRS_Mqtt_25_001: [**The constructor shall instantiate MQTT lock for using base class.**]**
         */
-        if (Mqtt.MQTT_LOCK == null)
+        this.MQTT_LOCK = new Object();
+    }
+
+    /**
+     * Constructor to work over the mqtt broker connection of another instance.
+     *
+     * @param connection the instance whose mqtt broker connection is shared.
+     */
+
+    public Mqtt(Mqtt connection) throws IOException
+    {
+        if (connection == null)
         {
-            Mqtt.MQTT_LOCK = new Object();
+            /*
+            **Codes_SRS_Mqtt_21_002: [**If the given instance is null, the constructor shall throw InvalidParameterException.**]**
+             */
+            throw new InvalidParameterException("Mqtt connection cannot be null");
         }
 
+        /*
+        **Codes_SRS_Mqtt_21_001: [**The constructor shall share the MqttConnectionInfo, the received messages queue and the lock of the given instance, and of no other connection.**]**
+         */
+        this.info = connection.info;
+        this.allReceivedMessages = connection.allReceivedMessages;
+        this.MQTT_LOCK = connection.MQTT_LOCK;
     }
 
     /**
@@ -152,9 +344,9 @@ abstract public class Mqtt implements MqttCallback
             /*
             **Codes_SRS_Mqtt_25_045: [**The constructor throws IOException if MqttException is thrown and doesn't instantiate this instance.**]**
              */
-            Mqtt.info = null;
-            Mqtt.allReceivedMessages = null;
-            Mqtt.MQTT_LOCK = null;
+            this.info = null;
+            this.allReceivedMessages = null;
+            this.MQTT_LOCK = null;
             throw new IOException(e.getMessage());
         }
 
@@ -168,17 +360,11 @@ abstract public class Mqtt implements MqttCallback
     public void restartBaseMqtt()
     {
         /*
-            As this is abstract class, if we ever want to restart application
-            in the current scope to create a new instance of this base class,
-            we have to unset all its static variables.
-        */
-
-        /*
-        ** Codes_SRS_Mqtt_25_046: [**restartBaseMqtt shall unset all the static variables.**]**
+        ** Codes_SRS_Mqtt_25_046: [**restartBaseMqtt shall unset the connection state of this instance.**]**
          */
-        Mqtt.MQTT_LOCK = null;
-        Mqtt.allReceivedMessages = null;
-        Mqtt.info = null;
+        this.MQTT_LOCK = null;
+        this.allReceivedMessages = null;
+        this.info = null;
 
     }
 
@@ -189,11 +375,11 @@ abstract public class Mqtt implements MqttCallback
 
     protected void connect() throws IOException
     {
-        synchronized (Mqtt.MQTT_LOCK)
+        synchronized (this.MQTT_LOCK)
         {
             try
             {
-                if (Mqtt.info == null)
+                if (this.info == null)
                 {
                     /*
                     ** Codes_SRS_Mqtt_25_006: [**If the inner class MqttConnectionInfo has not been instantiated then the function shall throw IOException.**]**
@@ -204,14 +390,18 @@ abstract public class Mqtt implements MqttCallback
                 /*
                 **Codes_SRS_Mqtt_25_008: [**If the MQTT connection is already open, the function shall do nothing.**]**
                  */
-                if (!Mqtt.info.mqttAsyncClient.isConnected())
+                if (!this.info.mqttAsyncClient.isConnected())
                 {
                     /*
                     **Codes_SRS_Mqtt_25_005: [**The function shall establish an MQTT connection with an IoT Hub using the provided host name, user name, device ID, and sas token.**]**
                      */
-                    IMqttToken connectToken = Mqtt.info.mqttAsyncClient.connect(Mqtt.info.connectionOptions);
+                    IMqttToken connectToken = this.info.mqttAsyncClient.connect(this.info.connectionOptions);
                     connectToken.waitForCompletion();
                 }
+                /*
+                **Codes_SRS_Mqtt_21_020: [**Once the MQTT connection is open, the function shall set the state of the connection to connected.**]**
+                 */
+                this.info.state.set(ConnectionState.CONNECTED);
             }
             catch (MqttException e)
             {
@@ -231,22 +421,32 @@ abstract public class Mqtt implements MqttCallback
 
     protected void disconnect() throws IOException
     {
-        synchronized (Mqtt.MQTT_LOCK)
+        synchronized (this.MQTT_LOCK)
         {
+            /*
+            **Codes_SRS_Mqtt_21_017: [**The function shall stop the reconnect supervisor of the connection, if one is running.**]**
+             */
+            this.info.state.set(ConnectionState.DISCONNECTED);
+            Thread supervisor = this.info.supervisor;
+            if (supervisor != null)
+            {
+                supervisor.interrupt();
+            }
+
             try
             {
                 /*
                 **Codes_SRS_Mqtt_25_010: [**If the MQTT connection is closed, the function shall do nothing.**]**
                  */
-                if (Mqtt.info.mqttAsyncClient.isConnected())
+                if (this.info.mqttAsyncClient.isConnected())
                 {
                     /*
                     ** Codes_SRS_Mqtt_25_009: [**The function shall close the MQTT connection.**]**
                      */
-                    IMqttToken disconnectToken = Mqtt.info.mqttAsyncClient.disconnect();
+                    IMqttToken disconnectToken = this.info.mqttAsyncClient.disconnect();
                     disconnectToken.waitForCompletion();
                 }
-                Mqtt.info.mqttAsyncClient = null;
+                this.info.mqttAsyncClient = null;
             }
             catch (MqttException e)
             {
@@ -266,70 +466,115 @@ abstract public class Mqtt implements MqttCallback
      */
     protected void publish(String publishTopic, byte[] payload) throws IOException
     {
-        synchronized (Mqtt.MQTT_LOCK)
-        {
-            try
-            {
-                if (Mqtt.info == null)
-                {
-                    System.out.println("Mqtt client should be initialised atleast once before using it");
-                    throw new InvalidParameterException();
-                }
-
-                if (!Mqtt.info.mqttAsyncClient.isConnected())
-                {
-                    /*
-                    ** Codes_SRS_Mqtt_25_012: [**If the MQTT connection is closed, the function shall throw an IOException.**]**
-                     */
-                    throw new IOException("Cannot publish when mqtt client is disconnected");
-                }
+        this.publish(publishTopic, payload, null);
+    }
 
-                if (publishTopic == null || publishTopic.length() == 0 || payload == null)
-                {
-                    /*
-                    **Codes_SRS_Mqtt_25_013: [**If the either publishTopic is null or empty or if payload is null, the function shall throw an IOException.**]**
-                    */
-                    throw new IOException("Cannot publish on null or empty publish topic");
-                }
+    /**
+     * Method to publish to mqtt broker connection. Returns once the message
+     * is handed to the mqtt client; the delivery listener is told of its
+     * acknowledgement.
+     *
+     * @param publishTopic the topic to publish on mqtt broker connection.
+     * @param payload   the payload to publish on publishTopic of mqtt broker connection.
+     * @param context   the context handed to the delivery listener once the message is acknowledged. Can be {@code null}.
+     */
+    protected void publish(String publishTopic, byte[] payload, Object context) throws IOException
+    {
+        this.publish(publishTopic, payload, MqttConnectionInfo.qos, context);
+    }
 
-                while (Mqtt.info.mqttAsyncClient.getPendingDeliveryTokens().length >= Mqtt.info.maxInFlightCount)
-                {
-                    /*
-                    **Codes_SRS_Mqtt_25_048: [**publish shall check for pending publish tokens by calling getPendingDeliveryTokens.
-                    * And if there are pending tokens publish shall sleep until the number of pending tokens are less than 10 as per paho limitations**]**
-                    */
-                    Thread.sleep(10);
-                }
+    /**
+     * Method to publish to mqtt broker connection at the given QoS. Returns
+     * once the message is handed to the mqtt client; the delivery listener is
+     * told of its acknowledgement, or, at QoS 0, of it being written to the
+     * connection.
+     *
+     * @param publishTopic the topic to publish on mqtt broker connection.
+     * @param payload   the payload to publish on publishTopic of mqtt broker connection.
+     * @param qos       {@link #QOS_AT_MOST_ONCE} or {@link #QOS_AT_LEAST_ONCE}.
+     * @param context   the context handed to the delivery listener once the message is delivered. Can be {@code null}.
+     * @throws IllegalStateException if the in-flight window is full.
+     */
+    protected void publish(String publishTopic, byte[] payload, int qos, Object context) throws IOException
+    {
+        MqttConnectionInfo connectionInfo = this.info;
+        if (connectionInfo == null)
+        {
+            logger.LogError("Mqtt client should be initialised atleast once before using it, method name is publish ");
+            throw new InvalidParameterException();
+        }
 
-                MqttMessage mqttMessage = new MqttMessage(payload);
-                mqttMessage.setQos(Mqtt.info.qos);
+        if (!connectionInfo.mqttAsyncClient.isConnected())
+        {
+            /*
+            ** Codes_SRS_Mqtt_25_012: [**If the MQTT connection is closed, the function shall throw an IOException.**]**
+             */
+            throw new IOException("Cannot publish when mqtt client is disconnected");
+        }
 
-                /*
-                **Codes_SRS_Mqtt_25_014: [**The function shall publish message payload on the publishTopic specified to the IoT Hub given in the configuration.**]**
-                 */
+        if (publishTopic == null || publishTopic.length() == 0 || payload == null)
+        {
+            /*
+            **Codes_SRS_Mqtt_25_013: [**If the either publishTopic is null or empty or if payload is null, the function shall throw an IOException.**]**
+            */
+            throw new IOException("Cannot publish on null or empty publish topic");
+        }
 
-                IMqttDeliveryToken publishToken = Mqtt.info.mqttAsyncClient.publish(publishTopic, mqttMessage);
+        if (qos != QOS_AT_MOST_ONCE && qos != QOS_AT_LEAST_ONCE)
+        {
+            /*
+            **Codes_SRS_Mqtt_21_014: [**If the QoS is neither 0 nor 1, the function shall throw an IOException.**]**
+            */
+            throw new IOException("Cannot publish at QoS " + qos);
+        }
 
-            }
-            catch (MqttException e)
-            {
+        /*
+        A QoS 0 message holds its room in the window only until paho has written it, which is
+        when deliveryComplete is called for it, since paho counts it in flight until then.
+         */
+        Semaphore window = connectionInfo.inFlightWindow;
+        if (!window.tryAcquire())
+        {
+            /*
+            publish is called with the locks of the transport held, and on threads shared
+            with other clients, so it never waits for an acknowledgement; the caller
+            publishes again once an acknowledgement frees room in the window.
+             */
+            /*
+            **Codes_SRS_Mqtt_25_048: [**If as many messages as the in-flight window are waiting for their acknowledgement, publish shall throw an IllegalStateException at once, without waiting for an acknowledgement.**]**
+            */
+            throw new IllegalStateException("Cannot publish while the in-flight window is full");
+        }
 
-                /*
-                **Codes_SRS_Mqtt_25_047: [**If the Mqtt Client Async throws MqttException, the function shall throw an IOException with the message.**]**
-                 */
-                throw new IOException("Unable to publish message on topic : " + publishTopic + " because " + e.getMessage());
-            }
-            catch (InterruptedException e)
-            {
-                throw new IOException("Interrupted, Unable to publish message on topic : " + publishTopic);
-            }
-            catch (Exception e)
-            {
-                throw new IOException("Unable to publish message on topic : " + publishTopic + " " + e.getCause() + e.getMessage());
-            }
+        try
+        {
+            MqttMessage mqttMessage = new MqttMessage(payload);
+            /*
+            **Codes_SRS_Mqtt_21_015: [**The function shall publish the message at the given QoS, which is 1 unless the caller asks for QoS 0.**]**
+             */
+            mqttMessage.setQos(qos);
 
+            /*
+            **Codes_SRS_Mqtt_25_014: [**The function shall publish message payload on the publishTopic specified to the IoT Hub given in the configuration.**]**
+             */
+            /*
+            **Codes_SRS_Mqtt_21_011: [**The function shall publish the message with the context, and return without waiting for its acknowledgement.**]**
+             */
+            connectionInfo.mqttAsyncClient.publish(publishTopic, mqttMessage, new InFlightContext(window, context), null);
+        }
+        catch (MqttException e)
+        {
+            window.release();
+            /*
+            **Codes_SRS_Mqtt_25_047: [**If the Mqtt Client Async throws MqttException, the function shall throw an IOException with the message.**]**
+             */
+            throw new IOException("Unable to publish message on topic : " + publishTopic + " because " + e.getMessage());
+        }
+        catch (Exception e)
+        {
+            window.release();
+            throw new IOException("Unable to publish message on topic : " + publishTopic + " " + e.getCause() + e.getMessage());
         }
-
     }
 
     /**
@@ -339,11 +584,11 @@ abstract public class Mqtt implements MqttCallback
      */
     protected void subscribe(String topic) throws IOException
     {
-        synchronized (Mqtt.MQTT_LOCK)
+        synchronized (this.MQTT_LOCK)
         {
             try
             {
-                if (Mqtt.info == null)
+                if (this.info == null)
                 {
                     throw new IOException("Mqtt client should be initialised atleast once before using it");
                 }
@@ -355,7 +600,7 @@ abstract public class Mqtt implements MqttCallback
                     throw new InvalidParameterException("Topic cannot be null");
 
                 }
-                else if (!Mqtt.info.mqttAsyncClient.isConnected())
+                else if (!this.info.mqttAsyncClient.isConnected())
                 {
                     /*
                     **Codes_SRS_Mqtt_25_015: [**If the MQTT connection is closed, the function shall throw an IOexception with message.**]**
@@ -365,7 +610,7 @@ abstract public class Mqtt implements MqttCallback
                 /*
                 **Codes_SRS_Mqtt_25_017: [**The function shall subscribe to subscribeTopic specified to the IoT Hub given in the configuration.**]**
                  */
-                IMqttToken subToken = Mqtt.info.mqttAsyncClient.subscribe(topic, Mqtt.info.qos);
+                IMqttToken subToken = this.info.mqttAsyncClient.subscribe(topic, this.info.qos);
                 subToken.waitForCompletion();
             }
             catch (MqttException e)
@@ -388,11 +633,11 @@ abstract public class Mqtt implements MqttCallback
 
     protected void unsubscribe(String topic) throws IOException
     {
-        synchronized (Mqtt.MQTT_LOCK)
+        synchronized (this.MQTT_LOCK)
         {
             try
             {
-                if (!Mqtt.info.mqttAsyncClient.isConnected())
+                if (!this.info.mqttAsyncClient.isConnected())
                 {
                     /*
                     **Codes_SRS_Mqtt_25_018: [**If the MQTT connection is closed, the function shall throw an IOException with message.**]**
@@ -403,7 +648,7 @@ abstract public class Mqtt implements MqttCallback
                 /*
                 **Codes_SRS_Mqtt_25_020: [**The function shall unsubscribe from subscribeTopic specified to the IoT Hub given in the configuration.**]**
                  */
-                IMqttToken subToken = Mqtt.info.mqttAsyncClient.unsubscribe(topic);
+                IMqttToken subToken = this.info.mqttAsyncClient.unsubscribe(topic);
                 subToken.waitForCompletion();
 
             }
@@ -423,53 +668,72 @@ abstract public class Mqtt implements MqttCallback
      */
     public Message receive() throws IOException
     {
-        synchronized (Mqtt.MQTT_LOCK)
+        /*
+        The received messages queues are thread safe and have a single consumer,
+        so receiving does not wait on the lock held by publish and subscribe.
+         */
+        if (this.info == null)
+        {
+            throw new InvalidParameterException("Mqtt client should be initialised atleast once before using it");
+        }
+        else if (!this.info.mqttAsyncClient.isConnected())
+        {
+            throw new IOException("Cannot receive messages when mqtt client is disconnected");
+        }
+        /*
+        **Codes_SRS_Mqtt_25_021: [**This method shall call parseTopic to parse the topic from the recevived Messages queue corresponding to the messaging client's operation.**]**
+         */
+        String topic = parseTopic();
+
+        if (topic != null)
         {
-            if (Mqtt.info == null)
-            {
-                throw new InvalidParameterException("Mqtt client should be initialised atleast once before using it");
-            }
-            else if (!Mqtt.info.mqttAsyncClient.isConnected())
-            {
-                throw new IOException("Cannot receive messages when mqtt client is disconnected");
-            }
             /*
-            **Codes_SRS_Mqtt_25_021: [**This method shall call parseTopic to parse the topic from the recevived Messages queue corresponding to the messaging client's operation.**]**
+             **Codes_SRS_Mqtt_25_023: [**This method shall call parsePayload to get the message payload from the recevived Messages queue corresponding to the messaging client's operation.**]**
              */
-            String topic = parseTopic();
-
-            if (topic != null)
+            byte[] data = parsePayload(topic);
+            if (data != null)
             {
                 /*
-                 **Codes_SRS_Mqtt_25_023: [**This method shall call parsePayload to get the message payload from the recevived Messages queue corresponding to the messaging client's operation.**]**
+                **Codes_SRS_Mqtt_25_024: [**This method shall construct new Message with the bytes obtained from parsePayload and return the message.**]**
                  */
-                byte[] data = parsePayload(topic);
-                if (data != null)
-                {
-                    /*
-                    **Codes_SRS_Mqtt_25_024: [**This method shall construct new Message with the bytes obtained from parsePayload and return the message.**]**
-                     */
-                    return new Message(data);
-                }
-                else
-                {
-                    /*
-                    **Codes_SRS_Mqtt_25_025: [**If the call to parsePayload returns null when topic is non-null then this method will throw IOException**]**
-                     */
-                    throw new IOException("Data cannot be null when topic is non-null");
-                }
-
+                Message message = new Message(data);
+                /*
+                **Codes_SRS_Mqtt_21_005: [**This method shall call parseProperties to set the properties carried by the topic on the message.**]**
+                 */
+                parseProperties(topic, message);
+                return message;
             }
-
             else
             {
                 /*
-                **Codes_SRS_Mqtt_25_022: [**If the call parseTopic returns null or empty string then this method shall do nothing and return null**]**
+                **Codes_SRS_Mqtt_25_025: [**If the call to parsePayload returns null when topic is non-null then this method will throw IOException**]**
                  */
-                return null;
+                throw new IOException("Data cannot be null when topic is non-null");
             }
 
         }
+
+        else
+        {
+            /*
+            **Codes_SRS_Mqtt_25_022: [**If the call parseTopic returns null or empty string then this method shall do nothing and return null**]**
+             */
+            return null;
+        }
+    }
+
+    /**
+     * Tells whether the connection was lost and is being reconnected.
+     *
+     * @return {@code true} if the connection is being reconnected.
+     */
+    boolean isReconnecting()
+    {
+        /*
+        **Codes_SRS_Mqtt_21_019: [**The function shall return true if the connection was lost and the reconnect supervisor is reconnecting it, and false otherwise.**]**
+         */
+        MqttConnectionInfo connectionInfo = this.info;
+        return connectionInfo != null && connectionInfo.state.get() == ConnectionState.RECONNECTING;
     }
 
     /**
@@ -479,74 +743,99 @@ abstract public class Mqtt implements MqttCallback
     @Override
     public void connectionLost(Throwable throwable)
     {
-        synchronized (Mqtt.MQTT_LOCK) {
+        final MqttConnectionInfo connectionInfo = this.info;
+        if (connectionInfo == null || connectionInfo.mqttAsyncClient == null)
+        {
+            logger.LogError("Initialise before using this.., method name is connectionLost ");
+            return;
+        }
+
+        /*
+        **Codes_SRS_Mqtt_21_016: [**The function shall reconnect on a supervisor thread, started once per loss of an open connection, and return without waiting on the lock of the connection.**]**
+         */
+        if (!connectionInfo.state.compareAndSet(ConnectionState.CONNECTED, ConnectionState.RECONNECTING))
+        {
+            return;
+        }
 
-            if (Mqtt.info != null && Mqtt.info.mqttAsyncClient != null)
+        Thread supervisor = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
             {
-                try {
-                    /*
-                    **Codes_SRS_Mqtt_25_026: [**The function shall notify all its concrete classes by calling abstract method onReconnect at the entry of the function**]**
-                     */
-                    onReconnect();
-                    int currentReconnectionAttempt = 0;
-                    while (!Mqtt.info.mqttAsyncClient.isConnected())
+                reconnect(connectionInfo);
+            }
+        }, RECONNECT_THREAD_NAME);
+        supervisor.setDaemon(true);
+        connectionInfo.supervisor = supervisor;
+        supervisor.start();
+    }
+
+    /**
+     * Reconnects a lost connection until it succeeds or the connection is
+     * closed. The lock of the connection is held by each attempt only, and
+     * not while waiting for the next one.
+     *
+     * @param connectionInfo the connection to reconnect.
+     */
+    private void reconnect(MqttConnectionInfo connectionInfo)
+    {
+        try
+        {
+            /*
+            **Codes_SRS_Mqtt_25_026: [**The function shall notify all its concrete classes by calling abstract method onReconnect at the entry of the function**]**
+             */
+            onReconnect();
+            int currentReconnectionAttempt = 0;
+            while (connectionInfo.state.get() == ConnectionState.RECONNECTING)
+            {
+                logger.LogInfo("Lost connection to the server. Reconnecting %s time, method name is reconnect ", currentReconnectionAttempt);
+                currentReconnectionAttempt++;
+                try
+                {
+                    synchronized (this.MQTT_LOCK)
                     {
-                        System.out.println("Lost connection to the server. Reconnecting " + currentReconnectionAttempt + " time.");
-                        try
+                        if (this.info == connectionInfo && connectionInfo.state.get() == ConnectionState.RECONNECTING)
                         {
-                            currentReconnectionAttempt++;
                             connect();
-
-                        }
-                        catch (Exception e)
-                        {
-                            try
-                            {
-                                /*
-                                Codes_SRS_Mqtt_25_027: [**The function shall attempt to reconnect to the IoTHub in a loop with exponential backoff until it succeeds**]**
-                                 */
-                                /*
-                                **Codes_SRS_Mqtt_25_028: [**The maximum wait interval until a reconnect is attempted shall be 60 seconds.**]**
-                                 */
-                                Thread.sleep(TransportUtils.generateSleepInterval(currentReconnectionAttempt));
-                            }
-                            catch (InterruptedException ie)
-                            {
-                                // do nothing and continue trying...
-                            }
                         }
                     }
-                    /*
-                    **Codes_SRS_Mqtt_25_029: [**The function shall notify all its concrete classes by calling abstract method onReconnectComplete at the exit of the function**]**
-                     */
-                    onReconnectComplete(true);
                 }
-                catch (IOException e)
+                catch (Exception e)
                 {
-
                     try
                     {
                         /*
-                        **Codes_SRS_Mqtt_25_029: [**The function shall notify all its concrete classes by calling abstract method onReconnectComplete at the exit of the function**]**
+                        Codes_SRS_Mqtt_25_027: [**The function shall attempt to reconnect to the IoTHub in a loop with exponential backoff until it succeeds**]**
+                         */
+                        /*
+                        **Codes_SRS_Mqtt_25_028: [**The maximum wait interval until a reconnect is attempted shall be 60 seconds.**]**
                          */
-                        onReconnectComplete(false);
+                        Thread.sleep(TransportUtils.generateJitteredSleepInterval(currentReconnectionAttempt));
                     }
-                    catch (IOException ioe)
+                    catch (InterruptedException ie)
                     {
-
-
+                        // interrupted by disconnect, which moved the connection on from reconnecting
                     }
-
-
                 }
             }
-            else
+
+            /*
+            **Codes_SRS_Mqtt_25_029: [**The function shall notify all its concrete classes by calling abstract method onReconnectComplete at the exit of the function**]**
+             */
+            onReconnectComplete(connectionInfo.state.get() == ConnectionState.CONNECTED);
+        }
+        catch (IOException e)
+        {
+            logger.LogError("Could not reconnect to the server because %s, method name is reconnect ", e.getMessage());
+        }
+        finally
+        {
+            if (connectionInfo.supervisor == Thread.currentThread())
             {
-                System.out.println("Initialise before using this..");
+                connectionInfo.supervisor = null;
             }
-
         }
-
     }
 
     /**
@@ -558,14 +847,41 @@ abstract public class Mqtt implements MqttCallback
     @Override
     public void messageArrived(String topic, MqttMessage mqttMessage)
     {
-        synchronized (Mqtt.MQTT_LOCK)
+        ConcurrentMap<String, BlockingQueue<Map.Entry<String, byte[]>>> receivedMessages = this.allReceivedMessages;
+        if (receivedMessages == null || topic == null)
         {
-            /*
-            **Codes_SRS_Mqtt_25_030: [**The payload of the message and the topic is added to the received messages queue .**]**
-             */
-            Mqtt.allReceivedMessages.put(topic, mqttMessage.getPayload());
+            return;
         }
 
+        for (Map.Entry<String, BlockingQueue<Map.Entry<String, byte[]>>> subscription : receivedMessages.entrySet())
+        {
+            if (topic.startsWith(subscription.getKey()))
+            {
+                /*
+                **Codes_SRS_Mqtt_25_030: [**The payload of the message and the topic is added to the received messages queue .**]**
+                 */
+                /*
+                **Codes_SRS_Mqtt_21_006: [**The message shall be added at the end of the queue of the subscription whose topic prefix starts its topic. If that queue is full, the function shall drop the message and log it, rather than block the thread paho delivers the acknowledgements on.**]**
+                 */
+                if (!subscription.getValue().offer(new AbstractMap.SimpleImmutableEntry<String, byte[]>(topic, mqttMessage.getPayload())))
+                {
+                    logger.LogWarn("Dropping a message that arrived on %s, since %s messages are waiting to be received on it, method name is messageArrived ",
+                            topic, MAX_RECEIVED_MESSAGES);
+                }
+
+                /*
+                **Codes_SRS_Mqtt_21_007: [**The function shall signal the receive task, if one is registered, once the message is queued.**]**
+                 */
+                IotHubReceiveTask task = this.receiveTask;
+                if (task != null)
+                {
+                    task.signal();
+                }
+                return;
+            }
+        }
+
+        logger.LogWarn("Dropping a message that arrived on %s, which has no subscription, method name is messageArrived ", topic);
     }
 
     /**
@@ -576,7 +892,42 @@ abstract public class Mqtt implements MqttCallback
     @Override
     public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken)
     {
+        Object userContext = iMqttDeliveryToken == null ? null : iMqttDeliveryToken.getUserContext();
+        if (!(userContext instanceof InFlightContext))
+        {
+            return;
+        }
+
+        /*
+        **Codes_SRS_Mqtt_21_012: [**The function shall give the message its room in the in-flight window back.**]**
+         */
+        InFlightContext inFlight = (InFlightContext) userContext;
+        inFlight.window.release();
+
+        /*
+        **Codes_SRS_Mqtt_21_013: [**The function shall tell the delivery listener, if one is registered, that the message published with the context was acknowledged.**]**
+         */
+        MqttDeliveryListener listener = this.deliveryListener;
+        if (listener != null && inFlight.context != null)
+        {
+            listener.messageSent(inFlight.context);
+        }
+    }
+
+    /*
+      The context of a published message, which tells the acknowledgement of the message
+      which window to give its room back to, and which context to hand to the delivery listener.
+     */
+    private static final class InFlightContext
+    {
+        private final Semaphore window;
+        private final Object context;
 
+        private InFlightContext(Semaphore window, Object context)
+        {
+            this.window = window;
+            this.context = context;
+        }
     }
 
 }
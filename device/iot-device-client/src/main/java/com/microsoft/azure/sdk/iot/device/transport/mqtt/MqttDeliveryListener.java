@@ -0,0 +1,16 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device.transport.mqtt;
+
+/**
+ * Told when the IoT Hub acknowledges a message published over MQTT.
+ */
+public interface MqttDeliveryListener
+{
+    /**
+     * Method executed when a published message was acknowledged by the IoT Hub.
+     * @param context The context the message was published with.
+     */
+    void messageSent(Object context);
+}
@@ -3,12 +3,15 @@
 
 package com.microsoft.azure.sdk.iot.device.transport.mqtt;
 
+import com.microsoft.azure.sdk.iot.device.CustomLogger;
 import com.microsoft.azure.sdk.iot.device.Message;
 
 import java.io.IOException;
 
 public class MqttDeviceMethods extends Mqtt{
 
+    private static final CustomLogger logger = new CustomLogger(MqttDeviceMethods.class);
+
     @Override
     String parseTopic()  {
         return null;
@@ -28,7 +31,7 @@ public class MqttDeviceMethods extends Mqtt{
     @Override
     public void onReconnect() throws IOException
     {
-        System.out.println("On reconnect in Device Methods");
+        logger.LogInfo("On reconnect in Device Methods, method name is onReconnect ");
     }
 
     @Override
@@ -36,8 +39,8 @@ public class MqttDeviceMethods extends Mqtt{
 
     }
 
-    public MqttDeviceMethods() throws IOException
+    public MqttDeviceMethods(Mqtt connection) throws IOException
     {
-        super();
+        super(connection);
     }
 }
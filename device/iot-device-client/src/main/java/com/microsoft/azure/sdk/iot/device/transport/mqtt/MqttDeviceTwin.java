@@ -3,20 +3,175 @@
 
 package com.microsoft.azure.sdk.iot.device.transport.mqtt;
 
+import com.microsoft.azure.sdk.iot.device.CustomLogger;
+import com.microsoft.azure.sdk.iot.device.Message;
+
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 
  abstract public class MqttDeviceTwin extends Mqtt {
 
-    public MqttDeviceTwin() throws IOException
+    /** The prefix of the topics the IoT Hub answers twin requests on. */
+    static final String TWIN_RESPONSE_TOPIC = "$iothub/twin/res/";
+    /** The prefix of the topics the IoT Hub sends desired property updates on. */
+    static final String TWIN_DESIRED_UPDATE_TOPIC = "$iothub/twin/PATCH/properties/desired/";
+    /** The topic reported property patches are published on, followed by the request id. */
+    static final String TWIN_REPORTED_PATCH_TOPIC = "$iothub/twin/PATCH/properties/reported/";
+    /** The topic the full twin is requested on, followed by the request id. */
+    static final String TWIN_GET_TOPIC = "$iothub/twin/GET/";
+    /** The name of the version of a twin document. */
+    static final String VERSION = "$version";
+
+    private static final String SUBSCRIBE_WILDCARD = "#";
+    private static final String REQUEST_ID = "?$rid=";
+    private static final char PROPERTY_SEPARATOR = '&';
+
+    /** The messages received on the topic of this client, in arrival order. */
+    private BlockingQueue<Map.Entry<String, byte[]>> receivedMessages;
+    private String subscribeTopic;
+
+    private static final CustomLogger logger = new CustomLogger(MqttDeviceTwin.class);
+
+    public MqttDeviceTwin(Mqtt connection) throws IOException
+    {
+        super(connection);
+
+    }
+
+    /**
+     * Holds the messages arriving on topics starting with the given prefix
+     * in the received messages queue of this client.
+     *
+     * @param topicPrefix the topic prefix this client receives on.
+     */
+    void receiveOn(String topicPrefix) throws IOException
+    {
+        this.subscribeTopic = topicPrefix + SUBSCRIBE_WILDCARD;
+        this.receivedMessages = this.addReceiveQueue(topicPrefix);
+    }
+
+    /**
+     * Subscribes to the topic this client receives on, if any.
+     */
+    public void start() throws IOException
+    {
+        if (this.subscribeTopic != null)
+        {
+            this.subscribe(this.subscribeTopic);
+        }
+    }
+
+    /**
+     * Builds the topic of a twin request.
+     *
+     * @param topic the topic of the request.
+     * @param requestId the id the IoT Hub answers the request with.
+     * @return the topic followed by the request id.
+     */
+    static String requestTopic(String topic, int requestId)
+    {
+        return topic + REQUEST_ID + requestId;
+    }
+
+    /**
+     * Parses the request id out of the topic of a twin response.
+     *
+     * @param topic the topic of the response.
+     * @return the request id, or {@code null} if the topic has none.
+     */
+    static String parseRequestId(String topic)
+    {
+        int start = topic.indexOf(REQUEST_ID);
+        if (start < 0)
+        {
+            return null;
+        }
+
+        start += REQUEST_ID.length();
+        int end = topic.indexOf(PROPERTY_SEPARATOR, start);
+        return end < 0 ? topic.substring(start) : topic.substring(start, end);
+    }
+
+    /**
+     * Parses the status out of the topic of a twin response.
+     *
+     * @param topic the topic of the response.
+     * @return the status, or -1 if the topic has none.
+     */
+    static int parseStatus(String topic)
+    {
+        int start = TWIN_RESPONSE_TOPIC.length();
+        int end = topic.indexOf('/', start);
+        try
+        {
+            return Integer.parseInt(end < 0 ? topic.substring(start) : topic.substring(start, end));
+        }
+        catch (NumberFormatException | IndexOutOfBoundsException e)
+        {
+            return -1;
+        }
+    }
+
+    @Override
+    String parseTopic() throws IOException
     {
-        super();
+        if (this.receivedMessages == null)
+        {
+            return null;
+        }
 
+        Map.Entry<String, byte[]> next = this.receivedMessages.peek();
+        return next == null ? null : next.getKey();
+    }
+
+    @Override
+    byte[] parsePayload(String topic) throws IOException
+    {
+        if (topic == null || this.receivedMessages == null)
+        {
+            return null;
+        }
+
+        Map.Entry<String, byte[]> next = this.receivedMessages.peek();
+        if (next == null || !next.getKey().equals(topic))
+        {
+            throw new IOException("Topic is should be present in received queue at this point");
+        }
+        return this.receivedMessages.poll().getValue();
+    }
+
+    /**
+     * Handles every message received on the topic of this client. Twin
+     * messages are not handed to the application as messages.
+     *
+     * @return {@code null}.
+     */
+    @Override
+    public Message receive() throws IOException
+    {
+        String topic;
+        while ((topic = parseTopic()) != null)
+        {
+            onMessage(topic, parsePayload(topic));
+        }
+        return null;
+    }
+
+    /**
+     * Handles a message received on the topic of this client.
+     *
+     * @param topic the topic the message arrived on.
+     * @param payload the payload of the message.
+     */
+    void onMessage(String topic, byte[] payload) throws IOException
+    {
     }
 
     @Override
     public void onReconnect() throws IOException
     {
-        System.out.println("On reconnect in Device Twin");
+        logger.LogInfo("On reconnect in Device Twin, method name is onReconnect ");
     }
 
     @Override
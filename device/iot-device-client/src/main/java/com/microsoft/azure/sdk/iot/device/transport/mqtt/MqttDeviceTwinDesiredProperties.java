@@ -3,31 +3,364 @@
 
 package com.microsoft.azure.sdk.iot.device.transport.mqtt;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.microsoft.azure.sdk.iot.device.CustomLogger;
 import com.microsoft.azure.sdk.iot.device.Message;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Keeps the desired properties of the device twin. The full twin is
+ * requested once, and again after a delay if the IoT Hub turns the request
+ * down; the updates that follow are applied to the document in memory.
+ */
 public class MqttDeviceTwinDesiredProperties extends MqttDeviceTwin{
 
-    public MqttDeviceTwinDesiredProperties() throws IOException
+    private static final int STATUS_OK = 200;
+    private static final int STATUS_NO_CONTENT = 204;
+    private static final String DESIRED = "desired";
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+    /** The delay before the full twin is requested again after the first failure. */
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+    /** The longest delay before the full twin is requested again. */
+    private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+    /**
+     * The most updates kept while the full twin is being loaded. Past it the
+     * updates are dropped and the full twin is requested again, since the
+     * twin read after them holds them.
+     */
+    static final int MAX_EARLY_PATCHES = 128;
+
+    private static final CustomLogger logger = new CustomLogger(MqttDeviceTwinDesiredProperties.class);
+
+    private final JsonParser parser = new JsonParser();
+
+    /** The desired properties, guarded by itself. */
+    private final JsonObject desired = new JsonObject();
+    /** The version of the desired properties, or -1 until the full twin is loaded. */
+    private long version = -1;
+    /** The updates arrived before the full twin was loaded. */
+    private final List<JsonObject> earlyPatches = new ArrayList<>();
+    /** The id of the request for the full twin in flight, or {@code null} if none is. */
+    private String getRequestId;
+    /** The time at which the full twin is requested again, or 0 if it is not waiting to be. */
+    private long retryAt;
+    /** The delay before the full twin is requested again after the next failure. */
+    private long retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+
+    public MqttDeviceTwinDesiredProperties(Mqtt connection) throws IOException
     {
-        super();
+        super(connection);
+        /*
+        **Codes_SRS_MqttDeviceTwinDesiredProperties_21_001: [**The constructor shall hold the twin responses in their own queue.**]**
+         */
+        this.receiveOn(TWIN_RESPONSE_TOPIC);
     }
+
+    /**
+     * Subscribes to the twin responses, and requests the full twin once.
+     */
     @Override
-    String parseTopic()  throws IOException
+    public void start() throws IOException
     {
-        return null;
+        super.start();
+
+        /*
+        **Codes_SRS_MqttDeviceTwinDesiredProperties_21_002: [**start shall subscribe to the twin responses, and request the full twin.**]**
+         */
+        this.requestTwin();
     }
 
+    /**
+     * Handles the twin responses received, and requests the full twin again
+     * if the delay after a failed request has passed.
+     *
+     * @return {@code null}.
+     */
     @Override
-    byte[] parsePayload(String topic) throws IOException {
+    public Message receive() throws IOException
+    {
+        super.receive();
+
+        boolean retry;
+        synchronized (this.desired)
+        {
+            /*
+            **Codes_SRS_MqttDeviceTwinDesiredProperties_21_010: [**Once the delay after a failed request has passed, receive shall request the full twin again.**]**
+             */
+            retry = this.retryAt != 0 && System.currentTimeMillis() >= this.retryAt;
+        }
+        if (retry)
+        {
+            this.requestTwin();
+        }
         return null;
     }
 
     @Override
-    public Message receive() throws  IOException{
-        return null;
+    void onMessage(String topic, byte[] payload) throws IOException
+    {
+        int status = parseStatus(topic);
+        String requestId = parseRequestId(topic);
+        if (requestId != null && requestId.equals(this.currentRequestId()))
+        {
+            JsonObject document = null;
+            if (status == STATUS_OK)
+            {
+                try
+                {
+                    document = this.parseObject(payload);
+                }
+                catch (IOException e)
+                {
+                    logger.LogWarn("%s, method name is onMessage ", e.getMessage());
+                }
+            }
+
+            if (document == null)
+            {
+                /*
+                **Codes_SRS_MqttDeviceTwinDesiredProperties_21_004: [**If the full twin could not be read, the function shall request it again once a delay has passed, the delay doubling with each failure up to a minute.**]**
+                 */
+                logger.LogWarn("Unable to get the device twin, status %s, method name is onMessage ", status);
+                this.retryLater();
+                return;
+            }
+
+            /*
+            **Codes_SRS_MqttDeviceTwinDesiredProperties_21_003: [**The answer to the request for the full twin shall be loaded as the desired properties.**]**
+             */
+            this.load(document.getAsJsonObject(DESIRED));
+        }
+        else if (status != STATUS_OK && status != STATUS_NO_CONTENT)
+        {
+            /*
+            **Codes_SRS_MqttDeviceTwinDesiredProperties_21_005: [**The function shall log any other twin request the IoT Hub turned down.**]**
+             */
+            logger.LogWarn("Device twin request %s failed with status %s, method name is onMessage ", requestId, status);
+        }
+    }
+
+    /**
+     * Requests the full twin. If the request cannot be published, it is
+     * made again once a delay has passed.
+     */
+    private void requestTwin()
+    {
+        try
+        {
+            int requestId = this.nextRequestId();
+            synchronized (this.desired)
+            {
+                this.getRequestId = String.valueOf(requestId);
+                this.retryAt = 0;
+            }
+            this.publish(requestTopic(TWIN_GET_TOPIC, requestId), EMPTY_PAYLOAD);
+        }
+        catch (IOException | IllegalStateException e)
+        {
+            logger.LogWarn("Unable to request the device twin because %s, method name is requestTwin ", e.getMessage());
+            this.retryLater();
+        }
+    }
+
+    /**
+     * Forgets the request for the full twin in flight, and has the full twin
+     * requested again once a delay has passed. The delay doubles with each
+     * failure, up to {@code MAX_RETRY_DELAY_MILLIS}.
+     */
+    private void retryLater()
+    {
+        long delay;
+        synchronized (this.desired)
+        {
+            delay = this.retryDelayMillis;
+            this.getRequestId = null;
+            this.retryAt = System.currentTimeMillis() + delay;
+            this.retryDelayMillis = Math.min(delay * 2, MAX_RETRY_DELAY_MILLIS);
+        }
+        this.signalReceiveTask(delay);
+    }
+
+    private String currentRequestId()
+    {
+        synchronized (this.desired)
+        {
+            return this.getRequestId;
+        }
     }
 
+    /**
+     * Loads the desired properties of the full twin, and applies the updates
+     * that arrived before it and are newer than it.
+     *
+     * @param document the desired properties of the full twin.
+     */
+    private void load(JsonObject document)
+    {
+        if (document == null)
+        {
+            document = new JsonObject();
+        }
+
+        synchronized (this.desired)
+        {
+            for (Map.Entry<String, JsonElement> property : new ArrayList<>(this.desired.entrySet()))
+            {
+                this.desired.remove(property.getKey());
+            }
+            merge(this.desired, document);
+            this.desired.remove(VERSION);
+            this.version = versionOf(document);
+            this.getRequestId = null;
+            this.retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+
+            for (JsonObject patch : this.earlyPatches)
+            {
+                this.apply(patch);
+            }
+            this.earlyPatches.clear();
+        }
+    }
+
+    /**
+     * Applies an update of the desired properties to the document in memory,
+     * unless the document already holds it.
+     *
+     * @param patch the update of the desired properties.
+     */
+    void applyPatch(JsonObject patch)
+    {
+        boolean requestAgain = false;
+        synchronized (this.desired)
+        {
+            if (this.version < 0)
+            {
+                if (this.earlyPatches.size() >= MAX_EARLY_PATCHES)
+                {
+                    /*
+                    **Codes_SRS_MqttDeviceTwinDesiredProperties_21_011: [**If MAX_EARLY_PATCHES updates arrived before the full twin was loaded, they shall be dropped, and the full twin requested again instead of waiting for the answer to the request in flight.**]**
+                     */
+                    this.earlyPatches.clear();
+                    this.getRequestId = null;
+                    if (this.retryAt == 0)
+                    {
+                        this.retryAt = System.currentTimeMillis();
+                        requestAgain = true;
+                    }
+                }
+
+                /*
+                **Codes_SRS_MqttDeviceTwinDesiredProperties_21_007: [**An update arrived before the full twin was loaded shall be applied once it is loaded, if it is newer than the full twin.**]**
+                 */
+                this.earlyPatches.add(patch);
+            }
+            else
+            {
+                this.apply(patch);
+            }
+        }
+
+        if (requestAgain)
+        {
+            this.signalReceiveTask(0);
+        }
+    }
+
+    private void apply(JsonObject patch)
+    {
+        long patchVersion = versionOf(patch);
+        if (patchVersion >= 0 && patchVersion <= this.version)
+        {
+            /*
+            **Codes_SRS_MqttDeviceTwinDesiredProperties_21_008: [**An update whose version is not newer than the document shall be dropped.**]**
+             */
+            return;
+        }
+
+        /*
+        **Codes_SRS_MqttDeviceTwinDesiredProperties_21_006: [**An update shall be merged into the document in memory: a null property is removed, an object is merged into the object it replaces, and any other value replaces the old one.**]**
+         */
+        merge(this.desired, patch);
+        this.desired.remove(VERSION);
+        if (patchVersion >= 0)
+        {
+            this.version = patchVersion;
+        }
+    }
+
+    /**
+     * Returns a copy of the desired properties, without their version.
+     *
+     * @return the desired properties, or {@code null} until the full twin is loaded.
+     */
+    public JsonObject getDesiredProperties()
+    {
+        synchronized (this.desired)
+        {
+            /*
+            **Codes_SRS_MqttDeviceTwinDesiredProperties_21_009: [**The function shall return a copy of the desired properties without their version, or null until the full twin is loaded.**]**
+             */
+            return this.version < 0 ? null : this.parser.parse(this.desired.toString()).getAsJsonObject();
+        }
+    }
+
+    /**
+     * Parses a JSON object.
+     *
+     * @param payload the UTF-8 JSON text.
+     * @return the object.
+     */
+    JsonObject parseObject(byte[] payload) throws IOException
+    {
+        try
+        {
+            JsonElement element = this.parser.parse(new String(payload, StandardCharsets.UTF_8));
+            if (!element.isJsonObject())
+            {
+                throw new IOException("Device twin document is not a JSON object");
+            }
+            return element.getAsJsonObject();
+        }
+        catch (JsonParseException | IllegalStateException e)
+        {
+            throw new IOException("Unable to parse device twin document because " + e.getMessage());
+        }
+    }
+
+    private static long versionOf(JsonObject document)
+    {
+        JsonElement version = document.get(VERSION);
+        return version == null || !version.isJsonPrimitive() ? -1 : version.getAsLong();
+    }
+
+    private static void merge(JsonObject target, JsonObject patch)
+    {
+        for (Map.Entry<String, JsonElement> property : patch.entrySet())
+        {
+            String name = property.getKey();
+            JsonElement value = property.getValue();
+            JsonElement current = target.get(name);
+            if (value.isJsonNull())
+            {
+                target.remove(name);
+            }
+            else if (value.isJsonObject() && current != null && current.isJsonObject())
+            {
+                merge(current.getAsJsonObject(), value.getAsJsonObject());
+            }
+            else
+            {
+                target.add(name, value);
+            }
+        }
+    }
 
 }
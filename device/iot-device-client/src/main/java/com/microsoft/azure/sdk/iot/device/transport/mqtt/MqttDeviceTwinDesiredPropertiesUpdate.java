@@ -3,31 +3,42 @@
 
 package com.microsoft.azure.sdk.iot.device.transport.mqtt;
 
-import com.microsoft.azure.sdk.iot.device.Message;
-
 import java.io.IOException;
+import java.security.InvalidParameterException;
 
+/**
+ * Applies the updates of the desired properties sent by the IoT Hub to the
+ * desired properties kept in memory, without requesting the full twin again.
+ */
 public class MqttDeviceTwinDesiredPropertiesUpdate extends MqttDeviceTwin
 {
-    public MqttDeviceTwinDesiredPropertiesUpdate () throws IOException
-    {
-        super();
-    }
+    private final MqttDeviceTwinDesiredProperties desiredProperties;
 
-    @Override
-    String parseTopic()  throws IOException
+    public MqttDeviceTwinDesiredPropertiesUpdate(Mqtt connection, MqttDeviceTwinDesiredProperties desiredProperties) throws IOException
     {
-        return null;
+        super(connection);
+        if (desiredProperties == null)
+        {
+            /*
+            **Codes_SRS_MqttDeviceTwinDesiredPropertiesUpdate_21_001: [**If the desired properties are null, the constructor shall throw InvalidParameterException.**]**
+             */
+            throw new InvalidParameterException("Desired properties cannot be null");
+        }
+
+        /*
+        **Codes_SRS_MqttDeviceTwinDesiredPropertiesUpdate_21_002: [**The constructor shall hold the desired property updates in their own queue, to be applied to the given desired properties.**]**
+         */
+        this.desiredProperties = desiredProperties;
+        this.receiveOn(TWIN_DESIRED_UPDATE_TOPIC);
     }
 
     @Override
-    byte[] parsePayload(String topic) throws IOException {
-        return null;
-    }
-
-    @Override
-    public Message receive() throws  IOException{
-        return null;
+    void onMessage(String topic, byte[] payload) throws IOException
+    {
+        /*
+        **Codes_SRS_MqttDeviceTwinDesiredPropertiesUpdate_21_003: [**Each update received shall be applied, in arrival order, to the desired properties kept in memory.**]**
+         */
+        this.desiredProperties.applyPatch(this.desiredProperties.parseObject(payload));
     }
 
 }
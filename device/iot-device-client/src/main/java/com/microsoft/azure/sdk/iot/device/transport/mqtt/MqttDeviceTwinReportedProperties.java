@@ -3,32 +3,197 @@
 
 package com.microsoft.azure.sdk.iot.device.transport.mqtt;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.microsoft.azure.sdk.iot.device.Message;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidParameterException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Publishes the reported properties of the device twin. The updates made
+ * within a short window are merged into one patch, keeping the last value
+ * written to each property. The patch is published by the receive task of
+ * the connection, which is signalled once the window has elapsed, so no
+ * thread is started per device.
+ */
 public class MqttDeviceTwinReportedProperties extends MqttDeviceTwin {
 
-    public MqttDeviceTwinReportedProperties() throws IOException
+    /** How long updates are merged before they are published as one patch. */
+    static final long PATCH_WINDOW_MILLIS = 100;
+
+    private static final Gson GSON = new Gson();
+
+    /** The properties updated since the last patch was published, guarded by itself. */
+    private final Map<String, JsonElement> pendingPatch = new LinkedHashMap<>();
+    /** The time at which the pending properties are published, or 0 if no patch is scheduled. */
+    private long patchDueAt = 0;
+    /** Whether the client was stopped, and schedules no more patches. */
+    private boolean stopped = false;
+
+    public MqttDeviceTwinReportedProperties(Mqtt connection) throws IOException
     {
-        super();
+        super(connection);
+    }
 
+    /**
+     * Updates a reported property. The update is published with the others
+     * made within the patch window.
+     *
+     * @param name the name of the property.
+     * @param value the value of the property, or {@code null} to remove it.
+     */
+    public void updateReportedProperty(String name, Object value)
+    {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put(name, value);
+        this.updateReportedProperties(properties);
     }
 
-    @Override
-    String parseTopic()  throws IOException
+    /**
+     * Updates reported properties. The updates are published with the others
+     * made within the patch window.
+     *
+     * @param properties the values of the properties, {@code null} to remove one.
+     */
+    public void updateReportedProperties(Map<String, ?> properties)
     {
-        return null;
+        if (properties == null)
+        {
+            /*
+            **Codes_SRS_MqttDeviceTwinReportedProperties_21_001: [**If the properties are null, the function shall throw InvalidParameterException.**]**
+             */
+            throw new InvalidParameterException("Reported properties cannot be null");
+        }
+
+        synchronized (this.pendingPatch)
+        {
+            /*
+            **Codes_SRS_MqttDeviceTwinReportedProperties_21_002: [**The function shall merge the properties into the pending patch, keeping the last value written to each property.**]**
+             */
+            for (Map.Entry<String, ?> property : properties.entrySet())
+            {
+                if (property.getKey() == null)
+                {
+                    throw new InvalidParameterException("Reported property name cannot be null");
+                }
+                this.pendingPatch.put(property.getKey(), GSON.toJsonTree(property.getValue()));
+            }
+
+            /*
+            **Codes_SRS_MqttDeviceTwinReportedProperties_21_003: [**The first update after a patch is published shall schedule the next patch to be published once the patch window elapses, by having the receive task signalled then.**]**
+             */
+            this.schedulePatch();
+        }
     }
 
+    /**
+     * Publishes the pending patch once the patch window has elapsed.
+     *
+     * @return {@code null}.
+     */
     @Override
-    byte[] parsePayload(String topic) throws IOException {
+    public Message receive() throws IOException
+    {
+        super.receive();
+
+        boolean due;
+        synchronized (this.pendingPatch)
+        {
+            due = this.patchDueAt != 0 && System.currentTimeMillis() >= this.patchDueAt;
+        }
+        if (due)
+        {
+            /*
+            **Codes_SRS_MqttDeviceTwinReportedProperties_21_007: [**Once the patch window has elapsed, receive shall publish the pending patch.**]**
+             */
+            this.publishPendingPatch();
+        }
         return null;
     }
 
-    @Override
-    public Message receive() throws  IOException{
-        return null;
+    /**
+     * Publishes the pending patch, if any. The properties of a patch that
+     * could not be published are kept, unless written again meanwhile, and
+     * published with the next patch.
+     */
+    void publishPendingPatch()
+    {
+        JsonObject patch = new JsonObject();
+        synchronized (this.pendingPatch)
+        {
+            this.patchDueAt = 0;
+            if (this.pendingPatch.isEmpty())
+            {
+                return;
+            }
+
+            for (Map.Entry<String, JsonElement> property : this.pendingPatch.entrySet())
+            {
+                patch.add(property.getKey(), property.getValue());
+            }
+            this.pendingPatch.clear();
+        }
+
+        try
+        {
+            /*
+            **Codes_SRS_MqttDeviceTwinReportedProperties_21_004: [**The pending patch shall be published as one JSON object on the reported properties patch topic, with a new request id.**]**
+             */
+            this.publish(requestTopic(TWIN_REPORTED_PATCH_TOPIC, this.nextRequestId()),
+                    patch.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            synchronized (this.pendingPatch)
+            {
+                /*
+                **Codes_SRS_MqttDeviceTwinReportedProperties_21_005: [**If the patch could not be published, its properties not written again meanwhile shall be kept for the next patch, which shall be scheduled.**]**
+                 */
+                for (Map.Entry<String, JsonElement> property : patch.entrySet())
+                {
+                    if (!this.pendingPatch.containsKey(property.getKey()))
+                    {
+                        this.pendingPatch.put(property.getKey(), property.getValue());
+                    }
+                }
+                this.schedulePatch();
+            }
+        }
     }
 
- }
+    /**
+     * Has the pending properties published once the patch window elapses,
+     * by signalling the receive task then.
+     */
+    private void schedulePatch()
+    {
+        if (this.patchDueAt != 0 || this.stopped)
+        {
+            return;
+        }
+
+        this.patchDueAt = System.currentTimeMillis() + PATCH_WINDOW_MILLIS;
+        this.signalReceiveTask(PATCH_WINDOW_MILLIS);
+    }
+
+    /**
+     * Publishes the pending patch, and stops scheduling patches.
+     */
+    public void stop()
+    {
+        synchronized (this.pendingPatch)
+        {
+            this.stopped = true;
+        }
+
+        /*
+        **Codes_SRS_MqttDeviceTwinReportedProperties_21_006: [**stop shall publish the pending patch, and stop scheduling patches.**]**
+         */
+        this.publishPendingPatch();
+    }
+}
@@ -3,15 +3,21 @@
 
 package com.microsoft.azure.sdk.iot.device.transport.mqtt;
 
+import com.google.gson.JsonObject;
+import com.microsoft.azure.sdk.iot.device.CustomLogger;
 import com.microsoft.azure.sdk.iot.device.DeviceClientConfig;
 import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
 import com.microsoft.azure.sdk.iot.device.Message;
 import com.microsoft.azure.sdk.iot.device.auth.IotHubSasToken;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubReceiveTask;
 import com.microsoft.azure.sdk.iot.device.transport.State;
 import com.microsoft.azure.sdk.iot.device.transport.TransportUtils;
 
 import java.io.IOException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 
 public class MqttIotHubConnection
@@ -39,6 +45,17 @@ public class MqttIotHubConnection
     private MqttDeviceTwin [] deviceTwin;
     private MqttDeviceMethods deviceMethods;
 
+    /** Whether the device twin clients subscribed and requested the twin. */
+    private volatile boolean deviceTwinStarted = false;
+
+    /** The receive task to signal when a message arrives. */
+    private volatile IotHubReceiveTask receiveTask;
+
+    /** The listener told when a published message is acknowledged. */
+    private volatile MqttDeliveryListener deliveryListener;
+
+    private final CustomLogger logger = new CustomLogger(this.getClass());
+
     /**
      * Constructs an instance from the given {@link DeviceClientConfig}
      * object.
@@ -113,11 +130,24 @@ public class MqttIotHubConnection
 
                 this.deviceMessaging = new MqttMessaging(sslPrefix + this.config.getIotHubHostname() + sslPortSuffix,
                         this.config.getDeviceId(), this.iotHubUserName, this.iotHubUserPassword);
-                this.deviceMethods = new MqttDeviceMethods();
+                this.deviceMessaging.setReceiveTask(this.receiveTask);
+                // Codes_SRS_MQTTIOTHUBCONNECTION_21_020: [The function shall set the in-flight window of the configuration on the MQTT connection, and hand it the delivery listener.]
+                this.deviceMessaging.setMaxInFlight(this.config.getMqttMaxInFlight());
+                this.deviceMessaging.setDeliveryListener(this.deliveryListener);
+                // Codes_SRS_MQTTIOTHUBCONNECTION_21_023: [The function shall have the device messaging client publish at QoS 0 if the configuration asks for it.]
+                this.deviceMessaging.setTelemetryQos0(this.config.isMqttTelemetryQos0());
+                // Codes_SRS_MQTTIOTHUBCONNECTION_21_018: [The device methods and device twin clients shall work over the MQTT connection of the device messaging client, and of no other device.]
+                this.deviceMethods = new MqttDeviceMethods(this.deviceMessaging);
                 this.deviceTwin = new MqttDeviceTwin[DEVICE_TWIN_TOTAL_PROPERTY];
-                this.deviceTwin[DEVICE_TWIN_DESIRED_PROPERTY] = new MqttDeviceTwinDesiredProperties();
-                this.deviceTwin[DEVICE_TWIN_DESIRED_PROPERTY_UPDATE] = new MqttDeviceTwinDesiredPropertiesUpdate();
-                this.deviceTwin[DEVICE_TWIN_REPORTED_PROPERTY] = new MqttDeviceTwinReportedProperties();
+                MqttDeviceTwinDesiredProperties desiredProperties = new MqttDeviceTwinDesiredProperties(this.deviceMessaging);
+                // Codes_SRS_MQTTIOTHUBCONNECTION_21_035: [The function shall hand the receive task to the desired and reported properties clients, which have it signalled to request the full twin again and to publish the pending reported properties.]
+                desiredProperties.setReceiveTask(this.receiveTask);
+                this.deviceTwin[DEVICE_TWIN_DESIRED_PROPERTY] = desiredProperties;
+                this.deviceTwin[DEVICE_TWIN_DESIRED_PROPERTY_UPDATE] = new MqttDeviceTwinDesiredPropertiesUpdate(this.deviceMessaging, desiredProperties);
+                MqttDeviceTwinReportedProperties reportedProperties = new MqttDeviceTwinReportedProperties(this.deviceMessaging);
+                reportedProperties.setReceiveTask(this.receiveTask);
+                this.deviceTwin[DEVICE_TWIN_REPORTED_PROPERTY] = reportedProperties;
+                this.deviceTwinStarted = false;
 
                 this.deviceMessaging.start();
                 this.state = State.OPEN;
@@ -153,10 +183,13 @@ public class MqttIotHubConnection
             try {
                 this.deviceMethods = null;
 
+                // Codes_SRS_MQTTIOTHUBCONNECTION_21_029: [The function shall publish the pending reported properties before it closes the MQTT connection.]
+                ((MqttDeviceTwinReportedProperties) this.deviceTwin[DEVICE_TWIN_REPORTED_PROPERTY]).stop();
                 for (MqttDeviceTwin dt : deviceTwin) {
                     dt = null;
                 }
                 this.deviceTwin = null;
+                this.deviceTwinStarted = false;
 
                 this.deviceMessaging.stop();
                 this.deviceMessaging = null;
@@ -171,6 +204,68 @@ public class MqttIotHubConnection
         }
     }
 
+    /**
+     * Sends several event messages back to back, so that their publishes are
+     * pipelined up to the in-flight window.
+     *
+     * @param messages the event messages, in order.
+     *
+     * @return the status code from sending each event message, in order.
+     *
+     * @throws IllegalStateException if the MqttIotHubConnection is not open
+     */
+    public List<IotHubStatusCode> sendEventBatch(List<Message> messages) throws IllegalStateException
+    {
+        return this.sendEventBatch(messages, null);
+    }
+
+    /**
+     * Sends several event messages back to back, so that their publishes are
+     * pipelined up to the in-flight window. The delivery listener is told of
+     * the acknowledgement of each message.
+     *
+     * @param messages the event messages, in order.
+     * @param contexts the context of each message, in order, or {@code null}.
+     *
+     * @return the status code from handing each event message to the MQTT connection, in order,
+     * for the messages sent before the connection was lost.
+     *
+     * @throws IllegalStateException if the MqttIotHubConnection is not open, or
+     * was lost before the first message was sent.
+     */
+    public List<IotHubStatusCode> sendEventBatch(List<Message> messages, List<?> contexts) throws IllegalStateException
+    {
+        synchronized (MQTT_CONNECTION_LOCK)
+        {
+            // Codes_SRS_MQTTIOTHUBCONNECTION_21_016: [If the MQTT connection is closed, the function shall throw an IllegalStateException.]
+            if (this.state == State.CLOSED)
+            {
+                throw new IllegalStateException("Cannot send event using a closed MQTT connection");
+            }
+        }
+
+        // Codes_SRS_MQTTIOTHUBCONNECTION_21_017: [The function shall send each message as sendEvent does, and return their status codes in order.]
+        List<IotHubStatusCode> statuses = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++)
+        {
+            try
+            {
+                statuses.add(this.sendEvent(messages.get(i), contexts == null ? null : contexts.get(i)));
+            }
+            // Codes_SRS_MQTTIOTHUBCONNECTION_21_025: [If the connection is lost or the in-flight window fills up after
+            // the first message was sent, the function shall stop and return the status codes of the messages sent so far.]
+            catch (IllegalStateException e)
+            {
+                if (statuses.isEmpty())
+                {
+                    throw e;
+                }
+                break;
+            }
+        }
+        return statuses;
+    }
+
     /**
      * Sends an event message.
      *
@@ -182,41 +277,214 @@ public class MqttIotHubConnection
      */
     public IotHubStatusCode sendEvent(Message message) throws IllegalStateException
     {
-        synchronized (MQTT_CONNECTION_LOCK)
+        return this.sendEvent(message, null);
+    }
+
+    /**
+     * Sends an event message, without waiting for its acknowledgement. The
+     * delivery listener is told of the acknowledgement.
+     *
+     * @param message the event message.
+     * @param context the context handed to the delivery listener once the message is acknowledged. Can be {@code null}.
+     *
+     * @return the status code from handing the event message to the MQTT connection.
+     *
+     * @throws IllegalStateException if the MqttIotHubConnection is not open, is
+     * being reconnected, or has as many messages in flight as it allows.
+     */
+    public IotHubStatusCode sendEvent(Message message, Object context) throws IllegalStateException
+    {
+        // Codes_SRS_MQTTIOTHUBCONNECTION_15_010: [If the message is null or empty,
+        // the function shall return status code BAD_FORMAT.]
+        if (message == null || message.getBytes() == null || message.getBytes().length == 0)
         {
-            // Codes_SRS_MQTTIOTHUBCONNECTION_15_010: [If the message is null or empty,
-            // the function shall return status code BAD_FORMAT.]
-            if (message == null || message.getBytes() == null || message.getBytes().length == 0)
-            {
-                return IotHubStatusCode.BAD_FORMAT;
-            }
+            return IotHubStatusCode.BAD_FORMAT;
+        }
 
+        MqttMessaging messaging;
+        synchronized (MQTT_CONNECTION_LOCK)
+        {
             // Codes_SRS_MQTTIOTHUBCONNECTION_15_013: [If the MQTT connection is closed,
             // the function shall throw an IllegalStateException.]
             if (this.state == State.CLOSED)
             {
                 throw new IllegalStateException("Cannot send event using a closed MQTT connection");
             }
+            messaging = this.deviceMessaging;
+        }
 
-            // Codes_SRS_MQTTIOTHUBCONNECTION_15_008: [The function shall send an event message
-            // to the IoT Hub given in the configuration.]
-            // Codes_SRS_MQTTIOTHUBCONNECTION_15_011: [If the message was successfully received by the service,
-            // the function shall return status code OK_EMPTY.]
-            IotHubStatusCode result = IotHubStatusCode.OK_EMPTY;
+        // Codes_SRS_MQTTIOTHUBCONNECTION_15_008: [The function shall send an event message
+        // to the IoT Hub given in the configuration.]
+        // Codes_SRS_MQTTIOTHUBCONNECTION_15_011: [If the message was handed to the MQTT connection,
+        // the function shall return status code OK_EMPTY.]
+        IotHubStatusCode result = IotHubStatusCode.OK_EMPTY;
+        try
+        {
+            // Codes_SRS_MQTTIOTHUBCONNECTION_15_009: [The function shall send the message payload.]
+            // Codes_SRS_MQTTIOTHUBCONNECTION_21_021: [The function shall send the message with the context, and not wait for its acknowledgement.]
+            messaging.send(message, context);
+        }
+        // Codes_SRS_MQTTIOTHUBCONNECTION_21_032: [If the in-flight window is full, the function shall throw
+        // an IllegalStateException at once, rather than wait for an acknowledgement.]
+        catch (IllegalStateException e)
+        {
+            throw e;
+        }
+        // Codes_SRS_MQTTIOTHUBCONNECTION_15_012: [If the message could not be handed
+        // to the MQTT connection, the function shall return status code ERROR.]
+        catch (Exception e)
+        {
+            // Codes_SRS_MQTTIOTHUBCONNECTION_21_024: [If the message could not be handed to the MQTT connection
+            // because the connection is being reconnected, the function shall throw an IllegalStateException
+            // rather than wait for the reconnect.]
+            if (messaging.isReconnecting())
+            {
+                throw new IllegalStateException("Cannot send event while the MQTT connection is reconnecting");
+            }
+            result = IotHubStatusCode.ERROR;
+        }
 
-            try
+        return result;
+    }
+
+    /**
+     * Updates reported properties of the device twin. The updates made within
+     * a short window are published as one patch.
+     *
+     * @param properties the values of the properties, {@code null} to remove one.
+     *
+     * @throws IllegalStateException if the MqttIotHubConnection is not open
+     * @throws IOException if the device twin could not be started.
+     */
+    public void updateReportedProperties(Map<String, ?> properties) throws IllegalStateException, IOException
+    {
+        // Codes_SRS_MQTTIOTHUBCONNECTION_21_027: [The function shall start the device twin,
+        // and merge the properties into the next patch of the reported properties.]
+        MqttDeviceTwin[] twin = this.startDeviceTwin();
+        ((MqttDeviceTwinReportedProperties) twin[DEVICE_TWIN_REPORTED_PROPERTY]).updateReportedProperties(properties);
+    }
+
+    /**
+     * Returns the desired properties of the device twin, kept up to date as
+     * the IoT Hub sends their updates.
+     *
+     * @return a copy of the desired properties, or {@code null} until the twin is read.
+     *
+     * @throws IllegalStateException if the MqttIotHubConnection is not open
+     * @throws IOException if the device twin could not be started.
+     */
+    public JsonObject getDesiredProperties() throws IllegalStateException, IOException
+    {
+        // Codes_SRS_MQTTIOTHUBCONNECTION_21_028: [The function shall start the device twin,
+        // and return the desired properties kept by it.]
+        MqttDeviceTwin[] twin = this.startDeviceTwin();
+        return ((MqttDeviceTwinDesiredProperties) twin[DEVICE_TWIN_DESIRED_PROPERTY]).getDesiredProperties();
+    }
+
+    /**
+     * Starts the device twin clients the first time the device twin is used
+     * on the connection.
+     *
+     * @return the device twin clients.
+     */
+    private MqttDeviceTwin[] startDeviceTwin() throws IllegalStateException, IOException
+    {
+        synchronized (MQTT_CONNECTION_LOCK)
+        {
+            // Codes_SRS_MQTTIOTHUBCONNECTION_21_026: [If the MQTT connection is closed, the function shall throw an IllegalStateException.]
+            if (this.state == State.CLOSED)
             {
-                // Codes_SRS_MQTTIOTHUBCONNECTION_15_009: [The function shall send the message payload.]
-                this.deviceMessaging.send(message);
+                throw new IllegalStateException("Cannot use the device twin of a closed MQTT connection");
             }
-            // Codes_SRS_MQTTIOTHUBCONNECTION_15_012: [If the message was not successfully
-            // received by the service, the function shall return status code ERROR.]
-            catch (Exception e)
+
+            // Codes_SRS_MQTTIOTHUBCONNECTION_21_031: [The device twin clients shall be started once per open connection,
+            // the desired property updates being subscribed to before the full twin is requested.]
+            if (!this.deviceTwinStarted)
             {
-                result = IotHubStatusCode.ERROR;
+                this.deviceTwin[DEVICE_TWIN_DESIRED_PROPERTY_UPDATE].start();
+                this.deviceTwin[DEVICE_TWIN_DESIRED_PROPERTY].start();
+                this.deviceTwin[DEVICE_TWIN_REPORTED_PROPERTY].start();
+                this.deviceTwinStarted = true;
             }
+            return this.deviceTwin;
+        }
+    }
+
+    /**
+     * Registers the listener told whenever a message sent with a context is
+     * acknowledged by the IoT Hub.
+     *
+     * @param deliveryListener the listener. Can be {@code null}.
+     */
+    public void setDeliveryListener(MqttDeliveryListener deliveryListener)
+    {
+        // Codes_SRS_MQTTIOTHUBCONNECTION_21_022: [The function shall save the delivery listener, and hand it to the device messaging client, which tells it of each acknowledgement.]
+        this.deliveryListener = deliveryListener;
+        MqttMessaging messaging = this.deviceMessaging;
+        if (messaging != null)
+        {
+            messaging.setDeliveryListener(deliveryListener);
+        }
+    }
+
+    /**
+     * Registers the receive task to be signalled whenever a message arrives.
+     *
+     * @param receiveTask the receive task to signal. Can be {@code null}.
+     */
+    public void setReceiveTask(IotHubReceiveTask receiveTask)
+    {
+        // Codes_SRS_MQTTIOTHUBCONNECTION_21_019: [The function shall save the receive task, and hand it to the device messaging client, which signals it when a message arrives, and to the desired and reported properties clients.]
+        this.receiveTask = receiveTask;
+        MqttMessaging messaging = this.deviceMessaging;
+        if (messaging != null)
+        {
+            messaging.setReceiveTask(receiveTask);
+        }
+        MqttDeviceTwin[] twin = this.deviceTwin;
+        if (twin != null)
+        {
+            twin[DEVICE_TWIN_DESIRED_PROPERTY].setReceiveTask(receiveTask);
+            twin[DEVICE_TWIN_REPORTED_PROPERTY].setReceiveTask(receiveTask);
+        }
+    }
 
-            return result;
+    /**
+     * Hands the twin responses and desired property updates received so far
+     * to the device twin clients, if the device twin was started. A client
+     * that fails to handle its messages does not keep the others from
+     * handling theirs.
+     *
+     * @throws IllegalStateException if the connection state is currently closed.
+     */
+    public void receiveDeviceTwin() throws IllegalStateException
+    {
+        // Codes_SRS_MQTTIOTHUBCONNECTION_21_033: [If the MQTT connection is closed, the function shall throw an IllegalStateException.]
+        if (this.state == State.CLOSED)
+        {
+            throw new IllegalStateException("The MQTT connection is currently closed. Call open() before attempting " +
+                    "to receive the device twin.");
+        }
+
+        // Codes_SRS_MQTTIOTHUBCONNECTION_21_030: [If the device twin was started, the function shall
+        // hand the twin responses and desired property updates received to the device twin clients.]
+        MqttDeviceTwin[] twin = this.deviceTwin;
+        if (this.deviceTwinStarted && twin != null)
+        {
+            for (MqttDeviceTwin dt : twin)
+            {
+                try
+                {
+                    dt.receive();
+                }
+                catch (IOException e)
+                {
+                    // Codes_SRS_MQTTIOTHUBCONNECTION_21_034: [If a device twin client fails to handle its messages,
+                    // the function shall log the failure and go on with the other clients.]
+                    logger.LogError("Device twin client failed to handle its messages because %s, method name is receiveDeviceTwin ",
+                            e.getMessage());
+                }
+            }
         }
     }
 
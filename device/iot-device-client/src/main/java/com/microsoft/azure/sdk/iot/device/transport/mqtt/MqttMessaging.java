@@ -3,10 +3,15 @@
 
 package com.microsoft.azure.sdk.iot.device.transport.mqtt;
 
+import com.microsoft.azure.sdk.iot.device.CustomLogger;
 import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageProperty;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Semaphore;
 
 public class MqttMessaging extends Mqtt {
@@ -16,15 +21,33 @@ public class MqttMessaging extends Mqtt {
     private String publishTopic;
     private String parseTopic;
 
+    private static final CustomLogger logger = new CustomLogger(MqttMessaging.class);
+
+    /** The prefix of the system properties in the property bag of a topic. */
+    private static final String SYSTEM_PROPERTY_PREFIX = "$.";
+    private static final String MESSAGE_ID_PROPERTY = "$.mid";
+    private static final String CORRELATION_ID_PROPERTY = "$.cid";
+    private static final String PROPERTY_SEPARATOR = "&";
+    private static final String PROPERTY_VALUE_SEPARATOR = "=";
+    private static final String PROPERTY_ENCODING = "UTF-8";
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /** The publish topic, followed by the property bag of the last message sent. */
+    private final StringBuilder publishTopicBuilder;
+
+    /** The cloud-to-device messages received on the subscribe topic, in arrival order. */
+    private BlockingQueue<Map.Entry<String, byte[]>> receivedMessages;
+
+    /** The QoS telemetry is published at. */
+    private volatile int telemetryQos = QOS_AT_LEAST_ONCE;
+
     @Override
     String parseTopic() throws IOException
     {
         /*
         **Codes_SRS_MqttMessaging_25_004: [**parseTopic concrete method shall be implemeted by MqttMessaging concrete class.**]**
          */
-        String topic = null;
-
-        if (allReceivedMessages == null)
+        if (receivedMessages == null)
         {
             /*
             **Codes_SRS_MqttMessaging_25_008: [**If receiveMessage queue is null then parseTopic shall throw IOException.**]**
@@ -32,30 +55,14 @@ public class MqttMessaging extends Mqtt {
             throw new IOException("Queue cannot be null");
         }
 
-        if(!allReceivedMessages.isEmpty())
-        {
-
-           for ( Map.Entry<String, byte[]> data : allReceivedMessages.entrySet())
-           {
-               String topicFound = data.getKey();
-
-               /*
-               **Codes_SRS_MqttMessaging_25_005: [**parseTopic shall look for the subscribe topic prefix from received message queue.**]**
-                */
-               /*
-               **Codes_SRS_MqttMessaging_25_006: [**If none of the topics from the received queue match the subscribe topic prefix then this method shall return null string .**]**
-                */
-               /*
-               **Codes_SRS_MqttMessaging_25_007: [**If received messages queue is empty then parseTopic shall return null string.**]**
-                */
-               if (topicFound != null && topicFound.length() > parseTopic.length() && topicFound.startsWith(parseTopic))
-               {
-                   topic = topicFound;
-                   break;
-               }
-           }
-        }
-        return topic;
+        /*
+        **Codes_SRS_MqttMessaging_25_005: [**parseTopic shall return the topic of the oldest message in the received messages queue of the subscribe topic.**]**
+         */
+        /*
+        **Codes_SRS_MqttMessaging_25_007: [**If received messages queue is empty then parseTopic shall return null string.**]**
+         */
+        Map.Entry<String, byte[]> next = receivedMessages.peek();
+        return next == null ? null : next.getKey();
     }
 
     @Override
@@ -75,7 +82,7 @@ public class MqttMessaging extends Mqtt {
              */
             return null;
         }
-        if (allReceivedMessages == null)
+        if (receivedMessages == null)
         {
             /*
             **Codes_SRS_MqttMessaging_25_013: [**If receiveMessage queue is null then this method shall throw IOException.**]**
@@ -83,10 +90,11 @@ public class MqttMessaging extends Mqtt {
             throw new IOException("Invalid State - topic is not null and could not be found in queue");
         }
 
-        if (!allReceivedMessages.containsKey(topic))
+        Map.Entry<String, byte[]> next = receivedMessages.peek();
+        if (next == null || !next.getKey().equals(topic))
         {
             /*
-            **Codes_SRS_MqttMessaging_25_012: [**If the topic is non-null and received messagesqueue could not locate the payload then this method shall throw IOException**]**
+            **Codes_SRS_MqttMessaging_25_012: [**If the topic is non-null and is not the topic of the oldest message in the received messages queue then this method shall throw IOException**]**
              */
             throw new IOException("Topic is should be present in received queue at this point");
         }
@@ -94,37 +102,67 @@ public class MqttMessaging extends Mqtt {
         /*
         **Codes_SRS_MqttMessaging_25_010: [**This parsePayload method look for payload for the corresponding topic from the received messagesqueue.**]**
          */
-        if(!allReceivedMessages.isEmpty())
+        /*
+        **Codes_SRS_MqttMessaging_25_014: [**If the topic is found in the message queue then parsePayload shall delete it from the queue.**]**
+         */
+        return receivedMessages.poll().getValue();
+    }
+
+    @Override
+    void parseProperties(String topic, Message message)
+    {
+        if (topic == null || topic.length() <= parseTopic.length())
         {
-            /*
-            **Codes_SRS_MqttMessaging_25_014: [**If the topic is found in the message queue then parsePayload shall delete it from the queue.**]**
-             */
-            return allReceivedMessages.remove(topic);
+            return;
         }
 
-        return null;
-
+        /*
+        **Codes_SRS_MqttMessaging_21_001: [**parseProperties shall decode the URL-encoded property bag that follows the subscribe topic prefix, and set the message id from $.mid, the correlation id from $.cid, and every application property on the message.**]**
+         */
+        for (String property : topic.substring(parseTopic.length()).split(PROPERTY_SEPARATOR))
+        {
+            int separator = property.indexOf(PROPERTY_VALUE_SEPARATOR);
+            if (separator <= 0)
+            {
+                continue;
+            }
 
+            try
+            {
+                String name = URLDecoder.decode(property.substring(0, separator), PROPERTY_ENCODING);
+                String value = URLDecoder.decode(property.substring(separator + 1), PROPERTY_ENCODING);
+                if (name.equals(MESSAGE_ID_PROPERTY))
+                {
+                    message.setMessageId(value);
+                }
+                else if (name.equals(CORRELATION_ID_PROPERTY))
+                {
+                    message.setCorrelationId(value);
+                }
+                else if (!name.startsWith(SYSTEM_PROPERTY_PREFIX))
+                {
+                    message.setProperty(name, value);
+                }
+            }
+            catch (UnsupportedEncodingException | IllegalArgumentException e)
+            {
+                /*
+                **Codes_SRS_MqttMessaging_21_002: [**parseProperties shall skip a property it cannot decode or set, and keep the others.**]**
+                 */
+                logger.LogWarn("Skipping message property %s because %s, method name is parseProperties ", property, e.getMessage());
+            }
+        }
     }
 
     @Override
     public void onReconnect() throws IOException
     {
-        try
-        {
-            /*
-            **Codes_SRS_MqttMessaging_25_020: [**onReconnect method shall be implemeted by MqttMessaging class.**]**
-
-            **Codes_SRS_MqttMessaging_25_020: [**This onReconnect method shall put the entire operation of the MqttMessaging class on hold by waiting on the lock.**]**
-             */
-            System.out.println("Pausing Device Messaging during reconnect");
-            MESSAGING_SEMAPHORE.acquire();
-        }
-        catch (InterruptedException e)
-        {
-            // Do nothing and log
-        }
+        /*
+        **Codes_SRS_MqttMessaging_25_015: [**onReconnect method shall be implemeted by MqttMessaging class.**]**
 
+        **Codes_SRS_MqttMessaging_25_016: [**This onReconnect method shall not put the operation of the MqttMessaging class on hold, so that sends fail fast while the connection is reconnected.**]**
+         */
+        logger.LogInfo("Device Messaging sends fail until reconnect completes, method name is onReconnect ");
     }
 
     @Override
@@ -136,17 +174,15 @@ public class MqttMessaging extends Mqtt {
 
             **Codes_SRS_MqttMessaging_25_017: [**This onReconnectComplete method shall be implemeted by MqttMessaging class.**]**
 
-            **Codes_SRS_MqttMessaging_25_018: [**If the status is true, onReconnectComplete method shall release all the operation of the MqttMessaging class put on hold by notifying the users of the lock.**]**
+            **Codes_SRS_MqttMessaging_25_018: [**If the status is true, onReconnectComplete method shall return, the sends failed during the reconnect being sent again by their callers.**]**
             * */
-            System.out.println("Continue device Messaging after reconnect");
-            MESSAGING_SEMAPHORE.release();
+            logger.LogInfo("Continue device Messaging after reconnect, method name is onReconnectComplete ");
         }
         else
         {
             /*
             **Codes_SRS_MqttMessaging_25_019: [**If the status is false, onReconnectComplete method shall throw IOException**]**
              */
-            MESSAGING_SEMAPHORE.release();
             throw new IOException("Could not reconnect to IotHub");
         }
 
@@ -167,6 +203,11 @@ public class MqttMessaging extends Mqtt {
         this.publishTopic = "devices/" + deviceId + "/messages/events/";
         this.subscribeTopic = "devices/" + deviceId + "/messages/devicebound/#";
         this.parseTopic = "devices/" + deviceId + "/messages/devicebound/";
+        this.publishTopicBuilder = new StringBuilder(this.publishTopic);
+        /*
+        **Codes_SRS_MqttMessaging_21_003: [**The constructor shall hold the messages received on the subscribe topic in their own bounded queue, in arrival order.**]**
+         */
+        this.receivedMessages = this.addReceiveQueue(this.parseTopic);
 
     }
 
@@ -222,35 +263,178 @@ public class MqttMessaging extends Mqtt {
 
     }
 
+    /**
+     * Sets whether telemetry is published at QoS 0, where a message lost on
+     * the way is not sent again, instead of QoS 1. Device methods and device
+     * twin keep QoS 1 on the same connection.
+     *
+     * @param telemetryQos0 whether telemetry is published at QoS 0.
+     */
+    void setTelemetryQos0(boolean telemetryQos0)
+    {
+        /*
+        **Codes_SRS_MqttMessaging_21_005: [**The function shall set the QoS of the messages sent to 0 if asked, or to 1 otherwise.**]**
+         */
+        this.telemetryQos = telemetryQos0 ? QOS_AT_MOST_ONCE : QOS_AT_LEAST_ONCE;
+    }
+
     public void send(Message message) throws IOException
     {
-        try
+        this.send(message, null);
+    }
+
+    /**
+     * Publishes a message on the publish topic. Returns once the message is
+     * handed to the mqtt client; the delivery listener is told of its
+     * acknowledgement.
+     *
+     * @param message the message to send.
+     * @param context the context handed to the delivery listener once the message is acknowledged. Can be {@code null}.
+     * @throws IllegalStateException if the in-flight window is full.
+     */
+    public void send(Message message, Object context) throws IOException
+    {
+        if (message == null || message.getBytes() == null)
         {
-            MESSAGING_SEMAPHORE.acquire();
+            /*
+            **Codes_SRS_MqttMessaging_25_025: [**send method shall throw an exception if the message is null.**]**
+             */
+            throw new IOException("Message cannot be null");
+        }
+
+        /*
+        send does not wait out a reconnect: publish throws while the connection is
+        lost, and the caller keeps the message to send it again.
+         */
+        /*
+        **Codes_SRS_MqttMessaging_25_024: [**send method shall publish a message to the IOT Hub on the publish topic by calling method publish().**]**
+         */
+        /*
+        **Codes_SRS_MqttMessaging_21_004: [**send method shall publish the message with the context, and shall not wait for room in the in-flight window.**]**
+         */
+        /*
+        **Codes_SRS_MqttMessaging_21_006: [**send method shall publish the message on the publish topic followed by a property bag holding the URL-encoded message id and application properties of the message.**]**
+         */
+        this.publish(this.buildPublishTopic(message), message.getBytes(), this.telemetryQos, context);
+    }
+
+    /**
+     * Builds the topic a message is published on. The fixed publish topic
+     * stays in a reused builder, and the property bag is encoded straight
+     * into it after the topic. Messages get a generated message id, so the
+     * bag almost always holds one; it is sent as the AMQP transport sends it.
+     *
+     * @param message the message to send.
+     * @return the publish topic followed by the property bag of the message.
+     */
+    private String buildPublishTopic(Message message)
+    {
+        String messageId = message.getMessageId();
+        String correlationId = message.getCorrelationId();
+        MessageProperty[] properties = message.getProperties();
+        if (messageId == null && correlationId == null && (properties == null || properties.length == 0))
+        {
+            /*
+            **Codes_SRS_MqttMessaging_21_007: [**If the message has no message id, no correlation id and no application properties, send method shall publish it on the publish topic as it is.**]**
+             */
+            return this.publishTopic;
+        }
+
+        synchronized (this.publishTopicBuilder)
+        {
+            StringBuilder topic = this.publishTopicBuilder;
+            topic.setLength(this.publishTopic.length());
+            if (messageId != null)
             {
-                if (message == null || message.getBytes() == null)
-                {
-                    /*
-                    **Codes_SRS_MqttMessaging_25_025: [**send method shall throw an exception if the message is null.**]**
-                     */
-                    throw new IOException("Message cannot be null");
-                }
+                topic.append(MESSAGE_ID_PROPERTY).append(PROPERTY_VALUE_SEPARATOR);
+                appendEncoded(topic, messageId);
+            }
 
+            if (correlationId != null)
+            {
                 /*
-                **Codes_SRS_MqttMessaging_25_024: [**send method shall publish a message to the IOT Hub on the publish topic by calling method publish().**]**
+                **Codes_SRS_MqttMessaging_21_008: [**send method shall add the URL-encoded correlation id of the message to the property bag as $.cid, if the message has one.**]**
                  */
-                this.publish(this.publishTopic, message.getBytes());
+                this.appendPropertySeparator(topic);
+                topic.append(CORRELATION_ID_PROPERTY).append(PROPERTY_VALUE_SEPARATOR);
+                appendEncoded(topic, correlationId);
+            }
 
+            if (properties != null)
+            {
+                for (MessageProperty property : properties)
+                {
+                    this.appendPropertySeparator(topic);
+                    appendEncoded(topic, property.getName());
+                    topic.append(PROPERTY_VALUE_SEPARATOR);
+                    appendEncoded(topic, property.getValue());
+                }
             }
 
+            return topic.toString();
         }
-        catch (InterruptedException e)
-        {
+    }
 
+    /**
+     * Separates the next property from those already in the property bag.
+     *
+     * @param topic the builder holding the publish topic and the bag so far.
+     */
+    private void appendPropertySeparator(StringBuilder topic)
+    {
+        if (topic.length() > this.publishTopic.length())
+        {
+            topic.append(PROPERTY_SEPARATOR);
         }
-        finally
+    }
+
+    /**
+     * Appends the value URL-encoded in UTF-8, as URLDecoder decodes it,
+     * without building intermediate strings.
+     *
+     * @param out the builder to append to.
+     * @param value the value to encode.
+     */
+    private static void appendEncoded(StringBuilder out, String value)
+    {
+        for (int i = 0; i < value.length(); )
         {
-            MESSAGING_SEMAPHORE.release();
+            int codePoint = value.codePointAt(i);
+            i += Character.charCount(codePoint);
+
+            if ((codePoint >= 'a' && codePoint <= 'z') || (codePoint >= 'A' && codePoint <= 'Z')
+                    || (codePoint >= '0' && codePoint <= '9')
+                    || codePoint == '-' || codePoint == '.' || codePoint == '_' || codePoint == '*')
+            {
+                out.append((char) codePoint);
+            }
+            else if (codePoint < 0x80)
+            {
+                appendEscaped(out, codePoint);
+            }
+            else if (codePoint < 0x800)
+            {
+                appendEscaped(out, 0xC0 | (codePoint >> 6));
+                appendEscaped(out, 0x80 | (codePoint & 0x3F));
+            }
+            else if (codePoint < 0x10000)
+            {
+                appendEscaped(out, 0xE0 | (codePoint >> 12));
+                appendEscaped(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendEscaped(out, 0x80 | (codePoint & 0x3F));
+            }
+            else
+            {
+                appendEscaped(out, 0xF0 | (codePoint >> 18));
+                appendEscaped(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendEscaped(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendEscaped(out, 0x80 | (codePoint & 0x3F));
+            }
         }
     }
+
+    private static void appendEscaped(StringBuilder out, int octet)
+    {
+        out.append('%').append(HEX_DIGITS[octet >> 4]).append(HEX_DIGITS[octet & 0x0F]);
+    }
 }
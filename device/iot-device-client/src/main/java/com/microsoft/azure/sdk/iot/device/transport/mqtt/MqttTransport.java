@@ -3,14 +3,26 @@
 
 package com.microsoft.azure.sdk.iot.device.transport.mqtt;
 
+import com.google.gson.JsonObject;
 import com.microsoft.azure.sdk.iot.device.*;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubCallbackPacket;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubOutboundPacket;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubReceiveTask;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubSendTask;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubTransport;
+import com.microsoft.azure.sdk.iot.device.transport.SendQueueLimiter;
 import com.microsoft.azure.sdk.iot.device.transport.State;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.LinkedBlockingDeque;
 
 /**
@@ -26,7 +38,7 @@ import java.util.concurrent.LinkedBlockingDeque;
  * </p>
  */
 
-public final class MqttTransport implements IotHubTransport
+public final class MqttTransport implements IotHubTransport, MqttDeliveryListener
 {
     /** The MQTT connection lock. */
     protected final Object sendMessagesLock = new Object();
@@ -37,14 +49,29 @@ public final class MqttTransport implements IotHubTransport
     /** The MQTT connection.*/
     protected MqttIotHubConnection mqttIotHubConnection;
 
-    /** Messages waiting to be sent. */
-    protected final Queue<IotHubOutboundPacket> waitingList;
+    /**
+     * Messages waiting to be sent. Messages that could not be sent go back to
+     * the head, so that they are sent again before the newer ones.
+     */
+    protected final Deque<IotHubOutboundPacket> waitingList;
+
+    /** Messages published and waiting for their acknowledgement, in the order they were published. */
+    protected final Set<IotHubOutboundPacket> inProgressMessages;
 
     /** Messages whose callbacks that are waiting to be invoked. */
     protected final Queue<IotHubCallbackPacket> callbackList;
 
     protected final DeviceClientConfig config;
 
+    /** Bounds the messages held between addMessage and their acknowledgement. */
+    protected final SendQueueLimiter sendQueueLimiter;
+
+    /** The send task to signal when new work is available. */
+    protected volatile IotHubSendTask sendTask;
+
+    /** The receive task to signal when a message arrives. */
+    protected volatile IotHubReceiveTask receiveTask;
+
     /**
      * Constructs an instance from the given {@link DeviceClientConfig}
      * object.
@@ -59,7 +86,9 @@ public final class MqttTransport implements IotHubTransport
         // Codes_SRS_MQTTTRANSPORT_15_002: [The constructor shall initialize an empty queue
         // for completed messages whose callbacks are waiting to be invoked.]
         this.callbackList = new LinkedBlockingDeque<>();
+        this.inProgressMessages = Collections.synchronizedSet(new LinkedHashSet<IotHubOutboundPacket>());
         this.config = config;
+        this.sendQueueLimiter = new SendQueueLimiter(config);
         this.state = State.CLOSED;
     }
 
@@ -77,9 +106,15 @@ public final class MqttTransport implements IotHubTransport
             return;
         }
 
+        // Codes_SRS_MQTTTRANSPORT_21_024: [The function shall open the send journal, if one is configured, and replay the messages it holds.]
+        this.sendQueueLimiter.openJournal(this.waitingList);
+
         // Codes_SRS_MQTTTRANSPORT_15_003: [The function shall establish an MQTT connection
         // with the IoT Hub given in the configuration.]
         this.mqttIotHubConnection = new MqttIotHubConnection(this.config);
+        this.mqttIotHubConnection.setReceiveTask(this.receiveTask);
+        // Codes_SRS_MQTTTRANSPORT_21_032: [The function shall be told by the MQTT connection of the acknowledgement of each message it publishes.]
+        this.mqttIotHubConnection.setDeliveryListener(this);
         this.mqttIotHubConnection.open();
 
         this.state = State.OPEN;
@@ -101,9 +136,50 @@ public final class MqttTransport implements IotHubTransport
         // Codes_SRS_MQTTTRANSPORT_15_005: [The function shall close the MQTT connection
         // with the IoT Hub given in the configuration.]
         this.mqttIotHubConnection.close();
+        // Codes_SRS_MQTTTRANSPORT_21_033: [The function shall buffer the messages still waiting for their acknowledgement to be sent again, since the closed connection drops them, ahead of the messages waiting to be sent and in the order they were published.]
+        synchronized (sendMessagesLock)
+        {
+            List<IotHubOutboundPacket> unacknowledged = new ArrayList<>(this.inProgressMessages);
+            this.inProgressMessages.removeAll(unacknowledged);
+            this.putBack(unacknowledged);
+        }
+        // Codes_SRS_MQTTTRANSPORT_21_025: [The function shall close the send journal, if one is open, which forces it to the disk.]
+        this.sendQueueLimiter.closeJournal();
         this.state = State.CLOSED;
     }
 
+    /**
+     * Registers the send task to be signalled whenever the transport has new
+     * work for it.
+     *
+     * @param sendTask the send task to signal. Can be {@code null}.
+     */
+    public void setSendTask(IotHubSendTask sendTask)
+    {
+        // Codes_SRS_MQTTTRANSPORT_21_020: [The function shall save the send task.]
+        this.sendTask = sendTask;
+    }
+
+    /**
+     * Registers the receive task to be signalled whenever a message arrives,
+     * so that the transport does not need to be polled.
+     *
+     * @param receiveTask the receive task to signal. Can be {@code null}.
+     *
+     * @return {@code true}, since the transport signals the receive task.
+     */
+    public boolean setReceiveTask(IotHubReceiveTask receiveTask)
+    {
+        // Codes_SRS_MQTTTRANSPORT_21_030: [The function shall save the receive task, hand it to the MQTT connection if one is open, and return true.]
+        this.receiveTask = receiveTask;
+        MqttIotHubConnection connection = this.mqttIotHubConnection;
+        if (connection != null)
+        {
+            connection.setReceiveTask(receiveTask);
+        }
+        return true;
+    }
+
     /**
      * Adds a message to the transport queue.
      *
@@ -113,27 +189,75 @@ public final class MqttTransport implements IotHubTransport
      * @param callbackContext the context to be passed in when the callback is
      * invoked.
      *
-     * @throws IllegalStateException if the transport has not been opened or is closed
+     * @throws IllegalStateException if the transport has not been opened or is closed,
+     * or if the send queue is full and the configured policy is to fail fast.
      */
     public void addMessage(
             Message message,
             IotHubEventCallback callback,
             Object callbackContext) throws IllegalStateException
     {
+        IotHubOutboundPacket packet = new IotHubOutboundPacket(message, callback, callbackContext);
+        // room is reserved outside of the lock, since sendMessages needs the
+        // lock to send messages and release the room they hold.
+        // Codes_SRS_MQTTTRANSPORT_21_022: [The function shall reserve room for the packet in the send queue, applying the configured policy if the queue is full.]
+        this.sendQueueLimiter.acquire(packet, this.waitingList, this.callbackList);
+
         synchronized (sendMessagesLock)
         {
             // Codes_SRS_MQTTTRANSPORT_15_008: [If the transport is closed,
             // the function shall throw an IllegalStateException.]
             if (this.state == State.CLOSED)
             {
+                this.sendQueueLimiter.release(packet);
                 throw new IllegalStateException("Cannot add a message to an MQTT transport that is closed.");
             }
 
             //Codes_SRS_MQTTTRANSPORT_15_007: [The function shall add a packet containing the message, callback,
             // and callback context to the transport queue.]
-            IotHubOutboundPacket packet = new IotHubOutboundPacket(message, callback, callbackContext);
             this.waitingList.add(packet);
         }
+
+        // Codes_SRS_MQTTTRANSPORT_21_021: [The function shall signal the send task that a message is waiting to be sent.]
+        IotHubSendTask task = this.sendTask;
+        if (task != null)
+        {
+            task.signal();
+        }
+    }
+
+    /**
+     * Adds a batch of messages to the transport queue. The messages of the
+     * batch still waiting when the first of them is sent are published back
+     * to back.
+     *
+     * @param batch the packets of the batch, in order.
+     *
+     * @throws IllegalStateException if the transport has not been opened or is closed,
+     * or if the send queue is full and the configured policy is to fail fast.
+     */
+    public void addMessageBatch(List<IotHubOutboundPacket> batch) throws IllegalStateException
+    {
+        synchronized (sendMessagesLock)
+        {
+            // Codes_SRS_MQTTTRANSPORT_21_027: [If the transport is closed, the function shall throw an IllegalStateException.]
+            if (this.state == State.CLOSED)
+            {
+                throw new IllegalStateException("Cannot add a message to an MQTT transport that is closed.");
+            }
+        }
+
+        // room is reserved outside of the lock, since sendMessages needs the
+        // lock to send messages and release the room they hold.
+        // Codes_SRS_MQTTTRANSPORT_21_028: [The function shall reserve room for each packet of the batch and add it to the transport queue, in order.]
+        this.sendQueueLimiter.acquireBatch(batch, this.waitingList, this.callbackList);
+
+        // Codes_SRS_MQTTTRANSPORT_21_021: [The function shall signal the send task that a message is waiting to be sent.]
+        IotHubSendTask task = this.sendTask;
+        if (task != null)
+        {
+            task.signal();
+        }
     }
 
     /**
@@ -163,34 +287,177 @@ public final class MqttTransport implements IotHubTransport
                 return;
             }
 
+            boolean telemetryQos0 = this.config.isMqttTelemetryQos0();
+
             // Codes_SRS_MQTTTRANSPORT_15_009: [The function shall attempt to send every message
             // on its waiting list, one at a time.]
-            while (!this.waitingList.isEmpty())
+            // the queue may also be drained by addMessage when it drops the
+            // oldest messages, so poll instead of checking for emptiness first.
+            IotHubOutboundPacket packet;
+            while ((packet = this.waitingList.poll()) != null)
             {
-                IotHubOutboundPacket packet = this.waitingList.remove();
+                // Codes_SRS_MQTTTRANSPORT_21_029: [The function shall publish the messages of a batch still waiting back to back.]
+                List<IotHubOutboundPacket> batch = packet.getBatch();
+                if (batch != null && batch.size() > 1)
+                {
+                    if (!this.sendBatch(packet, telemetryQos0))
+                    {
+                        return;
+                    }
+                    continue;
+                }
 
+                // the packet is held in progress before it is published, since
+                // its acknowledgement may arrive before sendEvent returns.
+                if (!telemetryQos0)
+                {
+                    this.inProgressMessages.add(packet);
+                }
                 try
                 {
-                    IotHubStatusCode status = this.mqttIotHubConnection.sendEvent(packet.getMessage());
-
-                    // Codes_SRS_MQTTTRANSPORT_15_010: [For each message being sent, the function shall add
-                    // the IoT Hub status code along with the callback and context to the callback list.]
-                    IotHubCallbackPacket callbackPacket = new IotHubCallbackPacket(status, packet.getCallback(), packet.getContext());
-                    this.callbackList.add(callbackPacket);
+                    IotHubStatusCode status = this.mqttIotHubConnection.sendEvent(packet.getMessage(), packet);
+                    this.onSent(packet, status, telemetryQos0);
                 }
                 // Codes_SRS_MQTTTRANSPORT_15_011: [If the IoT Hub could not be reached, the message
                 // shall be buffered to be sent again next time.]
+                // Codes_SRS_MQTTTRANSPORT_21_038: [If the MQTT connection is being reconnected, the function
+                // shall stop sending, and leave the buffered messages to the send task to send again.]
+                // Codes_SRS_MQTTTRANSPORT_21_040: [If the in-flight window is full, the function shall stop sending
+                // without waiting, and leave the buffered messages to be sent once a message is acknowledged.]
+                // Codes_SRS_MQTTTRANSPORT_21_042: [A message that could not be sent shall be put back at the head of the waiting list, so that messages are sent in the order they were added.]
                 catch (IllegalStateException e)
                 {
-                    this.waitingList.add(packet);
+                    this.inProgressMessages.remove(packet);
+                    this.waitingList.addFirst(packet);
+                    return;
                 }
+            }
+        }
+    }
 
+    /**
+     * Publishes the given packet together with the packets of its batch that
+     * are still waiting.
+     *
+     * @param first the first packet of the batch taken off the waiting list.
+     * @param telemetryQos0 whether the messages are published at QoS 0.
+     * @return {@code false} if some of the messages were buffered again, since
+     * the MQTT connection is being reconnected.
+     */
+    private boolean sendBatch(IotHubOutboundPacket first, boolean telemetryQos0)
+    {
+        List<IotHubOutboundPacket> members = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+        members.add(first);
+        messages.add(first.getMessage());
+        for (IotHubOutboundPacket member : first.getBatch())
+        {
+            if (member != first && this.waitingList.remove(member))
+            {
+                members.add(member);
+                messages.add(member.getMessage());
             }
         }
+
+        if (!telemetryQos0)
+        {
+            this.inProgressMessages.addAll(members);
+        }
+        try
+        {
+            List<IotHubStatusCode> statuses = this.mqttIotHubConnection.sendEventBatch(messages, members);
+            for (int i = 0; i < statuses.size(); i++)
+            {
+                this.onSent(members.get(i), statuses.get(i), telemetryQos0);
+            }
+
+            // Codes_SRS_MQTTTRANSPORT_21_039: [The messages of a batch left unsent when the MQTT connection
+            // was lost or the in-flight window filled up shall be buffered to be sent again next time.]
+            // Codes_SRS_MQTTTRANSPORT_21_042: [A message that could not be sent shall be put back at the head of the waiting list, so that messages are sent in the order they were added.]
+            List<IotHubOutboundPacket> unsent = members.subList(statuses.size(), members.size());
+            this.inProgressMessages.removeAll(unsent);
+            this.putBack(unsent);
+            return unsent.isEmpty();
+        }
+        // Codes_SRS_MQTTTRANSPORT_15_011: [If the IoT Hub could not be reached, the message
+        // shall be buffered to be sent again next time.]
+        catch (IllegalStateException e)
+        {
+            this.inProgressMessages.removeAll(members);
+            this.putBack(members);
+            return false;
+        }
+    }
+
+    /**
+     * Puts packets back at the head of the waiting list, in their order.
+     *
+     * @param packets the packets to put back, oldest first.
+     */
+    private void putBack(List<IotHubOutboundPacket> packets)
+    {
+        ListIterator<IotHubOutboundPacket> iterator = packets.listIterator(packets.size());
+        while (iterator.hasPrevious())
+        {
+            this.waitingList.addFirst(iterator.previous());
+        }
+    }
+
+    /**
+     * Keeps a published message in progress until the IoT Hub acknowledges
+     * it, or completes it at once if it could not be published or was
+     * published at QoS 0.
+     *
+     * @param packet the sent message.
+     * @param status the status of handing the message to the MQTT connection.
+     * @param telemetryQos0 whether the message was published at QoS 0.
+     */
+    private void onSent(IotHubOutboundPacket packet, IotHubStatusCode status, boolean telemetryQos0)
+    {
+        // Codes_SRS_MQTTTRANSPORT_21_034: [A published message shall be kept in progress, and completed when the IoT Hub acknowledges it.]
+        // Codes_SRS_MQTTTRANSPORT_21_037: [If the configuration asks for QoS 0 telemetry, a sent message shall not be held in progress, but completed at once with the status of handing it to the MQTT connection.]
+        if (telemetryQos0 || (status != IotHubStatusCode.OK_EMPTY && this.inProgressMessages.remove(packet)))
+        {
+            // Codes_SRS_MQTTTRANSPORT_15_010: [For each message that could not be published, the function shall add
+            // the IoT Hub status code along with the callback and context to the callback list.]
+            this.callbackList.add(new IotHubCallbackPacket(status, packet.getCallback(), packet.getContext()));
+            // Codes_SRS_MQTTTRANSPORT_21_023: [The function shall release the room held in the send queue by each message that is completed.]
+            this.sendQueueLimiter.release(packet);
+        }
     }
 
     /**
-     * Invokes the callbacks for all completed requests.
+     * When a message is acknowledged by the IoT Hub, it is removed from the
+     * messages in progress and its callback is added to the list of callbacks
+     * to be executed.
+     *
+     * @param context the packet of the acknowledged message.
+     */
+    public void messageSent(Object context)
+    {
+        // Codes_SRS_MQTTTRANSPORT_21_035: [If the acknowledged message is not in progress, the function shall do nothing.]
+        if (!(context instanceof IotHubOutboundPacket) || !this.inProgressMessages.remove(context))
+        {
+            return;
+        }
+
+        // Codes_SRS_MQTTTRANSPORT_21_036: [The function shall add the callback of the acknowledged message to the callback list with the OK_EMPTY status, release the room it held in the send queue, and signal the send task to invoke it.]
+        IotHubOutboundPacket packet = (IotHubOutboundPacket) context;
+        this.callbackList.add(new IotHubCallbackPacket(IotHubStatusCode.OK_EMPTY, packet.getCallback(), packet.getContext()));
+        this.sendQueueLimiter.release(packet);
+
+        IotHubSendTask task = this.sendTask;
+        if (task != null)
+        {
+            task.signal();
+        }
+    }
+
+    /**
+     * Invokes the callbacks for all completed requests. The callbacks run
+     * without holding the lock of the send path, so a callback can send
+     * messages, even if it is handed to a callback executor that makes it
+     * wait for room.
      *
      * @throws IllegalStateException if the transport has not been opened or is closed.
      */
@@ -204,18 +471,22 @@ public final class MqttTransport implements IotHubTransport
             {
                 throw new IllegalStateException("MQTT transport is closed.");
             }
+        }
 
-            // Codes_SRS_MQTTTRANSPORT_15_013: [The function shall invoke all callbacks on the callback queue.]
-            while (!this.callbackList.isEmpty())
-            {
-                // Codes_SRS_MQTTTRANSPORT_15_015: [If an exception is thrown during the callback,
-                // the function shall drop the callback from the queue.]
-                IotHubCallbackPacket packet = this.callbackList.remove();
-
-                IotHubStatusCode status = packet.getStatus();
-                IotHubEventCallback callback = packet.getCallback();
-                Object context = packet.getContext();
+        // Codes_SRS_MQTTTRANSPORT_15_013: [The function shall invoke all callbacks on the callback queue.]
+        // Codes_SRS_MQTTTRANSPORT_21_043: [The function shall invoke the callbacks without holding the lock that adding a message takes.]
+        // Codes_SRS_MQTTTRANSPORT_15_015: [If an exception is thrown during the callback,
+        // the function shall drop the callback from the queue.]
+        IotHubCallbackPacket packet;
+        while ((packet = this.callbackList.poll()) != null)
+        {
+            IotHubStatusCode status = packet.getStatus();
+            IotHubEventCallback callback = packet.getCallback();
+            Object context = packet.getContext();
 
+            // Codes_SRS_MQTTTRANSPORT_21_026: [The function shall skip callback packets with no callback, such as those of messages replayed from the send journal.]
+            if (callback != null)
+            {
                 callback.execute(status, context);
             }
         }
@@ -242,6 +513,10 @@ public final class MqttTransport implements IotHubTransport
                 throw new IllegalStateException("MQTT transport is closed.");
             }
 
+            // Codes_SRS_MQTTTRANSPORT_21_041: [The function shall hand the messages received for the device twin
+            // to it, whether or not a message callback is registered.]
+            this.mqttIotHubConnection.receiveDeviceTwin();
+
             MessageCallback callback = this.config.getMessageCallback();
             Object context = this.config.getMessageContext();
             if (callback == null)
@@ -249,24 +524,61 @@ public final class MqttTransport implements IotHubTransport
                 return;
             }
 
-            try
+            // Codes_SRS_MQTTTRANSPORT_15_016: [The function shall attempt to consume a message from the IoT Hub.]
+            // Codes_SRS_MQTTTRANSPORT_21_031: [The function shall consume every message received so far, since the receive task is signalled once for all the messages that arrive while it is queued or running.]
+            Message message = this.mqttIotHubConnection.receiveMessage();
+            while (message != null)
             {
-                // Codes_SRS_MQTTTRANSPORT_15_016: [The function shall attempt to consume a message from the IoT Hub.]
-                Message message = this.mqttIotHubConnection.receiveMessage();
-
                 // Codes_SRS_MQTTTRANSPORT_15_017: [If a message is found and a message callback is registered,
                 // the function shall invoke the callback on the message.]
-                if (message != null)
-                {
-                    callback.execute(message, context);
-                }
-            } catch (IllegalStateException e)
-            {
-                throw e;
+                callback.execute(message, context);
+                message = this.mqttIotHubConnection.receiveMessage();
             }
         }
     }
 
+    /**
+     * Updates reported properties of the device twin. The updates made within
+     * a short window are published as one patch.
+     *
+     * @param properties the values of the properties, {@code null} to remove one.
+     *
+     * @throws IllegalStateException if the transport has not been opened or is closed.
+     * @throws IOException if the device twin could not be started.
+     */
+    public void updateReportedProperties(Map<String, ?> properties) throws IllegalStateException, IOException
+    {
+        // Codes_SRS_MQTTTRANSPORT_21_044: [If the transport is closed, the function shall throw an IllegalStateException.]
+        if (this.state == State.CLOSED)
+        {
+            throw new IllegalStateException("MQTT transport is closed.");
+        }
+
+        // Codes_SRS_MQTTTRANSPORT_21_045: [The function shall hand the properties to the MQTT connection, which publishes them with the next patch of the reported properties.]
+        this.mqttIotHubConnection.updateReportedProperties(properties);
+    }
+
+    /**
+     * Returns the desired properties of the device twin, kept up to date as
+     * the IoT Hub sends their updates. The first call starts the device twin.
+     *
+     * @return a copy of the desired properties, or {@code null} until the twin is read.
+     *
+     * @throws IllegalStateException if the transport has not been opened or is closed.
+     * @throws IOException if the device twin could not be started.
+     */
+    public JsonObject getDesiredProperties() throws IllegalStateException, IOException
+    {
+        // Codes_SRS_MQTTTRANSPORT_21_044: [If the transport is closed, the function shall throw an IllegalStateException.]
+        if (this.state == State.CLOSED)
+        {
+            throw new IllegalStateException("MQTT transport is closed.");
+        }
+
+        // Codes_SRS_MQTTTRANSPORT_21_046: [The function shall return the desired properties kept by the MQTT connection.]
+        return this.mqttIotHubConnection.getDesiredProperties();
+    }
+
     /**
      * Returns {@code true} if the transport has no more messages to handle,
      * and {@code false} otherwise.
@@ -278,9 +590,9 @@ public final class MqttTransport implements IotHubTransport
     {
         synchronized (sendMessagesLock)
         {
-            // Codes_SRS_MQTTTRANSPORT_15_019: [The function shall return true if the waiting list
-            // and callback list are all empty, and false otherwise.]
-            if (this.waitingList.isEmpty() && this.callbackList.isEmpty())
+            // Codes_SRS_MQTTTRANSPORT_15_019: [The function shall return true if the waiting list,
+            // in progress list and callback list are all empty, and false otherwise.]
+            if (this.waitingList.isEmpty() && this.inProgressMessages.isEmpty() && this.callbackList.isEmpty())
             {
                 return true;
             }
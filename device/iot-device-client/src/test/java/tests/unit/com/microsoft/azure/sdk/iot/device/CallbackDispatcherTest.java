@@ -0,0 +1,287 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package tests.unit.com.microsoft.azure.sdk.iot.device;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.microsoft.azure.sdk.iot.device.CallbackDispatcher;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageCallback;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for CallbackDispatcher. */
+public class CallbackDispatcherTest
+{
+    /** An executor that holds the submitted tasks until the test runs them. */
+    private static final class HeldExecutor implements Executor
+    {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        public synchronized void execute(Runnable command)
+        {
+            tasks.add(command);
+        }
+
+        synchronized Runnable take()
+        {
+            return tasks.remove(0);
+        }
+    }
+
+    private static final Executor DIRECT = new Executor()
+    {
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    // Tests_SRS_CALLBACKDISPATCHER_21_001: [If the executor is null or the capacity is less than 1, the constructor shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorRejectsNullExecutor()
+    {
+        new CallbackDispatcher(null, 1);
+    }
+
+    // Tests_SRS_CALLBACKDISPATCHER_21_001: [If the executor is null or the capacity is less than 1, the constructor shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorRejectsZeroCapacity()
+    {
+        new CallbackDispatcher(DIRECT, 0);
+    }
+
+    // Tests_SRS_CALLBACKDISPATCHER_21_005: [The function shall queue the callback after the callbacks already dispatched.]
+    // Tests_SRS_CALLBACKDISPATCHER_21_006: [If no callback is running, the function shall submit the queued callbacks to the executor.]
+    @Test
+    public void executeRunsCallbacksInOrderWithOneSubmission()
+    {
+        HeldExecutor executor = new HeldExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 16);
+        final List<Integer> order = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++)
+        {
+            final int position = i;
+            dispatcher.execute(new Runnable()
+            {
+                public void run()
+                {
+                    order.add(position);
+                }
+            });
+        }
+
+        assertThat(executor.tasks.size(), is(1));
+        assertThat(order.isEmpty(), is(true));
+        executor.take().run();
+        assertThat(order.toString(), is("[0, 1, 2]"));
+        assertThat(executor.tasks.isEmpty(), is(true));
+    }
+
+    // Tests_SRS_CALLBACKDISPATCHER_21_004: [If capacity callbacks are waiting to run, the function shall wait until one of them has run.]
+    @Test
+    public void executeBlocksWhileQueueIsFull() throws InterruptedException
+    {
+        final HeldExecutor executor = new HeldExecutor();
+        final CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 1);
+        final CountDownLatch added = new CountDownLatch(1);
+        Runnable nothing = new Runnable()
+        {
+            public void run()
+            {
+            }
+        };
+        dispatcher.execute(nothing);
+
+        Thread producer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                dispatcher.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                    }
+                });
+                added.countDown();
+            }
+        });
+        producer.start();
+        boolean addedWhileFull = added.await(200, TimeUnit.MILLISECONDS);
+        executor.take().run();
+        boolean addedAfterDrain = added.await(5, TimeUnit.SECONDS);
+        producer.join();
+
+        assertThat(addedWhileFull, is(false));
+        assertThat(addedAfterDrain, is(true));
+    }
+
+    // Tests_SRS_CALLBACKDISPATCHER_21_012: [A callback that throws shall not prevent the following callbacks from running.]
+    @Test
+    public void throwingCallbackDoesNotStopTheOthers()
+    {
+        CallbackDispatcher dispatcher = new CallbackDispatcher(DIRECT, 16);
+        final boolean[] ran = new boolean[1];
+
+        dispatcher.execute(new Runnable()
+        {
+            public void run()
+            {
+                throw new IllegalStateException("callback failure");
+            }
+        });
+        dispatcher.execute(new Runnable()
+        {
+            public void run()
+            {
+                ran[0] = true;
+            }
+        });
+
+        assertThat(ran[0], is(true));
+    }
+
+    // Tests_SRS_CALLBACKDISPATCHER_21_003: [If the function is called by a callback of this dispatcher, the function shall run the callback on the calling thread.]
+    @Test
+    public void executeFromCallbackRunsInline()
+    {
+        HeldExecutor executor = new HeldExecutor();
+        final CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 1);
+        final List<String> order = new ArrayList<>();
+
+        dispatcher.execute(new Runnable()
+        {
+            public void run()
+            {
+                dispatcher.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        order.add("inner");
+                    }
+                });
+                order.add("outer");
+            }
+        });
+        executor.take().run();
+
+        assertThat(order.toString(), is("[inner, outer]"));
+    }
+
+    // Tests_SRS_CALLBACKDISPATCHER_21_007: [If the callback is null, the function shall return null.]
+    @Test
+    public void wrapNullReturnsNull()
+    {
+        CallbackDispatcher dispatcher = new CallbackDispatcher(DIRECT, 1);
+
+        assertThat(dispatcher.wrap((IotHubEventCallback) null) == null, is(true));
+        assertThat(dispatcher.wrap((MessageCallback) null) == null, is(true));
+    }
+
+    // Tests_SRS_CALLBACKDISPATCHER_21_008: [The function shall return an event callback that dispatches the given callback with the same status and context.]
+    @Test
+    public void wrappedEventCallbackRunsOnExecutor()
+    {
+        HeldExecutor executor = new HeldExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 16);
+        final Object context = new Object();
+        final List<Object> received = new ArrayList<>();
+        IotHubEventCallback wrapped = dispatcher.wrap(new IotHubEventCallback()
+        {
+            public void execute(IotHubStatusCode responseStatus, Object callbackContext)
+            {
+                received.add(responseStatus);
+                received.add(callbackContext);
+            }
+        });
+
+        wrapped.execute(IotHubStatusCode.OK_EMPTY, context);
+        boolean ranBeforeExecutor = !received.isEmpty();
+        executor.take().run();
+
+        assertThat(ranBeforeExecutor, is(false));
+        assertThat(received.get(0) == IotHubStatusCode.OK_EMPTY, is(true));
+        assertThat(received.get(1) == context, is(true));
+    }
+
+    // Tests_SRS_CALLBACKDISPATCHER_21_009: [The function shall return a message callback that dispatches the given callback, waits for it to run, and returns its result.]
+    @Test
+    public void wrappedMessageCallbackReturnsResultFromExecutorThread()
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 16);
+            final Thread caller = Thread.currentThread();
+            final boolean[] ranOnCaller = new boolean[1];
+            MessageCallback wrapped = dispatcher.wrap(new MessageCallback()
+            {
+                public IotHubMessageResult execute(Message message, Object callbackContext)
+                {
+                    ranOnCaller[0] = Thread.currentThread() == caller;
+                    return IotHubMessageResult.REJECT;
+                }
+            });
+
+            IotHubMessageResult result = wrapped.execute(new Message("test"), null);
+
+            assertThat(result, is(IotHubMessageResult.REJECT));
+            assertThat(ranOnCaller[0], is(false));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    // Tests_SRS_CALLBACKDISPATCHER_21_011: [If the message callback throws, the wrapped callback shall throw the same exception.]
+    @Test(expected = IllegalArgumentException.class)
+    public void wrappedMessageCallbackRethrows()
+    {
+        CallbackDispatcher dispatcher = new CallbackDispatcher(DIRECT, 16);
+        MessageCallback wrapped = dispatcher.wrap(new MessageCallback()
+        {
+            public IotHubMessageResult execute(Message message, Object callbackContext)
+            {
+                throw new IllegalArgumentException("callback failure");
+            }
+        });
+
+        wrapped.execute(new Message("test"), null);
+    }
+
+    // Tests_SRS_CALLBACKDISPATCHER_21_010: [If the thread is interrupted while waiting, the wrapped callback shall return ABANDON.]
+    @Test
+    public void interruptedMessageCallbackReturnsAbandon()
+    {
+        HeldExecutor executor = new HeldExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 16);
+        MessageCallback wrapped = dispatcher.wrap(new MessageCallback()
+        {
+            public IotHubMessageResult execute(Message message, Object callbackContext)
+            {
+                return IotHubMessageResult.COMPLETE;
+            }
+        });
+
+        Thread.currentThread().interrupt();
+        IotHubMessageResult result = wrapped.execute(new Message("test"), null);
+        boolean interrupted = Thread.interrupted();
+
+        assertThat(result, is(IotHubMessageResult.ABANDON));
+        assertThat(interrupted, is(true));
+    }
+}
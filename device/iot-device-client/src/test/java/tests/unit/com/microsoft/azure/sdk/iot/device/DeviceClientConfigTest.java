@@ -7,6 +7,8 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
 import com.microsoft.azure.sdk.iot.device.DeviceClientConfig;
+import com.microsoft.azure.sdk.iot.device.DeviceClientRuntime;
+import com.microsoft.azure.sdk.iot.device.SendQueueFullPolicy;
 import com.microsoft.azure.sdk.iot.device.MessageCallback;
 import mockit.Mocked;
 import org.junit.Test;
@@ -238,4 +240,253 @@ public class DeviceClientConfigTest
         assertThat(testMessageLockTimeoutSecs,
                 is(expectedMessageLockTimeoutSecs));
     }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_019: [The function shall save the runtime.]
+    // Tests_SRS_DEVICECLIENTCONFIG_21_020: [The function shall return the runtime, or null if none was set.]
+    @Test
+    public void getAndSetRuntimeMatch(
+            @Mocked final DeviceClientRuntime mockRuntime)
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        DeviceClientRuntime defaultRuntime = config.getRuntime();
+        config.setRuntime(mockRuntime);
+        DeviceClientRuntime testRuntime = config.getRuntime();
+
+        assertThat(defaultRuntime == null, is(true));
+        assertThat(testRuntime, is(mockRuntime));
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_022: [The function shall save the limit.]
+    // Tests_SRS_DEVICECLIENTCONFIG_21_023: [The function shall return the maximum number of messages, which is 0 by default.]
+    // Tests_SRS_DEVICECLIENTCONFIG_21_024: [The function shall return the maximum number of bytes, which is 0 by default.]
+    @Test
+    public void getAndSetSendQueueLimitsMatch()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        int defaultMaxMessages = config.getSendQueueMaxMessages();
+        long defaultMaxBytes = config.getSendQueueMaxBytes();
+        config.setSendQueueMaxMessages(100);
+        config.setSendQueueMaxBytes(65536L);
+
+        assertThat(defaultMaxMessages, is(0));
+        assertThat(defaultMaxBytes, is(0L));
+        assertThat(config.getSendQueueMaxMessages(), is(100));
+        assertThat(config.getSendQueueMaxBytes(), is(65536L));
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_021: [If the limit is negative, the function shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setSendQueueMaxMessagesRejectsNegativeLimit()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        config.setSendQueueMaxMessages(-1);
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_021: [If the limit is negative, the function shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setSendQueueMaxBytesRejectsNegativeLimit()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        config.setSendQueueMaxBytes(-1L);
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_025: [The function shall return the send queue policy, which is BLOCK by default.]
+    // Tests_SRS_DEVICECLIENTCONFIG_21_027: [The function shall save the policy.]
+    @Test
+    public void getAndSetSendQueueFullPolicyMatch()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        SendQueueFullPolicy defaultPolicy = config.getSendQueueFullPolicy();
+        config.setSendQueueFullPolicy(SendQueueFullPolicy.DROP_OLDEST);
+
+        assertThat(defaultPolicy, is(SendQueueFullPolicy.BLOCK));
+        assertThat(config.getSendQueueFullPolicy(), is(SendQueueFullPolicy.DROP_OLDEST));
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_026: [If the policy is null, the function shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setSendQueueFullPolicyRejectsNull()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        config.setSendQueueFullPolicy(null);
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_028: [The function shall save the journal directory.]
+    // Tests_SRS_DEVICECLIENTCONFIG_21_029: [The function shall return the journal directory, which is null by default.]
+    // Tests_SRS_DEVICECLIENTCONFIG_21_031: [The function shall save the size.]
+    // Tests_SRS_DEVICECLIENTCONFIG_21_032: [The function shall return the maximum size of the journal, which is DEFAULT_SEND_JOURNAL_MAX_BYTES by default.]
+    @Test
+    public void getAndSetSendJournalMatch()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        String defaultDirectory = config.getSendJournalDirectory();
+        long defaultMaxBytes = config.getSendJournalMaxBytes();
+        config.setSendJournalDirectory("journal");
+        config.setSendJournalMaxBytes(4096L);
+
+        assertThat(defaultDirectory == null, is(true));
+        assertThat(defaultMaxBytes, is(DeviceClientConfig.DEFAULT_SEND_JOURNAL_MAX_BYTES));
+        assertThat(config.getSendJournalDirectory(), is("journal"));
+        assertThat(config.getSendJournalMaxBytes(), is(4096L));
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_030: [If the size is not positive, the function shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setSendJournalMaxBytesRejectsZero()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        config.setSendJournalMaxBytes(0L);
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_033: [The function shall save the AMQP settled send mode.]
+    // Tests_SRS_DEVICECLIENTCONFIG_21_034: [The function shall return the AMQP settled send mode, which is false by default.]
+    @Test
+    public void getAndSetAmqpSendSettledMatch()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        boolean defaultSendSettled = config.isAmqpSendSettled();
+        config.setAmqpSendSettled(true);
+
+        assertThat(defaultSendSettled, is(false));
+        assertThat(config.isAmqpSendSettled(), is(true));
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_036: [The function shall save the credit.]
+    // Tests_SRS_DEVICECLIENTCONFIG_21_037: [The function shall return the AMQP receive credit, which is DEFAULT_AMQP_RECEIVE_CREDIT by default.]
+    @Test
+    public void getAndSetAmqpReceiveCreditMatch()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        int defaultCredit = config.getAmqpReceiveCredit();
+        config.setAmqpReceiveCredit(64);
+
+        assertThat(defaultCredit, is(DeviceClientConfig.DEFAULT_AMQP_RECEIVE_CREDIT));
+        assertThat(config.getAmqpReceiveCredit(), is(64));
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_035: [If the credit is less than 2, the function shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setAmqpReceiveCreditRejectsOne()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        config.setAmqpReceiveCredit(1);
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_039: [The function shall save the window.]
+    // Tests_SRS_DEVICECLIENTCONFIG_21_040: [The function shall return the MQTT in-flight window, which is MAX_MQTT_IN_FLIGHT by default.]
+    @Test
+    public void getAndSetMqttMaxInFlightMatch()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        int defaultWindow = config.getMqttMaxInFlight();
+        config.setMqttMaxInFlight(4);
+
+        assertThat(defaultWindow, is(DeviceClientConfig.MAX_MQTT_IN_FLIGHT));
+        assertThat(config.getMqttMaxInFlight(), is(4));
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_038: [If the window is less than 1 or greater than MAX_MQTT_IN_FLIGHT, the function shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setMqttMaxInFlightRejectsWindowAbovePahoLimit()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        config.setMqttMaxInFlight(DeviceClientConfig.MAX_MQTT_IN_FLIGHT + 1);
+    }
+
+    // Tests_SRS_DEVICECLIENTCONFIG_21_041: [The function shall save the MQTT QoS 0 telemetry mode.]
+    // Tests_SRS_DEVICECLIENTCONFIG_21_042: [The function shall return the MQTT QoS 0 telemetry mode, which is false by default.]
+    @Test
+    public void getAndSetMqttTelemetryQos0Match()
+            throws URISyntaxException
+    {
+        final String iotHubHostname = "test.iothubhostname";
+        final String deviceId = "test-deviceid";
+        final String deviceKey = "test-devicekey";
+        final String sharedAccessToken = null;
+
+        DeviceClientConfig config = new DeviceClientConfig(iotHubHostname, deviceId, deviceKey, sharedAccessToken);
+        boolean defaultQos0 = config.isMqttTelemetryQos0();
+        config.setMqttTelemetryQos0(true);
+
+        assertThat(defaultQos0, is(false));
+        assertThat(config.isMqttTelemetryQos0(), is(true));
+    }
 }
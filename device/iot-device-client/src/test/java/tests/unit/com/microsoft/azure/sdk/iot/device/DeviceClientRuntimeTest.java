@@ -0,0 +1,212 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package tests.unit.com.microsoft.azure.sdk.iot.device;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.microsoft.azure.sdk.iot.device.DeviceClientConfig;
+import com.microsoft.azure.sdk.iot.device.DeviceClientRuntime;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsMultiplexedConnection;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import mockit.Verifications;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/** Unit tests for DeviceClientRuntime. */
+public class DeviceClientRuntimeTest
+{
+    @Mocked
+    Executors mockExecutors;
+
+    @Mocked
+    ScheduledExecutorService mockScheduler;
+
+    @Mocked
+    ExecutorService mockReactorExecutor;
+
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_001: [The constructor shall create a scheduler with as many threads as there are available processors.]
+    @Test
+    public void constructorSizesSchedulerToAvailableProcessors()
+    {
+        final int expectedThreadCount = Runtime.getRuntime().availableProcessors();
+
+        new DeviceClientRuntime();
+
+        new Verifications()
+        {
+            {
+                Executors.newScheduledThreadPool(expectedThreadCount, (ThreadFactory) any);
+            }
+        };
+    }
+
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_002: [If threadCount is less than 1, the constructor shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorFailsForZeroThreads()
+    {
+        new DeviceClientRuntime(0);
+    }
+
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_003: [The constructor shall create a scheduler with threadCount threads.]
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_004: [The constructor shall create a pool for the AMQP reactors that reuses idle threads.]
+    @Test
+    public void constructorCreatesSchedulerAndReactorPool()
+    {
+        final int threadCount = 3;
+
+        new DeviceClientRuntime(threadCount);
+
+        new Verifications()
+        {
+            {
+                Executors.newScheduledThreadPool(threadCount, (ThreadFactory) any);
+                times = 1;
+                Executors.newCachedThreadPool((ThreadFactory) any);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_005: [The function shall return the shared scheduler.]
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_006: [The function shall return the shared reactor executor.]
+    @Test
+    public void gettersReturnSharedExecutors()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                Executors.newScheduledThreadPool(anyInt, (ThreadFactory) any);
+                result = mockScheduler;
+                Executors.newCachedThreadPool((ThreadFactory) any);
+                result = mockReactorExecutor;
+            }
+        };
+
+        DeviceClientRuntime runtime = new DeviceClientRuntime(2);
+
+        assertThat(runtime.getScheduler(), is(mockScheduler));
+        assertThat(runtime.getReactorExecutor(), is(mockReactorExecutor));
+    }
+
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_007: [The function shall shut down the scheduler and the reactor executor.]
+    @Test
+    public void closeShutsDownExecutors()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                Executors.newScheduledThreadPool(anyInt, (ThreadFactory) any);
+                result = mockScheduler;
+                Executors.newCachedThreadPool((ThreadFactory) any);
+                result = mockReactorExecutor;
+            }
+        };
+
+        DeviceClientRuntime runtime = new DeviceClientRuntime(2);
+        runtime.close();
+
+        new Verifications()
+        {
+            {
+                mockScheduler.shutdown();
+                mockReactorExecutor.shutdown();
+            }
+        };
+    }
+
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_008: [The constructor shall save whether the AMQPS clients share their connections.]
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_009: [The function shall return whether the AMQPS clients share their connections.]
+    @Test
+    public void constructorSavesAmqpMultiplexing()
+    {
+        assertFalse(new DeviceClientRuntime(2).isAmqpMultiplexed());
+        assertTrue(new DeviceClientRuntime(2, true).isAmqpMultiplexed());
+    }
+
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_010: [If the runtime was not created with AMQP multiplexing, the function shall throw an IllegalStateException.]
+    @Test(expected = IllegalStateException.class)
+    public void getMultiplexedConnectionFailsWithoutMultiplexing(@Mocked DeviceClientConfig mockConfig)
+    {
+        new DeviceClientRuntime(2).getMultiplexedConnection(mockConfig, false);
+    }
+
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_011: [The function shall return the connection shared by the clients of the same IoT Hub host and web sockets use, creating it for the first one.]
+    @Test
+    public void getMultiplexedConnectionSharesConnectionPerHub(@Mocked final DeviceClientConfig mockConfig,
+            @Mocked final DeviceClientConfig mockOtherHubConfig, @Mocked AmqpsMultiplexedConnection mockConnection)
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getIotHubHostname();
+                result = "hub1.azure-devices.net";
+                mockOtherHubConfig.getIotHubHostname();
+                result = "hub2.azure-devices.net";
+            }
+        };
+        DeviceClientRuntime runtime = new DeviceClientRuntime(2, true);
+
+        AmqpsMultiplexedConnection first = runtime.getMultiplexedConnection(mockConfig, false);
+
+        assertSame(first, runtime.getMultiplexedConnection(mockConfig, false));
+        assertNotSame(first, runtime.getMultiplexedConnection(mockConfig, true));
+        assertNotSame(first, runtime.getMultiplexedConnection(mockOtherHubConfig, false));
+        new Verifications()
+        {
+            {
+                new AmqpsMultiplexedConnection((DeviceClientConfig) any, anyBoolean, (ExecutorService) any);
+                times = 3;
+            }
+        };
+    }
+
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_012: [If maxReactors is less than 1, the constructor shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorFailsForZeroReactors()
+    {
+        new DeviceClientRuntime(2, false, 0);
+    }
+
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_013: [If maxReactors reactor threads are already reserved, the function shall throw an IllegalStateException.]
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_014: [The function shall count the reactor thread as reserved.]
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_015: [The function shall count one reactor thread less as reserved.]
+    @Test
+    public void reserveReactorFailsOnceAllReactorsAreReserved()
+    {
+        DeviceClientRuntime runtime = new DeviceClientRuntime(2, false, 2);
+        runtime.reserveReactor();
+        runtime.reserveReactor();
+
+        try
+        {
+            runtime.reserveReactor();
+            fail("a third reactor thread was reserved");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+
+        runtime.releaseReactor();
+        runtime.reserveReactor();
+    }
+
+    // Tests_SRS_DEVICECLIENTRUNTIME_21_016: [If no reactor thread is reserved, the function shall throw an IllegalStateException.]
+    @Test(expected = IllegalStateException.class)
+    public void releaseReactorFailsIfNoneIsReserved()
+    {
+        new DeviceClientRuntime(2).releaseReactor();
+    }
+}
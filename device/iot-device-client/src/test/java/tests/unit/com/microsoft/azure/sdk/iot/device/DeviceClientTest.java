@@ -3,13 +3,19 @@
 
 package tests.unit.com.microsoft.azure.sdk.iot.device;
 
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.google.gson.JsonObject;
 import com.microsoft.azure.sdk.iot.device.*;
 import com.microsoft.azure.sdk.iot.device.DeviceClient;
 import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsTransport;
 import com.microsoft.azure.sdk.iot.device.transport.https.HttpsTransport;
 
+import com.microsoft.azure.sdk.iot.device.transport.IotHubOutboundPacket;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubReceiveTask;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubSendTask;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubTransport;
 import com.microsoft.azure.sdk.iot.device.transport.mqtt.MqttTransport;
 import mockit.Mocked;
 import mockit.NonStrictExpectations;
@@ -18,10 +24,16 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /** Unit tests for DeviceClient. */
@@ -310,7 +322,7 @@ public class DeviceClientTest
         };
     }
 
-    // Tests_SRS_DEVICECLIENT_11_023: [The function shall schedule send tasks to run every SEND_PERIOD_MILLIS milliseconds.]
+    // Tests_SRS_DEVICECLIENT_11_023: [The function shall create a send task that is signalled by the transport whenever it has work, and that retries every SEND_PERIOD_MILLIS milliseconds while the transport is not empty.]
     @Test
     public void openStartsSendTask(
             @Mocked final ScheduledExecutorService mockScheduler,
@@ -331,9 +343,13 @@ public class DeviceClientTest
         new Verifications()
         {
             {
+                new IotHubSendTask((IotHubTransport) any, (ScheduledExecutorService) any, expectedSendPeriodMillis);
+                mockTransport.setSendTask((IotHubSendTask) any);
+                mockTask.signal();
                 mockScheduler.scheduleAtFixedRate((IotHubSendTask) any,
-                        anyLong, expectedSendPeriodMillis,
+                        anyLong, anyLong,
                         TimeUnit.MILLISECONDS);
+                times = 1;
             }
         };
     }
@@ -365,6 +381,46 @@ public class DeviceClientTest
         };
     }
 
+    // Tests_SRS_DEVICECLIENT_21_083: [If the transport signals the receive task when messages arrive, the function shall not schedule the receive task, but run it once for the messages that arrived while the transport was opening.]
+    // Tests_SRS_DEVICECLIENT_21_084: [If the transport signals the receive task, the function shall signal it, so that messages that arrived while there was no callback are handled.]
+    @Test
+    public void openSignalsReceiveTaskIfTransportSignalsIt(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final MqttTransport mockTransport,
+            @Mocked final IotHubSendTask mockSendTask,
+            @Mocked final IotHubReceiveTask mockReceiveTask,
+            @Mocked final MessageCallback mockCallback)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+        new NonStrictExpectations()
+        {
+            {
+                mockTransport.setReceiveTask((IotHubReceiveTask) any);
+                result = true;
+            }
+        };
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.open();
+        client.setMessageCallback(mockCallback, null);
+
+        new Verifications()
+        {
+            {
+                mockScheduler.scheduleAtFixedRate((IotHubReceiveTask) any,
+                        anyLong, anyLong,
+                        TimeUnit.MILLISECONDS);
+                times = 0;
+                List<IotHubReceiveTask> receiveTasks = withCapture(new IotHubReceiveTask((IotHubTransport) any, (ScheduledExecutorService) any));
+                onInstance(receiveTasks.get(0)).signal();
+                times = 2;
+            }
+        };
+    }
+
     // Tests_SRS_DEVICECLIENT_11_036: [If an error occurs in opening the transport, the function shall throw an IOException.]
     @Test(expected = IOException.class)
     public void openThrowsIOExceptionIfTransportOpenFails(
@@ -483,6 +539,116 @@ public class DeviceClientTest
         };
     }
 
+    // Tests_SRS_DEVICECLIENT_21_055: [If the runtime is null, the function shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void runtimeConstructorFailsIfRuntimeIsNull(
+            @Mocked final AmqpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+
+        new DeviceClient(connString, protocol, null);
+    }
+
+    // Tests_SRS_DEVICECLIENT_21_056: [The constructor shall save the runtime and make it available to the transport through the configuration.]
+    @Test
+    public void runtimeConstructorSavesRuntimeInConfig(
+            @Mocked final AmqpsTransport mockTransport,
+            @Mocked final DeviceClientRuntime mockRuntime)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+
+        new DeviceClient(connString, protocol, mockRuntime);
+
+        new Verifications()
+        {
+            {
+                mockConfig.setRuntime(mockRuntime);
+            }
+        };
+    }
+
+    // Tests_SRS_DEVICECLIENT_21_057: [If the client was created with a runtime, the function shall run its tasks on the runtime's scheduler.]
+    @Test
+    public void openWithRuntimeUsesRuntimeScheduler(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final AmqpsTransport mockTransport,
+            @Mocked final IotHubSendTask mockTask,
+            @Mocked final DeviceClientRuntime mockRuntime)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+        new NonStrictExpectations()
+        {
+            {
+                mockRuntime.getScheduler();
+                result = mockScheduler;
+            }
+        };
+
+        DeviceClient client = new DeviceClient(connString, protocol, mockRuntime);
+        client.open();
+
+        new Verifications()
+        {
+            {
+                Executors.newScheduledThreadPool(anyInt);
+                times = 0;
+                new IotHubSendTask((IotHubTransport) any, mockScheduler, anyLong);
+                mockScheduler.scheduleAtFixedRate((IotHubReceiveTask) any,
+                        anyLong, anyLong, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    // Tests_SRS_DEVICECLIENT_21_058: [If the client was created with a runtime, the function shall cancel its receive task and shall not shut down the runtime's scheduler.]
+    @Test
+    public void closeWithRuntimeCancelsReceiveTaskOnly(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final ScheduledFuture mockFuture,
+            @Mocked final HttpsTransport mockTransport,
+            @Mocked final IotHubSendTask mockSendTask,
+            @Mocked final IotHubReceiveTask mockReceiveTask,
+            @Mocked final DeviceClientRuntime mockRuntime)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+        new NonStrictExpectations()
+        {
+            {
+                mockRuntime.getScheduler();
+                result = mockScheduler;
+                mockScheduler.scheduleAtFixedRate((IotHubReceiveTask) any, anyLong, anyLong, TimeUnit.MILLISECONDS);
+                result = mockFuture;
+                mockTransport.isEmpty();
+                result = true;
+            }
+        };
+
+        DeviceClient client = new DeviceClient(connString, protocol, mockRuntime);
+        client.open();
+        client.close();
+
+        new Verifications()
+        {
+            {
+                mockFuture.cancel(false);
+                mockScheduler.shutdown();
+                times = 0;
+                mockTransport.close();
+            }
+        };
+    }
+
     // Tests_SRS_DEVICECLIENT_11_031: [If the client is already closed, the function shall do nothing.]
     @Test
     public void closeDoesNothingOnUnopenedClient(
@@ -577,6 +743,33 @@ public class DeviceClientTest
         };
     }
 
+    // Tests_SRS_DEVICECLIENT_21_059: [The function shall send the message with a callback that completes the returned future with the response status.]
+    @Test
+    public void sendEventAsyncWithoutCallbackReturnsFutureCompletedByCallback(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final AmqpsTransport mockTransport,
+            @Mocked final Message mockMsg)
+            throws Exception
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.open();
+        final Future<IotHubStatusCode> future = client.sendEventAsync(mockMsg);
+
+        new Verifications()
+        {
+            {
+                mockTransport.addMessage(mockMsg, (IotHubEventCallback) future, null);
+            }
+        };
+        assertThat(future.isDone(), is(false));
+        ((IotHubEventCallback) future).execute(IotHubStatusCode.OK_EMPTY, null);
+        assertThat(future.get(), is(IotHubStatusCode.OK_EMPTY));
+    }
+
     // Tests_SRS_DEVICECLIENT_11_033: [If the message given is null, the function shall throw an IllegalArgumentException.]
     @Test(expected = IllegalArgumentException.class)
     public void sendEventAsyncRejectsNullMessage(
@@ -640,108 +833,145 @@ public class DeviceClientTest
         client.sendEventAsync(mockMsg, mockCallback, context);
     }
 
-    // Tests_SRS_DEVICECLIENT_11_012: [The function shall set the message callback, with its associated context.]
+    // Tests_SRS_DEVICECLIENT_21_071: [The function shall give each message a callback that records its status, and invoke the batch callback once every message has one.]
+    // Tests_SRS_DEVICECLIENT_21_072: [The function shall add the batch to the transport as a single unit.]
     @Test
-    public void setMessageCallbackSetsMessageCallback(
+    public void sendEventBatchAsyncAddsBatchToTransport(
             @Mocked final ScheduledExecutorService mockScheduler,
             @Mocked final AmqpsTransport mockTransport,
-            @Mocked final MessageCallback mockCallback)
+            @Mocked final IotHubBatchEventCallback mockBatchCallback)
             throws IOException, URISyntaxException
     {
         final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
                 + "SharedAccessKey=adjkl234j52=";
         final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
-        final Map<String, Object> context = new HashMap<>();
+        final Message first = new Message("first");
+        final Message second = new Message("second");
+        final Object context = new Object();
 
         DeviceClient client = new DeviceClient(connString, protocol);
-        client.setMessageCallback(mockCallback, context);
+        client.open();
+        client.sendEventBatchAsync(Arrays.asList(first, second), mockBatchCallback, context);
 
+        final List<List<IotHubOutboundPacket>> batches = new ArrayList<>();
         new Verifications()
         {
             {
-                mockConfig.setMessageCallback(mockCallback, any);
+                mockTransport.addMessageBatch(withCapture(batches));
+                times = 1;
+            }
+        };
+        List<IotHubOutboundPacket> batch = batches.get(0);
+        assertThat(batch.size(), is(2));
+        assertThat(batch.get(0).getMessage() == first, is(true));
+        assertThat(batch.get(1).getMessage() == second, is(true));
+        assertThat((Integer) batch.get(1).getContext(), is(1));
+
+        batch.get(1).getCallback().execute(IotHubStatusCode.OK_EMPTY, batch.get(1).getContext());
+        batch.get(0).getCallback().execute(IotHubStatusCode.ERROR, batch.get(0).getContext());
+        new Verifications()
+        {
+            {
+                mockBatchCallback.execute(Arrays.asList(IotHubStatusCode.ERROR, IotHubStatusCode.OK_EMPTY), context);
+                times = 1;
             }
         };
     }
 
-    // Tests_SRS_DEVICECLIENT_11_012: [The function shall set the message callback, with its associated context.]
+    // Tests_SRS_DEVICECLIENT_21_092: [The function shall hand the properties to the MQTT transport.]
     @Test
-    public void setMessageCallbackSetsCallbackContext(
+    public void updateReportedPropertiesHandsPropertiesToMqttTransport(
             @Mocked final ScheduledExecutorService mockScheduler,
-            @Mocked final AmqpsTransport mockTransport,
-            @Mocked final MessageCallback mockCallback)
+            @Mocked final MqttTransport mockTransport)
             throws IOException, URISyntaxException
     {
         final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
                 + "SharedAccessKey=adjkl234j52=";
-        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
-        final Map<String, Object> context = new HashMap<>();
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("temperature", 21);
 
         DeviceClient client = new DeviceClient(connString, protocol);
-        client.setMessageCallback(mockCallback, context);
+        client.open();
+        client.updateReportedProperties(properties);
 
         new Verifications()
         {
             {
-                mockConfig.setMessageCallback(
-                        (MessageCallback) any, context);
+                mockTransport.updateReportedProperties(properties);
+                times = 1;
             }
         };
     }
 
-    // Tests_SRS_DEVICECLIENT_11_032: [If the callback is null but the context is non-null, the function shall throw an IllegalArgumentException.]
-    @Test(expected = IllegalArgumentException.class)
-    public void setMessageCallbackRejectsNullCallbackAndNonnullContext(
+    // Tests_SRS_DEVICECLIENT_21_093: [The function shall return the desired properties kept by the MQTT transport.]
+    @Test
+    public void getDesiredPropertiesReturnsMqttTransportDesiredProperties(
             @Mocked final ScheduledExecutorService mockScheduler,
-            @Mocked final AmqpsTransport mockTransport)
+            @Mocked final MqttTransport mockTransport)
             throws IOException, URISyntaxException
     {
         final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
                 + "SharedAccessKey=adjkl234j52=";
-        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
-        final Map<String, Object> context = new HashMap<>();
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+        final JsonObject desired = new JsonObject();
+        new NonStrictExpectations()
+        {
+            {
+                mockTransport.getDesiredProperties();
+                result = desired;
+            }
+        };
 
         DeviceClient client = new DeviceClient(connString, protocol);
-        client.setMessageCallback(null, context);
+        client.open();
+
+        assertThat(client.getDesiredProperties() == desired, is(true));
     }
 
-    // Tests_SRS_DEVICECLIENT_02_001: [If optionName is null or not an option handled by the client, then it shall throw IllegalArgumentException.]
+    // Tests_SRS_DEVICECLIENT_21_091: [If the properties are null, the function shall throw an IllegalArgumentException.]
     @Test(expected = IllegalArgumentException.class)
-    public void setOptionWithnullOptionNameThrows(
+    public void updateReportedPropertiesRejectsNullProperties(
             @Mocked final ScheduledExecutorService mockScheduler,
-            @Mocked final AmqpsTransport mockTransport)
+            @Mocked final MqttTransport mockTransport)
             throws IOException, URISyntaxException
     {
         final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
                 + "SharedAccessKey=adjkl234j52=";
-        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
 
         DeviceClient client = new DeviceClient(connString, protocol);
-
-        long someMiliseconds = 4;
-        client.setOption(null, someMiliseconds);
+        client.open();
+        client.updateReportedProperties(null);
     }
 
-    // Tests_SRS_DEVICECLIENT_02_001: [If optionName is null or not an option handled by the client, then it shall throw IllegalArgumentException.]
-    @Test(expected = IllegalArgumentException.class)
-    public void setOptionWithUnknownOptionNameThrows(
+    // Tests_SRS_DEVICECLIENT_21_094: [If the client is closed, the device twin functions shall throw an IllegalStateException.]
+    @Test(expected = IllegalStateException.class)
+    public void getDesiredPropertiesFailsIfClientClosed(
             @Mocked final ScheduledExecutorService mockScheduler,
-            @Mocked final HttpsTransport mockTransport)
+            @Mocked final MqttTransport mockTransport)
             throws IOException, URISyntaxException
     {
         final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
                 + "SharedAccessKey=adjkl234j52=";
-        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+        new NonStrictExpectations()
+        {
+            {
+                mockTransport.isEmpty();
+                result = true;
+            }
+        };
 
         DeviceClient client = new DeviceClient(connString, protocol);
-
-        long someMiliseconds = 4;
-        client.setOption("thisIsNotAHandledOption", someMiliseconds);
+        client.open();
+        client.close();
+        client.getDesiredProperties();
     }
 
-    //Tests_SRS_DEVICECLIENT_02_003: [Available only for HTTP.]
-    @Test(expected = IllegalArgumentException.class)
-    public void setOptionMinimumPollingIntervalWithAMQPfails(
+    // Tests_SRS_DEVICECLIENT_21_095: [If the client does not use MQTT, the device twin functions shall throw an UnsupportedOperationException.]
+    @Test(expected = UnsupportedOperationException.class)
+    public void updateReportedPropertiesFailsIfClientDoesNotUseMqtt(
             @Mocked final ScheduledExecutorService mockScheduler,
             @Mocked final AmqpsTransport mockTransport)
             throws IOException, URISyntaxException
@@ -749,79 +979,228 @@ public class DeviceClientTest
         final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
                 + "SharedAccessKey=adjkl234j52=";
         final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
-        long someMiliseconds = 4;
 
         DeviceClient client = new DeviceClient(connString, protocol);
-
-            client.setOption("SetMinimumPollingInterval", someMiliseconds);
-
+        client.open();
+        client.updateReportedProperties(new HashMap<String, Object>());
     }
 
-    //Tests_SRS_DEVICECLIENT_02_004: [Value needs to have type long].
+    // Tests_SRS_DEVICECLIENT_21_070: [If the list of messages is null or empty, or holds a null message, the function shall throw an IllegalArgumentException.]
     @Test(expected = IllegalArgumentException.class)
-    public void setOptionMinimumPollingIntervalWithStringInsteadOfLongFails(
+    public void sendEventBatchAsyncRejectsEmptyBatch(
             @Mocked final ScheduledExecutorService mockScheduler,
-            @Mocked final HttpsTransport mockTransport)
+            @Mocked final AmqpsTransport mockTransport,
+            @Mocked final IotHubBatchEventCallback mockBatchCallback)
             throws IOException, URISyntaxException
     {
         final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
                 + "SharedAccessKey=adjkl234j52=";
-        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
 
         DeviceClient client = new DeviceClient(connString, protocol);
-        client.setOption("SetMinimumPollingInterval", "thisIsNotALong");
+        client.open();
+        client.sendEventBatchAsync(new ArrayList<Message>(), mockBatchCallback, null);
     }
 
-    //Tests_SRS_DEVICECLIENT_02_005: [Setting the option can only be done before open call.]
+    // Tests_SRS_DEVICECLIENT_21_069: [If the client is closed, the function shall throw an IllegalStateException.]
     @Test(expected = IllegalStateException.class)
-    public void setOptionMinimumPollingIntervalAfterOpenFails(
+    public void sendEventBatchAsyncFailsIfClientNotOpened(
             @Mocked final ScheduledExecutorService mockScheduler,
-            @Mocked final HttpsTransport mockTransport)
+            @Mocked final AmqpsTransport mockTransport,
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubBatchEventCallback mockBatchCallback)
             throws IOException, URISyntaxException
     {
         final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
                 + "SharedAccessKey=adjkl234j52=";
-        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
 
         DeviceClient client = new DeviceClient(connString, protocol);
-        client.open();
-        long value = 3;
-        client.setOption("SetMinimumPollingInterval", value);
+        client.sendEventBatchAsync(Arrays.asList(mockMsg), mockBatchCallback, null);
     }
 
-    //Tests_SRS_DEVICECLIENT_02_002: ["SetMinimumPollingInterval" - time in miliseconds between 2 consecutive polls.]
+    // Tests_SRS_DEVICECLIENT_11_012: [The function shall set the message callback, with its associated context.]
     @Test
-    public void setOptionMinimumPollingIntervalSucceeds(
+    public void setMessageCallbackSetsMessageCallback(
             @Mocked final ScheduledExecutorService mockScheduler,
-            @Mocked final HttpsTransport mockTransport)
+            @Mocked final AmqpsTransport mockTransport,
+            @Mocked final MessageCallback mockCallback)
             throws IOException, URISyntaxException
     {
         final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
                 + "SharedAccessKey=adjkl234j52=";
-        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+        final Map<String, Object> context = new HashMap<>();
 
         DeviceClient client = new DeviceClient(connString, protocol);
-        long value = 3;
-        client.setOption("SetMinimumPollingInterval", value);
-
-        client.open();
+        client.setMessageCallback(mockCallback, context);
 
         new Verifications()
         {
             {
-               mockScheduler.scheduleAtFixedRate((IotHubSendTask) any,
-                        anyLong, 3,
-                        TimeUnit.MILLISECONDS);
+                mockConfig.setMessageCallback(mockCallback, any);
             }
         };
     }
 
-    //Tests_SRS_DEVICECLIENT_25_009: [**"SetSASTokenExpiryTime" should have value type long.]
-    @Test(expected = IllegalArgumentException.class)
-    public void setOptionSASTokenExpiryTimeWithStringInsteadOfLongFails(
-            @Mocked final HttpsTransport mockTransport)
-            throws IOException, URISyntaxException
-    {
+    // Tests_SRS_DEVICECLIENT_11_012: [The function shall set the message callback, with its associated context.]
+    @Test
+    public void setMessageCallbackSetsCallbackContext(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final AmqpsTransport mockTransport,
+            @Mocked final MessageCallback mockCallback)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+        final Map<String, Object> context = new HashMap<>();
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setMessageCallback(mockCallback, context);
+
+        new Verifications()
+        {
+            {
+                mockConfig.setMessageCallback(
+                        (MessageCallback) any, context);
+            }
+        };
+    }
+
+    // Tests_SRS_DEVICECLIENT_11_032: [If the callback is null but the context is non-null, the function shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setMessageCallbackRejectsNullCallbackAndNonnullContext(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final AmqpsTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+        final Map<String, Object> context = new HashMap<>();
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setMessageCallback(null, context);
+    }
+
+    // Tests_SRS_DEVICECLIENT_02_001: [If optionName is null or not an option handled by the client, then it shall throw IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionWithnullOptionNameThrows(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final AmqpsTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+
+        long someMiliseconds = 4;
+        client.setOption(null, someMiliseconds);
+    }
+
+    // Tests_SRS_DEVICECLIENT_02_001: [If optionName is null or not an option handled by the client, then it shall throw IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionWithUnknownOptionNameThrows(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final HttpsTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+
+        long someMiliseconds = 4;
+        client.setOption("thisIsNotAHandledOption", someMiliseconds);
+    }
+
+    //Tests_SRS_DEVICECLIENT_02_003: [Available only for HTTP.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionMinimumPollingIntervalWithAMQPfails(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final AmqpsTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+        long someMiliseconds = 4;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+
+            client.setOption("SetMinimumPollingInterval", someMiliseconds);
+
+    }
+
+    //Tests_SRS_DEVICECLIENT_02_004: [Value needs to have type long].
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionMinimumPollingIntervalWithStringInsteadOfLongFails(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final HttpsTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetMinimumPollingInterval", "thisIsNotALong");
+    }
+
+    //Tests_SRS_DEVICECLIENT_02_005: [Setting the option can only be done before open call.]
+    @Test(expected = IllegalStateException.class)
+    public void setOptionMinimumPollingIntervalAfterOpenFails(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final HttpsTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.open();
+        long value = 3;
+        client.setOption("SetMinimumPollingInterval", value);
+    }
+
+    //Tests_SRS_DEVICECLIENT_02_002: ["SetMinimumPollingInterval" - time in miliseconds between 2 consecutive polls.]
+    @Test
+    public void setOptionMinimumPollingIntervalSucceeds(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final HttpsTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        long value = 3;
+        client.setOption("SetMinimumPollingInterval", value);
+
+        client.open();
+
+        new Verifications()
+        {
+            {
+               mockScheduler.scheduleAtFixedRate((IotHubSendTask) any,
+                        anyLong, 3,
+                        TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    //Tests_SRS_DEVICECLIENT_25_009: [**"SetSASTokenExpiryTime" should have value type long.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionSASTokenExpiryTimeWithStringInsteadOfLongFails(
+            @Mocked final HttpsTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
         final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
                 + "SharedAccessKey=adjkl234j52=";
         final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
@@ -1069,4 +1448,484 @@ public class DeviceClientTest
             }
         };
     }
+
+    //Tests_SRS_DEVICECLIENT_21_064: ["SetSendQueueMaxMessages", "SetSendQueueMaxBytes" and "SetSendQueueFullPolicy" are available for HTTPS/AMQP/MQTT.]
+    @Test
+    public void setOptionSendQueueLimitsSucceeds(
+            @Mocked final MqttTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetSendQueueMaxMessages", 100);
+        client.setOption("SetSendQueueMaxBytes", 65536L);
+        client.setOption("SetSendQueueFullPolicy", SendQueueFullPolicy.FAIL_FAST);
+
+        new Verifications()
+        {
+            {
+                mockConfig.setSendQueueMaxMessages(100);
+                times = 1;
+                mockConfig.setSendQueueMaxBytes(65536L);
+                times = 1;
+                mockConfig.setSendQueueFullPolicy(SendQueueFullPolicy.FAIL_FAST);
+                times = 1;
+            }
+        };
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_060: [The send queue options shall only be set while the client is closed.]
+    @Test(expected = IllegalStateException.class)
+    public void setOptionSendQueueMaxMessagesAfterOpenFails(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final AmqpsTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.open();
+        client.setOption("SetSendQueueMaxMessages", 100);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_061: ["SetSendQueueMaxMessages" shall have value type int.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionSendQueueMaxMessagesWithLongFails(
+            @Mocked final AmqpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetSendQueueMaxMessages", 100L);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_062: ["SetSendQueueMaxBytes" shall have value type long.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionSendQueueMaxBytesWithStringFails(
+            @Mocked final HttpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetSendQueueMaxBytes", "thisIsNotALong");
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_063: ["SetSendQueueFullPolicy" shall have value type SendQueueFullPolicy.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionSendQueueFullPolicyWithStringFails(
+            @Mocked final HttpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetSendQueueFullPolicy", "FAIL_FAST");
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_065: ["SetSendJournalDirectory" and "SetSendJournalMaxBytes" are available for HTTPS/AMQP/MQTT.]
+    @Test
+    public void setOptionSendJournalSucceeds(
+            @Mocked final AmqpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetSendJournalDirectory", "journal");
+        client.setOption("SetSendJournalMaxBytes", 4096L);
+
+        new Verifications()
+        {
+            {
+                mockConfig.setSendJournalDirectory("journal");
+                times = 1;
+                mockConfig.setSendJournalMaxBytes(4096L);
+                times = 1;
+            }
+        };
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_066: [The send journal options shall only be set while the client is closed.]
+    @Test(expected = IllegalStateException.class)
+    public void setOptionSendJournalDirectoryAfterOpenFails(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final MqttTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.open();
+        client.setOption("SetSendJournalDirectory", "journal");
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_067: ["SetSendJournalDirectory" shall have value type String, or be null to disable the journal.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionSendJournalDirectoryWithLongFails(
+            @Mocked final HttpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetSendJournalDirectory", 3L);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_068: ["SetSendJournalMaxBytes" shall have value type long.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionSendJournalMaxBytesWithIntFails(
+            @Mocked final HttpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetSendJournalMaxBytes", 4096);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_074: ["SetCallbackExecutor" shall have value type Executor, or be null to run callbacks on the client's own threads.]
+    //Tests_SRS_DEVICECLIENT_21_075: [If a callback executor is set, the function shall give the transport a callback that runs the given callback on it.]
+    //Tests_SRS_DEVICECLIENT_21_078: ["SetCallbackExecutor" and "SetCallbackQueueCapacity" are available for HTTPS/AMQP/MQTT.]
+    @Test
+    public void setOptionCallbackExecutorRunsEventCallbacksOnIt(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final AmqpsTransport mockTransport,
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+        final Map<String, Object> context = new HashMap<>();
+        final List<Runnable> submitted = new ArrayList<>();
+        Executor executor = new Executor()
+        {
+            public void execute(Runnable command)
+            {
+                submitted.add(command);
+            }
+        };
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetCallbackExecutor", executor);
+        client.setOption("SetCallbackQueueCapacity", 16);
+        client.open();
+        client.sendEventAsync(mockMsg, mockCallback, context);
+
+        final List<IotHubEventCallback> callbacks = new ArrayList<>();
+        new Verifications()
+        {
+            {
+                mockTransport.addMessage(mockMsg, withCapture(callbacks), context);
+            }
+        };
+        callbacks.get(0).execute(IotHubStatusCode.OK_EMPTY, context);
+        assertThat(submitted.size(), is(1));
+        new Verifications()
+        {
+            {
+                mockCallback.execute((IotHubStatusCode) any, any);
+                times = 0;
+            }
+        };
+        submitted.get(0).run();
+        new Verifications()
+        {
+            {
+                mockCallback.execute(IotHubStatusCode.OK_EMPTY, context);
+                times = 1;
+            }
+        };
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_073: [The callback executor options shall only be set while the client is closed.]
+    @Test(expected = IllegalStateException.class)
+    public void setOptionCallbackExecutorAfterOpenFails(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final MqttTransport mockTransport,
+            @Mocked final Executor mockCallbackExecutor)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.open();
+        client.setOption("SetCallbackExecutor", mockCallbackExecutor);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_074: ["SetCallbackExecutor" shall have value type Executor, or be null to run callbacks on the client's own threads.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionCallbackExecutorWithStringFails(
+            @Mocked final HttpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetCallbackExecutor", "executor");
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_077: ["SetCallbackQueueCapacity" shall have value type int, and be at least 1.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionCallbackQueueCapacityWithZeroFails(
+            @Mocked final HttpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetCallbackQueueCapacity", 0);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_079: ["SetAmqpSendSettled" and "SetAmqpReceiveCredit" are available only for AMQP.]
+    //Tests_SRS_DEVICECLIENT_21_081: ["SetAmqpSendSettled" shall have value type boolean.]
+    @Test
+    public void setOptionAmqpSendSettledSucceeds(
+            @Mocked final AmqpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetAmqpSendSettled", true);
+
+        new Verifications()
+        {
+            {
+                mockConfig.setAmqpSendSettled(true);
+                times = 1;
+            }
+        };
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_079: ["SetAmqpSendSettled" and "SetAmqpReceiveCredit" are available only for AMQP.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionAmqpSendSettledWithMqttFails(
+            @Mocked final MqttTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetAmqpSendSettled", true);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_080: [The AMQP link options shall only be set while the client is closed.]
+    @Test(expected = IllegalStateException.class)
+    public void setOptionAmqpSendSettledAfterOpenFails(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final AmqpsTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.open();
+        client.setOption("SetAmqpSendSettled", true);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_079: ["SetAmqpSendSettled" and "SetAmqpReceiveCredit" are available only for AMQP.]
+    //Tests_SRS_DEVICECLIENT_21_082: ["SetAmqpReceiveCredit" shall have value type int, and be at least 2.]
+    @Test
+    public void setOptionAmqpReceiveCreditSucceeds(
+            @Mocked final AmqpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetAmqpReceiveCredit", 64);
+
+        new Verifications()
+        {
+            {
+                mockConfig.setAmqpReceiveCredit(64);
+                times = 1;
+            }
+        };
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_082: ["SetAmqpReceiveCredit" shall have value type int, and be at least 2.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionAmqpReceiveCreditWithOneFails(
+            @Mocked final AmqpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetAmqpReceiveCredit", 1);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_085: ["SetMqttMaxInFlight" is available only for MQTT.]
+    //Tests_SRS_DEVICECLIENT_21_087: ["SetMqttMaxInFlight" shall have value type int, between 1 and DeviceClientConfig.MAX_MQTT_IN_FLIGHT.]
+    @Test
+    public void setOptionMqttMaxInFlightSucceeds(
+            @Mocked final MqttTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetMqttMaxInFlight", 4);
+
+        new Verifications()
+        {
+            {
+                mockConfig.setMqttMaxInFlight(4);
+                times = 1;
+            }
+        };
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_085: ["SetMqttMaxInFlight" is available only for MQTT.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionMqttMaxInFlightWithAmqpFails(
+            @Mocked final AmqpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.AMQPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetMqttMaxInFlight", 4);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_086: [The MQTT in-flight window shall only be set while the client is closed.]
+    @Test(expected = IllegalStateException.class)
+    public void setOptionMqttMaxInFlightAfterOpenFails(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final MqttTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.open();
+        client.setOption("SetMqttMaxInFlight", 4);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_087: ["SetMqttMaxInFlight" shall have value type int, between 1 and DeviceClientConfig.MAX_MQTT_IN_FLIGHT.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionMqttMaxInFlightRejectsZero(
+            @Mocked final MqttTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetMqttMaxInFlight", 0);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_088: ["SetMqttTelemetryQos0" is available only for MQTT.]
+    //Tests_SRS_DEVICECLIENT_21_090: ["SetMqttTelemetryQos0" shall have value type boolean.]
+    @Test
+    public void setOptionMqttTelemetryQos0Succeeds(
+            @Mocked final MqttTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetMqttTelemetryQos0", true);
+
+        new Verifications()
+        {
+            {
+                mockConfig.setMqttTelemetryQos0(true);
+                times = 1;
+            }
+        };
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_088: ["SetMqttTelemetryQos0" is available only for MQTT.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionMqttTelemetryQos0WithHttpsFails(
+            @Mocked final HttpsTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.HTTPS;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetMqttTelemetryQos0", true);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_089: [The MQTT QoS 0 telemetry mode shall only be set while the client is closed.]
+    @Test(expected = IllegalStateException.class)
+    public void setOptionMqttTelemetryQos0AfterOpenFails(
+            @Mocked final ScheduledExecutorService mockScheduler,
+            @Mocked final MqttTransport mockTransport)
+            throws IOException, URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.open();
+        client.setOption("SetMqttTelemetryQos0", true);
+    }
+
+    //Tests_SRS_DEVICECLIENT_21_090: ["SetMqttTelemetryQos0" shall have value type boolean.]
+    @Test(expected = IllegalArgumentException.class)
+    public void setOptionMqttTelemetryQos0RejectsNonBoolean(
+            @Mocked final MqttTransport mockTransport)
+            throws URISyntaxException
+    {
+        final String connString = "HostName=iothub.device.com;CredentialType=SharedAccessKey;DeviceId=testdevice;"
+                + "SharedAccessKey=adjkl234j52=";
+        final IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
+
+        DeviceClient client = new DeviceClient(connString, protocol);
+        client.setOption("SetMqttTelemetryQos0", 0);
+    }
 }
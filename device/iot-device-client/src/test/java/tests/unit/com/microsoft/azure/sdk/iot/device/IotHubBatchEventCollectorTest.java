@@ -0,0 +1,88 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package tests.unit.com.microsoft.azure.sdk.iot.device;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.microsoft.azure.sdk.iot.device.IotHubBatchEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubBatchEventCollector;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for IotHubBatchEventCollector. */
+public class IotHubBatchEventCollectorTest
+{
+    private static final class RecordingCallback implements IotHubBatchEventCallback
+    {
+        int calls;
+        List<IotHubStatusCode> statuses;
+        Object context;
+
+        public void execute(List<IotHubStatusCode> responseStatuses, Object callbackContext)
+        {
+            this.calls++;
+            this.statuses = responseStatuses;
+            this.context = callbackContext;
+        }
+    }
+
+    // Tests_SRS_IOTHUBBATCHEVENTCOLLECTOR_21_001: [If the size is not positive or the callback is null, the constructor shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorRejectsEmptyBatch()
+    {
+        new IotHubBatchEventCollector(0, new RecordingCallback(), null);
+    }
+
+    // Tests_SRS_IOTHUBBATCHEVENTCOLLECTOR_21_001: [If the size is not positive or the callback is null, the constructor shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorRejectsNullCallback()
+    {
+        new IotHubBatchEventCollector(1, null, null);
+    }
+
+    // Tests_SRS_IOTHUBBATCHEVENTCOLLECTOR_21_002: [The constructor shall save the callback and its context, and wait for the status of `size` messages.]
+    // Tests_SRS_IOTHUBBATCHEVENTCOLLECTOR_21_005: [Once the status of every message is recorded, the function shall execute the batch callback with the statuses in the order of the batch.]
+    @Test
+    public void executeCallsBackOnceAllStatusesAreIn()
+    {
+        RecordingCallback callback = new RecordingCallback();
+        Object context = new Object();
+
+        IotHubBatchEventCollector collector = new IotHubBatchEventCollector(2, callback, context);
+        collector.execute(IotHubStatusCode.MESSAGE_EXPIRED, 1);
+        int callsBeforeLast = callback.calls;
+        collector.execute(IotHubStatusCode.OK_EMPTY, 0);
+
+        assertThat(callsBeforeLast, is(0));
+        assertThat(callback.calls, is(1));
+        assertThat(callback.statuses, is(Arrays.asList(IotHubStatusCode.OK_EMPTY, IotHubStatusCode.MESSAGE_EXPIRED)));
+        assertThat(callback.context == context, is(true));
+    }
+
+    // Tests_SRS_IOTHUBBATCHEVENTCOLLECTOR_21_004: [The function shall record the status of the message, ignoring any later status for the same message.]
+    @Test
+    public void executeIgnoresRepeatedStatus()
+    {
+        RecordingCallback callback = new RecordingCallback();
+
+        IotHubBatchEventCollector collector = new IotHubBatchEventCollector(2, callback, null);
+        collector.execute(IotHubStatusCode.OK_EMPTY, 0);
+        collector.execute(IotHubStatusCode.ERROR, 0);
+
+        assertThat(callback.calls, is(0));
+    }
+
+    // Tests_SRS_IOTHUBBATCHEVENTCOLLECTOR_21_003: [If the context is not the Integer position of a message in the batch, the function shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void executeRejectsPositionOutOfBatch()
+    {
+        IotHubBatchEventCollector collector = new IotHubBatchEventCollector(1, new RecordingCallback(), null);
+
+        collector.execute(IotHubStatusCode.OK_EMPTY, 1);
+    }
+}
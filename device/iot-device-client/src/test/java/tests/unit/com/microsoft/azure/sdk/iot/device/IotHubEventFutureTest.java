@@ -0,0 +1,67 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package tests.unit.com.microsoft.azure.sdk.iot.device;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventFuture;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** Unit tests for IotHubEventFuture. */
+public class IotHubEventFutureTest
+{
+    // Tests_SRS_IOTHUBEVENTFUTURE_21_001: [The function shall complete the future with the given status if it is not already complete.]
+    // Tests_SRS_IOTHUBEVENTFUTURE_21_004: [The function shall return true if the future is complete and false otherwise.]
+    // Tests_SRS_IOTHUBEVENTFUTURE_21_005: [The function shall wait for the future to complete and return its status.]
+    @Test
+    public void executeCompletesFuture() throws InterruptedException
+    {
+        IotHubEventFuture future = new IotHubEventFuture();
+        boolean doneBeforeExecute = future.isDone();
+
+        future.execute(IotHubStatusCode.OK_EMPTY, null);
+
+        assertThat(doneBeforeExecute, is(false));
+        assertThat(future.isDone(), is(true));
+        assertThat(future.get(), is(IotHubStatusCode.OK_EMPTY));
+    }
+
+    // Tests_SRS_IOTHUBEVENTFUTURE_21_001: [The function shall complete the future with the given status if it is not already complete.]
+    @Test
+    public void executeKeepsFirstStatus() throws InterruptedException
+    {
+        IotHubEventFuture future = new IotHubEventFuture();
+
+        future.execute(IotHubStatusCode.OK_EMPTY, null);
+        future.execute(IotHubStatusCode.ERROR, null);
+
+        assertThat(future.get(), is(IotHubStatusCode.OK_EMPTY));
+    }
+
+    // Tests_SRS_IOTHUBEVENTFUTURE_21_002: [The function shall return false.]
+    // Tests_SRS_IOTHUBEVENTFUTURE_21_003: [The function shall return false.]
+    @Test
+    public void futureCannotBeCancelled()
+    {
+        IotHubEventFuture future = new IotHubEventFuture();
+
+        assertThat(future.cancel(true), is(false));
+        assertThat(future.isCancelled(), is(false));
+    }
+
+    // Tests_SRS_IOTHUBEVENTFUTURE_21_006: [If the future does not complete within the timeout, the function shall throw a TimeoutException.]
+    @Test(expected = TimeoutException.class)
+    public void getWithTimeoutThrowsIfNotCompleted()
+            throws InterruptedException, TimeoutException
+    {
+        IotHubEventFuture future = new IotHubEventFuture();
+
+        future.get(1, TimeUnit.MILLISECONDS);
+    }
+}
@@ -260,4 +260,40 @@ public class MessageTest
         boolean expectedResult = false;
         assertThat(expectedResult, is(actualResult));
     }
-}
\ No newline at end of file
+
+    // Tests_SRS_MESSAGE_21_037: [The function shall return the length of the message body, or 0 if the message has no body.]
+    @Test
+    public void getBodyLengthReturnsLengthOfBody()
+    {
+        final byte[] body = { 1, 2, 3 };
+
+        Message msg = new Message(body);
+
+        assertThat(msg.getBodyLength(), is(3));
+    }
+
+    // Tests_SRS_MESSAGE_21_038: [The function shall return the expiry time of the message, or 0 if it never expires.]
+    @Test
+    public void getExpiryTimeReturnsAbsoluteExpiryTime()
+    {
+        Message msg = new Message("test");
+        long defaultExpiryTime = msg.getExpiryTime();
+        long before = System.currentTimeMillis();
+        msg.setExpiryTime(1000);
+
+        assertThat(defaultExpiryTime, is(0L));
+        assertThat(msg.getExpiryTime() >= before + 1000, is(true));
+    }
+
+    // Tests_SRS_MESSAGE_21_039: [The function shall return the correlation id set on the message, or null if none was set.]
+    @Test
+    public void getCorrelationIdReturnsNullUntilSet()
+    {
+        Message msg = new Message("test");
+        String defaultCorrelationId = msg.getCorrelationId();
+        msg.setCorrelationId("request-1");
+
+        assertThat(defaultCorrelationId == null, is(true));
+        assertThat(msg.getCorrelationId(), is("request-1"));
+    }
+}
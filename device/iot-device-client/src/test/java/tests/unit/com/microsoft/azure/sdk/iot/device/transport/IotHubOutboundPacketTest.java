@@ -13,9 +13,12 @@ import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
 import com.microsoft.azure.sdk.iot.device.Message;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubOutboundPacket;
 import mockit.Mocked;
+import mockit.NonStrictExpectations;
 import org.junit.Test;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -77,4 +80,76 @@ public class IotHubOutboundPacketTest
                 context.entrySet();
         assertThat(testEntrySet, everyItem(isIn(expectedEntrySet)));
     }
+
+    // Tests_SRS_IOTHUBOUTBOUNDPACKET_21_005: [The constructor shall save the length of the message body, or 0 if there is no message.]
+    // Tests_SRS_IOTHUBOUTBOUNDPACKET_21_006: [The function shall return the length of the message body saved by the constructor.]
+    @Test
+    public void getMessageSizeReturnsBodyLength()
+    {
+        final Map<String, Object> context = new HashMap<>();
+        new NonStrictExpectations()
+        {
+            {
+                mockMsg.getBodyLength();
+                result = 42;
+            }
+        };
+
+        IotHubOutboundPacket packet =
+                new IotHubOutboundPacket(mockMsg, mockCallback, context);
+        IotHubOutboundPacket emptyPacket =
+                new IotHubOutboundPacket(null, mockCallback, context);
+
+        assertThat(packet.getMessageSize(), is(42));
+        assertThat(emptyPacket.getMessageSize(), is(0));
+    }
+
+    // Tests_SRS_IOTHUBOUTBOUNDPACKET_21_007: [The function shall save the journal sequence number.]
+    // Tests_SRS_IOTHUBOUTBOUNDPACKET_21_008: [The function shall return the journal sequence number, which is -1 if the message is not journaled.]
+    @Test
+    public void getAndSetJournalSequenceMatch()
+    {
+        final Map<String, Object> context = new HashMap<>();
+
+        IotHubOutboundPacket packet =
+                new IotHubOutboundPacket(mockMsg, mockCallback, context);
+        long defaultSequence = packet.getJournalSequence();
+        packet.setJournalSequence(5);
+
+        assertThat(defaultSequence, is(-1L));
+        assertThat(packet.getJournalSequence(), is(5L));
+    }
+
+    // Tests_SRS_IOTHUBOUTBOUNDPACKET_21_009: [The function shall save the batch.]
+    // Tests_SRS_IOTHUBOUTBOUNDPACKET_21_010: [The function shall return the batch, which is null if the message was queued alone.]
+    @Test
+    public void getAndSetBatchMatch()
+    {
+        final Map<String, Object> context = new HashMap<>();
+
+        IotHubOutboundPacket packet =
+                new IotHubOutboundPacket(mockMsg, mockCallback, context);
+        List<IotHubOutboundPacket> defaultBatch = packet.getBatch();
+        List<IotHubOutboundPacket> batch = Collections.singletonList(packet);
+        packet.setBatch(batch);
+
+        assertThat(defaultBatch == null, is(true));
+        assertThat(packet.getBatch() == batch, is(true));
+    }
+
+    // Tests_SRS_IOTHUBOUTBOUNDPACKET_21_011: [The function shall save whether the message holds room in the send queue.]
+    // Tests_SRS_IOTHUBOUTBOUNDPACKET_21_012: [The function shall return whether the message holds room in the send queue, which is false until room is reserved for it.]
+    @Test
+    public void getAndSetQueuedMatch()
+    {
+        final Map<String, Object> context = new HashMap<>();
+
+        IotHubOutboundPacket packet =
+                new IotHubOutboundPacket(mockMsg, mockCallback, context);
+        boolean defaultQueued = packet.isQueued();
+        packet.setQueued(true);
+
+        assertThat(defaultQueued, is(false));
+        assertThat(packet.isQueued(), is(true));
+    }
 }
@@ -12,12 +12,16 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /** Unit tests for IotHubReceiveTask. */
 public class IotHubReceiveTaskTest
 {
     @Mocked HttpsTransport mockTransport;
 
+    @Mocked ScheduledExecutorService mockScheduler;
+
     // Tests_SRS_IOTHUBRECEIVETASK_11_001: [The constructor shall save the transport.]
     // Tests_SRS_IOTHUBRECEIVETASK_11_002: [The function shall poll an IoT Hub for messages, invoke the message callback if one exists, and return one of COMPLETE, ABANDON, or REJECT to the IoT Hub.]
     @Test
@@ -53,6 +57,7 @@ public class IotHubReceiveTaskTest
     }
 
     // Tests_SRS_IOTHUBRECEIVETASK_11_005: [The function shall not crash because of any error or exception thrown by the transport.]
+    // Tests_SRS_SIGNALDRIVENTASK_21_007: [The function shall not crash because of any error or exception thrown by the work of the task.]
     @Test
     public void runDoesNotCrashFromThrowable()
             throws IOException, URISyntaxException
@@ -68,4 +73,101 @@ public class IotHubReceiveTaskTest
         IotHubReceiveTask receiveTask = new IotHubReceiveTask(mockTransport);
         receiveTask.run();
     }
+
+    // Tests_SRS_SIGNALDRIVENTASK_21_002: [If the task has no scheduler, the function shall do nothing.]
+    @Test
+    public void signalDoesNothingWithoutScheduler()
+    {
+        IotHubReceiveTask receiveTask = new IotHubReceiveTask(mockTransport);
+        receiveTask.signal();
+
+        new Verifications()
+        {
+            {
+                mockScheduler.execute((Runnable) any);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_IOTHUBRECEIVETASK_21_006: [The constructor shall save the scheduler.]
+    // Tests_SRS_SIGNALDRIVENTASK_21_003: [If the task is idle, the function shall submit it to the scheduler.]
+    // Tests_SRS_SIGNALDRIVENTASK_21_005: [If the task is already queued to run, the function shall do nothing.]
+    @Test
+    public void signalSubmitsIdleTaskOnceWhileQueued()
+    {
+        final IotHubReceiveTask receiveTask = new IotHubReceiveTask(mockTransport, mockScheduler);
+        receiveTask.signal();
+        receiveTask.signal();
+
+        new Verifications()
+        {
+            {
+                mockScheduler.execute(receiveTask);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_SIGNALDRIVENTASK_21_004: [If the task is running, the function shall cause it to run once more after the current run.]
+    // Tests_SRS_SIGNALDRIVENTASK_21_008: [If the task was signalled while running, the function shall submit it to the scheduler again.]
+    @Test
+    public void signalWhileRunningResubmitsTask() throws IOException, URISyntaxException
+    {
+        final IotHubReceiveTask receiveTask = new IotHubReceiveTask(mockTransport, mockScheduler);
+        new NonStrictExpectations()
+        {
+            {
+                mockTransport.handleMessage();
+                result = new mockit.Delegate()
+                {
+                    void handleMessage()
+                    {
+                        receiveTask.signal();
+                    }
+                };
+            }
+        };
+
+        receiveTask.run();
+
+        new Verifications()
+        {
+            {
+                mockScheduler.execute(receiveTask);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_IOTHUBRECEIVETASK_21_012: [The function shall have the scheduler signal the task once the delay has passed.]
+    @Test
+    public void signalWithDelaySubmitsTaskOnceDelayHasPassed()
+    {
+        final IotHubReceiveTask receiveTask = new IotHubReceiveTask(mockTransport, mockScheduler);
+        new NonStrictExpectations()
+        {
+            {
+                mockScheduler.schedule((Runnable) any, 500, TimeUnit.MILLISECONDS);
+                result = new mockit.Delegate()
+                {
+                    Object schedule(Runnable command, long delay, TimeUnit unit)
+                    {
+                        command.run();
+                        return null;
+                    }
+                };
+            }
+        };
+
+        receiveTask.signal(500);
+
+        new Verifications()
+        {
+            {
+                mockScheduler.execute(receiveTask);
+                times = 1;
+            }
+        };
+    }
 }
@@ -12,6 +12,8 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /** Unit tests for IotHubSendTask. */
 public class IotHubSendTaskTest
@@ -19,6 +21,9 @@ public class IotHubSendTaskTest
     @Mocked
     AmqpsTransport mockTransport;
 
+    @Mocked
+    ScheduledExecutorService mockScheduler;
+
     // Tests_SRS_IOTHUBSENDTASK_11_001: [The constructor shall save the transport.]
     // Tests_SRS_IOTHUBSENDTASK_11_002: [The function shall send all messages on the transport queue.]
     @Test
@@ -68,6 +73,7 @@ public class IotHubSendTaskTest
     }
 
     // Tests_SRS_IOTHUBSENDTASK_11_008: [The function shall not crash because of any error or exception thrown by the transport.]
+    // Tests_SRS_SIGNALDRIVENTASK_21_007: [The function shall not crash because of any error or exception thrown by the work of the task.]
     @Test
     public void runDoesNotCrashFromThrowable()
             throws IOException, URISyntaxException
@@ -83,4 +89,141 @@ public class IotHubSendTaskTest
         IotHubSendTask sendTask = new IotHubSendTask(mockTransport);
         sendTask.run();
     }
+
+    // Tests_SRS_SIGNALDRIVENTASK_21_002: [If the task has no scheduler, the function shall do nothing.]
+    @Test
+    public void signalDoesNothingWithoutScheduler()
+    {
+        IotHubSendTask sendTask = new IotHubSendTask(mockTransport);
+        sendTask.signal();
+
+        new Verifications()
+        {
+            {
+                mockScheduler.execute((Runnable) any);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_IOTHUBSENDTASK_21_009: [The constructor shall save the scheduler and the retry period.]
+    // Tests_SRS_SIGNALDRIVENTASK_21_003: [If the task is idle, the function shall submit it to the scheduler.]
+    @Test
+    public void signalSubmitsIdleTaskToScheduler()
+    {
+        final IotHubSendTask sendTask = new IotHubSendTask(mockTransport, mockScheduler, 10);
+        sendTask.signal();
+
+        new Verifications()
+        {
+            {
+                mockScheduler.execute(sendTask);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_SIGNALDRIVENTASK_21_005: [If the task is already queued to run, the function shall do nothing.]
+    @Test
+    public void signalCoalescesSignalsWhileQueued()
+    {
+        final IotHubSendTask sendTask = new IotHubSendTask(mockTransport, mockScheduler, 10);
+        sendTask.signal();
+        sendTask.signal();
+        sendTask.signal();
+
+        new Verifications()
+        {
+            {
+                mockScheduler.execute(sendTask);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_SIGNALDRIVENTASK_21_004: [If the task is running, the function shall cause it to run once more after the current run.]
+    // Tests_SRS_SIGNALDRIVENTASK_21_008: [If the task was signalled while running, the function shall submit it to the scheduler again.]
+    @Test
+    public void signalWhileRunningResubmitsTask() throws IOException
+    {
+        final IotHubSendTask sendTask = new IotHubSendTask(mockTransport, mockScheduler, 10);
+        new NonStrictExpectations()
+        {
+            {
+                mockTransport.sendMessages();
+                result = new mockit.Delegate()
+                {
+                    void sendMessages()
+                    {
+                        sendTask.signal();
+                    }
+                };
+                mockTransport.isEmpty();
+                result = true;
+            }
+        };
+
+        sendTask.run();
+
+        new Verifications()
+        {
+            {
+                mockScheduler.execute(sendTask);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_SIGNALDRIVENTASK_21_009: [If the task was not signalled while running, the function shall let the task react to becoming idle.]
+    // Tests_SRS_IOTHUBSENDTASK_21_014: [If the transport is not empty after the run, the function shall signal the task again after the retry period.]
+    @Test
+    public void runSchedulesRetryIfTransportNotEmpty()
+    {
+        final long retryPeriodMillis = 10;
+        new NonStrictExpectations()
+        {
+            {
+                mockTransport.isEmpty();
+                result = false;
+            }
+        };
+
+        IotHubSendTask sendTask = new IotHubSendTask(mockTransport, mockScheduler, retryPeriodMillis);
+        sendTask.run();
+        sendTask.run();
+
+        new Verifications()
+        {
+            {
+                mockScheduler.schedule((Runnable) any, retryPeriodMillis, TimeUnit.MILLISECONDS);
+                times = 1;
+                mockScheduler.execute((Runnable) any);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_IOTHUBSENDTASK_21_014: [If the transport is not empty after the run, the function shall signal the task again after the retry period.]
+    @Test
+    public void runDoesNotScheduleRetryIfTransportEmpty()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockTransport.isEmpty();
+                result = true;
+            }
+        };
+
+        IotHubSendTask sendTask = new IotHubSendTask(mockTransport, mockScheduler, 10);
+        sendTask.run();
+
+        new Verifications()
+        {
+            {
+                mockScheduler.schedule((Runnable) any, anyLong, (TimeUnit) any);
+                times = 0;
+            }
+        };
+    }
 }
@@ -0,0 +1,214 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package tests.unit.com.microsoft.azure.sdk.iot.device.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubOutboundPacket;
+import com.microsoft.azure.sdk.iot.device.transport.OutboundJournal;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/** Unit tests for OutboundJournal. */
+public class OutboundJournalTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Tests_SRS_OUTBOUNDJOURNAL_21_001: [If the directory is null or the size is not positive, the constructor shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorRejectsNullDirectory()
+    {
+        new OutboundJournal(null, 1024);
+    }
+
+    // Tests_SRS_OUTBOUNDJOURNAL_21_001: [If the directory is null or the size is not positive, the constructor shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorRejectsZeroSize()
+    {
+        new OutboundJournal(folder.getRoot(), 0);
+    }
+
+    // Tests_SRS_OUTBOUNDJOURNAL_21_006: [If the journal is not open, the function shall throw an IllegalStateException.]
+    @Test(expected = IllegalStateException.class)
+    public void appendFailsIfNotOpen() throws IOException
+    {
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), 1024);
+
+        journal.append(new IotHubOutboundPacket(new Message("test"), null, null));
+    }
+
+    // Tests_SRS_OUTBOUNDJOURNAL_21_004: [The function shall create the directory if it does not exist.]
+    // Tests_SRS_OUTBOUNDJOURNAL_21_005: [The function shall queue for replay, oldest first, every message of every segment that is still pending, and shall delete the segments with no pending message.]
+    // Tests_SRS_OUTBOUNDJOURNAL_21_008: [The function shall write the message to the newest segment, writing the record status last.]
+    // Tests_SRS_OUTBOUNDJOURNAL_21_009: [The function shall save the sequence number of the message in the packet.]
+    // Tests_SRS_OUTBOUNDJOURNAL_21_013: [The function shall return a packet, with no callback, for the oldest message left to replay.]
+    // Tests_SRS_OUTBOUNDJOURNAL_21_016: [The function shall return the packet that peekReplay returns, and move on to the next message.]
+    @Test
+    public void openReplaysPendingMessagesInOrder() throws IOException
+    {
+        File directory = new File(folder.getRoot(), "journal");
+        OutboundJournal journal = new OutboundJournal(directory, 1024 * 1024);
+        journal.open();
+        Message first = new Message("first");
+        first.setMessageId("id-1");
+        first.setCorrelationId("correlation-1");
+        first.setProperty("key", "value");
+        IotHubOutboundPacket firstPacket = new IotHubOutboundPacket(first, null, null);
+        IotHubOutboundPacket secondPacket = new IotHubOutboundPacket(new Message("second"), null, null);
+        journal.append(firstPacket);
+        journal.append(secondPacket);
+        journal.flush();
+
+        OutboundJournal reopened = new OutboundJournal(directory, 1024 * 1024);
+        reopened.open();
+        IotHubOutboundPacket replayedFirst = reopened.pollReplay();
+        IotHubOutboundPacket replayedSecond = reopened.pollReplay();
+
+        assertThat(firstPacket.getJournalSequence() >= 0, is(true));
+        assertThat(new String(replayedFirst.getMessage().getBytes(), StandardCharsets.UTF_8), is("first"));
+        assertThat(replayedFirst.getMessage().getMessageId(), is("id-1"));
+        assertThat(replayedFirst.getMessage().getCorrelationId(), is("correlation-1"));
+        assertThat(replayedFirst.getMessage().getProperty("key"), is("value"));
+        assertThat(replayedFirst.getCallback() == null, is(true));
+        assertThat(new String(replayedSecond.getMessage().getBytes(), StandardCharsets.UTF_8), is("second"));
+        assertThat(reopened.pollReplay() == null, is(true));
+    }
+
+    // Tests_SRS_OUTBOUNDJOURNAL_21_011: [The function shall mark the message as acknowledged in its segment.]
+    // Tests_SRS_OUTBOUNDJOURNAL_21_015: [If there is nothing left to replay, the function shall return null.]
+    @Test
+    public void acknowledgedMessagesAreNotReplayed() throws IOException
+    {
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), 1024 * 1024);
+        journal.open();
+        IotHubOutboundPacket acknowledged = new IotHubOutboundPacket(new Message("acknowledged"), null, null);
+        IotHubOutboundPacket pending = new IotHubOutboundPacket(new Message("pending"), null, null);
+        journal.append(acknowledged);
+        journal.append(pending);
+        journal.acknowledge(acknowledged);
+
+        OutboundJournal reopened = new OutboundJournal(folder.getRoot(), 1024 * 1024);
+        reopened.open();
+
+        assertThat(new String(reopened.pollReplay().getMessage().getBytes(), StandardCharsets.UTF_8), is("pending"));
+        assertThat(reopened.peekReplay() == null, is(true));
+    }
+
+    // Tests_SRS_OUTBOUNDJOURNAL_21_010: [If the message is not pending in the journal, the function shall do nothing.]
+    @Test
+    public void acknowledgeIgnoresPacketsNotJournaled() throws IOException
+    {
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), 1024 * 1024);
+        journal.open();
+
+        journal.acknowledge(new IotHubOutboundPacket(new Message("test"), null, null));
+    }
+
+    // Tests_SRS_OUTBOUNDJOURNAL_21_012: [If the segment no longer holds a pending message and is not the newest segment, the function shall delete it.]
+    // Tests_SRS_OUTBOUNDJOURNAL_21_018: [If a new segment is needed and the disk budget is used up, the function shall throw an IllegalStateException.]
+    @Test
+    public void acknowledgingFreesTheDiskBudget() throws IOException
+    {
+        // a single segment, with room for two of these messages only.
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), 2048);
+        journal.open();
+        byte[] body = new byte[700];
+        IotHubOutboundPacket first = new IotHubOutboundPacket(new Message(body), null, null);
+        IotHubOutboundPacket second = new IotHubOutboundPacket(new Message(body), null, null);
+        journal.append(first);
+        journal.append(second);
+
+        boolean fullBeforeAcknowledge = false;
+        try
+        {
+            journal.append(new IotHubOutboundPacket(new Message(body), null, null));
+        }
+        catch (IllegalStateException e)
+        {
+            fullBeforeAcknowledge = true;
+        }
+        journal.acknowledge(first);
+        journal.acknowledge(second);
+        journal.append(new IotHubOutboundPacket(new Message(body), null, null));
+
+        assertThat(fullBeforeAcknowledge, is(true));
+        assertThat(folder.getRoot().listFiles().length, is(1));
+    }
+
+    // Tests_SRS_OUTBOUNDJOURNAL_21_002: [The constructor shall split the disk budget into segments of at most DEFAULT_SEGMENT_BYTES.]
+    // Tests_SRS_OUTBOUNDJOURNAL_21_007: [If the message does not fit in a segment, the function shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void appendRejectsMessageLargerThanSegment() throws IOException
+    {
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), 512);
+        journal.open();
+
+        journal.append(new IotHubOutboundPacket(new Message(new byte[1024]), null, null));
+    }
+
+    // Tests_SRS_OUTBOUNDJOURNAL_21_003: [If the journal is already open, the function shall do nothing.]
+    @Test
+    public void openTwiceDoesNotReplayTwice() throws IOException
+    {
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), 1024 * 1024);
+        journal.open();
+        journal.append(new IotHubOutboundPacket(new Message("test"), null, null));
+
+        OutboundJournal reopened = new OutboundJournal(folder.getRoot(), 1024 * 1024);
+        reopened.open();
+        reopened.pollReplay();
+        reopened.open();
+
+        assertThat(reopened.peekReplay() == null, is(true));
+    }
+
+    // Tests_SRS_OUTBOUNDJOURNAL_21_020: [The function shall force every segment to the disk, release its mapping, and forget the pending messages, leaving them in the segment files.]
+    // Tests_SRS_OUTBOUNDJOURNAL_21_021: [Sequence numbers shall be unique within the journal, and shall not be reused once it is closed and opened again.]
+    @Test
+    public void closeLeavesPendingMessagesForTheNextOpen() throws IOException
+    {
+        File directory = new File(folder.getRoot(), "journal");
+        OutboundJournal journal = new OutboundJournal(directory, 1024 * 1024);
+        journal.open();
+        IotHubOutboundPacket acknowledged = new IotHubOutboundPacket(new Message("acknowledged"), null, null);
+        IotHubOutboundPacket pending = new IotHubOutboundPacket(new Message("pending"), null, null);
+        journal.append(acknowledged);
+        journal.append(pending);
+        journal.acknowledge(acknowledged);
+
+        journal.close();
+        journal.acknowledge(pending);
+        journal.open();
+
+        assertThat(new String(journal.pollReplay().getMessage().getBytes(), StandardCharsets.UTF_8), is("pending"));
+        assertThat(journal.pollReplay() == null, is(true));
+        // the packet numbered before the close is not taken for the replayed message.
+        journal.acknowledge(pending);
+        journal.close();
+        journal.open();
+        assertThat(journal.pollReplay() != null, is(true));
+    }
+
+    // Tests_SRS_OUTBOUNDJOURNAL_21_019: [If the journal is not open, the function shall do nothing.]
+    // Tests_SRS_OUTBOUNDJOURNAL_21_006: [If the journal is not open, the function shall throw an IllegalStateException.]
+    @Test(expected = IllegalStateException.class)
+    public void appendFailsOnceClosed() throws IOException
+    {
+        OutboundJournal journal = new OutboundJournal(folder.getRoot(), 1024);
+        journal.close();
+        journal.open();
+        journal.close();
+        journal.close();
+
+        journal.append(new IotHubOutboundPacket(new Message("test"), null, null));
+    }
+}
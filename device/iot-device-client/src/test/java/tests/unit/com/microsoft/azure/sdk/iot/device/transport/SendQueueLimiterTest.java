@@ -0,0 +1,540 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package tests.unit.com.microsoft.azure.sdk.iot.device.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.microsoft.azure.sdk.iot.device.DeviceClientConfig;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.SendQueueFullPolicy;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubCallbackPacket;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubOutboundPacket;
+import com.microsoft.azure.sdk.iot.device.transport.OutboundJournal;
+import com.microsoft.azure.sdk.iot.device.transport.SendQueueLimiter;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import mockit.Verifications;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/** Unit tests for SendQueueLimiter. */
+public class SendQueueLimiterTest
+{
+    @Mocked
+    DeviceClientConfig mockConfig;
+    @Mocked
+    IotHubOutboundPacket mockPacket;
+    @Mocked
+    IotHubEventCallback mockCallback;
+    @Mocked
+    IotHubCallbackPacket mockCallbackPacket;
+
+    // Tests_SRS_SENDQUEUELIMITER_21_002: [The function shall reserve room for the packet, and mark the packet as queued.]
+    // Tests_SRS_SENDQUEUELIMITER_21_007: [The function shall return the number of messages holding room in the queue.]
+    // Tests_SRS_SENDQUEUELIMITER_21_008: [The function shall return the number of message body bytes holding room in the queue.]
+    @Test
+    public void acquireReservesRoomWhenUnlimited()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendQueueMaxMessages();
+                result = 0;
+                mockConfig.getSendQueueMaxBytes();
+                result = 0L;
+                mockPacket.getMessageSize();
+                result = 10;
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+        Queue<IotHubCallbackPacket> callbackList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+
+        assertThat(limiter.getQueuedMessages(), is(2));
+        assertThat(limiter.getQueuedBytes(), is(20L));
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_006: [The function shall release the room held by the packet, mark the packet as no longer queued, and wake up the threads waiting for room.]
+    @Test
+    public void releaseFreesRoom()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendQueueMaxMessages();
+                result = 1;
+                mockPacket.getMessageSize();
+                result = 10;
+                mockConfig.getSendQueueFullPolicy();
+                result = SendQueueFullPolicy.FAIL_FAST;
+                mockPacket.isQueued();
+                result = true;
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+        Queue<IotHubCallbackPacket> callbackList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+        limiter.release(mockPacket);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+
+        assertThat(limiter.getQueuedMessages(), is(1));
+        assertThat(limiter.getQueuedBytes(), is(10L));
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_003: [If the queue is full and the policy is FAIL_FAST, the function shall throw an IllegalStateException.]
+    @Test(expected = IllegalStateException.class)
+    public void acquireFailsFastWhenQueueFull()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendQueueMaxMessages();
+                result = 1;
+                mockConfig.getSendQueueFullPolicy();
+                result = SendQueueFullPolicy.FAIL_FAST;
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+        Queue<IotHubCallbackPacket> callbackList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_003: [If the queue is full and the policy is FAIL_FAST, the function shall throw an IllegalStateException.]
+    @Test(expected = IllegalStateException.class)
+    public void acquireFailsFastWhenBytesExceeded()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendQueueMaxBytes();
+                result = 15L;
+                mockPacket.getMessageSize();
+                result = 10;
+                mockConfig.getSendQueueFullPolicy();
+                result = SendQueueFullPolicy.FAIL_FAST;
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+        Queue<IotHubCallbackPacket> callbackList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_004: [If the queue is full and the policy is DROP_OLDEST, the function shall remove the oldest waiting packet, release its room, and complete its callback with status ERROR.]
+    @Test
+    public void acquireDropsOldestWhenQueueFull(
+            @Mocked final IotHubOutboundPacket mockOldestPacket)
+    {
+        final Object context = new Object();
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendQueueMaxMessages();
+                result = 1;
+                mockConfig.getSendQueueFullPolicy();
+                result = SendQueueFullPolicy.DROP_OLDEST;
+                mockOldestPacket.getCallback();
+                result = mockCallback;
+                mockOldestPacket.getContext();
+                result = context;
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+        Queue<IotHubCallbackPacket> callbackList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.acquire(mockOldestPacket, waitingList, callbackList);
+        waitingList.add(mockOldestPacket);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+
+        assertThat(waitingList.isEmpty(), is(true));
+        assertThat(callbackList.size(), is(1));
+        assertThat(limiter.getQueuedMessages(), is(1));
+        new Verifications()
+        {
+            {
+                new IotHubCallbackPacket(IotHubStatusCode.ERROR, mockCallback, context);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_013: [If the journal is already open or no journal directory is configured, the function shall do nothing.]
+    @Test
+    public void openJournalDoesNothingWithoutDirectory(
+            @Mocked final OutboundJournal mockJournal)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendJournalDirectory();
+                result = null;
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.openJournal(waitingList);
+
+        new Verifications()
+        {
+            {
+                new OutboundJournal((File) any, anyLong);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_012: [The function shall replay journaled messages into the waiting list while there is room for them.]
+    // Tests_SRS_SENDQUEUELIMITER_21_014: [The function shall open the journal in the configured directory with the configured disk budget.]
+    @Test
+    public void openJournalReplaysWhileThereIsRoom(
+            @Mocked final OutboundJournal mockJournal)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendJournalDirectory();
+                result = "journal";
+                mockConfig.getSendJournalMaxBytes();
+                result = 4096L;
+                mockConfig.getSendQueueMaxMessages();
+                result = 1;
+                mockJournal.peekReplay();
+                result = mockPacket;
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.openJournal(waitingList);
+
+        assertThat(waitingList.size(), is(1));
+        assertThat(limiter.getQueuedMessages(), is(1));
+        new Verifications()
+        {
+            {
+                new OutboundJournal(new File("journal"), 4096L);
+                mockJournal.open();
+                mockJournal.pollReplay();
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_009: [If the send journal is open, the function shall write the packet to it.]
+    // Tests_SRS_SENDQUEUELIMITER_21_020: [If the packet holds no room in the queue, the function shall do nothing.]
+    @Test
+    public void releaseTwiceReleasesRoomOnce()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendQueueMaxMessages();
+                result = 0;
+                mockConfig.getSendQueueMaxBytes();
+                result = 0L;
+                mockPacket.getMessageSize();
+                result = 10;
+                mockPacket.isQueued();
+                returns(true, false);
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+        Queue<IotHubCallbackPacket> callbackList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+        limiter.release(mockPacket);
+        limiter.release(mockPacket);
+
+        assertThat(limiter.getQueuedMessages(), is(1));
+        assertThat(limiter.getQueuedBytes(), is(10L));
+        new Verifications()
+        {
+            {
+                mockPacket.setQueued(true);
+                times = 2;
+                mockPacket.setQueued(false);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_011: [If the send journal is open, the function shall checkpoint the packet in it.]
+    @Test
+    public void journalFollowsPacketsThroughTheQueue(
+            @Mocked final OutboundJournal mockJournal)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendJournalDirectory();
+                result = "journal";
+                mockPacket.isQueued();
+                result = true;
+                mockJournal.peekReplay();
+                result = null;
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+        Queue<IotHubCallbackPacket> callbackList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.openJournal(waitingList);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+        limiter.release(mockPacket);
+
+        new Verifications()
+        {
+            {
+                mockJournal.append(mockPacket);
+                times = 1;
+                mockJournal.acknowledge(mockPacket);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_010: [If the packet cannot be written to the journal, the function shall release its room and throw an IllegalStateException.]
+    @Test
+    public void acquireReleasesRoomIfJournalFails(
+            @Mocked final OutboundJournal mockJournal)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendJournalDirectory();
+                result = "journal";
+                mockPacket.isQueued();
+                result = true;
+                mockJournal.peekReplay();
+                result = null;
+                mockJournal.append((IotHubOutboundPacket) any);
+                result = new IOException();
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+        Queue<IotHubCallbackPacket> callbackList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.openJournal(waitingList);
+        boolean exceptionThrown = false;
+        try
+        {
+            limiter.acquire(mockPacket, waitingList, callbackList);
+        }
+        catch (IllegalStateException e)
+        {
+            exceptionThrown = true;
+        }
+
+        assertThat(exceptionThrown, is(true));
+        assertThat(limiter.getQueuedMessages(), is(0));
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_016: [The function shall tag each packet with the batch, reserve room for it, and add it to the waiting list, in order.]
+    @Test
+    public void acquireBatchTagsAndQueuesEachPacket()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendQueueMaxMessages();
+                result = 0;
+                mockConfig.getSendQueueMaxBytes();
+                result = 0L;
+            }
+        };
+        final IotHubOutboundPacket first = new IotHubOutboundPacket(null, null, null);
+        final IotHubOutboundPacket second = new IotHubOutboundPacket(null, null, null);
+        final List<IotHubOutboundPacket> batch = Arrays.asList(first, second);
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+        Queue<IotHubCallbackPacket> callbackList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.acquireBatch(batch, waitingList, callbackList);
+
+        assertThat(limiter.getQueuedMessages(), is(2));
+        assertThat(waitingList.poll() == first, is(true));
+        assertThat(waitingList.poll() == second, is(true));
+        new Verifications()
+        {
+            {
+                mockPacket.setBatch(batch);
+                times = 2;
+            }
+        };
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_017: [If room cannot be reserved for a packet, the function shall remove the packets of the batch still waiting, release their room, and rethrow the exception.]
+    @Test
+    public void acquireBatchRemovesQueuedPacketsIfFull()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendQueueMaxMessages();
+                result = 1;
+                mockConfig.getSendQueueFullPolicy();
+                result = SendQueueFullPolicy.FAIL_FAST;
+                mockPacket.isQueued();
+                result = true;
+            }
+        };
+        List<IotHubOutboundPacket> batch = Arrays.asList(
+                new IotHubOutboundPacket(null, null, null),
+                new IotHubOutboundPacket(null, null, null));
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+        Queue<IotHubCallbackPacket> callbackList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        boolean exceptionThrown = false;
+        try
+        {
+            limiter.acquireBatch(batch, waitingList, callbackList);
+        }
+        catch (IllegalStateException e)
+        {
+            exceptionThrown = true;
+        }
+
+        assertThat(exceptionThrown, is(true));
+        assertThat(waitingList.isEmpty(), is(true));
+        assertThat(limiter.getQueuedMessages(), is(0));
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_018: [At most MAX_REPLAYED_MESSAGES replayed messages, and MAX_REPLAYED_BYTES body bytes of them, shall hold room in the queue at a time, whatever the queue limits.]
+    @Test
+    public void replayIsBoundedWithoutQueueLimits(
+            @Mocked final OutboundJournal mockJournal)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendJournalDirectory();
+                result = "journal";
+                mockPacket.isQueued();
+                result = true;
+                mockConfig.getSendQueueMaxMessages();
+                result = 0;
+                mockConfig.getSendQueueMaxBytes();
+                result = 0L;
+                mockJournal.peekReplay();
+                result = new mockit.Delegate()
+                {
+                    IotHubOutboundPacket peekReplay()
+                    {
+                        return new IotHubOutboundPacket(null, null, null);
+                    }
+                };
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.openJournal(waitingList);
+
+        assertThat(waitingList.size(), is(SendQueueLimiter.MAX_REPLAYED_MESSAGES));
+
+        limiter.release(waitingList.poll());
+
+        assertThat(waitingList.size(), is(SendQueueLimiter.MAX_REPLAYED_MESSAGES));
+        assertThat(limiter.getQueuedMessages(), is(SendQueueLimiter.MAX_REPLAYED_MESSAGES));
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_019: [If the send journal is open, the function shall close it, and stop replaying its messages.]
+    @Test
+    public void closeJournalClosesItAndStopsReplaying(
+            @Mocked final OutboundJournal mockJournal)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendJournalDirectory();
+                result = "journal";
+                mockJournal.peekReplay();
+                result = null;
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+        Queue<IotHubCallbackPacket> callbackList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.closeJournal();
+        limiter.openJournal(waitingList);
+        limiter.acquire(mockPacket, waitingList, callbackList);
+        limiter.closeJournal();
+        limiter.closeJournal();
+        limiter.release(mockPacket);
+
+        new Verifications()
+        {
+            {
+                mockJournal.close();
+                times = 1;
+                mockJournal.acknowledge((IotHubOutboundPacket) any);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_SENDQUEUELIMITER_21_022: [If the journal was opened before, the function shall open the same journal again.]
+    @Test
+    public void openJournalReopensTheJournalItClosed(
+            @Mocked final OutboundJournal mockJournal)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getSendJournalDirectory();
+                result = "journal";
+                mockJournal.peekReplay();
+                result = null;
+            }
+        };
+        Queue<IotHubOutboundPacket> waitingList = new LinkedList<>();
+
+        SendQueueLimiter limiter = new SendQueueLimiter(mockConfig);
+        limiter.openJournal(waitingList);
+        limiter.closeJournal();
+        limiter.openJournal(waitingList);
+
+        new Verifications()
+        {
+            {
+                new OutboundJournal((File) any, anyLong);
+                times = 1;
+                mockJournal.open();
+                times = 2;
+            }
+        };
+    }
+}
@@ -0,0 +1,213 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package tests.unit.com.microsoft.azure.sdk.iot.device.transport.amqps;
+
+import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsCbsSession;
+import mockit.Deencapsulation;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import mockit.Verifications;
+import org.apache.qpid.proton.Proton;
+import org.apache.qpid.proton.amqp.messaging.AmqpValue;
+import org.apache.qpid.proton.amqp.messaging.ApplicationProperties;
+import org.apache.qpid.proton.amqp.messaging.Target;
+import org.apache.qpid.proton.engine.Connection;
+import org.apache.qpid.proton.engine.Delivery;
+import org.apache.qpid.proton.engine.Receiver;
+import org.apache.qpid.proton.engine.Sender;
+import org.apache.qpid.proton.engine.Session;
+import org.apache.qpid.proton.message.Message;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/** Unit tests for AmqpsCbsSession. */
+public class AmqpsCbsSessionTest
+{
+    @Mocked
+    Connection mockConnection;
+
+    @Mocked
+    Session mockSession;
+
+    @Mocked
+    Sender mockSender;
+
+    @Mocked
+    Receiver mockReceiver;
+
+    @Mocked
+    Delivery mockDelivery;
+
+    private AmqpsCbsSession createCbsSession()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConnection.session();
+                result = mockSession;
+                mockSession.sender("cbs-sender");
+                result = mockSender;
+                mockSession.receiver("cbs-receiver");
+                result = mockReceiver;
+            }
+        };
+        return Deencapsulation.newInstance(AmqpsCbsSession.class, new Class[] { Connection.class }, mockConnection);
+    }
+
+    // Tests_SRS_AMQPSCBSSESSION_21_001: [The constructor shall open a session on the connection, with a sender and a receiver link on the $cbs node.]
+    @Test
+    public void constructorOpensCbsLinks()
+    {
+        createCbsSession();
+
+        new Verifications()
+        {
+            {
+                mockSender.setTarget((Target) any);
+                times = 1;
+                mockSession.open();
+                times = 1;
+                mockSender.open();
+                times = 1;
+                mockReceiver.open();
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSCBSSESSION_21_002: [The put-token request shall be sent to the $cbs node with the operation, type and name application properties, the request id as message id, and the SAS token as body.]
+    @Test
+    public void createPutTokenMessageAddressesCbsNode()
+    {
+        Message message = Deencapsulation.invoke(AmqpsCbsSession.class, "createPutTokenMessage",
+                "put-token-7", "test.host.name/devices/test-deviceId", "SharedAccessSignature sr=x");
+
+        assertEquals("put-token-7", message.getMessageId());
+        assertEquals("$cbs", message.getAddress());
+        assertEquals("cbs", message.getReplyTo());
+        Map applicationProperties = message.getApplicationProperties().getValue();
+        assertEquals("put-token", applicationProperties.get("operation"));
+        assertEquals("azure-devices.net:sastoken", applicationProperties.get("type"));
+        assertEquals("test.host.name/devices/test-deviceId", applicationProperties.get("name"));
+        assertEquals("SharedAccessSignature sr=x", ((AmqpValue) message.getBody()).getValue());
+    }
+
+    // Tests_SRS_AMQPSCBSSESSION_21_003: [A token shall be put again once three quarters of its lifetime have passed, and no sooner than a second after it was put.]
+    @Test
+    public void renewalDelayIsThreeQuartersOfLifetime()
+    {
+        assertEquals(2700000, (int) Deencapsulation.invoke(AmqpsCbsSession.class, "renewalDelayMillis", 3600L));
+        assertEquals(1000, (int) Deencapsulation.invoke(AmqpsCbsSession.class, "renewalDelayMillis", 0L));
+        assertEquals(Integer.MAX_VALUE, (int) Deencapsulation.invoke(AmqpsCbsSession.class, "renewalDelayMillis", Long.MAX_VALUE / 1000L));
+    }
+
+    // Tests_SRS_AMQPSCBSSESSION_21_004: [The function shall send the put-token request on the sender link, and keep the callback until the answer to the request arrives.]
+    @Test
+    public void putTokenSendsRequestAndKeepsCallback()
+    {
+        AmqpsCbsSession cbsSession = createCbsSession();
+        Object callback = newCallback();
+
+        Deencapsulation.invoke(cbsSession, "putToken", "audience", "token", callback);
+
+        Map<String, Object> pendingRequests = Deencapsulation.getField(cbsSession, "pendingRequests");
+        assertEquals(callback, pendingRequests.get("put-token-0"));
+        new Verifications()
+        {
+            {
+                mockSender.delivery((byte[]) any);
+                times = 1;
+                mockSender.send((byte[]) any, 0, anyInt);
+                times = 1;
+                mockSender.advance();
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSCBSSESSION_21_005: [An answer shall be accepted and settled, and handed to the callback of its request, found by its correlation id.]
+    @Test
+    public void answerIsHandedToCallbackOfItsRequest()
+    {
+        AmqpsCbsSession cbsSession = createCbsSession();
+        final int[] answer = new int[1];
+        Map<String, Object> pendingRequests = Deencapsulation.getField(cbsSession, "pendingRequests");
+        pendingRequests.put("put-token-3", newCallback(answer));
+
+        Message response = Proton.message();
+        response.setCorrelationId("put-token-3");
+        Map<String, Object> properties = new java.util.HashMap<>();
+        properties.put("status-code", 202);
+        response.setApplicationProperties(new ApplicationProperties(properties));
+        Deencapsulation.invoke(cbsSession, "onPutTokenResponse", response);
+
+        assertEquals(202, answer[0]);
+        assertEquals(0, pendingRequests.size());
+    }
+
+    // Tests_SRS_AMQPSCBSSESSION_21_007: [The function shall close the links and the session, and drop the pending requests.]
+    @Test
+    public void closeClosesLinksAndDropsRequests()
+    {
+        AmqpsCbsSession cbsSession = createCbsSession();
+        Map<String, Object> pendingRequests = Deencapsulation.getField(cbsSession, "pendingRequests");
+        pendingRequests.put("put-token-0", newCallback());
+
+        Deencapsulation.invoke(cbsSession, "close");
+
+        assertEquals(0, pendingRequests.size());
+        new Verifications()
+        {
+            {
+                mockSender.close();
+                times = 1;
+                mockReceiver.close();
+                times = 1;
+                mockSession.close();
+                times = 1;
+            }
+        };
+    }
+
+    private static Object newCallback()
+    {
+        return newCallback(new int[1]);
+    }
+
+    /** Builds a callback, whose interface is not visible to the tests, that saves the status code it is told. */
+    private static Object newCallback(final int[] statusCode)
+    {
+        try
+        {
+            Class<?> callbackClass = Class.forName(AmqpsCbsSession.class.getName() + "$PutTokenCallback");
+            return java.lang.reflect.Proxy.newProxyInstance(callbackClass.getClassLoader(), new Class[] { callbackClass },
+                    new java.lang.reflect.InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args)
+                        {
+                            if (method.getName().equals("equals"))
+                            {
+                                return proxy == args[0];
+                            }
+                            if (method.getName().equals("hashCode"))
+                            {
+                                return System.identityHashCode(proxy);
+                            }
+                            if (method.getName().equals("onPutTokenResponse"))
+                            {
+                                statusCode[0] = (Integer) args[0];
+                            }
+                            return null;
+                        }
+                    });
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
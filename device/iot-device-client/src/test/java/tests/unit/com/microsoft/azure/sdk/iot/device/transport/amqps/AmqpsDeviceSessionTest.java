@@ -0,0 +1,427 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package tests.unit.com.microsoft.azure.sdk.iot.device.transport.amqps;
+
+import com.microsoft.azure.sdk.iot.device.DeviceClientConfig;
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import com.microsoft.azure.sdk.iot.device.transport.State;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsDeviceSession;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsMessage;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsMultiplexedConnection;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.ServerListener;
+import mockit.Deencapsulation;
+import mockit.Delegate;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import mockit.Verifications;
+import org.apache.qpid.proton.Proton;
+import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.amqp.transport.SenderSettleMode;
+import org.apache.qpid.proton.engine.Connection;
+import org.apache.qpid.proton.engine.Delivery;
+import org.apache.qpid.proton.engine.Sender;
+import org.apache.qpid.proton.engine.Session;
+import org.apache.qpid.proton.message.Message;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Unit tests for AmqpsDeviceSession. */
+public class AmqpsDeviceSessionTest
+{
+    private static final String DEVICE_ID = "test-deviceId";
+
+    @Mocked
+    DeviceClientConfig mockConfig;
+
+    @Mocked
+    AmqpsMultiplexedConnection mockMultiplexedConnection;
+
+    @Mocked
+    ServerListener mockListener;
+
+    @Mocked
+    Sender mockSender;
+
+    @Mocked
+    Delivery mockDelivery;
+
+    @Mocked
+    AmqpsMessage mockAmqpsMessage;
+
+    private void expectDeviceId()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getDeviceId();
+                result = DEVICE_ID;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_001: [If the configuration or the connection is null, or the configuration has no device id, the constructor shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorFailsIfConnectionIsNull()
+    {
+        expectDeviceId();
+
+        new AmqpsDeviceSession(mockConfig, null);
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_001: [If the configuration or the connection is null, or the configuration has no device id, the constructor shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorFailsIfDeviceIdIsEmpty()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getDeviceId();
+                result = "";
+            }
+        };
+
+        new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_002: [The constructor shall save the configuration and the connection, set the endpoints of the device, and set its state to CLOSED.]
+    @Test
+    public void constructorSetsDeviceEndpointsAndClosedState()
+    {
+        expectDeviceId();
+
+        AmqpsDeviceSession session = new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+
+        assertEquals("/devices/" + DEVICE_ID + "/messages/events", Deencapsulation.getField(session, "sendEndpoint"));
+        assertEquals("/devices/" + DEVICE_ID + "/messages/devicebound", Deencapsulation.getField(session, "receiveEndpoint"));
+        assertEquals(State.CLOSED, Deencapsulation.getField(session, "state"));
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_004: [The function shall register the device on the shared connection, and wait for its links to open.]
+    // Tests_SRS_AMQPSDEVICESESSION_21_016: [The session shall be OPEN once its sender link is open remotely, and shall wake up the thread waiting for it to open.]
+    @Test
+    public void openRegistersDeviceAndReturnsOnceSenderIsOpen() throws IOException
+    {
+        expectDeviceId();
+        final AmqpsDeviceSession session = new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+        Deencapsulation.setField(session, "sender", mockSender);
+        new NonStrictExpectations()
+        {
+            {
+                mockMultiplexedConnection.register(session);
+                result = new Delegate()
+                {
+                    void register(AmqpsDeviceSession deviceSession)
+                    {
+                        Deencapsulation.invoke(deviceSession, "onLinkRemoteOpen", mockSender);
+                    }
+                };
+            }
+        };
+
+        session.open();
+
+        assertEquals(State.OPEN, Deencapsulation.getField(session, "state"));
+        new Verifications()
+        {
+            {
+                mockMultiplexedConnection.unregister((AmqpsDeviceSession) any);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_005: [If the links are not open in time, or the IoT Hub did not authorize the device, the function shall unregister the device and throw an IOException.]
+    // Tests_SRS_AMQPSDEVICESESSION_21_015: [If the IoT Hub turns down the put-token request, the session shall wake up the thread waiting for it to open.]
+    @Test
+    public void openUnregistersDeviceIfNotAuthorized() throws IOException
+    {
+        expectDeviceId();
+        final AmqpsDeviceSession session = new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+        new NonStrictExpectations()
+        {
+            {
+                mockMultiplexedConnection.register(session);
+                result = new Delegate()
+                {
+                    void register(AmqpsDeviceSession deviceSession)
+                    {
+                        Deencapsulation.invoke(deviceSession, "onAuthorizationFailed", 401, "Unauthorized");
+                    }
+                };
+            }
+        };
+
+        boolean thrown = false;
+        try
+        {
+            session.open();
+        }
+        catch (IOException e)
+        {
+            thrown = true;
+        }
+
+        assertTrue(thrown);
+        new Verifications()
+        {
+            {
+                mockMultiplexedConnection.unregister(session);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_006: [The function shall set the state to CLOSED and unregister the device from the shared connection.]
+    @Test
+    public void closeUnregistersDevice() throws IOException
+    {
+        expectDeviceId();
+        final AmqpsDeviceSession session = new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+        Deencapsulation.setField(session, "state", State.OPEN);
+
+        session.close();
+
+        assertEquals(State.CLOSED, Deencapsulation.getField(session, "state"));
+        new Verifications()
+        {
+            {
+                mockMultiplexedConnection.unregister(session);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_007: [If the session is closed or there is not enough credit, the function shall return -1.]
+    // Tests_SRS_AMQPSDEVICESESSION_21_010: [If the session is closed, the function shall return false.]
+    @Test
+    public void sendFailsIfSessionIsClosed()
+    {
+        expectDeviceId();
+        AmqpsDeviceSession session = new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+
+        assertEquals(-1L, session.sendMessage(Proton.message()));
+        assertFalse(session.sendMessageResult(mockAmqpsMessage, IotHubMessageResult.COMPLETE));
+        new Verifications()
+        {
+            {
+                Deencapsulation.invoke(mockMultiplexedConnection, "runOnReactor", new Class[] { Runnable.class }, (Runnable) any);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_008: [The function shall encode the message, hand its delivery to the reactor thread, and return the id of the delivery.]
+    @Test
+    public void sendMessageHandsDeliveryToReactor()
+    {
+        expectDeviceId();
+        AmqpsDeviceSession session = new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+        Deencapsulation.setField(session, "state", State.OPEN);
+        Deencapsulation.setField(session, "linkCredit", 10);
+        Message message = Proton.message();
+        message.setBody(new Data(new Binary(new byte[] { 1, 2, 3 })));
+
+        long first = session.sendMessage(message);
+        long second = session.sendMessage(message);
+
+        assertEquals(0L, first);
+        assertEquals(1L, second);
+        new Verifications()
+        {
+            {
+                Deencapsulation.invoke(mockMultiplexedConnection, "runOnReactor", new Class[] { Runnable.class }, (Runnable) any);
+                times = 2;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_024: [If the links went down after the delivery was handed over, the delivery shall be reported to the listeners as not delivered, so that it is sent again.]
+    @Test
+    public void deliveryDroppedAfterLinksWentDownIsReported()
+    {
+        expectDeviceId();
+        final AmqpsDeviceSession session = new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+        session.addListener(mockListener);
+        Deencapsulation.setField(session, "state", State.OPEN);
+        Deencapsulation.setField(session, "linkCredit", 10);
+        final Runnable[] handedOver = new Runnable[1];
+        new NonStrictExpectations()
+        {
+            {
+                Deencapsulation.invoke(mockMultiplexedConnection, "runOnReactor", new Class[] { Runnable.class }, (Runnable) any);
+                result = new Delegate()
+                {
+                    void runOnReactor(Runnable task)
+                    {
+                        handedOver[0] = task;
+                    }
+                };
+            }
+        };
+        Message message = Proton.message();
+        message.setBody(new Data(new Binary(new byte[] { 1, 2, 3 })));
+
+        final long deliveryId = session.sendMessage(message);
+        Deencapsulation.setField(session, "state", State.CLOSED);
+        handedOver[0].run();
+
+        new Verifications()
+        {
+            {
+                mockListener.messageSent(deliveryId, false);
+                times = 1;
+                mockSender.send((byte[]) any, anyInt, anyInt);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_022: [If the session is closed, or a result is not one of COMPLETE, ABANDON, or REJECT, the function shall return false.]
+    // Tests_SRS_AMQPSDEVICESESSION_21_023: [The function shall hand the acknowledgements of all the messages to the reactor thread as a single task, and return true.]
+    @Test
+    public void sendMessageResultsHandsAllAcknowledgementsToReactorAtOnce()
+    {
+        expectDeviceId();
+        AmqpsDeviceSession session = new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+        List<AmqpsMessage> messages = Arrays.asList(mockAmqpsMessage, mockAmqpsMessage);
+        List<IotHubMessageResult> results = Arrays.asList(IotHubMessageResult.COMPLETE, IotHubMessageResult.REJECT);
+
+        boolean closedResult = session.sendMessageResults(messages, results);
+        Deencapsulation.setField(session, "state", State.OPEN);
+        boolean openResult = session.sendMessageResults(messages, results);
+
+        assertFalse(closedResult);
+        assertTrue(openResult);
+        new Verifications()
+        {
+            {
+                Deencapsulation.invoke(mockMultiplexedConnection, "runOnReactor", new Class[] { Runnable.class }, (Runnable) any);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_019: [A settled delivery on the sender link shall be reported to the listeners by the id read back from its tag.]
+    @Test
+    public void onDeliveryReportsSentMessageById()
+    {
+        expectDeviceId();
+        AmqpsDeviceSession session = new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+        session.addListener(mockListener);
+        Deencapsulation.setField(session, "sender", mockSender);
+        final byte[] tag = ByteBuffer.allocate(8).putLong(42L).array();
+        new NonStrictExpectations()
+        {
+            {
+                mockDelivery.getRemoteState();
+                result = Accepted.getInstance();
+                mockDelivery.getTag();
+                result = tag;
+            }
+        };
+
+        Deencapsulation.invoke(session, "onDelivery", mockSender, mockDelivery);
+
+        new Verifications()
+        {
+            {
+                mockListener.messageSent(42L, true);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_012: [The function shall add the listener to the listeners of the session.]
+    // Tests_SRS_AMQPSDEVICESESSION_21_020: [When the links are lost, the session shall set its state to CLOSED, drop its links, and notify the listeners that the connection was lost.]
+    @Test
+    public void onLinksLostClosesSessionAndNotifiesListeners()
+    {
+        expectDeviceId();
+        AmqpsDeviceSession session = new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+        session.addListener(mockListener);
+        Deencapsulation.setField(session, "state", State.OPEN);
+        Deencapsulation.setField(session, "sender", mockSender);
+
+        int firstAttempt = Deencapsulation.invoke(session, "onLinksLost");
+        int secondAttempt = Deencapsulation.invoke(session, "onLinksLost");
+
+        assertEquals(1, firstAttempt);
+        assertEquals(2, secondAttempt);
+        assertEquals(State.CLOSED, Deencapsulation.getField(session, "state"));
+        assertEquals(null, Deencapsulation.getField(session, "sender"));
+        new Verifications()
+        {
+            {
+                mockListener.connectionLost();
+                times = 2;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_021: [If the configuration asks for settled sends, the sender shall be opened in the SETTLED mode, and every delivery settled once it is sent.]
+    @Test
+    public void openLinksUsesSettledSenderInSettledMode(@Mocked final Connection mockConnection,
+            @Mocked final Session mockSession)
+    {
+        expectDeviceId();
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.isAmqpSendSettled();
+                result = true;
+                mockConnection.session();
+                result = mockSession;
+                mockSession.sender(anyString);
+                result = mockSender;
+            }
+        };
+        AmqpsDeviceSession session = new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+
+        Deencapsulation.invoke(session, "openLinks", mockConnection);
+
+        new Verifications()
+        {
+            {
+                mockSender.setSenderSettleMode(SenderSettleMode.SETTLED);
+                times = 1;
+                mockSender.open();
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSDEVICESESSION_21_025: [The token of the device shall be renewed as the token lifetime of its own configuration requires.]
+    // Tests_SRS_AMQPSDEVICESESSION_21_026: [The receiver link of the device shall be kept at the AMQP receive credit of its own configuration.]
+    @Test
+    public void renewalDelayAndReceiveCreditComeFromTheDeviceConfiguration()
+    {
+        expectDeviceId();
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getTokenValidSecs();
+                result = 400L;
+                mockConfig.getAmqpReceiveCredit();
+                result = 25;
+            }
+        };
+        AmqpsDeviceSession session = new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+
+        int renewalDelay = Deencapsulation.invoke(session, "getTokenRenewalDelayMillis");
+        int receiveCredit = Deencapsulation.invoke(session, "getReceiveCredit");
+
+        assertEquals(300 * 1000, renewalDelay);
+        assertEquals(25, receiveCredit);
+    }
+}
@@ -6,11 +6,13 @@
 package tests.unit.com.microsoft.azure.sdk.iot.device.transport.amqps;
 
 import com.microsoft.azure.sdk.iot.device.DeviceClientConfig;
+import com.microsoft.azure.sdk.iot.device.DeviceClientRuntime;
 import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
 import com.microsoft.azure.sdk.iot.device.ObjectLock;
 import com.microsoft.azure.sdk.iot.device.auth.IotHubSasToken;
 import com.microsoft.azure.sdk.iot.device.net.IotHubUri;
 import com.microsoft.azure.sdk.iot.device.transport.State;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsCbsSession;
 import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsIotHubConnection;
 import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsMessage;
 import com.microsoft.azure.sdk.iot.device.transport.amqps.IotHubReactor;
@@ -20,8 +22,10 @@ import com.microsoft.azure.sdk.iot.deps.ws.WebSocketHandler;
 
 import mockit.*;
 import org.apache.qpid.proton.Proton;
+import org.apache.qpid.proton.amqp.Binary;
 import org.apache.qpid.proton.amqp.Symbol;
 import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.apache.qpid.proton.amqp.messaging.Data;
 import org.apache.qpid.proton.amqp.messaging.Source;
 import org.apache.qpid.proton.amqp.messaging.Target;
 import org.apache.qpid.proton.amqp.transport.SenderSettleMode;
@@ -31,14 +35,30 @@ import org.apache.qpid.proton.message.Message;
 import org.apache.qpid.proton.reactor.FlowController;
 import org.apache.qpid.proton.reactor.Handshaker;
 import org.apache.qpid.proton.reactor.Reactor;
+import org.apache.qpid.proton.reactor.Task;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class AmqpsIotHubConnectionTest {
 
@@ -136,9 +156,22 @@ public class AmqpsIotHubConnectionTest {
     @Mocked
     ObjectLock mockOpenLock;
 
+    @Mocked
+    Task mockTask;
+
     @Mocked
     ObjectLock mockCloseLock;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void clearClientDomains()
+    {
+        Map<String, ?> clientDomains = Deencapsulation.getField(AmqpsIotHubConnection.class, "clientDomains");
+        clientDomains.clear();
+    }
+
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_001: [The constructor shall throw IllegalArgumentException if
     // any of the parameters of the configuration is null or empty.]
     @Test(expected = IllegalArgumentException.class)
@@ -324,13 +357,11 @@ public class AmqpsIotHubConnectionTest {
 
         DeviceClientConfig actualConfig = Deencapsulation.getField(connection, "config");
         String actualHostName = Deencapsulation.getField(connection, "hostName");
-        String actualUserName = Deencapsulation.getField(connection, "userName");
         String actualSendEndpoint = Deencapsulation.getField(connection, "sendEndpoint");
         String actualReceiveEndpoint = Deencapsulation.getField(connection, "receiveEndpoint");
 
         assertEquals(mockConfig, actualConfig);
         assertEquals(hostName + ":" + amqpPort, actualHostName);
-        assertEquals(deviceId + "@sas." + hubName, actualUserName);
 
         String expectedSendEndpoint = "/devices/test-deviceId/messages/events";
         assertEquals(expectedSendEndpoint, actualSendEndpoint);
@@ -343,7 +374,7 @@ public class AmqpsIotHubConnectionTest {
             {
                 new Handshaker();
                 times = 1;
-                new FlowController();
+                new FlowController(anyInt);
                 times = 1;
             }
         };
@@ -352,6 +383,31 @@ public class AmqpsIotHubConnectionTest {
         assertEquals(State.CLOSED, actualState);
     }
 
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_072: [The FlowController shall keep the receive link credit at the AMQP receive credit of the configuration.]
+    @Test
+    public void constructorSizesReceiveCreditFromConfig() throws IOException
+    {
+        baseExpectations();
+
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getAmqpReceiveCredit();
+                result = 64;
+            }
+        };
+
+        new AmqpsIotHubConnection(mockConfig, false);
+
+        new Verifications()
+        {
+            {
+                new FlowController(64);
+                times = 1;
+            }
+        };
+    }
+
     @Test
     public void constructorSetsHostNameCorrectlyWhenWebSocketsAreEnabled() throws IOException
     {
@@ -581,6 +637,145 @@ public class AmqpsIotHubConnectionTest {
         };
     }
 
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_050: [If the configuration has a runtime, the function shall run the reactor on the runtime's reactor executor.]
+    @Test
+    public void openRunsReactorOnRuntimeExecutor(
+            @Mocked final DeviceClientRuntime mockRuntime) throws IOException, InterruptedException
+    {
+        baseExpectations();
+
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getRuntime();
+                result = mockRuntime;
+                mockRuntime.getReactorExecutor();
+                result = mockExecutorService;
+                mockOpenLock.waitLock(anyLong);
+            }
+        };
+
+        AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+        Deencapsulation.setField(connection, "openLock", mockOpenLock);
+
+        connection.open();
+
+        new Verifications()
+        {
+            {
+                mockRuntime.getReactorExecutor();
+                times = 1;
+                mockExecutorService.submit((Callable) any);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_051: [If the reactor runs on the executor of a shared runtime, the function shall not shut the executor down.]
+    @Test
+    public void closeDoesNotShutDownSharedExecutor() throws IOException, InterruptedException
+    {
+        baseExpectations();
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+        Deencapsulation.setField(connection, "closeLock", mockCloseLock);
+        Deencapsulation.setField(connection, "executorService", mockExecutorService);
+        Deencapsulation.setField(connection, "executorServiceShared", true);
+
+        connection.close();
+
+        new Verifications()
+        {
+            {
+                mockExecutorService.shutdown();
+                times = 0;
+                mockExecutorService.shutdownNow();
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_075: [If the configuration has a runtime, the function shall reserve
+    // one of its reactor threads, and throw an IOException if none is left.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_076: [The function shall release the reactor thread reserved on the runtime, if any.]
+    @Test
+    public void openReservesReactorThreadAndCloseReleasesIt(
+            @Mocked final DeviceClientRuntime mockRuntime) throws IOException, InterruptedException
+    {
+        baseExpectations();
+
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getRuntime();
+                result = mockRuntime;
+                mockRuntime.getReactorExecutor();
+                result = mockExecutorService;
+                mockOpenLock.waitLock(anyLong);
+            }
+        };
+
+        AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+        Deencapsulation.setField(connection, "openLock", mockOpenLock);
+        Deencapsulation.setField(connection, "closeLock", mockCloseLock);
+
+        connection.open();
+        connection.close();
+        connection.close();
+
+        new VerificationsInOrder()
+        {
+            {
+                mockRuntime.reserveReactor();
+                times = 1;
+                mockExecutorService.submit((Callable) any);
+                mockRuntime.releaseReactor();
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_075: [If the configuration has a runtime, the function shall reserve
+    // one of its reactor threads, and throw an IOException if none is left.]
+    @Test
+    public void openFailsIfRuntimeHasNoReactorThreadLeft(
+            @Mocked final DeviceClientRuntime mockRuntime) throws IOException
+    {
+        baseExpectations();
+
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getRuntime();
+                result = mockRuntime;
+                mockRuntime.reserveReactor();
+                result = new IllegalStateException();
+            }
+        };
+
+        AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+
+        try
+        {
+            connection.open();
+            fail("the connection opened without a reactor thread");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+
+        new Verifications()
+        {
+            {
+                mockExecutorService.submit((Callable) any);
+                times = 0;
+                mockRuntime.releaseReactor();
+                times = 0;
+            }
+        };
+    }
+
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_015: [If the state of the connection is CLOSED or there is not enough
     // credit, the function shall return -1.]
     @Test
@@ -593,8 +788,8 @@ public class AmqpsIotHubConnectionTest {
         Deencapsulation.setField(connection, "state", State.CLOSED);
         Deencapsulation.setField(connection, "linkCredit", 100);
 
-        Integer expectedDeliveryHash = -1;
-        Integer actualDeliveryHash = connection.sendMessage(Message.Factory.create());
+        long expectedDeliveryHash = -1;
+        long actualDeliveryHash = connection.sendMessage(Message.Factory.create());
 
         assertEquals(expectedDeliveryHash, actualDeliveryHash);
     }
@@ -611,17 +806,76 @@ public class AmqpsIotHubConnectionTest {
         Deencapsulation.setField(connection, "state", State.OPEN);
         Deencapsulation.setField(connection, "linkCredit", -1);
 
-        Integer expectedDeliveryHash = -1;
-        Integer actualDeliveryHash = connection.sendMessage(Message.Factory.create());
+        long expectedDeliveryHash = -1;
+        long actualDeliveryHash = connection.sendMessage(Message.Factory.create());
 
         assertEquals(expectedDeliveryHash, actualDeliveryHash);
     }
 
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_052: [If the state of the connection is CLOSED or there is not enough
+    // credit, the function shall return -1.]
+    @Test
+    public void sendMessageBatchDoesNothingIfConnectionIsClosed() throws IOException
+    {
+        baseExpectations();
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+
+        Deencapsulation.setField(connection, "state", State.CLOSED);
+        Deencapsulation.setField(connection, "linkCredit", 100);
+
+        long actualDeliveryHash = connection.sendMessageBatch(Arrays.asList(mockProtonMessage, mockProtonMessage));
+
+        assertEquals(-1, actualDeliveryHash);
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_053: [The function shall encode each message into a data section of the batch body, in order.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_054: [The function shall send the batch body with the batch message format using the sender link, and advance the link.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_055: [The function shall return the delivery hash.]
+    @Test
+    public void sendMessageBatchSendsSingleBatchedDelivery() throws IOException
+    {
+        baseExpectations();
+
+        new NonStrictExpectations()
+        {
+            {
+                mockSender.delivery((byte[]) any);
+                result = mockDelivery;
+            }
+        };
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+
+        Deencapsulation.setField(connection, "state", State.OPEN);
+        Deencapsulation.setField(connection, "linkCredit", 100);
+        Deencapsulation.setField(connection, "sender", mockSender);
+
+        long actualDeliveryHash = connection.sendMessageBatch(Arrays.asList(mockProtonMessage, mockProtonMessage));
+
+        final List<byte[]> tags = new ArrayList<>();
+        new Verifications()
+        {
+            {
+                mockSender.delivery(withCapture(tags));
+                times = 1;
+                mockDelivery.setMessageFormat(AmqpsIotHubConnection.AMQP_BATCH_MESSAGE_FORMAT);
+                times = 1;
+                mockSender.send((byte[]) any, anyInt, anyInt);
+                times = 1;
+                mockSender.advance();
+                times = 1;
+            }
+        };
+        assertArrayEquals(deliveryTag(actualDeliveryHash), tags.get(0));
+    }
+
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_016: [The function shall encode the message and copy the contents to the byte buffer.]
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_017: [The function shall set the delivery tag for the sender.]
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_018: [The function shall attempt to send the message using the sender link.]
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_019: [The function shall advance the sender link.]
-    // Tests_SRS_AMQPSIOTHUBCONNECTION_15_020: [The function shall set the delivery hash to the value returned by the sender link.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_058: [The function shall give the delivery a new id, hand the delivery to the reactor thread, and return the id as the delivery hash.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_056: [Work on the Proton engine shall be handed to the reactor thread, or run on the calling thread if the reactor was never started.]
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_021: [The function shall return the delivery hash.]
     @Test
     public void sendMessage() throws IOException
@@ -643,26 +897,128 @@ public class AmqpsIotHubConnectionTest {
         Deencapsulation.setField(connection, "linkCredit", 100);
         Deencapsulation.setField(connection, "sender", mockSender);
 
-        Integer expectedDeliveryHash = mockDelivery.hashCode();
-        Integer actualDeliveryHash = connection.sendMessage(mockProtonMessage);
+        long actualDeliveryHash = connection.sendMessage(mockProtonMessage);
+        long nextDeliveryHash = connection.sendMessage(mockProtonMessage);
 
-        assertEquals(expectedDeliveryHash, actualDeliveryHash);
+        assertEquals(actualDeliveryHash + 1, nextDeliveryHash);
 
+        final List<byte[]> tags = new ArrayList<>();
         new Verifications()
         {
             {
                 mockProtonMessage.encode((byte[]) any, anyInt, anyInt);
+                times = 2;
+                mockSender.delivery(withCapture(tags));
+                times = 2;
+                mockSender.send((byte[]) any, anyInt, anyInt);
+                times = 2;
+                mockSender.advance();
+                times = 2;
+            }
+        };
+        assertArrayEquals(deliveryTag(actualDeliveryHash), tags.get(0));
+        assertArrayEquals(deliveryTag(nextDeliveryHash), tags.get(1));
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_074: [If the link went down after the delivery was handed over, the delivery shall be reported to the listeners as not delivered, so that it is sent again.]
+    @Test
+    public void sendMessageReportsDeliveryDroppedWithoutSender() throws IOException
+    {
+        baseExpectations();
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+        connection.addListener(mockServerListener);
+
+        Deencapsulation.setField(connection, "state", State.OPEN);
+        Deencapsulation.setField(connection, "linkCredit", 100);
+
+        final long deliveryHash = connection.sendMessage(mockProtonMessage);
+
+        new Verifications()
+        {
+            {
+                mockServerListener.messageSent(deliveryHash, false);
                 times = 1;
+                mockSender.send((byte[]) any, anyInt, anyInt);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_069: [If the configuration asks for settled sends, the function shall settle the delivery once it is sent.]
+    @Test
+    public void sendMessageSettlesDeliveryInSettledMode() throws IOException
+    {
+        baseExpectations();
+
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.isAmqpSendSettled();
+                result = true;
+                mockProtonMessage.encode((byte[]) any, anyInt, anyInt);
                 mockSender.delivery((byte[]) any);
-                times = 1;
+                result = mockDelivery;
+            }
+        };
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+
+        Deencapsulation.setField(connection, "state", State.OPEN);
+        Deencapsulation.setField(connection, "linkCredit", 100);
+        Deencapsulation.setField(connection, "sender", mockSender);
+
+        connection.sendMessage(mockProtonMessage);
+
+        new VerificationsInOrder()
+        {
+            {
                 mockSender.send((byte[]) any, anyInt, anyInt);
-                times = 1;
                 mockSender.advance();
+                mockDelivery.settle();
                 times = 1;
-                mockDelivery.hashCode();
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_15_016: [The function shall encode the message and copy the contents to the byte buffer.]
+    @Test
+    public void sendMessageEncodesLargeMessageInOnePass() throws IOException
+    {
+        baseExpectations();
+
+        final int bodyLength = 200 * 1024;
+        new NonStrictExpectations()
+        {
+            {
+                mockProtonMessage.getBody();
+                result = new Data(new Binary(new byte[bodyLength]));
+                mockProtonMessage.encode((byte[]) any, anyInt, anyInt);
+                result = bodyLength + 100;
+                mockSender.delivery((byte[]) any);
+                result = mockDelivery;
+            }
+        };
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+
+        Deencapsulation.setField(connection, "state", State.OPEN);
+        Deencapsulation.setField(connection, "linkCredit", 100);
+        Deencapsulation.setField(connection, "sender", mockSender);
+
+        connection.sendMessage(mockProtonMessage);
+
+        final List<byte[]> buffers = new ArrayList<>();
+        new Verifications()
+        {
+            {
+                mockProtonMessage.encode(withCapture(buffers), 0, anyInt);
+                times = 1;
+                mockSender.send((byte[]) any, 0, bodyLength + 100);
                 times = 1;
             }
         };
+        assertEquals(true, buffers.get(0).length > bodyLength);
     }
 
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_022: [If the AMQPS Connection is closed, the function shall return false.]
@@ -717,13 +1073,71 @@ public class AmqpsIotHubConnectionTest {
         }
     }
 
-    // Tests_SRS_AMQPSIOTHUBCONNECTION_15_025: [The event handler shall get the Connection (Proton) object from the event handler and set the host name on the connection.]
-    // Tests_SRS_AMQPSIOTHUBCONNECTION_15_026: [The event handler shall create a Session (Proton) object from the connection.]
-    // Tests_SRS_AMQPSIOTHUBCONNECTION_15_027: [The event handler shall create a Receiver and Sender (Proton) links and set the protocol tag on them to a predefined constant.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_070: [If the AMQPS Connection is closed, or a result is not one of COMPLETE, ABANDON, or REJECT, the function shall return false.]
+    @Test
+    public void sendMessageResultsReturnsFalseIfConnectionIsClosed() throws IOException
+    {
+        baseExpectations();
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+
+        Boolean actualResult = connection.sendMessageResults(Arrays.asList(mockAmqpsMessage),
+                Arrays.asList(IotHubMessageResult.COMPLETE));
+
+        assertEquals(false, actualResult);
+        new Verifications()
+        {
+            {
+                mockAmqpsMessage.acknowledge((AmqpsMessage.ACK_TYPE) any);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_071: [The function shall hand the acknowledgements of all the messages to the reactor thread as a single task, and return true.]
+    @Test
+    public void sendMessageResultsAcknowledgesAllMessagesInOneTask() throws IOException
+    {
+        baseExpectations();
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+        Deencapsulation.setField(connection, "state", State.OPEN);
+        Deencapsulation.setField(connection, "iotHubReactor", mockIotHubReactor);
+
+        Boolean actualResult = connection.sendMessageResults(
+                Arrays.asList(mockAmqpsMessage, mockAmqpsMessage, mockAmqpsMessage),
+                Arrays.asList(IotHubMessageResult.COMPLETE, IotHubMessageResult.ABANDON, IotHubMessageResult.REJECT));
+
+        assertEquals(true, actualResult);
+        final List<Runnable> tasks = new ArrayList<>();
+        new Verifications()
+        {
+            {
+                mockIotHubReactor.execute(withCapture(tasks));
+                times = 1;
+            }
+        };
+
+        tasks.get(0).run();
+
+        new VerificationsInOrder()
+        {
+            {
+                mockAmqpsMessage.acknowledge(AmqpsMessage.ACK_TYPE.COMPLETE);
+                mockAmqpsMessage.acknowledge(AmqpsMessage.ACK_TYPE.ABANDON);
+                mockAmqpsMessage.acknowledge(AmqpsMessage.ACK_TYPE.REJECT);
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_15_025: [The event handler shall get the Connection (Proton) object from the event handler and set the host name on the connection.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_15_026: [The event handler shall create a Session (Proton) object from the connection.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_15_027: [The event handler shall create a Receiver and Sender (Proton) links and set the protocol tag on them to a predefined constant.]
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_028: [The Receiver and Sender links shall have the properties set to client version identifier.]
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_029: [The event handler shall open the connection, session, sender and receiver objects.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_059: [The event handler shall open a CBS session on the connection and put the SAS token on it, and shall open the session, sender and receiver once the IoT Hub accepts the token.]
     @Test
-    public void onConnectionInit() throws IOException
+    public void onConnectionInit(@Mocked AmqpsCbsSession mockCbsSession) throws IOException
     {
         baseExpectations();
 
@@ -768,18 +1182,81 @@ public class AmqpsIotHubConnectionTest {
                 times = 1;
                 mockConnection.open();
                 times = 1;
+                mockSession.open();
+                times = 0;
+                mockReceiver.open();
+                times = 0;
+                mockSender.open();
+                times = 0;
+            }
+        };
+        assertNotNull(Deencapsulation.getField(connection, "cbsSession"));
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_059: [The event handler shall open a CBS session on the connection and put the SAS token on it, and shall open the session, sender and receiver once the IoT Hub accepts the token.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_060: [Once the IoT Hub accepts a SAS token, a new token shall be put on the same connection before the accepted one expires, without closing the links.]
+    @Test
+    public void acceptedFirstTokenOpensLinksAndSchedulesRenewal() throws IOException
+    {
+        baseExpectations();
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+        Deencapsulation.setField(connection, "reactor", mockReactor);
+        Deencapsulation.setField(connection, "session", mockSession);
+        Deencapsulation.setField(connection, "receiver", mockReceiver);
+        Deencapsulation.setField(connection, "sender", mockSender);
+
+        Deencapsulation.invoke(connection, "onTokenResponse", 200, "OK");
+
+        new Verifications()
+        {
+            {
                 mockSession.open();
                 times = 1;
                 mockReceiver.open();
                 times = 1;
                 mockSender.open();
                 times = 1;
+                mockReactor.schedule(anyInt, (Handler) any);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_060: [Once the IoT Hub accepts a SAS token, a new token shall be put on the same connection before the accepted one expires, without closing the links.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_061: [If the IoT Hub turns down a renewed token, the links shall be kept and the renewal tried again after a backoff.]
+    @Test
+    public void renewedTokenKeepsLinksOpen() throws IOException
+    {
+        baseExpectations();
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+        Deencapsulation.setField(connection, "reactor", mockReactor);
+        Deencapsulation.setField(connection, "state", State.OPEN);
+        Deencapsulation.setField(connection, "linksOpened", true);
+        Deencapsulation.setField(connection, "session", mockSession);
+        Deencapsulation.setField(connection, "receiver", mockReceiver);
+        Deencapsulation.setField(connection, "sender", mockSender);
+
+        Deencapsulation.invoke(connection, "onTokenResponse", 200, "OK");
+        Deencapsulation.invoke(connection, "onTokenResponse", 401, "Unauthorized");
+
+        assertEquals(State.OPEN, Deencapsulation.getField(connection, "state"));
+        new Verifications()
+        {
+            {
+                mockSession.open();
+                times = 0;
+                mockSender.open();
+                times = 0;
+                mockSender.close();
+                times = 0;
+                mockReactor.schedule(anyInt, (Handler) any);
+                times = 2;
             }
         };
     }
 
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_030: [The event handler shall get the Transport (Proton) object from the event.]
-    // Tests_SRS_AMQPSIOTHUBCONNECTION_15_031: [The event handler shall set the SASL_PLAIN authentication on the transport using the given user name and sas token.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_064: [The event handler shall set the SASL ANONYMOUS authentication on the transport, since the SAS token is put on the CBS session.]
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_032: [The event handler shall set VERIFY_PEER authentication mode on the domain of the Transport.]
     @Test
     public void onConnectionBoundNoWebSockets() throws IOException
@@ -795,7 +1272,7 @@ public class AmqpsIotHubConnectionTest {
                 result = mockTransport;
                 mockTransport.sasl();
                 result = mockSasl;
-                mockSasl.plain(anyString, anyString);
+                mockSasl.setMechanisms("ANONYMOUS");
                 mockSslDomain.setTrustedCaDb(mockCertPath);
                 mockSslDomain.getTrustedCaDb();
                 result = mockCertPath;
@@ -825,7 +1302,7 @@ public class AmqpsIotHubConnectionTest {
                 times = 1;
                 mockTransport.sasl();
                 times = 1;
-                mockSasl.plain(anyString, anyString);
+                mockSasl.setMechanisms("ANONYMOUS");
                 times = 1;
                 mockSslDomain.setTrustedCaDb(mockCertPath);
                 times = 1;
@@ -838,7 +1315,7 @@ public class AmqpsIotHubConnectionTest {
     }
 
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_030: [The event handler shall get the Transport (Proton) object from the event.]
-    // Tests_SRS_AMQPSIOTHUBCONNECTION_15_031: [The event handler shall set the SASL_PLAIN authentication on the transport using the given user name and sas token.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_064: [The event handler shall set the SASL ANONYMOUS authentication on the transport, since the SAS token is put on the CBS session.]
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_032: [The event handler shall set VERIFY_PEER authentication mode on the domain of the Transport.]
     @Test
     public void onConnectionBoundWebSockets() throws IOException
@@ -858,7 +1335,7 @@ public class AmqpsIotHubConnectionTest {
                 mockTransportInternal.addTransportLayer(mockWebSocket);
                 mockTransportInternal.sasl();
                 result = mockSasl;
-                mockSasl.plain(anyString, anyString);
+                mockSasl.setMechanisms("ANONYMOUS");
                 mockSslDomain.setTrustedCaDb(mockCertPath);
                 mockSslDomain.getTrustedCaDb();
                 result = mockCertPath;
@@ -894,7 +1371,7 @@ public class AmqpsIotHubConnectionTest {
                 times = 1;
                 mockTransportInternal.sasl();
                 times = 1;
-                mockSasl.plain(deviceId + "@sas." + hubName, anyString);
+                mockSasl.setMechanisms("ANONYMOUS");
                 times = 1;
                 mockSslDomain.setTrustedCaDb(mockCertPath);
                 times = 1;
@@ -906,6 +1383,108 @@ public class AmqpsIotHubConnectionTest {
         };
     }
 
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_073: [The client SSL domain shall be built once per trusted certificate contents, and reused by every connection that trusts a certificate with the same contents, keeping at most 16 domains.]
+    @Test
+    public void makeDomainReusesDomainForSameCertificateContents() throws IOException
+    {
+        final String firstPath = folder.newFile("first.cert.crt").getPath();
+        final String secondPath = folder.newFile("second.cert.crt").getPath();
+        Files.write(Paths.get(firstPath), "certificate".getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(secondPath), "certificate".getBytes(StandardCharsets.UTF_8));
+        new MockUp<AmqpsIotHubConnection>() {
+            @Mock
+            String getPemFormat(String path)
+            {
+                return path;
+            }
+        };
+        new NonStrictExpectations()
+        {
+            {
+                Proton.sslDomain();
+                result = mockSslDomain;
+                mockSslDomain.getTrustedCaDb();
+                result = firstPath;
+            }
+        };
+
+        SslDomain first = Deencapsulation.invoke(AmqpsIotHubConnection.class, "makeDomain", SslDomain.Mode.CLIENT, firstPath);
+        SslDomain second = Deencapsulation.invoke(AmqpsIotHubConnection.class, "makeDomain", SslDomain.Mode.CLIENT, secondPath);
+
+        assertEquals(first, second);
+        new Verifications()
+        {
+            {
+                Proton.sslDomain();
+                times = 1;
+                mockSslDomain.setTrustedCaDb(firstPath);
+                times = 1;
+                mockSslDomain.init(SslDomain.Mode.CLIENT);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_073: [The client SSL domain shall be built once per trusted certificate contents, and reused by every connection that trusts a certificate with the same contents, keeping at most 16 domains.]
+    @Test
+    public void makeDomainKeepsAtMostSixteenDomains() throws IOException
+    {
+        new MockUp<AmqpsIotHubConnection>() {
+            @Mock
+            String getPemFormat(String path)
+            {
+                return path;
+            }
+        };
+        new NonStrictExpectations()
+        {
+            {
+                Proton.sslDomain();
+                result = mockSslDomain;
+                mockSslDomain.getTrustedCaDb();
+                result = "trusted-cert.pem";
+            }
+        };
+
+        for (int i = 0; i < 20; i++)
+        {
+            String path = folder.newFile("cert" + i + ".crt").getPath();
+            Files.write(Paths.get(path), ("certificate" + i).getBytes(StandardCharsets.UTF_8));
+            Deencapsulation.invoke(AmqpsIotHubConnection.class, "makeDomain", SslDomain.Mode.CLIENT, path);
+        }
+
+        Map<String, ?> clientDomains = Deencapsulation.getField(AmqpsIotHubConnection.class, "clientDomains");
+        assertEquals(16, clientDomains.size());
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_073: [The client SSL domain shall be built once per trusted certificate contents, and reused by every connection that trusts a certificate with the same contents, keeping at most 16 domains.]
+    @Test
+    public void makeDomainDoesNotKeepDomainForUnreadableCertificate()
+    {
+        final String certPath = "missing-cert.pem";
+        new MockUp<AmqpsIotHubConnection>() {
+            @Mock
+            String getPemFormat(String path)
+            {
+                return path;
+            }
+        };
+        new NonStrictExpectations()
+        {
+            {
+                Proton.sslDomain();
+                result = mockSslDomain;
+                mockSslDomain.getTrustedCaDb();
+                result = certPath;
+            }
+        };
+
+        Deencapsulation.invoke(AmqpsIotHubConnection.class, "makeDomain", SslDomain.Mode.CLIENT, certPath);
+
+        Map<String, ?> clientDomains = Deencapsulation.getField(AmqpsIotHubConnection.class, "clientDomains");
+        assertTrue(clientDomains.isEmpty());
+    }
+
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_033: [The event handler shall set the current handler to handle the connection events.]
     @Test
     public void onReactorInit() throws IOException
@@ -1008,7 +1587,7 @@ public class AmqpsIotHubConnectionTest {
     }
 
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_038: [If this link is the Sender link and the event type is DELIVERY, the event handler shall get the Delivery (Proton) object from the event.]
-    // Tests_SRS_AMQPSIOTHUBCONNECTION_15_039: [The event handler shall note the remote delivery state and use it and the Delivery (Proton) hash code to inform the AmqpsIotHubConnection of the message receipt.]
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_15_039: [The event handler shall note the remote delivery state and use it and the delivery id to inform the AmqpsIotHubConnection of the message receipt.]
     @Test
     public void onDeliverySend() throws IOException
     {
@@ -1027,7 +1606,8 @@ public class AmqpsIotHubConnectionTest {
                 result = mockDelivery;
                 mockDelivery.getRemoteState();
                 result = Accepted.getInstance();
-                mockServerListener.messageSent(anyInt, true);
+                mockDelivery.getTag();
+                result = deliveryTag(5);
             }
         };
 
@@ -1048,12 +1628,87 @@ public class AmqpsIotHubConnectionTest {
                 times = 1;
                 mockDelivery.getRemoteState();
                 times = 1;
-                mockServerListener.messageSent(mockDelivery.hashCode(), true);
+                mockServerListener.messageSent(5, true);
                 times = 1;
             }
         };
     }
 
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_057: [The delivery shall be reported by the id read back from its tag. A delivery whose tag is not 8 bytes long shall not be reported.]
+    @Test
+    public void onDeliverySendReportsDeliveryIdFromTag() throws IOException
+    {
+        baseExpectations();
+
+        new NonStrictExpectations()
+        {
+            {
+                mockEvent.getLink();
+                result = mockReceiver;
+                mockReceiver.getName();
+                result = "sender";
+                mockEvent.getType();
+                result = Event.Type.DELIVERY;
+                mockEvent.getDelivery();
+                result = mockDelivery;
+                mockDelivery.getRemoteState();
+                result = Accepted.getInstance();
+                mockDelivery.getTag();
+                result = deliveryTag(0x123456789AL);
+            }
+        };
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+        connection.addListener(mockServerListener);
+        connection.onDelivery(mockEvent);
+
+        new Verifications()
+        {
+            {
+                mockServerListener.messageSent(0x123456789AL, true);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_057: [The delivery shall be reported by the id read back from its tag. A delivery whose tag is not 8 bytes long shall not be reported.]
+    @Test
+    public void onDeliverySendIgnoresForeignTag() throws IOException
+    {
+        baseExpectations();
+        final byte[] foreignTag = {'4', '2'};
+
+        new NonStrictExpectations()
+        {
+            {
+                mockEvent.getLink();
+                result = mockReceiver;
+                mockReceiver.getName();
+                result = "sender";
+                mockEvent.getType();
+                result = Event.Type.DELIVERY;
+                mockEvent.getDelivery();
+                result = mockDelivery;
+                mockDelivery.getRemoteState();
+                result = Accepted.getInstance();
+                mockDelivery.getTag();
+                result = foreignTag;
+            }
+        };
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+        connection.addListener(mockServerListener);
+        connection.onDelivery(mockEvent);
+
+        new Verifications()
+        {
+            {
+                mockServerListener.messageSent(anyLong, anyBoolean);
+                times = 0;
+            }
+        };
+    }
+
     // Tests_SRS_AMQPSIOTHUBCONNECTION_15_040: [The event handler shall save the remaining link credit.]
     @Test
     public void onLinkFlow() throws IOException
@@ -1163,10 +1818,11 @@ public class AmqpsIotHubConnectionTest {
             }
         };
 
+        Deencapsulation.setField(connection, "reactor", mockReactor);
         connection.addListener(mockServerListener);
         connection.onLinkRemoteClose(mockEvent);
 
-        assertEquals(true, closeAsyncCalled[0]);
+        assertEquals(false, closeAsyncCalled[0]);
         assertEquals(false, openAsyncCalled[0]);
 
         new Verifications()
@@ -1178,6 +1834,8 @@ public class AmqpsIotHubConnectionTest {
                 times = 1;
                 mockServerListener.connectionLost();
                 times = 1;
+                mockReactor.schedule(anyInt, (Handler) any);
+                times = 1;
             }
         };
     }
@@ -1228,6 +1886,39 @@ public class AmqpsIotHubConnectionTest {
         };
     }
 
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_068: [If the configuration asks for settled sends, the event handler shall set the SenderSettleMode of the Sender link to SETTLED.]
+    @Test
+    public void onLinkInitSendSettled() throws IOException
+    {
+        baseExpectations();
+
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.isAmqpSendSettled();
+                result = true;
+                mockEvent.getLink();
+                result = mockSender;
+                mockSender.getName();
+                result = "sender";
+            }
+        };
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+
+        connection.onLinkInit(mockEvent);
+
+        new Verifications()
+        {
+            {
+                mockSender.setSenderSettleMode(SenderSettleMode.SETTLED);
+                times = 1;
+                mockSender.setSenderSettleMode(SenderSettleMode.UNSETTLED);
+                times = 0;
+            }
+        };
+    }
+
     // Tests_SRS_AMQPSIOTHUBCONNECTION_14_046: [If the link is the Receiver link, the event handler shall create a new Source (Proton) object using the receiver endpoint address member variable.]
     // Tests_SRS_AMQPSIOTHUBCONNECTION_14_047: [If the link is the Receiver link, the event handler shall set its source to the created Source (Proton) object.]
     @Test
@@ -1305,10 +1996,11 @@ public class AmqpsIotHubConnectionTest {
             }
         };
 
+        Deencapsulation.setField(connection, "reactor", mockReactor);
         connection.addListener(mockServerListener);
         connection.onTransportError(mockEvent);
 
-        assertEquals(true, closeAsyncCalled[0]);
+        assertEquals(false, closeAsyncCalled[0]);
         assertEquals(false, openAsyncCalled[0]);
 
         new Verifications()
@@ -1316,6 +2008,111 @@ public class AmqpsIotHubConnectionTest {
             {
                 mockServerListener.connectionLost();
                 times = 1;
+                mockReactor.schedule(anyInt, (Handler) any);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_065: [The function shall not block the reactor thread, but schedule the reconnection on the reactor after a jittered exponential backoff.]
+    @Test
+    public void reconnectTimerClosesConnectionOnceBackoffExpires() throws IOException
+    {
+        baseExpectations();
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+
+        final Boolean[] closeAsyncCalled = { false };
+
+        new MockUp<AmqpsIotHubConnection>()
+        {
+            @Mock
+            void closeAsync()
+            {
+                closeAsyncCalled[0] = true;
+            }
+        };
+
+        Deencapsulation.setField(connection, "reactor", mockReactor);
+        connection.onTransportError(mockEvent);
+
+        final List<Integer> delays = new ArrayList<>();
+        final List<Handler> handlers = new ArrayList<>();
+        new Verifications()
+        {
+            {
+                mockReactor.schedule(withCapture(delays), withCapture(handlers));
+                times = 1;
+            }
+        };
+
+        // the first backoff is a second, jittered down to no less than half of it.
+        assertTrue(delays.get(0) >= 1000 && delays.get(0) <= 2000);
+        assertEquals(false, closeAsyncCalled[0]);
+
+        ((BaseHandler) handlers.get(0)).onTimerTask(mockEvent);
+
+        assertEquals(true, closeAsyncCalled[0]);
+        assertEquals(null, Deencapsulation.getField(connection, "reconnectTask"));
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_066: [If a reconnection is already pending, the function shall do nothing.]
+    @Test
+    public void secondLossDoesNotScheduleAnotherReconnect() throws IOException
+    {
+        baseExpectations();
+
+        new NonStrictExpectations()
+        {
+            {
+                mockEvent.getLink();
+                result = mockSender;
+                mockSender.getName();
+                result = "sender";
+                mockReactor.schedule(anyInt, (Handler) any);
+                result = mockTask;
+            }
+        };
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+
+        Deencapsulation.setField(connection, "reactor", mockReactor);
+        connection.addListener(mockServerListener);
+        connection.onLinkRemoteClose(mockEvent);
+        connection.onTransportError(mockEvent);
+
+        new Verifications()
+        {
+            {
+                mockReactor.schedule(anyInt, (Handler) any);
+                times = 1;
+                mockServerListener.connectionLost();
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSIOTHUBCONNECTION_21_067: [The function shall drop a pending reconnection, so that the connection is not opened again once closed.]
+    @Test
+    public void closeDropsPendingReconnect() throws IOException, InterruptedException
+    {
+        baseExpectations();
+
+        final AmqpsIotHubConnection connection = new AmqpsIotHubConnection(mockConfig, false);
+        Deencapsulation.setField(connection, "closeLock", mockCloseLock);
+        Deencapsulation.setField(connection, "reactor", mockReactor);
+        Deencapsulation.setField(connection, "reconnectCall", true);
+        Deencapsulation.setField(connection, "reconnectTask", mockTask);
+
+        connection.close();
+
+        assertEquals(false, Deencapsulation.getField(connection, "reconnectCall"));
+        assertEquals(null, Deencapsulation.getField(connection, "reconnectTask"));
+        new Verifications()
+        {
+            {
+                mockTask.cancel();
+                times = 1;
             }
         };
     }
@@ -1335,4 +2132,9 @@ public class AmqpsIotHubConnectionTest {
             }
         };
     }
-}
\ No newline at end of file
+
+    private static byte[] deliveryTag(long deliveryId)
+    {
+        return ByteBuffer.allocate(8).putLong(deliveryId).array();
+    }
+}
@@ -0,0 +1,363 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package tests.unit.com.microsoft.azure.sdk.iot.device.transport.amqps;
+
+import com.microsoft.azure.sdk.iot.device.DeviceClientConfig;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsDeviceSession;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsIotHubConnection;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsMultiplexedConnection;
+import mockit.Deencapsulation;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import mockit.Verifications;
+import org.apache.qpid.proton.engine.Connection;
+import org.apache.qpid.proton.engine.Event;
+import org.apache.qpid.proton.engine.Handler;
+import org.apache.qpid.proton.engine.Receiver;
+import org.apache.qpid.proton.engine.Sasl;
+import org.apache.qpid.proton.engine.SslDomain;
+import org.apache.qpid.proton.engine.Transport;
+import org.apache.qpid.proton.reactor.Reactor;
+import org.apache.qpid.proton.reactor.Task;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertEquals;
+
+/** Unit tests for AmqpsMultiplexedConnection. */
+public class AmqpsMultiplexedConnectionTest
+{
+    private static final String HOST_NAME = "test.host.name";
+
+    @Mocked
+    DeviceClientConfig mockConfig;
+
+    @Mocked
+    ExecutorService mockExecutorService;
+
+    @Mocked
+    AmqpsDeviceSession mockDeviceSession;
+
+    private AmqpsMultiplexedConnection createConnection()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getIotHubHostname();
+                result = HOST_NAME;
+                mockConfig.getAmqpReceiveCredit();
+                result = DeviceClientConfig.DEFAULT_AMQP_RECEIVE_CREDIT;
+            }
+        };
+        return new AmqpsMultiplexedConnection(mockConfig, false, mockExecutorService);
+    }
+
+    private static Handler getCreditController(AmqpsMultiplexedConnection connection)
+    {
+        // the handshaker comes first, then the credit controller.
+        Iterator<Handler> children = connection.children();
+        children.next();
+        return children.next();
+    }
+
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_001: [If the configuration or the executor is null, or the configuration has no host name, the constructor shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorFailsIfExecutorIsNull()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getIotHubHostname();
+                result = HOST_NAME;
+            }
+        };
+
+        new AmqpsMultiplexedConnection(mockConfig, false, null);
+    }
+
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_001: [If the configuration or the executor is null, or the configuration has no host name, the constructor shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorFailsIfHostNameIsEmpty()
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getIotHubHostname();
+                result = "";
+            }
+        };
+
+        new AmqpsMultiplexedConnection(mockConfig, false, mockExecutorService);
+    }
+
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_002: [The constructor shall save the configuration, the web sockets flag and the executor.]
+    @Test
+    public void constructorSavesParameters()
+    {
+        AmqpsMultiplexedConnection connection = createConnection();
+
+        assertEquals(mockConfig, Deencapsulation.getField(connection, "config"));
+        assertEquals(false, Deencapsulation.getField(connection, "useWebSockets"));
+        assertEquals(mockExecutorService, Deencapsulation.getField(connection, "executorService"));
+        assertEquals(HOST_NAME + ":5671", Deencapsulation.getField(connection, "hostName"));
+    }
+
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_015: [If the put-token request of a device succeeds, the connection shall open the session and links of the device.]
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_018: [Once the token of a device is accepted, the connection shall put a new token for the device before the accepted one expires, as the configuration of the device requires.]
+    @Test
+    public void acceptedTokenOpensDeviceLinksAndSchedulesRenewal(@Mocked final Connection mockProtonConnection,
+            @Mocked final Reactor mockReactor)
+    {
+        AmqpsMultiplexedConnection connection = createConnection();
+        Deencapsulation.setField(connection, "connection", mockProtonConnection);
+        Deencapsulation.setField(connection, "reactor", mockReactor);
+        List<AmqpsDeviceSession> deviceSessions = Deencapsulation.getField(connection, "deviceSessions");
+        deviceSessions.add(mockDeviceSession);
+        new NonStrictExpectations()
+        {
+            {
+                Deencapsulation.invoke(mockDeviceSession, "hasLinks");
+                result = false;
+            }
+        };
+
+        Deencapsulation.invoke(connection, "onAuthorizationResponse", mockDeviceSession, 200, "OK");
+
+        new Verifications()
+        {
+            {
+                Deencapsulation.invoke(mockDeviceSession, "openLinks", mockProtonConnection);
+                times = 1;
+                mockReactor.schedule(anyInt, (Handler) any);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_018: [Once the token of a device is accepted, the connection shall put a new token for the device before the accepted one expires, as the configuration of the device requires.]
+    @Test
+    public void renewalIsScheduledWithTheDelayOfTheDevice(@Mocked final Connection mockProtonConnection,
+            @Mocked final Reactor mockReactor)
+    {
+        AmqpsMultiplexedConnection connection = createConnection();
+        Deencapsulation.setField(connection, "connection", mockProtonConnection);
+        Deencapsulation.setField(connection, "reactor", mockReactor);
+        List<AmqpsDeviceSession> deviceSessions = Deencapsulation.getField(connection, "deviceSessions");
+        deviceSessions.add(mockDeviceSession);
+        new NonStrictExpectations()
+        {
+            {
+                Deencapsulation.invoke(mockDeviceSession, "hasLinks");
+                result = false;
+                Deencapsulation.invoke(mockDeviceSession, "getTokenRenewalDelayMillis");
+                result = 1234;
+            }
+        };
+
+        Deencapsulation.invoke(connection, "onAuthorizationResponse", mockDeviceSession, 200, "OK");
+
+        new Verifications()
+        {
+            {
+                mockReactor.schedule(1234, (Handler) any);
+                times = 1;
+                mockConfig.getTokenValidSecs();
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_022: [The receive link credit of every device shall be kept at the AMQP receive credit of the device's own configuration, and that of the CBS receiver at the credit of the configuration the connection was created with.]
+    @Test
+    public void deviceReceiverCreditIsToppedUpToTheCreditOfItsDevice(@Mocked final Event mockEvent,
+            @Mocked final Receiver mockReceiver)
+    {
+        Handler creditController = getCreditController(createConnection());
+        new NonStrictExpectations()
+        {
+            {
+                mockEvent.getType();
+                result = Event.Type.LINK_FLOW;
+                mockEvent.getLink();
+                result = mockReceiver;
+                mockReceiver.getContext();
+                result = mockDeviceSession;
+                mockReceiver.getCredit();
+                result = 3;
+                Deencapsulation.invoke(mockDeviceSession, "getReceiveCredit");
+                result = 10;
+            }
+        };
+
+        creditController.handle(mockEvent);
+
+        new Verifications()
+        {
+            {
+                mockReceiver.flow(7);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_022: [The receive link credit of every device shall be kept at the AMQP receive credit of the device's own configuration, and that of the CBS receiver at the credit of the configuration the connection was created with.]
+    @Test
+    public void cbsReceiverCreditIsToppedUpToTheCreditOfTheConnection(@Mocked final Event mockEvent,
+            @Mocked final Receiver mockReceiver)
+    {
+        Handler creditController = getCreditController(createConnection());
+        new NonStrictExpectations()
+        {
+            {
+                mockEvent.getType();
+                result = Event.Type.DELIVERY;
+                mockEvent.getLink();
+                result = mockReceiver;
+                mockReceiver.getContext();
+                result = null;
+                mockReceiver.getCredit();
+                result = DeviceClientConfig.DEFAULT_AMQP_RECEIVE_CREDIT - 1;
+            }
+        };
+
+        creditController.handle(mockEvent);
+
+        new Verifications()
+        {
+            {
+                mockReceiver.flow(1);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_017: [If the renewed token of a device is accepted, the connection shall keep the links of the device as they are.]
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_019: [If the renewed token of a device is turned down, the connection shall keep the links of the device and try again after a backoff.]
+    @Test
+    public void renewedTokenKeepsDeviceLinks(@Mocked final Reactor mockReactor)
+    {
+        AmqpsMultiplexedConnection connection = createConnection();
+        Deencapsulation.setField(connection, "reactor", mockReactor);
+        List<AmqpsDeviceSession> deviceSessions = Deencapsulation.getField(connection, "deviceSessions");
+        deviceSessions.add(mockDeviceSession);
+        new NonStrictExpectations()
+        {
+            {
+                Deencapsulation.invoke(mockDeviceSession, "hasLinks");
+                result = true;
+            }
+        };
+
+        Deencapsulation.invoke(connection, "onAuthorizationResponse", mockDeviceSession, 200, "OK");
+        Deencapsulation.invoke(connection, "onAuthorizationResponse", mockDeviceSession, 401, "Unauthorized");
+
+        new Verifications()
+        {
+            {
+                Deencapsulation.invoke(mockDeviceSession, "openLinks", new Class[] { Connection.class }, (Connection) any);
+                times = 0;
+                Deencapsulation.invoke(mockDeviceSession, "onAuthorizationFailed", anyInt, anyString);
+                times = 0;
+                mockReactor.schedule(anyInt, (Handler) any);
+                times = 2;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_016: [If the put-token request of a device fails, the connection shall report the failure to the device.]
+    @Test
+    public void turnedDownTokenIsReportedToDevice()
+    {
+        AmqpsMultiplexedConnection connection = createConnection();
+        List<AmqpsDeviceSession> deviceSessions = Deencapsulation.getField(connection, "deviceSessions");
+        deviceSessions.add(mockDeviceSession);
+        new NonStrictExpectations()
+        {
+            {
+                Deencapsulation.invoke(mockDeviceSession, "hasLinks");
+                result = false;
+            }
+        };
+
+        Deencapsulation.invoke(connection, "onAuthorizationResponse", mockDeviceSession, 401, "Unauthorized");
+
+        new Verifications()
+        {
+            {
+                Deencapsulation.invoke(mockDeviceSession, "onAuthorizationFailed", 401, "Unauthorized");
+                times = 1;
+                Deencapsulation.invoke(mockDeviceSession, "openLinks", new Class[] { Connection.class }, (Connection) any);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_011: [The connection shall authenticate with SASL ANONYMOUS, since the devices are authorized through CBS, over TLS.]
+    @Test
+    public void onConnectionBoundUsesSaslAnonymous(@Mocked final Event mockEvent, @Mocked final Transport mockTransport,
+            @Mocked final Sasl mockSasl, @Mocked AmqpsIotHubConnection mockIotHubConnection)
+    {
+        AmqpsMultiplexedConnection connection = createConnection();
+        new NonStrictExpectations()
+        {
+            {
+                mockEvent.getConnection().getTransport();
+                result = mockTransport;
+                mockTransport.sasl();
+                result = mockSasl;
+            }
+        };
+
+        connection.onConnectionBound(mockEvent);
+
+        new Verifications()
+        {
+            {
+                mockSasl.setMechanisms("ANONYMOUS");
+                times = 1;
+                mockTransport.ssl((SslDomain) any);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_014: [If the connection is lost, every registered device shall be notified, and the connection shall be opened again.]
+    // Tests_SRS_AMQPSMULTIPLEXEDCONNECTION_21_021: [The connection shall not block the reactor thread, but stop the lost connection on a reactor timer after a jittered exponential backoff, once per loss.]
+    @Test
+    public void transportErrorSchedulesOneReconnectOnReactor(@Mocked final Event mockEvent,
+            @Mocked final Reactor mockReactor, @Mocked final Task mockTask)
+    {
+        AmqpsMultiplexedConnection connection = createConnection();
+        List<AmqpsDeviceSession> deviceSessions = Deencapsulation.getField(connection, "deviceSessions");
+        deviceSessions.add(mockDeviceSession);
+        new NonStrictExpectations()
+        {
+            {
+                mockEvent.getReactor();
+                result = mockReactor;
+                mockReactor.schedule(anyInt, (Handler) any);
+                result = mockTask;
+            }
+        };
+
+        connection.onTransportError(mockEvent);
+        connection.onTransportError(mockEvent);
+
+        assertEquals(true, Deencapsulation.getField(connection, "reconnectCall"));
+        new Verifications()
+        {
+            {
+                Deencapsulation.invoke(mockDeviceSession, "onLinksLost");
+                times = 2;
+                mockReactor.schedule(anyInt, (Handler) any);
+                times = 1;
+                mockReactor.stop();
+                times = 0;
+            }
+        };
+    }
+}
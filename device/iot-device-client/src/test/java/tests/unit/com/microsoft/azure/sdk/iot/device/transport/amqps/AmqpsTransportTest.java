@@ -6,23 +6,34 @@ package tests.unit.com.microsoft.azure.sdk.iot.device.transport.amqps;
 import com.microsoft.azure.sdk.iot.device.*;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubCallbackPacket;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubOutboundPacket;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubSendTask;
 import com.microsoft.azure.sdk.iot.device.transport.State;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsDeviceSession;
 import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsIotHubConnection;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsMultiplexedConnection;
 import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsMessage;
 import com.microsoft.azure.sdk.iot.device.transport.amqps.AmqpsTransport;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.DeliveryTagMap;
 import mockit.*;
 import org.apache.qpid.proton.Proton;
+import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.UnsignedInteger;
 import org.apache.qpid.proton.amqp.messaging.ApplicationProperties;
+import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.amqp.messaging.Properties;
 import org.apache.qpid.proton.message.impl.MessageImpl;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Queue;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -122,6 +133,40 @@ public class AmqpsTransportTest
         };
     }
 
+    // Tests_SRS_AMQPSTRANSPORT_21_055: [If the configuration has a runtime with AMQP multiplexing, the function shall open a session for the device on the connection the runtime shares between the devices of the IoT Hub.]
+    @Test
+    public void openOpensDeviceSessionOnMultiplexedConnection(@Mocked final DeviceClientRuntime mockRuntime,
+            @Mocked final AmqpsMultiplexedConnection mockMultiplexedConnection,
+            @Mocked final AmqpsDeviceSession mockDeviceSession) throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getRuntime();
+                result = mockRuntime;
+                mockRuntime.isAmqpMultiplexed();
+                result = true;
+                mockRuntime.getMultiplexedConnection(mockConfig, false);
+                result = mockMultiplexedConnection;
+                new AmqpsDeviceSession(mockConfig, mockMultiplexedConnection);
+                result = mockDeviceSession;
+            }
+        };
+
+        AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
+        transport.open();
+
+        new Verifications()
+        {
+            {
+                mockDeviceSession.open();
+                times = 1;
+                new AmqpsIotHubConnection((DeviceClientConfig) any, anyBoolean);
+                times = 0;
+            }
+        };
+    }
+
 
     // Tests_SRS_AMQPSTRANSPORT_15_005: [The function shall add the transport to the list of listeners subscribed to the connection events.]
     @Test
@@ -268,6 +313,39 @@ public class AmqpsTransportTest
         };
     }
 
+    // Tests_SRS_AMQPSTRANSPORT_21_040: [The function shall save the send task.]
+    @Test
+    public void setSendTaskSavesSendTask(@Mocked final IotHubSendTask mockSendTask)
+    {
+        AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
+        transport.setSendTask(mockSendTask);
+
+        IotHubSendTask actualSendTask = Deencapsulation.getField(transport, "sendTask");
+
+        assertEquals(mockSendTask, actualSendTask);
+    }
+
+    // Tests_SRS_AMQPSTRANSPORT_21_041: [The function shall signal the send task that a message is waiting to be sent.]
+    @Test
+    public void addMessageSignalsSendTask(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback,
+            @Mocked final IotHubSendTask mockSendTask) throws IOException
+    {
+        AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
+        transport.open();
+        transport.setSendTask(mockSendTask);
+        transport.addMessage(mockMsg, mockCallback, null);
+
+        new Verifications()
+        {
+            {
+                mockSendTask.signal();
+                times = 1;
+            }
+        };
+    }
+
     // Tests_SRS_AMQPSTRANSPORT_15_012: [If the AMQPS session is closed, the function shall throw an IllegalStateException.]
     @Test(expected = IllegalStateException.class)
     public void sendMessagesFailsIfTransportNeverOpened() throws IOException
@@ -520,7 +598,7 @@ public class AmqpsTransportTest
                 mockMsg.getBytes();
                 result = messageBytes;
                 mockConnection.sendMessage((org.apache.qpid.proton.message.Message) any);
-                returns (1, 2);
+                returns (1L, 2L);
             }
         };
 
@@ -530,7 +608,7 @@ public class AmqpsTransportTest
         transport.addMessage(mockMsg, mockCallback, context);
         transport.sendMessages();
 
-        Map<Integer, IotHubOutboundPacket> inProgressMessages = Deencapsulation.getField(transport, "inProgressMessages");
+        DeliveryTagMap<IotHubOutboundPacket> inProgressMessages = Deencapsulation.getField(transport, "inProgressMessages");
         Assert.assertEquals(2, inProgressMessages.size());
 
         new Verifications()
@@ -546,6 +624,58 @@ public class AmqpsTransportTest
         };
     }
 
+    // Tests_SRS_AMQPSTRANSPORT_21_056: [If the configuration asks for settled sends, a sent message shall not be held in progress, but its callback shall be added to the callback list with the OK_EMPTY status, and its room in the send queue released.]
+    @Test
+    public void sendMessagesCompletesSettledMessagesAtOnce(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback,
+            @Mocked final IotHubOutboundPacket mockPacket)
+            throws IOException
+    {
+        final Map<String, Object> context = new HashMap<>();
+        final byte[] messageBytes = new byte[] {1, 2};
+        new NonStrictExpectations()
+        {
+            {
+                new AmqpsIotHubConnection(mockConfig, false);
+                result = mockConnection;
+                mockConfig.isAmqpSendSettled();
+                result = true;
+                new IotHubOutboundPacket(mockMsg, mockCallback, context);
+                result = mockPacket;
+                mockPacket.getMessage();
+                result = mockMsg;
+                mockPacket.getCallback();
+                result = mockCallback;
+                mockPacket.getContext();
+                result = context;
+                mockMsg.getBytes();
+                result = messageBytes;
+                mockConnection.sendMessage((org.apache.qpid.proton.message.Message) any);
+                returns (1L, 2L);
+            }
+        };
+
+        AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
+        transport.open();
+        transport.addMessage(mockMsg, mockCallback, context);
+        transport.addMessage(mockMsg, mockCallback, context);
+        transport.sendMessages();
+
+        DeliveryTagMap<IotHubOutboundPacket> inProgressMessages = Deencapsulation.getField(transport, "inProgressMessages");
+        Queue<IotHubCallbackPacket> callbackList = Deencapsulation.getField(transport, "callbackList");
+        Assert.assertEquals(0, inProgressMessages.size());
+        Assert.assertEquals(2, callbackList.size());
+
+        new Verifications()
+        {
+            {
+                new IotHubCallbackPacket(IotHubStatusCode.OK_EMPTY, mockCallback, context);
+                times = 2;
+            }
+        };
+    }
+
     // Tests_SRS_AMQPSTRANSPORT_15_017: [If the sent message hash is not valid, it shall be buffered to be sent in a subsequent attempt.]
     @Test
     public void sendMessagesAddsNotSentMessagesToInProgressMap(
@@ -568,7 +698,7 @@ public class AmqpsTransportTest
                 mockMsg.getBytes();
                 result = messageBytes;
                 mockConnection.sendMessage((org.apache.qpid.proton.message.Message) any);
-                returns (1, -1);
+                returns (1L, -1L);
             }
         };
 
@@ -578,7 +708,7 @@ public class AmqpsTransportTest
         transport.addMessage(mockMsg, mockCallback, context);
         transport.sendMessages();
 
-        Map<Integer, IotHubOutboundPacket> inProgressMessages = Deencapsulation.getField(transport, "inProgressMessages");
+        DeliveryTagMap<IotHubOutboundPacket> inProgressMessages = Deencapsulation.getField(transport, "inProgressMessages");
         Assert.assertEquals(1, inProgressMessages.size());
 
         Queue<IotHubOutboundPacket> waitingMessages = Deencapsulation.getField(transport, "waitingMessages");
@@ -632,7 +762,7 @@ public class AmqpsTransportTest
         transport.addMessage(mockMsg, mockCallback, context);
         transport.sendMessages();
 
-        Map<Integer, IotHubOutboundPacket> inProgressMessages = Deencapsulation.getField(transport, "inProgressMessages");
+        DeliveryTagMap<IotHubOutboundPacket> inProgressMessages = Deencapsulation.getField(transport, "inProgressMessages");
         Assert.assertEquals(1, inProgressMessages.size());
 
         Queue<IotHubOutboundPacket> waitingMessages = Deencapsulation.getField(transport, "waitingMessages");
@@ -830,7 +960,6 @@ public class AmqpsTransportTest
 
         Queue<AmqpsMessage> receivedMessages = new LinkedBlockingQueue<>();
         receivedMessages.add(mockAmqpsMessage);
-        receivedMessages.add(mockAmqpsMessage);
         Deencapsulation.setField(transport, "receivedMessages", receivedMessages);
 
         transport.handleMessage();
@@ -844,13 +973,130 @@ public class AmqpsTransportTest
                 times = 1;
                 mockConnection.sendMessageResult(mockAmqpsMessage, IotHubMessageResult.COMPLETE);
                 times = 1;
+                mockConnection.sendMessageResults((List<AmqpsMessage>) any, (List<IotHubMessageResult>) any);
+                times = 0;
             }
         };
 
-        Assert.assertTrue(receivedTransportMessages.size() == 1);
+        Assert.assertTrue(receivedTransportMessages.size() == 0);
+    }
+
+    // Tests_SRS_AMQPSTRANSPORT_21_057: [The function shall consume every message received before it was called, not only the first one.]
+    // Tests_SRS_AMQPSTRANSPORT_21_058: [The results of several messages shall be returned to the IoT Hub together.]
+    @Test
+    public void handleMessageDrainsAllReceivedMessages() throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                new AmqpsIotHubConnection(mockConfig, false);
+                result = mockConnection;
+                mockConfig.getMessageCallback();
+                result = mockMessageCallback;
+                mockMessageCallback.execute((Message) any, any);
+                returns(IotHubMessageResult.COMPLETE, IotHubMessageResult.ABANDON, IotHubMessageResult.REJECT);
+                mockConnection.sendMessageResults((List<AmqpsMessage>) any, (List<IotHubMessageResult>) any);
+                result = true;
+            }
+        };
+
+        new MockUp<AmqpsTransport>() {
+            @Mock
+            Message protonMessageToIoTHubMessage(MessageImpl protonMessage) {
+                return new Message();
+            }
+        };
+
+        AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
+        transport.open();
+
+        Queue<AmqpsMessage> receivedMessages = new LinkedBlockingQueue<>();
+        receivedMessages.add(mockAmqpsMessage);
+        receivedMessages.add(mockAmqpsMessage);
+        receivedMessages.add(mockAmqpsMessage);
+        Deencapsulation.setField(transport, "receivedMessages", receivedMessages);
+
+        transport.handleMessage();
+
+        Queue<AmqpsMessage> receivedTransportMessages = Deencapsulation.getField(transport, "receivedMessages");
+        Assert.assertTrue(receivedTransportMessages.isEmpty());
+
+        final List<List<AmqpsMessage>> messages = new ArrayList<>();
+        final List<List<IotHubMessageResult>> results = new ArrayList<>();
+        new Verifications()
+        {
+            {
+                mockMessageCallback.execute((Message) any, any);
+                times = 3;
+                mockConnection.sendMessageResults(withCapture(messages), withCapture(results));
+                times = 1;
+                mockConnection.sendMessageResult((AmqpsMessage) any, (IotHubMessageResult) any);
+                times = 0;
+            }
+        };
+        assertEquals(3, messages.get(0).size());
+        assertEquals(Arrays.asList(IotHubMessageResult.COMPLETE, IotHubMessageResult.ABANDON, IotHubMessageResult.REJECT), results.get(0));
+    }
+
+    // Tests_SRS_AMQPSTRANSPORT_21_053: [The function shall copy each field of the Proton message properties that is set into the IoT Hub message properties, named after the field, unless the name is reserved or the value is not US-ASCII.]
+    // Tests_SRS_AMQPSTRANSPORT_21_054: [The function shall set the message id and correlation id of the IoT Hub message from the Proton message properties.]
+    @Test
+    public void handleMessageMapsProtonPropertiesOntoMessage() throws IOException
+    {
+        final Properties properties = new Properties();
+        properties.setMessageId("message-1");
+        properties.setCorrelationId("correlation-1");
+        properties.setTo("/devices/testdevice/messages/devicebound");
+        properties.setSubject("subject-\u00e9");
+        properties.setGroupSequence(UnsignedInteger.valueOf(7));
+        final Map<String, String> userProperties = new HashMap<>();
+        userProperties.put("key", "value");
+        final List<Message> received = new LinkedList<>();
+        new NonStrictExpectations()
+        {
+            {
+                new AmqpsIotHubConnection(mockConfig, false);
+                result = mockConnection;
+                mockConfig.getMessageCallback();
+                result = new MessageCallback()
+                {
+                    public IotHubMessageResult execute(Message message, Object callbackContext)
+                    {
+                        received.add(message);
+                        return IotHubMessageResult.COMPLETE;
+                    }
+                };
+                mockAmqpsMessage.getBody();
+                result = new Data(new Binary(new byte[] {1, 2, 3}));
+                mockAmqpsMessage.getProperties();
+                result = properties;
+                mockAmqpsMessage.getApplicationProperties();
+                result = new ApplicationProperties(userProperties);
+                mockConnection.sendMessageResult(mockAmqpsMessage, IotHubMessageResult.COMPLETE);
+                result = true;
+            }
+        };
+
+        AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
+        transport.open();
+        Queue<AmqpsMessage> receivedMessages = new LinkedBlockingQueue<>();
+        receivedMessages.add(mockAmqpsMessage);
+        Deencapsulation.setField(transport, "receivedMessages", receivedMessages);
+
+        transport.handleMessage();
+
+        Message message = received.get(0);
+        assertEquals("message-1", message.getMessageId());
+        assertEquals("correlation-1", message.getCorrelationId());
+        assertEquals("message-1", message.getProperty("messageId"));
+        assertEquals("correlation-1", message.getProperty("correlationId"));
+        assertEquals("7", message.getProperty("groupSequence"));
+        assertEquals("value", message.getProperty("key"));
+        // "to" is a reserved name, and the subject is not US-ASCII.
+        assertEquals(4, message.getProperties().length);
+        assertEquals(3, message.getBodyLength());
     }
 
-    // Tests_SRS_AMQPSTRANSPORT_15_028: [If the result could not be sent to IoTHub, the message shall be put back in the received messages queue to be processed again.]
     // Tests_SRS_AMQPSTRANSPORT_15_028: [If the result could not be sent to IoTHub, the message shall be put back in the received messages queue to be processed again.]
     @Test
     public void handleMessagePutsMessageBackIntoQueueIfCannotSendResultBackToServer() throws IOException
@@ -881,14 +1127,13 @@ public class AmqpsTransportTest
 
         Queue<AmqpsMessage> receivedMessages = new LinkedBlockingQueue<>();
         receivedMessages.add(mockAmqpsMessage);
-        receivedMessages.add(mockAmqpsMessage);
         Deencapsulation.setField(transport, "receivedMessages", receivedMessages);
 
         transport.handleMessage();
 
         Queue<AmqpsMessage> receivedTransportMessages = Deencapsulation.getField(transport, "receivedMessages");
 
-        Assert.assertTrue(receivedTransportMessages.size() == 2);
+        Assert.assertTrue(receivedTransportMessages.size() == 1);
 
         new Verifications()
         {
@@ -899,8 +1144,57 @@ public class AmqpsTransportTest
                 times = 1;
             }
         };
+    }
+
+    // Tests_SRS_AMQPSTRANSPORT_21_061: [If the results of several messages could not be handed to the connection, the messages shall be dropped rather than their callbacks run again, since the IoT Hub delivers them again once the connection is back.]
+    @Test
+    public void handleMessageDropsMessagesIfCannotSendResultsBackToServer() throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                new AmqpsIotHubConnection(mockConfig, false);
+                result = mockConnection;
+                mockConfig.getMessageCallback();
+                result = mockMessageCallback;
+                mockMessageCallback.execute((Message) any, any);
+                result = IotHubMessageResult.COMPLETE;
+                mockConnection.sendMessageResults((List<AmqpsMessage>) any, (List<IotHubMessageResult>) any);
+                result = false;
+            }
+        };
 
-        Assert.assertTrue(receivedTransportMessages.size() == 2);
+        new MockUp<AmqpsTransport>() {
+            @Mock
+            Message protonMessageToIoTHubMessage(MessageImpl protonMessage) {
+                return new Message();
+            }
+        };
+
+        AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
+        transport.open();
+
+        Queue<AmqpsMessage> receivedMessages = new LinkedBlockingQueue<>();
+        receivedMessages.add(mockAmqpsMessage);
+        receivedMessages.add(mockAmqpsMessage);
+        Deencapsulation.setField(transport, "receivedMessages", receivedMessages);
+
+        transport.handleMessage();
+        transport.handleMessage();
+
+        Queue<AmqpsMessage> receivedTransportMessages = Deencapsulation.getField(transport, "receivedMessages");
+
+        Assert.assertTrue(receivedTransportMessages.isEmpty());
+
+        new Verifications()
+        {
+            {
+                mockMessageCallback.execute((Message) any, any);
+                times = 2;
+                mockConnection.sendMessageResults((List<AmqpsMessage>) any, (List<IotHubMessageResult>) any);
+                times = 1;
+            }
+        };
     }
 
     // Tests_SRS_AMQPSTRANSPORT_15_029: [If the hash cannot be found in the list of keys for the messages in progress, the method returns.]
@@ -918,7 +1212,7 @@ public class AmqpsTransportTest
         AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
         transport.open();
 
-        Map<Integer, IotHubOutboundPacket> inProgressMessages = new ConcurrentHashMap<>();
+        DeliveryTagMap<IotHubOutboundPacket> inProgressMessages = new DeliveryTagMap<>();
         Deencapsulation.setField(transport, "inProgressMessages", inProgressMessages);
 
         transport.messageSent(1, true);
@@ -948,7 +1242,7 @@ public class AmqpsTransportTest
         AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
         transport.open();
 
-        Map<Integer, IotHubOutboundPacket> inProgressMessages = new ConcurrentHashMap<>();
+        DeliveryTagMap<IotHubOutboundPacket> inProgressMessages = new DeliveryTagMap<>();
         inProgressMessages.put(1, new IotHubOutboundPacket(new Message(), mockIotHubEventCallback, new Object()));
         inProgressMessages.put(2, new IotHubOutboundPacket(new Message(), mockIotHubEventCallback, new Object()));
         Deencapsulation.setField(transport, "inProgressMessages", inProgressMessages);
@@ -971,6 +1265,30 @@ public class AmqpsTransportTest
         Assert.assertTrue(callbackList.size() == 1);
     }
 
+    // Tests_SRS_AMQPSTRANSPORT_21_042: [The function shall signal the send task that a callback or a message is waiting.]
+    @Test
+    public void messageSentSignalsSendTask(@Mocked final IotHubSendTask mockSendTask) throws IOException
+    {
+        AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
+        transport.open();
+        transport.setSendTask(mockSendTask);
+
+        DeliveryTagMap<IotHubOutboundPacket> inProgressMessages = new DeliveryTagMap<>();
+        inProgressMessages.put(1, new IotHubOutboundPacket(new Message(), mockIotHubEventCallback, new Object()));
+        Deencapsulation.setField(transport, "inProgressMessages", inProgressMessages);
+
+        transport.messageSent(1, true);
+        transport.messageSent(2, true);
+
+        new Verifications()
+        {
+            {
+                mockSendTask.signal();
+                times = 1;
+            }
+        };
+    }
+
     // Tests_SRS_AMQPSTRANSPORT_15_031: [If the message was not delivered successfully, it is buffered to be sent again.]
     @Test
     public void messageSentBuffersPreviouslySentMessageIfNotSuccessfullyDelivered() throws IOException
@@ -986,7 +1304,7 @@ public class AmqpsTransportTest
         AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
         transport.open();
 
-        Map<Integer, IotHubOutboundPacket> inProgressMessages = new ConcurrentHashMap<>();
+        DeliveryTagMap<IotHubOutboundPacket> inProgressMessages = new DeliveryTagMap<>();
         inProgressMessages.put(1, new IotHubOutboundPacket(new Message(), mockIotHubEventCallback, new Object()));
         inProgressMessages.put(2, new IotHubOutboundPacket(new Message(), mockIotHubEventCallback, new Object()));
         Deencapsulation.setField(transport, "inProgressMessages", inProgressMessages);
@@ -1009,6 +1327,41 @@ public class AmqpsTransportTest
         Assert.assertTrue(callbackList.size() == 0);
     }
 
+    // Tests_SRS_AMQPSTRANSPORT_21_060: [A message whose delivery was reported as not delivered before it was held in progress shall be buffered to be sent again.]
+    @Test
+    public void deliveryDroppedBeforeHeldInProgressIsBufferedAgain() throws IOException
+    {
+        final AmqpsTransport[] transport = new AmqpsTransport[1];
+        new NonStrictExpectations()
+        {
+            {
+                new AmqpsIotHubConnection(mockConfig, false);
+                result = mockConnection;
+                mockConnection.sendMessage((org.apache.qpid.proton.message.Message) any);
+                result = new Delegate()
+                {
+                    long sendMessage(org.apache.qpid.proton.message.Message message)
+                    {
+                        // the links go down while the delivery is handed over.
+                        transport[0].messageSent(3, false);
+                        return 3;
+                    }
+                };
+            }
+        };
+
+        transport[0] = new AmqpsTransport(mockConfig, false);
+        transport[0].open();
+        transport[0].addMessage(new Message("body"), mockIotHubEventCallback, null);
+        transport[0].sendMessages();
+
+        DeliveryTagMap<IotHubOutboundPacket> inProgressMessages = Deencapsulation.getField(transport[0], "inProgressMessages");
+        Queue<IotHubOutboundPacket> waitingMessages = Deencapsulation.getField(transport[0], "waitingMessages");
+        Assert.assertEquals(0, inProgressMessages.size());
+        Assert.assertEquals(1, waitingMessages.size());
+        Assert.assertFalse(transport[0].isEmpty());
+    }
+
     // Tests_SRS_AMQPSTRANSPORT_15_032: [The messages in progress are buffered to be sent again.]
     // Tests_SRS_AMQPSTRANSPORT_15_033: [The map of messages in progress is cleared.]
     @Test
@@ -1025,7 +1378,7 @@ public class AmqpsTransportTest
         AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
         transport.open();
 
-        Map<Integer, IotHubOutboundPacket> inProgressMessages = new ConcurrentHashMap<>();
+        DeliveryTagMap<IotHubOutboundPacket> inProgressMessages = new DeliveryTagMap<>();
         inProgressMessages.put(1, new IotHubOutboundPacket(new Message(), mockIotHubEventCallback, new Object()));
         inProgressMessages.put(2, new IotHubOutboundPacket(new Message(), mockIotHubEventCallback, new Object()));
         Deencapsulation.setField(transport, "inProgressMessages", inProgressMessages);
@@ -1100,7 +1453,7 @@ public class AmqpsTransportTest
     {
         AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
 
-        Map<Integer, IotHubOutboundPacket> inProgressMessages = new ConcurrentHashMap<>();
+        DeliveryTagMap<IotHubOutboundPacket> inProgressMessages = new DeliveryTagMap<>();
         inProgressMessages.put(1, new IotHubOutboundPacket(new Message(), mockIotHubEventCallback, new Object()));
         Deencapsulation.setField(transport, "inProgressMessages", inProgressMessages);
 
@@ -1124,4 +1477,78 @@ public class AmqpsTransportTest
 
         Assert.assertFalse(isEmpty);
     }
-}
\ No newline at end of file
+
+    // Tests_SRS_AMQPSTRANSPORT_21_049: [The function shall reserve room for each packet of the batch and add it to the queue of messages waiting to be sent, in order.]
+    // Tests_SRS_AMQPSTRANSPORT_21_050: [The function shall send the messages of a batch still waiting together, in a single batched delivery.]
+    // Tests_SRS_AMQPSTRANSPORT_21_051: [If the batch hash is valid, the batch shall be added to the in progress batches, otherwise it shall be buffered to be sent in a subsequent attempt.]
+    @Test
+    public void sendMessagesSendsBatchInSingleDelivery() throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                new AmqpsIotHubConnection(mockConfig, false);
+                result = mockConnection;
+                mockConnection.sendMessageBatch((List<org.apache.qpid.proton.message.Message>) any);
+                result = 7;
+            }
+        };
+        List<IotHubOutboundPacket> batch = Arrays.asList(
+                new IotHubOutboundPacket(new Message("first"), mockIotHubEventCallback, 0),
+                new IotHubOutboundPacket(new Message("second"), mockIotHubEventCallback, 1));
+
+        AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
+        transport.open();
+        transport.addMessageBatch(batch);
+        transport.sendMessages();
+
+        DeliveryTagMap<List<IotHubOutboundPacket>> inProgressBatches = Deencapsulation.getField(transport, "inProgressBatches");
+        Queue<IotHubOutboundPacket> waitingMessages = Deencapsulation.getField(transport, "waitingMessages");
+        Assert.assertEquals(batch, inProgressBatches.get(7));
+        Assert.assertTrue(waitingMessages.isEmpty());
+        new Verifications()
+        {
+            {
+                mockConnection.sendMessageBatch((List<org.apache.qpid.proton.message.Message>) any);
+                times = 1;
+                mockConnection.sendMessage((org.apache.qpid.proton.message.Message) any);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_AMQPSTRANSPORT_21_052: [If the hash is the one of a batch, the delivery state shall apply to every message of the batch.]
+    @Test
+    public void messageSentCompletesEveryMessageOfBatch() throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                new AmqpsIotHubConnection(mockConfig, false);
+                result = mockConnection;
+            }
+        };
+
+        AmqpsTransport transport = new AmqpsTransport(mockConfig, false);
+        transport.open();
+
+        DeliveryTagMap<List<IotHubOutboundPacket>> inProgressBatches = new DeliveryTagMap<>();
+        inProgressBatches.put(1, Arrays.asList(
+                new IotHubOutboundPacket(new Message(), mockIotHubEventCallback, 0),
+                new IotHubOutboundPacket(new Message(), mockIotHubEventCallback, 1)));
+        inProgressBatches.put(2, Arrays.asList(
+                new IotHubOutboundPacket(new Message(), mockIotHubEventCallback, 0),
+                new IotHubOutboundPacket(new Message(), mockIotHubEventCallback, 1)));
+        Deencapsulation.setField(transport, "inProgressBatches", inProgressBatches);
+
+        transport.messageSent(1, true);
+        transport.messageSent(2, false);
+
+        Queue<IotHubOutboundPacket> waitingMessages = Deencapsulation.getField(transport, "waitingMessages");
+        Queue<IotHubCallbackPacket> callbackList  = Deencapsulation.getField(transport, "callbackList");
+
+        Assert.assertTrue(inProgressBatches.isEmpty());
+        Assert.assertTrue(waitingMessages.size() == 2);
+        Assert.assertTrue(callbackList.size() == 2);
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package tests.unit.com.microsoft.azure.sdk.iot.device.transport.amqps;
+
+import com.microsoft.azure.sdk.iot.device.transport.amqps.DeliveryTagMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Unit tests for DeliveryTagMap. */
+public class DeliveryTagMapTest
+{
+    // Tests_SRS_DELIVERYTAGMAP_21_001: [The constructor shall create an empty map.]
+    // Tests_SRS_DELIVERYTAGMAP_21_009: [The function shall return true if the map holds no tag, and false otherwise.]
+    @Test
+    public void constructorCreatesEmptyMap()
+    {
+        DeliveryTagMap<String> map = new DeliveryTagMap<>();
+
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.size());
+        assertNull(map.get(0));
+    }
+
+    // Tests_SRS_DELIVERYTAGMAP_21_002: [If the value is null, the function shall throw an IllegalArgumentException.]
+    @Test(expected = IllegalArgumentException.class)
+    public void putRejectsNullValue()
+    {
+        new DeliveryTagMap<String>().put(1, null);
+    }
+
+    // Tests_SRS_DELIVERYTAGMAP_21_003: [The function shall map the tag to the value, replacing the value already mapped to the tag.]
+    // Tests_SRS_DELIVERYTAGMAP_21_005: [The function shall return the value mapped to the tag, or null if there is none.]
+    // Tests_SRS_DELIVERYTAGMAP_21_008: [The function shall return the number of tags in the map.]
+    @Test
+    public void putReplacesValueOfSameTag()
+    {
+        DeliveryTagMap<String> map = new DeliveryTagMap<>();
+
+        map.put(7, "first");
+        map.put(7, "second");
+
+        assertEquals("second", map.get(7));
+        assertEquals(1, map.size());
+    }
+
+    // Tests_SRS_DELIVERYTAGMAP_21_004: [If the map is three quarters full, the function shall double its capacity.]
+    // Tests_SRS_DELIVERYTAGMAP_21_006: [The function shall remove the tag from the map and return the value that was mapped to it, or null if there was none.]
+    @Test
+    public void tagsThatShareASlotAreKeptApart()
+    {
+        DeliveryTagMap<Long> map = new DeliveryTagMap<>();
+        // every tag lands on the same slot of the ring, whatever its size.
+        for (long tag = 0; tag < 1000; tag++)
+        {
+            map.put(tag << 20, tag);
+        }
+
+        assertEquals(Long.valueOf(500), map.remove(500L << 20));
+        assertNull(map.remove(500L << 20));
+        for (long tag = 0; tag < 1000; tag++)
+        {
+            assertEquals(tag == 500 ? null : Long.valueOf(tag), map.get(tag << 20));
+        }
+        assertEquals(999, map.size());
+    }
+
+    // Tests_SRS_DELIVERYTAGMAP_21_006: [The function shall remove the tag from the map and return the value that was mapped to it, or null if there was none.]
+    @Test
+    public void removeInAnyOrderKeepsOtherTagsReachable()
+    {
+        DeliveryTagMap<Long> map = new DeliveryTagMap<>();
+        List<Long> inFlight = new ArrayList<>();
+        Random random = new Random(12345);
+        long nextTag = 0;
+
+        for (int step = 0; step < 20000; step++)
+        {
+            if (inFlight.isEmpty() || random.nextInt(3) != 0)
+            {
+                map.put(nextTag, nextTag);
+                inFlight.add(nextTag++);
+            }
+            else
+            {
+                Long tag = inFlight.remove(random.nextInt(inFlight.size()));
+                assertEquals(tag, map.remove(tag));
+            }
+        }
+
+        assertEquals(inFlight.size(), map.size());
+        for (Long tag : inFlight)
+        {
+            assertEquals(tag, map.get(tag));
+        }
+    }
+
+    // Tests_SRS_DELIVERYTAGMAP_21_007: [The function shall empty the map and return the values it held, in increasing order of their tags.]
+    @Test
+    public void removeAllReturnsValuesInTagOrder()
+    {
+        DeliveryTagMap<String> map = new DeliveryTagMap<>();
+        map.put(130, "c");
+        map.put(2, "a");
+        map.put(66, "b");
+
+        List<String> removed = map.removeAll();
+
+        assertEquals("[a, b, c]", removed.toString());
+        assertTrue(map.isEmpty());
+        assertNull(map.get(2));
+    }
+}
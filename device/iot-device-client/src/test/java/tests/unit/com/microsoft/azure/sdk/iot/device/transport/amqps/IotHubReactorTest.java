@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved.
+ * Licensed under the MIT license. See LICENSE file in the project root for full license information.
+ */
+
+package tests.unit.com.microsoft.azure.sdk.iot.device.transport.amqps;
+
+import com.microsoft.azure.sdk.iot.device.transport.amqps.IotHubReactor;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import mockit.Verifications;
+import org.apache.qpid.proton.reactor.Reactor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/** Unit tests for IotHubReactor. */
+public class IotHubReactorTest
+{
+    @Mocked
+    Reactor mockReactor;
+
+    // Tests_SRS_IOTHUBREACTOR_21_002: [Otherwise the function shall queue the task and wake the reactor up, unless a wakeup is already pending.]
+    // Tests_SRS_IOTHUBREACTOR_21_003: [The reactor thread shall run the queued tasks in order between two passes of the reactor.]
+    @Test
+    public void executeQueuesTasksForTheReactorThread()
+    {
+        final List<String> order = new ArrayList<>();
+        final IotHubReactor iotHubReactor = new IotHubReactor(mockReactor);
+        new NonStrictExpectations()
+        {
+            {
+                mockReactor.process();
+                returns(true, false);
+            }
+        };
+
+        iotHubReactor.execute(new Runnable()
+        {
+            public void run()
+            {
+                order.add("first");
+            }
+        });
+        iotHubReactor.execute(new Runnable()
+        {
+            public void run()
+            {
+                order.add("second");
+            }
+        });
+        boolean ranBeforeReactor = !order.isEmpty();
+        iotHubReactor.run();
+
+        assertEquals(false, ranBeforeReactor);
+        assertEquals("[first, second]", order.toString());
+        new Verifications()
+        {
+            {
+                mockReactor.wakeup();
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_IOTHUBREACTOR_21_001: [If the function is called on the reactor thread, or the reactor has finished, the function shall run the task on the calling thread.]
+    @Test
+    public void executeOnReactorThreadRunsAtOnce()
+    {
+        final List<String> order = new ArrayList<>();
+        final IotHubReactor iotHubReactor = new IotHubReactor(mockReactor);
+        iotHubReactor.execute(new Runnable()
+        {
+            public void run()
+            {
+                iotHubReactor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        order.add("inner");
+                    }
+                });
+                order.add("outer");
+            }
+        });
+
+        iotHubReactor.run();
+
+        assertEquals("[inner, outer]", order.toString());
+    }
+
+    // Tests_SRS_IOTHUBREACTOR_21_001: [If the function is called on the reactor thread, or the reactor has finished, the function shall run the task on the calling thread.]
+    @Test
+    public void executeAfterReactorFinishedRunsAtOnce()
+    {
+        final List<String> order = new ArrayList<>();
+        IotHubReactor iotHubReactor = new IotHubReactor(mockReactor);
+        iotHubReactor.run();
+
+        iotHubReactor.execute(new Runnable()
+        {
+            public void run()
+            {
+                order.add("task");
+            }
+        });
+
+        assertEquals("[task]", order.toString());
+    }
+
+    // Tests_SRS_IOTHUBREACTOR_21_004: [A task that throws shall be logged, and shall not prevent the following tasks from running.]
+    @Test
+    public void taskThatThrowsDoesNotStopFollowingTasks()
+    {
+        final List<String> order = new ArrayList<>();
+        final IotHubReactor iotHubReactor = new IotHubReactor(mockReactor);
+        new NonStrictExpectations()
+        {
+            {
+                mockReactor.process();
+                returns(true, false);
+            }
+        };
+
+        iotHubReactor.execute(new Runnable()
+        {
+            public void run()
+            {
+                throw new IllegalStateException();
+            }
+        });
+        iotHubReactor.execute(new Runnable()
+        {
+            public void run()
+            {
+                order.add("second");
+            }
+        });
+        iotHubReactor.run();
+
+        assertEquals("[second]", order.toString());
+    }
+}
@@ -16,7 +16,9 @@ import com.microsoft.azure.sdk.iot.device.transport.https.HttpsSingleMessage;
 import com.microsoft.azure.sdk.iot.device.transport.https.HttpsTransport;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubCallbackPacket;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubOutboundPacket;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubSendTask;
 import junit.framework.AssertionFailedError;
+import mockit.Deencapsulation;
 import mockit.MockUp;
 import mockit.Mocked;
 import mockit.NonStrictExpectations;
@@ -26,6 +28,7 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
@@ -118,6 +121,27 @@ public class HttpsTransportTest
         };
     }
 
+    // Tests_SRS_HTTPSTRANSPORT_21_037: [The function shall signal the send task that a message is waiting to be sent.]
+    @Test
+    public void addMessageSignalsSendTask(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback,
+            @Mocked final IotHubSendTask mockSendTask) throws IOException
+    {
+        HttpsTransport transport = new HttpsTransport(mockConfig);
+        transport.open();
+        transport.setSendTask(mockSendTask);
+        transport.addMessage(mockMsg, mockCallback, null);
+
+        new Verifications()
+        {
+            {
+                mockSendTask.signal();
+                times = 1;
+            }
+        };
+    }
+
     // Tests_SRS_HTTPSTRANSPORT_11_027: [If the transport is closed, the function shall throw an IllegalStateException.]
     @Test(expected = IllegalStateException.class)
     public void addMessageFailsIfTransportNeverOpened(
@@ -213,6 +237,53 @@ public class HttpsTransportTest
         };
     }
 
+    // Tests_SRS_HTTPSTRANSPORT_21_044: [The function shall reserve room for each packet of the batch and add it to the transport queue, in order.]
+    // Tests_SRS_HTTPSTRANSPORT_21_045: [The function shall not mix the messages of a batch given to addMessageBatch with other messages in a request.]
+    @Test
+    public void sendMessagesSendsBatchInItsOwnRequest(
+            @Mocked final Message mockMsg,
+            @Mocked final HttpsSingleMessage mockHttpsMsg,
+            @Mocked final IotHubEventCallback mockCallback,
+            @Mocked final HttpsBatchMessage mockBatch)
+            throws URISyntaxException, IOException, SizeLimitExceededException
+    {
+        final Map<String, Object> context = new HashMap<>();
+        new NonStrictExpectations()
+        {
+            {
+                HttpsSingleMessage.parseHttpsMessage(mockMsg);
+                result = mockHttpsMsg;
+                new HttpsBatchMessage();
+                result = mockBatch;
+                mockBatch.numMessages();
+                result = 1;
+            }
+        };
+
+        HttpsTransport transport = new HttpsTransport(mockConfig);
+        transport.open();
+        transport.addMessage(mockMsg, mockCallback, context);
+        transport.addMessageBatch(Arrays.asList(
+                new IotHubOutboundPacket(mockMsg, mockCallback, 0),
+                new IotHubOutboundPacket(mockMsg, mockCallback, 1)));
+        transport.sendMessages();
+        Queue<IotHubOutboundPacket> waitingList = Deencapsulation.getField(transport, "waitingList");
+        int waitingAfterFirstRequest = waitingList.size();
+        transport.sendMessages();
+
+        assertThat(waitingAfterFirstRequest, is(2));
+        assertThat(waitingList.isEmpty(), is(true));
+        final HttpsSingleMessage expectedSingleMsg = mockHttpsMsg;
+        final HttpsMessage expectedMsg = mockBatch;
+        new VerificationsInOrder()
+        {
+            {
+                mockConn.sendEvent(expectedSingleMsg);
+                mockConn.sendEvent(expectedMsg);
+            }
+        };
+    }
+
     // Tests_SRS_HTTPSTRANSPORT_11_012: [If a previous send request had failed while in progress, the function shall resend the request.]
     @Test
     public void sendMessagesResendsFailedBatch(
@@ -0,0 +1,261 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device.transport.mqtt;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import mockit.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/* Unit tests for MqttDeviceTwinDesiredProperties */
+public class MqttDeviceTwinDesiredPropertiesTest {
+
+    final String responseTopic = "$iothub/twin/res/200/?$rid=7";
+    final String fullTwin = "{\"desired\":{\"a\":1,\"b\":{\"x\":1,\"y\":2},\"$version\":2},\"reported\":{\"$version\":1}}";
+
+    @Mocked
+    Mqtt mockMqtt;
+
+    private MqttDeviceTwinDesiredProperties startDesiredProperties() throws IOException
+    {
+        final MqttDeviceTwinDesiredProperties desiredProperties = new MqttDeviceTwinDesiredProperties(mockMqtt);
+        new NonStrictExpectations()
+        {
+            {
+                desiredProperties.nextRequestId();
+                returns(7, 8, 9);
+            }
+        };
+
+        desiredProperties.start();
+        return desiredProperties;
+    }
+
+    private static JsonObject json(String text)
+    {
+        return new JsonParser().parse(text).getAsJsonObject();
+    }
+
+    private static byte[] bytes(String text)
+    {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredProperties_21_001: [**The constructor shall hold the twin responses in their own queue.**]**
+     */
+    @Test
+    public void constructorHoldsResponsesInTheirOwnQueue() throws IOException
+    {
+        final MqttDeviceTwinDesiredProperties desiredProperties = new MqttDeviceTwinDesiredProperties(mockMqtt);
+
+        new Verifications()
+        {
+            {
+                desiredProperties.addReceiveQueue("$iothub/twin/res/");
+                times = 1;
+            }
+        };
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredProperties_21_002: [**start shall subscribe to the twin responses, and request the full twin.**]**
+     */
+    @Test
+    public void startSubscribesToResponsesAndRequestsFullTwin() throws IOException
+    {
+        final MqttDeviceTwinDesiredProperties desiredProperties = startDesiredProperties();
+
+        new VerificationsInOrder()
+        {
+            {
+                desiredProperties.subscribe("$iothub/twin/res/#");
+                desiredProperties.publish("$iothub/twin/GET/?$rid=7", (byte[]) any);
+            }
+        };
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredProperties_21_003: [**The answer to the request for the full twin shall be loaded as the desired properties.**]**
+     */
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredProperties_21_009: [**The function shall return a copy of the desired properties without their version, or null until the full twin is loaded.**]**
+     */
+    @Test
+    public void fullTwinIsLoadedAsDesiredProperties() throws IOException
+    {
+        MqttDeviceTwinDesiredProperties desiredProperties = startDesiredProperties();
+        assertNull(desiredProperties.getDesiredProperties());
+
+        desiredProperties.onMessage(responseTopic, bytes(fullTwin));
+
+        JsonObject actual = desiredProperties.getDesiredProperties();
+        assertEquals(json("{\"a\":1,\"b\":{\"x\":1,\"y\":2}}"), actual);
+        assertEquals(2L, Deencapsulation.getField(desiredProperties, "version"));
+        actual.remove("a");
+        assertEquals(1, desiredProperties.getDesiredProperties().get("a").getAsInt());
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredProperties_21_004: [**If the full twin could not be read, the function shall request it again once a delay has passed, the delay doubling with each failure up to a minute.**]**
+     */
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredProperties_21_010: [**Once the delay after a failed request has passed, receive shall request the full twin again.**]**
+     */
+    @Test
+    public void failedFullTwinRequestIsMadeAgainAfterGrowingDelay() throws IOException
+    {
+        final MqttDeviceTwinDesiredProperties desiredProperties = startDesiredProperties();
+
+        desiredProperties.onMessage("$iothub/twin/res/429/?$rid=7", new byte[0]);
+        desiredProperties.receive();
+        Deencapsulation.setField(desiredProperties, "retryAt", 1L);
+        desiredProperties.receive();
+        desiredProperties.onMessage("$iothub/twin/res/500/?$rid=8", new byte[0]);
+        Deencapsulation.setField(desiredProperties, "retryAt", 1L);
+        desiredProperties.receive();
+        desiredProperties.onMessage("$iothub/twin/res/200/?$rid=9", bytes(fullTwin));
+
+        assertEquals(1, desiredProperties.getDesiredProperties().get("a").getAsInt());
+        new VerificationsInOrder()
+        {
+            {
+                desiredProperties.publish("$iothub/twin/GET/?$rid=7", (byte[]) any);
+                desiredProperties.signalReceiveTask(1000L);
+                desiredProperties.publish("$iothub/twin/GET/?$rid=8", (byte[]) any);
+                desiredProperties.signalReceiveTask(2000L);
+                desiredProperties.publish("$iothub/twin/GET/?$rid=9", (byte[]) any);
+            }
+        };
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredProperties_21_004: [**If the full twin could not be read, the function shall request it again once a delay has passed, the delay doubling with each failure up to a minute.**]**
+     */
+    @Test
+    public void fullTwinRequestThatCannotBePublishedIsMadeAgainAfterDelay() throws IOException
+    {
+        final MqttDeviceTwinDesiredProperties desiredProperties = new MqttDeviceTwinDesiredProperties(mockMqtt);
+        new NonStrictExpectations()
+        {
+            {
+                desiredProperties.nextRequestId();
+                result = 7;
+                desiredProperties.publish(anyString, (byte[]) any);
+                result = new IllegalStateException();
+            }
+        };
+
+        desiredProperties.start();
+
+        assertNotEquals(0L, Deencapsulation.getField(desiredProperties, "retryAt"));
+        new Verifications()
+        {
+            {
+                desiredProperties.signalReceiveTask(1000L);
+                times = 1;
+            }
+        };
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredProperties_21_005: [**The function shall log any other twin request the IoT Hub turned down.**]**
+     */
+    @Test
+    public void otherResponsesLeaveDesiredPropertiesAsTheyAre() throws IOException
+    {
+        MqttDeviceTwinDesiredProperties desiredProperties = startDesiredProperties();
+        desiredProperties.onMessage(responseTopic, bytes(fullTwin));
+
+        desiredProperties.onMessage("$iothub/twin/res/204/?$rid=8&$version=3", new byte[0]);
+        desiredProperties.onMessage("$iothub/twin/res/400/?$rid=9", new byte[0]);
+
+        assertEquals(2L, Deencapsulation.getField(desiredProperties, "version"));
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredProperties_21_006: [**An update shall be merged into the document in memory: a null property is removed, an object is merged into the object it replaces, and any other value replaces the old one.**]**
+     */
+    @Test
+    public void applyPatchMergesUpdateIntoDocument() throws IOException
+    {
+        MqttDeviceTwinDesiredProperties desiredProperties = startDesiredProperties();
+        desiredProperties.onMessage(responseTopic, bytes(fullTwin));
+
+        desiredProperties.applyPatch(json("{\"a\":null,\"b\":{\"y\":3},\"c\":\"z\",\"$version\":3}"));
+
+        assertEquals(json("{\"b\":{\"x\":1,\"y\":3},\"c\":\"z\"}"), desiredProperties.getDesiredProperties());
+        assertEquals(3L, Deencapsulation.getField(desiredProperties, "version"));
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredProperties_21_008: [**An update whose version is not newer than the document shall be dropped.**]**
+     */
+    @Test
+    public void applyPatchDropsUpdateNotNewerThanDocument() throws IOException
+    {
+        MqttDeviceTwinDesiredProperties desiredProperties = startDesiredProperties();
+        desiredProperties.onMessage(responseTopic, bytes(fullTwin));
+
+        desiredProperties.applyPatch(json("{\"a\":5,\"$version\":2}"));
+
+        assertEquals(1, desiredProperties.getDesiredProperties().get("a").getAsInt());
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredProperties_21_007: [**An update arrived before the full twin was loaded shall be applied once it is loaded, if it is newer than the full twin.**]**
+     */
+    @Test
+    public void updatesArrivedBeforeFullTwinAreAppliedOnceLoaded() throws IOException
+    {
+        MqttDeviceTwinDesiredProperties desiredProperties = startDesiredProperties();
+
+        desiredProperties.applyPatch(json("{\"a\":5,\"$version\":2}"));
+        desiredProperties.applyPatch(json("{\"c\":6,\"$version\":3}"));
+        assertNull(desiredProperties.getDesiredProperties());
+        desiredProperties.onMessage(responseTopic, bytes(fullTwin));
+
+        JsonObject actual = desiredProperties.getDesiredProperties();
+        assertEquals(1, actual.get("a").getAsInt());
+        assertEquals(6, actual.get("c").getAsInt());
+        assertEquals(3L, Deencapsulation.getField(desiredProperties, "version"));
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredProperties_21_011: [**If MAX_EARLY_PATCHES updates arrived before the full twin was loaded, they shall be dropped, and the full twin requested again instead of waiting for the answer to the request in flight.**]**
+     */
+    @Test
+    public void tooManyUpdatesBeforeFullTwinRequestFullTwinAgain() throws IOException
+    {
+        final MqttDeviceTwinDesiredProperties desiredProperties = startDesiredProperties();
+        int maxEarlyPatches = Deencapsulation.getField(MqttDeviceTwinDesiredProperties.class, "MAX_EARLY_PATCHES");
+
+        for (int i = 0; i <= maxEarlyPatches; i++)
+        {
+            desiredProperties.applyPatch(json("{\"a\":" + i + ",\"$version\":" + (i + 3) + "}"));
+        }
+        List<JsonObject> earlyPatches = Deencapsulation.getField(desiredProperties, "earlyPatches");
+        assertEquals(1, earlyPatches.size());
+
+        desiredProperties.onMessage(responseTopic, bytes(fullTwin));
+        assertNull(desiredProperties.getDesiredProperties());
+
+        desiredProperties.receive();
+        desiredProperties.onMessage("$iothub/twin/res/200/?$rid=8", bytes(fullTwin));
+        assertEquals(maxEarlyPatches, desiredProperties.getDesiredProperties().get("a").getAsInt());
+        new VerificationsInOrder()
+        {
+            {
+                desiredProperties.signalReceiveTask(0L);
+                desiredProperties.publish("$iothub/twin/GET/?$rid=8", (byte[]) any);
+            }
+        };
+    }
+}
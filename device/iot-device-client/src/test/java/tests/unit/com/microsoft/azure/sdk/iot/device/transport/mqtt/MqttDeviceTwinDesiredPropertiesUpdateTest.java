@@ -0,0 +1,76 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device.transport.mqtt;
+
+import mockit.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidParameterException;
+
+import static org.junit.Assert.*;
+
+/* Unit tests for MqttDeviceTwinDesiredPropertiesUpdate */
+public class MqttDeviceTwinDesiredPropertiesUpdateTest {
+
+    @Mocked
+    Mqtt mockMqtt;
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredPropertiesUpdate_21_001: [**If the desired properties are null, the constructor shall throw InvalidParameterException.**]**
+     */
+    @Test (expected = InvalidParameterException.class)
+    public void constructorThrowsIfDesiredPropertiesAreNull() throws IOException
+    {
+        new MqttDeviceTwinDesiredPropertiesUpdate(mockMqtt, null);
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredPropertiesUpdate_21_002: [**The constructor shall hold the desired property updates in their own queue, to be applied to the given desired properties.**]**
+     */
+    @Test
+    public void startSubscribesToDesiredPropertyUpdates() throws IOException
+    {
+        MqttDeviceTwinDesiredProperties desiredProperties = new MqttDeviceTwinDesiredProperties(mockMqtt);
+        final MqttDeviceTwinDesiredPropertiesUpdate update = new MqttDeviceTwinDesiredPropertiesUpdate(mockMqtt, desiredProperties);
+
+        update.start();
+
+        new Verifications()
+        {
+            {
+                update.addReceiveQueue("$iothub/twin/PATCH/properties/desired/");
+                times = 1;
+                update.subscribe("$iothub/twin/PATCH/properties/desired/#");
+                times = 1;
+            }
+        };
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinDesiredPropertiesUpdate_21_003: [**Each update received shall be applied, in arrival order, to the desired properties kept in memory.**]**
+     */
+    @Test
+    public void updateIsAppliedToDesiredProperties() throws IOException
+    {
+        final MqttDeviceTwinDesiredProperties desiredProperties = new MqttDeviceTwinDesiredProperties(mockMqtt);
+        new NonStrictExpectations()
+        {
+            {
+                desiredProperties.nextRequestId();
+                result = 1;
+            }
+        };
+        MqttDeviceTwinDesiredPropertiesUpdate update = new MqttDeviceTwinDesiredPropertiesUpdate(mockMqtt, desiredProperties);
+        desiredProperties.start();
+        desiredProperties.onMessage("$iothub/twin/res/200/?$rid=1",
+                "{\"desired\":{\"a\":1,\"$version\":1}}".getBytes(StandardCharsets.UTF_8));
+
+        update.onMessage("$iothub/twin/PATCH/properties/desired/?$version=2",
+                "{\"a\":2,\"$version\":2}".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(2, desiredProperties.getDesiredProperties().get("a").getAsInt());
+    }
+}
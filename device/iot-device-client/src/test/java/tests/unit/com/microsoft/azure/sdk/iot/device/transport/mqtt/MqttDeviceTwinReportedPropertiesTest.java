@@ -0,0 +1,179 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.sdk.iot.device.transport.mqtt;
+
+import mockit.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/* Unit tests for MqttDeviceTwinReportedProperties */
+public class MqttDeviceTwinReportedPropertiesTest {
+
+    @Mocked
+    Mqtt mockMqtt;
+
+    private List<String> publishedPatches() throws IOException
+    {
+        final List<byte[]> payloads = new ArrayList<>();
+        new Verifications()
+        {
+            {
+                mockMqtt.publish(anyString, withCapture(payloads));
+                minTimes = 0;
+            }
+        };
+
+        List<String> patches = new ArrayList<>();
+        for (byte[] payload : payloads)
+        {
+            patches.add(new String(payload, StandardCharsets.UTF_8));
+        }
+        return patches;
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinReportedProperties_21_001: [**If the properties are null, the function shall throw InvalidParameterException.**]**
+     */
+    @Test (expected = InvalidParameterException.class)
+    public void updateReportedPropertiesThrowsIfPropertiesAreNull() throws IOException
+    {
+        MqttDeviceTwinReportedProperties reportedProperties = new MqttDeviceTwinReportedProperties(mockMqtt);
+
+        reportedProperties.updateReportedProperties(null);
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinReportedProperties_21_002: [**The function shall merge the properties into the pending patch, keeping the last value written to each property.**]**
+     */
+    /*
+    **Tests_SRS_MqttDeviceTwinReportedProperties_21_004: [**The pending patch shall be published as one JSON object on the reported properties patch topic, with a new request id.**]**
+     */
+    @Test
+    public void updatesAreMergedIntoOnePatchKeepingLastWrite() throws IOException
+    {
+        final MqttDeviceTwinReportedProperties reportedProperties = createUnscheduledReportedProperties();
+        new NonStrictExpectations()
+        {
+            {
+                reportedProperties.nextRequestId();
+                result = 4;
+            }
+        };
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("b", 2);
+        properties.put("c", null);
+
+        reportedProperties.updateReportedProperty("a", 1);
+        reportedProperties.updateReportedProperties(properties);
+        reportedProperties.updateReportedProperty("a", "three");
+        reportedProperties.publishPendingPatch();
+
+        List<String> patches = publishedPatches();
+        assertEquals(1, patches.size());
+        assertEquals("{\"a\":\"three\",\"b\":2,\"c\":null}", patches.get(0));
+        new Verifications()
+        {
+            {
+                reportedProperties.publish("$iothub/twin/PATCH/properties/reported/?$rid=4", (byte[]) any);
+                times = 1;
+            }
+        };
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinReportedProperties_21_003: [**The first update after a patch is published shall schedule the next patch to be published once the patch window elapses, by having the receive task signalled then.**]**
+     */
+    /*
+    **Tests_SRS_MqttDeviceTwinReportedProperties_21_007: [**Once the patch window has elapsed, receive shall publish the pending patch.**]**
+     */
+    @Test
+    public void patchIsPublishedByReceiveOnceWindowElapses() throws IOException
+    {
+        final MqttDeviceTwinReportedProperties reportedProperties = new MqttDeviceTwinReportedProperties(mockMqtt);
+
+        reportedProperties.updateReportedProperty("a", 1);
+        reportedProperties.updateReportedProperty("b", 2);
+        reportedProperties.receive();
+        assertEquals(0, publishedPatches().size());
+
+        Deencapsulation.setField(reportedProperties, "patchDueAt", System.currentTimeMillis() - 1);
+        reportedProperties.receive();
+
+        List<String> patches = publishedPatches();
+        assertEquals(1, patches.size());
+        assertEquals("{\"a\":1,\"b\":2}", patches.get(0));
+        new Verifications()
+        {
+            {
+                reportedProperties.signalReceiveTask(MqttDeviceTwinReportedProperties.PATCH_WINDOW_MILLIS);
+                times = 1;
+            }
+        };
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinReportedProperties_21_005: [**If the patch could not be published, its properties not written again meanwhile shall be kept for the next patch, which shall be scheduled.**]**
+     */
+    @Test
+    public void failedPatchIsMergedIntoNextPatch() throws IOException
+    {
+        final MqttDeviceTwinReportedProperties reportedProperties = createUnscheduledReportedProperties();
+        new NonStrictExpectations()
+        {
+            {
+                reportedProperties.publish(anyString, (byte[]) any);
+                result = new IOException();
+                result = null;
+            }
+        };
+
+        reportedProperties.updateReportedProperty("a", 1);
+        reportedProperties.updateReportedProperty("b", 1);
+        reportedProperties.publishPendingPatch();
+        reportedProperties.updateReportedProperty("b", 2);
+        reportedProperties.publishPendingPatch();
+
+        List<String> patches = publishedPatches();
+        assertEquals(2, patches.size());
+        assertEquals("{\"a\":1,\"b\":1}", patches.get(0));
+        assertEquals("{\"a\":1,\"b\":2}", patches.get(1));
+    }
+
+    /*
+    **Tests_SRS_MqttDeviceTwinReportedProperties_21_006: [**stop shall publish the pending patch, and stop scheduling patches.**]**
+     */
+    @Test
+    public void stopPublishesPendingPatchAndStopsScheduling() throws IOException
+    {
+        MqttDeviceTwinReportedProperties reportedProperties = new MqttDeviceTwinReportedProperties(mockMqtt);
+        reportedProperties.updateReportedProperty("a", 1);
+
+        reportedProperties.stop();
+        reportedProperties.updateReportedProperty("b", 2);
+        reportedProperties.receive();
+
+        assertEquals(0L, (long) Deencapsulation.getField(reportedProperties, "patchDueAt"));
+
+        List<String> patches = publishedPatches();
+        assertEquals(1, patches.size());
+        assertEquals("{\"a\":1}", patches.get(0));
+    }
+
+    /* Creates a client whose patches are only published when the test asks for them. */
+    private MqttDeviceTwinReportedProperties createUnscheduledReportedProperties() throws IOException
+    {
+        MqttDeviceTwinReportedProperties reportedProperties = new MqttDeviceTwinReportedProperties(mockMqtt);
+        Deencapsulation.setField(reportedProperties, "stopped", true);
+        return reportedProperties;
+    }
+}
@@ -15,10 +15,15 @@ import mockit.Deencapsulation;
 import mockit.Mocked;
 import mockit.NonStrictExpectations;
 import mockit.Verifications;
+import mockit.VerificationsInOrder;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
@@ -234,8 +239,10 @@ public class MqttIotHubConnectionTest
 
     // Tests_SRS_MQTTIOTHUBCONNECTION_15_004: [The function shall establish an MQTT connection with an IoT Hub
     // using the provided host name, user name, device ID, and sas token.]
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_018: [The device methods and device twin clients shall work over the MQTT connection of the device messaging client, and of no other device.]
     @Test
-    public void openEstablishesConnectionUsingCorrectConfig() throws IOException
+    public void openEstablishesConnectionUsingCorrectConfig(
+            @Mocked final MqttDeviceTwinDesiredPropertiesUpdate mockUpdate) throws IOException
     {
         baseExpectations();
         openExpectations();
@@ -260,10 +267,10 @@ public class MqttIotHubConnectionTest
         new Verifications()
         {
             {
-                new MqttDeviceMethods();
-                new MqttDeviceTwinDesiredProperties();
-                new MqttDeviceTwinDesiredPropertiesUpdate();
-                new MqttDeviceTwinReportedProperties();
+                new MqttDeviceMethods(mockDeviceMessaging);
+                new MqttDeviceTwinDesiredProperties(mockDeviceMessaging);
+                new MqttDeviceTwinDesiredPropertiesUpdate(mockDeviceMessaging, (MqttDeviceTwinDesiredProperties) any);
+                new MqttDeviceTwinReportedProperties(mockDeviceMessaging);
                 new MqttMessaging(sslPrefix + iotHubHostName + sslPortSuffix, deviceId, anyString, anyString);
                 mockDeviceMessaging.start();
             }
@@ -395,7 +402,7 @@ public class MqttIotHubConnectionTest
     // Tests_SRS_MQTTIOTHUBCONNECTION_15_008: [The function shall send an event message to the IoT Hub
     // given in the configuration.]
     // Tests_SRS_MQTTIOTHUBCONNECTION_15_009: [The function shall send the message payload.]
-    // Tests_SRS_MQTTIOTHUBCONNECTION_15_011: [If the message was successfully received by the service,
+    // Tests_SRS_MQTTIOTHUBCONNECTION_15_011: [If the message was handed to the MQTT connection,
     // the function shall return status code OK_EMPTY.]
     @Test
     public void sendEventSendsMessageCorrectlyToIotHub(@Mocked final Message mockMsg) throws IOException
@@ -409,7 +416,7 @@ public class MqttIotHubConnectionTest
             {
                 mockMsg.getBytes();
                 result = msgBody;
-                mockDeviceMessaging.send(mockMsg);
+                mockDeviceMessaging.send(mockMsg, any);
             }
         };
 
@@ -422,7 +429,7 @@ public class MqttIotHubConnectionTest
         new Verifications()
         {
             {
-                mockDeviceMessaging.send(mockMsg);
+                mockDeviceMessaging.send(mockMsg, any);
                 times = 1;
             }
         };
@@ -531,8 +538,8 @@ public class MqttIotHubConnectionTest
         connection.sendEvent(mockMsg);
     }
 
-    // Tests_SRS_MQTTIOTHUBCONNECTION_15_012: [If the message was not successfully received by the service,
-    // the function shall return status code ERROR.]
+    // Tests_SRS_MQTTIOTHUBCONNECTION_15_012: [If the message could not be handed
+    // to the MQTT connection, the function shall return status code ERROR.]
     @Test
     public void sendEventReturnsErrorIfMessageNotReceived(@Mocked final Message mockMsg) throws IOException
     {
@@ -544,7 +551,7 @@ public class MqttIotHubConnectionTest
             {
                 mockMsg.getBytes();
                 result = msgBody;
-                mockDeviceMessaging.send(mockMsg);
+                mockDeviceMessaging.send(mockMsg, any);
                 result = new IOException(anyString);
             }
         };
@@ -610,6 +617,352 @@ public class MqttIotHubConnectionTest
         connection.receiveMessage();
     }
 
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_020: [The function shall set the in-flight window of the configuration on the MQTT connection, and hand it the delivery listener.]
+    @Test
+    public void openHandsInFlightWindowAndDeliveryListenerToMessaging(@Mocked final MqttDeliveryListener mockListener) throws IOException
+    {
+        baseExpectations();
+        openExpectations();
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getMqttMaxInFlight();
+                result = 5;
+            }
+        };
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.setDeliveryListener(mockListener);
+        connection.open();
+
+        new Verifications()
+        {
+            {
+                Deencapsulation.invoke(mockDeviceMessaging, "setMaxInFlight", 5);
+                times = 1;
+                Deencapsulation.invoke(mockDeviceMessaging, "setDeliveryListener", new Class[] { MqttDeliveryListener.class }, mockListener);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_023: [The function shall have the device messaging client publish at QoS 0 if the configuration asks for it.]
+    @Test
+    public void openHandsTelemetryQos0ToMessaging() throws IOException
+    {
+        baseExpectations();
+        openExpectations();
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.isMqttTelemetryQos0();
+                result = true;
+            }
+        };
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.open();
+
+        new Verifications()
+        {
+            {
+                Deencapsulation.invoke(mockDeviceMessaging, "setTelemetryQos0", true);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_022: [The function shall save the delivery listener, and hand it to the device messaging client, which tells it of each acknowledgement.]
+    @Test
+    public void setDeliveryListenerHandsListenerToOpenMessaging(@Mocked final MqttDeliveryListener mockListener) throws IOException
+    {
+        baseExpectations();
+        openExpectations();
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.open();
+        connection.setDeliveryListener(mockListener);
+
+        assertEquals(mockListener, Deencapsulation.getField(connection, "deliveryListener"));
+        new Verifications()
+        {
+            {
+                Deencapsulation.invoke(mockDeviceMessaging, "setDeliveryListener", new Class[] { MqttDeliveryListener.class }, mockListener);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_017: [The function shall send each message as sendEvent does, and return their status codes in order.]
+    @Test
+    public void sendEventBatchSendsEachMessageWithItsContext(@Mocked final Message mockMsg) throws IOException
+    {
+        baseExpectations();
+        openExpectations();
+
+        final byte[] msgBody = { 0x61, 0x62, 0x63 };
+        final Object firstContext = new Object();
+        final Object secondContext = new Object();
+        new NonStrictExpectations()
+        {
+            {
+                mockMsg.getBytes();
+                result = msgBody;
+                mockDeviceMessaging.send(mockMsg, secondContext);
+                result = new IOException();
+            }
+        };
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.open();
+        List<IotHubStatusCode> statuses = connection.sendEventBatch(Arrays.asList(mockMsg, mockMsg), Arrays.asList(firstContext, secondContext));
+
+        assertEquals(Arrays.asList(IotHubStatusCode.OK_EMPTY, IotHubStatusCode.ERROR), statuses);
+        new Verifications()
+        {
+            {
+                mockDeviceMessaging.send(mockMsg, firstContext);
+                times = 1;
+                mockDeviceMessaging.send(mockMsg, secondContext);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_024: [If the message could not be handed to the MQTT connection
+    // because the connection is being reconnected, the function shall throw an IllegalStateException
+    // rather than wait for the reconnect.]
+    @Test(expected = IllegalStateException.class)
+    public void sendEventFailsFastIfConnectionIsReconnecting(@Mocked final Message mockMsg) throws IOException
+    {
+        baseExpectations();
+        openExpectations();
+
+        final byte[] msgBody = { 0x61, 0x62, 0x63 };
+        new NonStrictExpectations()
+        {
+            {
+                mockMsg.getBytes();
+                result = msgBody;
+                mockDeviceMessaging.send(mockMsg, any);
+                result = new IOException();
+                Deencapsulation.invoke(mockDeviceMessaging, "isReconnecting");
+                result = true;
+            }
+        };
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.open();
+        connection.sendEvent(mockMsg);
+    }
+
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_032: [If the in-flight window is full, the function shall throw
+    // an IllegalStateException at once, rather than wait for an acknowledgement.]
+    @Test(expected = IllegalStateException.class)
+    public void sendEventFailsFastIfWindowIsFull(@Mocked final Message mockMsg) throws IOException
+    {
+        baseExpectations();
+        openExpectations();
+
+        final byte[] msgBody = { 0x61, 0x62, 0x63 };
+        new NonStrictExpectations()
+        {
+            {
+                mockMsg.getBytes();
+                result = msgBody;
+                mockDeviceMessaging.send(mockMsg, any);
+                result = new IllegalStateException();
+                Deencapsulation.invoke(mockDeviceMessaging, "isReconnecting");
+                result = false;
+            }
+        };
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.open();
+        connection.sendEvent(mockMsg);
+    }
+
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_025: [If the connection is lost or the in-flight window fills up after
+    // the first message was sent, the function shall stop and return the status codes of the messages sent so far.]
+    @Test
+    public void sendEventBatchStopsIfConnectionIsLost(@Mocked final Message mockMsg) throws IOException
+    {
+        baseExpectations();
+        openExpectations();
+
+        final byte[] msgBody = { 0x61, 0x62, 0x63 };
+        final Object firstContext = new Object();
+        final Object secondContext = new Object();
+        final Object thirdContext = new Object();
+        new NonStrictExpectations()
+        {
+            {
+                mockMsg.getBytes();
+                result = msgBody;
+                mockDeviceMessaging.send(mockMsg, secondContext);
+                result = new IOException();
+                Deencapsulation.invoke(mockDeviceMessaging, "isReconnecting");
+                result = true;
+            }
+        };
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.open();
+        List<IotHubStatusCode> statuses = connection.sendEventBatch(Arrays.asList(mockMsg, mockMsg, mockMsg),
+                Arrays.asList(firstContext, secondContext, thirdContext));
+
+        assertEquals(Arrays.asList(IotHubStatusCode.OK_EMPTY), statuses);
+        new Verifications()
+        {
+            {
+                mockDeviceMessaging.send(mockMsg, thirdContext);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_027: [The function shall start the device twin,
+    // and merge the properties into the next patch of the reported properties.]
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_031: [The device twin clients shall be started once per open connection,
+    // the desired property updates being subscribed to before the full twin is requested.]
+    @Test
+    public void updateReportedPropertiesStartsDeviceTwinOnce(
+            @Mocked final MqttDeviceTwinDesiredProperties mockDesired,
+            @Mocked final MqttDeviceTwinDesiredPropertiesUpdate mockUpdate,
+            @Mocked final MqttDeviceTwinReportedProperties mockReported) throws IOException
+    {
+        baseExpectations();
+        openExpectations();
+        final Map<String, Object> properties = Collections.<String, Object>singletonMap("a", 1);
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.open();
+        connection.updateReportedProperties(properties);
+        connection.updateReportedProperties(properties);
+        connection.getDesiredProperties();
+
+        new VerificationsInOrder()
+        {
+            {
+                mockUpdate.start();
+                mockDesired.start();
+                mockReported.start();
+                mockReported.updateReportedProperties(properties);
+                times = 2;
+                mockDesired.getDesiredProperties();
+            }
+        };
+        new Verifications()
+        {
+            {
+                mockDesired.getDesiredProperties();
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_026: [If the MQTT connection is closed, the function shall throw an IllegalStateException.]
+    @Test(expected = IllegalStateException.class)
+    public void updateReportedPropertiesFailsIfConnectionClosed() throws IOException
+    {
+        baseExpectations();
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.updateReportedProperties(Collections.<String, Object>singletonMap("a", 1));
+    }
+
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_029: [The function shall publish the pending reported properties before it closes the MQTT connection.]
+    @Test
+    public void closePublishesPendingReportedProperties(
+            @Mocked final MqttDeviceTwinReportedProperties mockReported) throws IOException
+    {
+        baseExpectations();
+        openExpectations();
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.open();
+        connection.close();
+
+        new VerificationsInOrder()
+        {
+            {
+                mockReported.stop();
+                mockDeviceMessaging.stop();
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_030: [If the device twin was started, the function shall
+    // hand the twin responses and desired property updates received to the device twin clients.]
+    @Test
+    public void receiveDeviceTwinHandsTwinMessagesToStartedDeviceTwin(
+            @Mocked final MqttDeviceTwinDesiredProperties mockDesired,
+            @Mocked final MqttDeviceTwinDesiredPropertiesUpdate mockUpdate) throws IOException
+    {
+        baseExpectations();
+        openExpectations();
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.open();
+        connection.receiveDeviceTwin();
+        connection.getDesiredProperties();
+        connection.receiveDeviceTwin();
+        connection.receiveMessage();
+
+        new Verifications()
+        {
+            {
+                mockDesired.receive();
+                times = 1;
+                mockUpdate.receive();
+                minTimes = 1;
+                mockDeviceMessaging.receive();
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_034: [If a device twin client fails to handle its messages,
+    // the function shall log the failure and go on with the other clients.]
+    @Test
+    public void receiveDeviceTwinGoesOnIfTwinClientFails(
+            @Mocked final MqttDeviceTwinDesiredProperties mockDesired,
+            @Mocked final MqttDeviceTwinDesiredPropertiesUpdate mockUpdate) throws IOException
+    {
+        baseExpectations();
+        openExpectations();
+        new NonStrictExpectations()
+        {
+            {
+                mockDesired.receive();
+                result = new IOException();
+            }
+        };
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.open();
+        connection.getDesiredProperties();
+        connection.receiveDeviceTwin();
+
+        new Verifications()
+        {
+            {
+                mockUpdate.receive();
+                minTimes = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTIOTHUBCONNECTION_21_033: [If the MQTT connection is closed, the function shall throw an IllegalStateException.]
+    @Test(expected = IllegalStateException.class)
+    public void receiveDeviceTwinFailsIfConnectionClosed() throws IOException
+    {
+        baseExpectations();
+
+        MqttIotHubConnection connection = new MqttIotHubConnection(mockConfig);
+        connection.receiveDeviceTwin();
+    }
+
     private void baseExpectations()
     {
         new NonStrictExpectations() {
@@ -631,7 +984,7 @@ public class MqttIotHubConnectionTest
                 result = mockToken;
                 new MqttMessaging(sslPrefix + iotHubHostName + sslPortSuffix, deviceId, anyString, anyString);
                 result = mockDeviceMessaging;
-                new MqttDeviceMethods();
+                new MqttDeviceMethods(mockDeviceMessaging);
                 result = mockDeviceMethods;
                 mockDeviceMessaging.start();
                 result = null;
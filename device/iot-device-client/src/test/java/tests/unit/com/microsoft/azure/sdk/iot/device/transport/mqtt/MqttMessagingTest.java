@@ -5,6 +5,7 @@
 package com.microsoft.azure.sdk.iot.device.transport.mqtt;
 
 import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageProperty;
 
 import mockit.*;
 
@@ -12,7 +13,10 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.security.InvalidParameterException;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 
 import static org.junit.Assert.*;
@@ -115,6 +119,7 @@ public class MqttMessagingTest {
         new StrictExpectations()
         {
             {
+                mockMqtt.addReceiveQueue(anyString);
                 mockMqtt.connect();
                 result = mockIOException;
             }
@@ -142,6 +147,7 @@ public class MqttMessagingTest {
         new StrictExpectations()
         {
             {
+                mockMqtt.addReceiveQueue(anyString);
                 mockMqtt.connect();
                 mockMqtt.subscribe(anyString);
                 result = mockIOException;
@@ -203,6 +209,7 @@ public class MqttMessagingTest {
         new StrictExpectations()
         {
             {
+                mockMqtt.addReceiveQueue(anyString);
                 mockMqtt.connect();
                 mockMqtt.subscribe(anyString);
                 mockMqtt.disconnect();
@@ -229,19 +236,37 @@ public class MqttMessagingTest {
     }
 
     /*
-    **Tests_SRS_MqttMessaging_25_016: [**This onReconnect method shall put the entire operation of the MqttMessaging class on hold by waiting on the lock.**]**
+    **Tests_SRS_MqttMessaging_25_016: [**This onReconnect method shall not put the operation of the MqttMessaging class on hold, so that sends fail fast while the connection is reconnected.**]**
      */
     @Test
-    public void OnReconnectStopsOperation(@Mocked final Mqtt mockMqtt) throws IOException
+    public void onReconnectDoesNotHoldOperations(@Mocked final Mqtt mockMqtt) throws IOException
     {
+        final byte[] messageBody = {0x61, 0x62, 0x63};
+        new NonStrictExpectations()
+        {
+            {
+                mockMessage.getBytes();
+                result = messageBody;
+            }
+        };
+
         MqttMessaging testMqttMessaging = new MqttMessaging(serverUri, clientId, userName, password);
         testMqttMessaging.onReconnect();
+        testMqttMessaging.send(mockMessage);
+
         Semaphore actualSemaphore = Deencapsulation.getField(testMqttMessaging, "MESSAGING_SEMAPHORE");
-        assertTrue(actualSemaphore.availablePermits() == 0);
+        assertTrue(actualSemaphore.availablePermits() == 1);
+        new Verifications()
+        {
+            {
+                mockMqtt.publish(anyString, messageBody, anyInt, any);
+                times = 1;
+            }
+        };
     }
 
     /*
-    **Tests_SRS_MqttMessaging_25_018: [**If the status is true, onReconnectComplete method shall release all the operation of the MqttMessaging class put on hold by notifying the users of the lock.**]**
+    **Tests_SRS_MqttMessaging_25_018: [**If the status is true, onReconnectComplete method shall return, the sends failed during the reconnect being sent again by their callers.**]**
      */
     @Test
     public void onReconnectCompleteRestoresAllOperations(@Mocked final Mqtt mockMqtt) throws IOException
@@ -275,9 +300,9 @@ public class MqttMessagingTest {
         MqttMessaging testMqttMessaging = new MqttMessaging(serverUri, clientId, userName, password);
 
         String insertTopic = "devices/" + clientId + "/messages/devicebound/abc";
-        ConcurrentSkipListMap<String, byte[]> testMap = new ConcurrentSkipListMap<String, byte[]>();
-        testMap.put(insertTopic, "DataData".getBytes());
-        Deencapsulation.setField(mockMqtt, "allReceivedMessages", testMap);
+        BlockingQueue<Map.Entry<String, byte[]>> testMap = new LinkedBlockingQueue<Map.Entry<String, byte[]>>();
+        testMap.add(new AbstractMap.SimpleImmutableEntry<String, byte[]>(insertTopic, "DataData".getBytes()));
+        Deencapsulation.setField(testMqttMessaging, "receivedMessages", testMap);
 
         String retrieveTopic = testMqttMessaging.parseTopic();
 
@@ -296,32 +321,13 @@ public class MqttMessagingTest {
     {
         MqttMessaging testMqttMessaging = new MqttMessaging(serverUri, clientId, userName, password);
 
-        ConcurrentSkipListMap<String, byte[]> testMap = new ConcurrentSkipListMap<String, byte[]>();
-
-        Deencapsulation.setField(mockMqtt, "allReceivedMessages", testMap);
-
-        String retrieveTopic = testMqttMessaging.parseTopic();
-
-        assertNull(retrieveTopic);
-    }
-
-    /*
-    **Tests_SRS_MqttMessaging_25_006: [**If none of the topics from the received queue match the subscribe topic prefix then this method shall return null string .**]**
-     */
-    @Test
-    public void parseTopicReturnsNullIfNoMessageMatchingKeyIsFound(@Mocked final Mqtt mockMqtt) throws IOException
-    {
-        MqttMessaging testMqttMessaging = new MqttMessaging(serverUri, clientId, userName, password);
+        BlockingQueue<Map.Entry<String, byte[]>> testMap = new LinkedBlockingQueue<Map.Entry<String, byte[]>>();
 
-        String insertTopic = "devices/" + clientId + "/fakemessages/devicebound/abc";
-        ConcurrentSkipListMap<String, byte[]> testMap = new ConcurrentSkipListMap<String, byte[]>();
-        testMap.put(insertTopic, "DataData".getBytes());
-        Deencapsulation.setField(mockMqtt, "allReceivedMessages", testMap);
+        Deencapsulation.setField(testMqttMessaging, "receivedMessages", testMap);
 
         String retrieveTopic = testMqttMessaging.parseTopic();
 
         assertNull(retrieveTopic);
-
     }
 
     /*
@@ -334,9 +340,9 @@ public class MqttMessagingTest {
 
         final String insertTopic = "devices/" + clientId + "/messages/devicebound/abc";
         final byte[] insertMessage = {0x61, 0x62, 0x63};
-        ConcurrentSkipListMap<String, byte[]> testMap = new ConcurrentSkipListMap<String, byte[]>();
-        testMap.put(insertTopic, insertMessage);
-        Deencapsulation.setField(mockMqtt, "allReceivedMessages", testMap);
+        BlockingQueue<Map.Entry<String, byte[]>> testMap = new LinkedBlockingQueue<Map.Entry<String, byte[]>>();
+        testMap.add(new AbstractMap.SimpleImmutableEntry<String, byte[]>(insertTopic, insertMessage));
+        Deencapsulation.setField(testMqttMessaging, "receivedMessages", testMap);
 
         byte[] retrieveMessage = testMqttMessaging.parsePayload(insertTopic);
 
@@ -358,9 +364,9 @@ public class MqttMessagingTest {
 
         final String insertTopic = "devices/" + clientId + "/messages/devicebound/abc";
         final byte[] insertMessage = {0x61, 0x62, 0x63};
-        ConcurrentSkipListMap<String, byte[]> testMap = new ConcurrentSkipListMap<String, byte[]>();
-        testMap.put(insertTopic, insertMessage);
-        Deencapsulation.setField(mockMqtt, "allReceivedMessages", testMap);
+        BlockingQueue<Map.Entry<String, byte[]>> testMap = new LinkedBlockingQueue<Map.Entry<String, byte[]>>();
+        testMap.add(new AbstractMap.SimpleImmutableEntry<String, byte[]>(insertTopic, insertMessage));
+        Deencapsulation.setField(testMqttMessaging, "receivedMessages", testMap);
 
         byte[] retrieveMessage = testMqttMessaging.parsePayload(insertTopic);
 
@@ -375,9 +381,9 @@ public class MqttMessagingTest {
 
         final String insertTopic = "devices/" + clientId + "/messages/devicebound/abc";
         final byte[] insertMessage = {0x61, 0x62, 0x63};
-        ConcurrentSkipListMap<String, byte[]> testMap = new ConcurrentSkipListMap<String, byte[]>();
+        BlockingQueue<Map.Entry<String, byte[]>> testMap = new LinkedBlockingQueue<Map.Entry<String, byte[]>>();
 
-        Deencapsulation.setField(mockMqtt, "allReceivedMessages", testMap);
+        Deencapsulation.setField(testMqttMessaging, "receivedMessages", testMap);
 
         byte[] retrieveMessage = testMqttMessaging.parsePayload(insertTopic);
         assertNull(retrieveMessage);
@@ -394,9 +400,9 @@ public class MqttMessagingTest {
 
         final String insertTopic_messaging = "devices/" + clientId + "/messages/devicebound/abc";
         final byte[] insertMessage = {0x61, 0x62, 0x63};
-        ConcurrentSkipListMap<String, byte[]> testMap = new ConcurrentSkipListMap<String, byte[]>();
-        testMap.put(insertTopic_messaging, insertMessage);
-        Deencapsulation.setField(mockMqtt, "allReceivedMessages", testMap);
+        BlockingQueue<Map.Entry<String, byte[]>> testMap = new LinkedBlockingQueue<Map.Entry<String, byte[]>>();
+        testMap.add(new AbstractMap.SimpleImmutableEntry<String, byte[]>(insertTopic_messaging, insertMessage));
+        Deencapsulation.setField(testMqttMessaging, "receivedMessages", testMap);
 
 
         byte[] retrieveMessage = testMqttMessaging.parsePayload(null);
@@ -415,9 +421,9 @@ public class MqttMessagingTest {
         final String insertTopic_actual = "$iothub/twin/PATCH/properties/desired/#";
         final String insertTopic_messaging = "devices/" + clientId + "/messages/devicebound/abc";
         final byte[] insertMessage = {0x61, 0x62, 0x63};
-        ConcurrentSkipListMap<String, byte[]> testMap = new ConcurrentSkipListMap<String, byte[]>();
-        testMap.put(insertTopic_actual, insertMessage);
-        Deencapsulation.setField(mockMqtt, "allReceivedMessages", testMap);
+        BlockingQueue<Map.Entry<String, byte[]>> testMap = new LinkedBlockingQueue<Map.Entry<String, byte[]>>();
+        testMap.add(new AbstractMap.SimpleImmutableEntry<String, byte[]>(insertTopic_actual, insertMessage));
+        Deencapsulation.setField(testMqttMessaging, "receivedMessages", testMap);
 
 
         byte[] retrieveMessage = testMqttMessaging.parsePayload(insertTopic_messaging);
@@ -433,15 +439,65 @@ public class MqttMessagingTest {
         MqttMessaging testMqttMessaging = new MqttMessaging(serverUri, clientId, userName, password);
 
         final String insertTopic = "$iothub/twin/PATCH/properties/desired/#";
-        ConcurrentSkipListMap<String, byte[]> testMap = null;
+        BlockingQueue<Map.Entry<String, byte[]>> testMap = null;
 
-        Deencapsulation.setField(mockMqtt, "allReceivedMessages", testMap);
+        Deencapsulation.setField(testMqttMessaging, "receivedMessages", testMap);
 
 
         byte[] retrieveMessage = testMqttMessaging.parsePayload(insertTopic);
 
     }
 
+    /*
+    **Tests_SRS_MqttMessaging_21_001: [**parseProperties shall decode the URL-encoded property bag that follows the subscribe topic prefix, and set the message id from $.mid, the correlation id from $.cid, and every application property on the message.**]**
+     */
+    @Test
+    public void parsePropertiesSetsPropertiesFromTopic(@Mocked final Mqtt mockMqtt) throws IOException
+    {
+        MqttMessaging testMqttMessaging = new MqttMessaging(serverUri, clientId, userName, password);
+
+        final String insertTopic = "devices/" + clientId + "/messages/devicebound/%24.mid=id1&%24.cid=cid1&key1=value%201&%24.to=ignored";
+
+        Deencapsulation.invoke(testMqttMessaging, "parseProperties", insertTopic, mockMessage);
+
+        new Verifications()
+        {
+            {
+                mockMessage.setMessageId("id1");
+                times = 1;
+                mockMessage.setCorrelationId("cid1");
+                times = 1;
+                mockMessage.setProperty("key1", "value 1");
+                times = 1;
+                mockMessage.setProperty(anyString, anyString);
+                times = 1;
+            }
+        };
+    }
+
+    /*
+    **Tests_SRS_MqttMessaging_21_002: [**parseProperties shall skip a property it cannot decode or set, and keep the others.**]**
+     */
+    @Test
+    public void parsePropertiesSkipsInvalidProperty(@Mocked final Mqtt mockMqtt) throws IOException
+    {
+        MqttMessaging testMqttMessaging = new MqttMessaging(serverUri, clientId, userName, password);
+
+        final String insertTopic = "devices/" + clientId + "/messages/devicebound/bad%zz=value&key1=value1";
+
+        Deencapsulation.invoke(testMqttMessaging, "parseProperties", insertTopic, mockMessage);
+
+        new Verifications()
+        {
+            {
+                mockMessage.setProperty("key1", "value1");
+                times = 1;
+                mockMessage.setProperty(anyString, anyString);
+                times = 1;
+            }
+        };
+    }
+
     /*
     **Tests_SRS_MqttMessaging_25_024: [**send method shall publish a message to the IOT Hub on the publish topic by calling method publish().**]**
      */
@@ -454,7 +510,7 @@ public class MqttMessagingTest {
             {
                 mockMessage.getBytes();
                 result = messageBody;
-                mockMqtt.publish(anyString, messageBody);
+                mockMqtt.publish(anyString, messageBody, anyInt, any);
 
             }
         };
@@ -467,7 +523,7 @@ public class MqttMessagingTest {
             {
                 mockMessage.getBytes();
                 times = 2;
-                mockMqtt.publish(anyString, messageBody);
+                mockMqtt.publish(anyString, messageBody, anyInt, any);
                 times = 1;
 
             }
@@ -476,6 +532,173 @@ public class MqttMessagingTest {
 
     }
 
+    /*
+    **Tests_SRS_MqttMessaging_21_004: [**send method shall publish the message with the context, and shall not wait for room in the in-flight window.**]**
+     */
+    @Test
+    public void sendPublishesWithContext(@Mocked final Mqtt mockMqtt) throws IOException
+    {
+        final byte[] messageBody = {0x61, 0x62, 0x63};
+        final Object context = new Object();
+        new NonStrictExpectations()
+        {
+            {
+                mockMessage.getBytes();
+                result = messageBody;
+            }
+        };
+
+        MqttMessaging testMqttMessaging = new MqttMessaging(serverUri, clientId, userName, password);
+        testMqttMessaging.send(mockMessage, context);
+
+        Semaphore messagingSemaphore = Deencapsulation.getField(testMqttMessaging, "MESSAGING_SEMAPHORE");
+        assertEquals(1, messagingSemaphore.availablePermits());
+        new Verifications()
+        {
+            {
+                mockMqtt.publish(anyString, messageBody, 1, context);
+                times = 1;
+            }
+        };
+    }
+
+    /*
+    **Tests_SRS_MqttMessaging_21_005: [**The function shall set the QoS of the messages sent to 0 if asked, or to 1 otherwise.**]**
+     */
+    @Test
+    public void sendPublishesAtQos0IfAsked(@Mocked final Mqtt mockMqtt) throws IOException
+    {
+        final byte[] messageBody = {0x61, 0x62, 0x63};
+        new NonStrictExpectations()
+        {
+            {
+                mockMessage.getBytes();
+                result = messageBody;
+            }
+        };
+
+        MqttMessaging testMqttMessaging = new MqttMessaging(serverUri, clientId, userName, password);
+        Deencapsulation.invoke(testMqttMessaging, "setTelemetryQos0", true);
+        testMqttMessaging.send(mockMessage);
+        Deencapsulation.invoke(testMqttMessaging, "setTelemetryQos0", false);
+        testMqttMessaging.send(mockMessage);
+
+        new VerificationsInOrder()
+        {
+            {
+                mockMqtt.publish(anyString, messageBody, 0, any);
+                times = 1;
+                mockMqtt.publish(anyString, messageBody, 1, any);
+                times = 1;
+            }
+        };
+    }
+
+    /*
+    **Tests_SRS_MqttMessaging_21_006: [**send method shall publish the message on the publish topic followed by a property bag holding the URL-encoded message id and application properties of the message.**]**
+     */
+    @Test
+    public void sendPublishesPropertiesInTopicPropertyBag(@Mocked final Mqtt mockMqtt) throws IOException
+    {
+        final byte[] messageBody = {0x61, 0x62, 0x63};
+        final String publishTopic = "devices/" + clientId + "/messages/events/";
+        new NonStrictExpectations()
+        {
+            {
+                mockMessage.getBytes();
+                result = messageBody;
+                mockMessage.getMessageId();
+                returns("id&1 \u00e9", "id2");
+                mockMessage.getProperties();
+                result = new MessageProperty[] { new MessageProperty("temp", "a=b c"), new MessageProperty("unit", "C") };
+                result = new MessageProperty[0];
+            }
+        };
+
+        MqttMessaging testMqttMessaging = new MqttMessaging(serverUri, clientId, userName, password);
+        testMqttMessaging.send(mockMessage);
+        testMqttMessaging.send(mockMessage);
+
+        new VerificationsInOrder()
+        {
+            {
+                mockMqtt.publish(publishTopic + "$.mid=id%261%20%C3%A9&temp=a%3Db%20c&unit=C", messageBody, anyInt, any);
+                times = 1;
+                mockMqtt.publish(publishTopic + "$.mid=id2", messageBody, anyInt, any);
+                times = 1;
+            }
+        };
+    }
+
+    /*
+    **Tests_SRS_MqttMessaging_21_008: [**send method shall add the URL-encoded correlation id of the message to the property bag as $.cid, if the message has one.**]**
+     */
+    @Test
+    public void sendPublishesCorrelationIdInTopicPropertyBag(@Mocked final Mqtt mockMqtt) throws IOException
+    {
+        final byte[] messageBody = {0x61, 0x62, 0x63};
+        final String publishTopic = "devices/" + clientId + "/messages/events/";
+        new NonStrictExpectations()
+        {
+            {
+                mockMessage.getBytes();
+                result = messageBody;
+                mockMessage.getMessageId();
+                returns("id1", null);
+                mockMessage.getCorrelationId();
+                result = "request 1";
+                mockMessage.getProperties();
+                result = new MessageProperty[] { new MessageProperty("unit", "C") };
+                result = new MessageProperty[0];
+            }
+        };
+
+        MqttMessaging testMqttMessaging = new MqttMessaging(serverUri, clientId, userName, password);
+        testMqttMessaging.send(mockMessage);
+        testMqttMessaging.send(mockMessage);
+
+        new VerificationsInOrder()
+        {
+            {
+                mockMqtt.publish(publishTopic + "$.mid=id1&$.cid=request%201&unit=C", messageBody, anyInt, any);
+                times = 1;
+                mockMqtt.publish(publishTopic + "$.cid=request%201", messageBody, anyInt, any);
+                times = 1;
+            }
+        };
+    }
+
+    /*
+    **Tests_SRS_MqttMessaging_21_007: [**If the message has no message id, no correlation id and no application properties, send method shall publish it on the publish topic as it is.**]**
+     */
+    @Test
+    public void sendPublishesOnPublishTopicIfMessageHasNoProperties(@Mocked final Mqtt mockMqtt) throws IOException
+    {
+        final byte[] messageBody = {0x61, 0x62, 0x63};
+        new NonStrictExpectations()
+        {
+            {
+                mockMessage.getBytes();
+                result = messageBody;
+                mockMessage.getMessageId();
+                result = null;
+                mockMessage.getProperties();
+                result = new MessageProperty[0];
+            }
+        };
+
+        MqttMessaging testMqttMessaging = new MqttMessaging(serverUri, clientId, userName, password);
+        testMqttMessaging.send(mockMessage);
+
+        new Verifications()
+        {
+            {
+                mockMqtt.publish("devices/" + clientId + "/messages/events/", messageBody, anyInt, any);
+                times = 1;
+            }
+        };
+    }
+
     @Test (expected =  IOException.class)
     public void sendShallThrowIOExceptionIfMessageIsEmpty(@Mocked final Mqtt mockMqtt) throws IOException
     {
@@ -485,7 +708,7 @@ public class MqttMessagingTest {
             {
                 mockMessage.getBytes();
                 result = messageBody;
-                mockMqtt.publish(anyString, messageBody);
+                mockMqtt.publish(anyString, messageBody, anyInt, any);
                 result = mockIOException;
 
             }
@@ -5,6 +5,7 @@ package com.microsoft.azure.sdk.iot.device.transport.mqtt;
 
 
 import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubReceiveTask;
 
 import mockit.*;
 import org.eclipse.paho.client.mqttv3.*;
@@ -14,7 +15,14 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.security.InvalidParameterException;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -127,6 +135,36 @@ public class MqttTest {
         }
     }
 
+    private Mqtt instantiateMqtt(Mqtt connection) throws IOException
+    {
+        return new Mqtt(connection)
+        {
+            @Override
+            String parseTopic() throws IOException
+            {
+                return mockParseTopic;
+            }
+
+            @Override
+            byte[] parsePayload(String topic) throws IOException
+            {
+                return new byte[0];
+            }
+
+            @Override
+            void onReconnect() throws IOException
+            {
+
+            }
+
+            @Override
+            void onReconnectComplete(boolean status) throws IOException
+            {
+
+            }
+        };
+    }
+
     private void baseConstructorExpectations(boolean withParameter) throws MqttException
     {
 
@@ -189,7 +227,7 @@ public class MqttTest {
                 result = true;
                 new MqttMessage(payload);
                 result = mockMqttMessage;
-                mockMqttAsyncClient.publish(mockParseTopic, mockMqttMessage);
+                mockMqttAsyncClient.publish(mockParseTopic, mockMqttMessage, any, (IMqttActionListener) any);
                 result = mockMqttDeliveryToken;
             }
         };
@@ -208,9 +246,7 @@ public class MqttTest {
                 times = 1;
                 mockMqttMessage.setQos(anyInt);
                 times = 1;
-                mockMqttAsyncClient.publish(mockParseTopic, mockMqttMessage);
-                times = 1;
-                mockMqttDeliveryToken.waitForCompletion();
+                mockMqttAsyncClient.publish(mockParseTopic, mockMqttMessage, any, (IMqttActionListener) any);
                 times = 1;
                 mockMqttToken.waitForCompletion();
                 times = 1;
@@ -274,7 +310,7 @@ public class MqttTest {
                     times = 1;
                     mockMqttConnectionOptions.setPassword(password.toCharArray());
                     times = 1;
-                    new ConcurrentSkipListMap<>();
+                    new ConcurrentHashMap<>();
                     times = 1;
                     new Object();
                     times = 1;
@@ -305,24 +341,23 @@ public class MqttTest {
     }
 
     /*
-    ** Tests_SRS_Mqtt_25_004: [**If an instance of the inner class MqttConnectionInfo is already created than it shall return doing nothing.**]**
+    **Tests_SRS_Mqtt_21_001: [**The constructor shall share the MqttConnectionInfo, the received messages queue and the lock of the given instance, and of no other connection.**]**
      */
     @Test
-    public void manyExtendsOfAbstractClassDoesntChangeConfig() throws IOException, MqttException
+    public void instancesOverSameConnectionShareState() throws IOException, MqttException
     {
         //arrange
         baseConstructorExpectations(true);
-        baseConstructorExpectations(false);
 
         //act
         Mqtt mockMqtt1 = instantiateMqtt(true);
         Mqtt.MqttConnectionInfo actualInfoInstance1 = Deencapsulation.getField(mockMqtt1, "info");
-        ConcurrentSkipListMap<String, byte[]> actualMap1 = Deencapsulation.getField(mockMqtt1, "allReceivedMessages");
+        ConcurrentMap<String, BlockingQueue<Map.Entry<String, byte[]>>> actualMap1 = Deencapsulation.getField(mockMqtt1, "allReceivedMessages");
         Object actualLock1 = Deencapsulation.getField(mockMqtt1, "MQTT_LOCK");
 
-        Mqtt mockMqtt2 = instantiateMqtt(false);
+        Mqtt mockMqtt2 = instantiateMqtt(mockMqtt1);
         Mqtt.MqttConnectionInfo actualInfoInstance2 = Deencapsulation.getField(mockMqtt2, "info");
-        ConcurrentSkipListMap<String, byte[]> actualMap2 = Deencapsulation.getField(mockMqtt2, "allReceivedMessages");
+        ConcurrentMap<String, BlockingQueue<Map.Entry<String, byte[]>>> actualMap2 = Deencapsulation.getField(mockMqtt2, "allReceivedMessages");
         Object actualLock2 = Deencapsulation.getField(mockMqtt2, "MQTT_LOCK");
 
         //assert
@@ -355,7 +390,7 @@ public class MqttTest {
         assertNotNull(actualInfo.mqttAsyncClient);
         MqttConnectOptions actualConnectionOptions = Deencapsulation.getField(actualInfo, "connectionOptions");
         assertNotNull(actualConnectionOptions);
-        ConcurrentSkipListMap<String, byte[]> actualMap = Deencapsulation.getField(mockMqtt, "allReceivedMessages");
+        ConcurrentMap<String, BlockingQueue<Map.Entry<String, byte[]>>> actualMap = Deencapsulation.getField(mockMqtt, "allReceivedMessages");
         assertNotNull(actualMap);
         Object actualLock = Deencapsulation.getField(mockMqtt, "MQTT_LOCK");
         assertNotNull(actualLock);
@@ -459,7 +494,7 @@ public class MqttTest {
         //assert
         Mqtt.MqttConnectionInfo actualInfoInstance = Deencapsulation.getField(mockMqtt, "info");
         assertNull(actualInfoInstance);
-        ConcurrentSkipListMap<String, byte[]> actualMap = Deencapsulation.getField(mockMqtt, "allReceivedMessages");
+        ConcurrentMap<String, BlockingQueue<Map.Entry<String, byte[]>>> actualMap = Deencapsulation.getField(mockMqtt, "allReceivedMessages");
         assertNull(actualMap);
 
         Object actualLock = Deencapsulation.getField(mockMqtt, "MQTT_LOCK");
@@ -469,37 +504,46 @@ public class MqttTest {
     }
 
     /*
-    ** Tests_SRS_Mqtt_25_004: [**If an instance of the inner class MqttConnectionInfo is already created than it shall return doing nothing.**]**
+    **Tests_SRS_Mqtt_25_003: [**The constructor shall use the configuration to instantiate an instance of the inner class MqttConnectionInfo owned by this connection.**]**
      */
     @Test
-    public void constructorWithParametersIfCalledMultipleTimesDoesntReinitialize() throws IOException, MqttException
+    public void eachConnectionOwnsItsState() throws IOException, MqttException
     {
         //arrange
         baseConstructorExpectations(true);
-        baseConstructorExpectations(true);
 
         //act
         Mqtt mockMqtt1 = instantiateMqtt(true);
+        Mqtt mockMqtt2 = instantiateMqtt(true);
 
         //assert
         Mqtt.MqttConnectionInfo actualInfoInstance1 = Deencapsulation.getField(mockMqtt1, "info");
-        ConcurrentSkipListMap<String, byte[]> actualMap1 = Deencapsulation.getField(mockMqtt1, "allReceivedMessages");
-        Mqtt mockMqtt2 = instantiateMqtt(false);
         Mqtt.MqttConnectionInfo actualInfoInstance2 = Deencapsulation.getField(mockMqtt2, "info");
-        ConcurrentSkipListMap<String, byte[]> actualMap2 = Deencapsulation.getField(mockMqtt2, "allReceivedMessages");
-
+        ConcurrentMap<String, BlockingQueue<Map.Entry<String, byte[]>>> actualMap1 = Deencapsulation.getField(mockMqtt1, "allReceivedMessages");
+        ConcurrentMap<String, BlockingQueue<Map.Entry<String, byte[]>>> actualMap2 = Deencapsulation.getField(mockMqtt2, "allReceivedMessages");
         Object actualLock1 = Deencapsulation.getField(mockMqtt1, "MQTT_LOCK");
         Object actualLock2 = Deencapsulation.getField(mockMqtt2, "MQTT_LOCK");
 
+        assertNotSame(actualInfoInstance1, actualInfoInstance2);
+        assertNotSame(actualMap1, actualMap2);
+        assertNotSame(actualLock1, actualLock2);
 
-        assertEquals(actualInfoInstance1, actualInfoInstance2);
-        assertEquals(actualMap1, actualMap2);
-        assertEquals(actualLock1, actualLock2);
-
-        baseConstructorVerifications(true);
-        baseConstructorVerifications(false);
-        mockMqtt1.restartBaseMqtt();
+        new Verifications()
+        {
+            {
+                new MqttAsyncClient(serverUri, clientId, mockMemoryPersistence);
+                times = 2;
+            }
+        };
+    }
 
+    /*
+    **Tests_SRS_Mqtt_21_002: [**If the given instance is null, the constructor shall throw InvalidParameterException.**]**
+     */
+    @Test(expected = InvalidParameterException.class)
+    public void constructorThrowsIfSharedConnectionIsNull() throws IOException
+    {
+        instantiateMqtt((Mqtt) null);
     }
 
     /*
@@ -736,7 +780,7 @@ public class MqttTest {
             {
                 mockMqttAsyncClient.isConnected();
                 minTimes = 2;
-                mockMqttAsyncClient.publish(mockParseTopic, mockMqttMessage);
+                mockMqttAsyncClient.publish(mockParseTopic, mockMqttMessage, any, (IMqttActionListener) any);
                 times = 1;
             }
         };
@@ -744,6 +788,71 @@ public class MqttTest {
     }
 
 
+    /*
+    **Tests_SRS_Mqtt_21_015: [**The function shall publish the message at the given QoS, which is 1 unless the caller asks for QoS 0.**]**
+     */
+    @Test
+    public void publishUsesGivenQos() throws IOException, MqttException
+    {
+        //arrange
+        baseConstructorExpectations(true);
+        baseConnectExpectation();
+        basePublishExpectations();
+
+        final byte[] payload = {0x61, 0x62, 0x63};
+        Mqtt mockMqtt = instantiateMqtt(true);
+        mockMqtt.connect();
+
+        //act
+        mockMqtt.publish(mockParseTopic, payload);
+        mockMqtt.publish(mockParseTopic, payload, Deencapsulation.<Integer>getField(Mqtt.class, "QOS_AT_MOST_ONCE"), null);
+
+        //assert
+        new VerificationsInOrder()
+        {
+            {
+                mockMqttMessage.setQos(1);
+                times = 1;
+                mockMqttMessage.setQos(0);
+                times = 1;
+            }
+        };
+        testCleanUp(mockMqtt);
+    }
+
+    /*
+    **Tests_SRS_Mqtt_21_014: [**If the QoS is neither 0 nor 1, the function shall throw an IOException.**]**
+     */
+    @Test(expected = IOException.class)
+    public void publishThrowsIfQosIsNotSupported() throws IOException, MqttException
+    {
+        //arrange
+        Mqtt mockMqtt = null;
+        try
+        {
+            baseConstructorExpectations(true);
+            final byte[] payload = {0x61, 0x62, 0x63};
+
+            new NonStrictExpectations()
+            {
+                {
+                    mockMqttAsyncClient.isConnected();
+                    result = true;
+                }
+            };
+
+            mockMqtt = instantiateMqtt(true);
+            mockMqtt.connect();
+
+            //act
+            mockMqtt.publish(mockParseTopic, payload, 2, null);
+        }
+        finally
+        {
+            testCleanUp(mockMqtt);
+        }
+    }
+
     /*
     **Tests_SRS_Mqtt_25_012: [**If the MQTT connection is closed, the function shall throw an IOException.**]**
      */
@@ -795,7 +904,7 @@ public class MqttTest {
         final byte[] payload = {0x61, 0x62, 0x63};
         String mockParseTopic2 = mockParseTopic + 2;
         Mqtt mockMqtt1 = instantiateMqtt(true);
-        Mqtt mockMqtt2 = instantiateMqtt(false);
+        Mqtt mockMqtt2 = instantiateMqtt(mockMqtt1);
 
         mockMqtt2.connect();
 
@@ -809,7 +918,7 @@ public class MqttTest {
             {
                 mockMqttAsyncClient.isConnected();
                 minTimes = 3;
-                mockMqttAsyncClient.publish(anyString, mockMqttMessage);
+                mockMqttAsyncClient.publish(anyString, mockMqttMessage, any, (IMqttActionListener) any);
                 times = 2;
             }
         };
@@ -838,7 +947,7 @@ public class MqttTest {
                     result = true;
                     new MqttMessage(payload);
                     result = mockMqttMessage;
-                    mockMqttAsyncClient.publish(mockParseTopic, mockMqttMessage);
+                    mockMqttAsyncClient.publish(mockParseTopic, mockMqttMessage, any, (IMqttActionListener) any);
                     result = mockMqttException;
                 }
             };
@@ -1358,6 +1467,9 @@ public class MqttTest {
     /*
     **Tests_SRS_Mqtt_25_030: [**The payload of the message and the topic is added to the received messages queue .**]**
      */
+    /*
+    **Tests_SRS_Mqtt_21_003: [**The function shall return the bounded queue of the subscription to the topic prefix, creating it if the connection has none.**]**
+     */
     @Test
     public void messageArrivedAddsToQueue() throws IOException, MqttException
     {
@@ -1378,16 +1490,20 @@ public class MqttTest {
             };
 
             mockMqtt = instantiateMqtt(true);
+            BlockingQueue<Map.Entry<String, byte[]>> queue = Deencapsulation.invoke(mockMqtt, "addReceiveQueue", mockParseTopic);
             mockMqtt.connect();
 
             //act
             mockMqtt.messageArrived(mockParseTopic, new MqttMessage(actualPayload));
 
             //assert
-            ConcurrentSkipListMap<String, byte[]> actualMap = Deencapsulation.getField(mockMqtt, "allReceivedMessages");
-            assertTrue(actualMap.containsKey(mockParseTopic));
+            ConcurrentMap<String, BlockingQueue<Map.Entry<String, byte[]>>> actualMap = Deencapsulation.getField(mockMqtt, "allReceivedMessages");
+            assertSame(queue, actualMap.get(mockParseTopic));
+            assertSame(queue, Deencapsulation.invoke(mockMqtt, "addReceiveQueue", mockParseTopic));
 
-            byte[] receivedPayload = actualMap.get(mockParseTopic);
+            Map.Entry<String, byte[]> received = queue.poll();
+            assertEquals(mockParseTopic, received.getKey());
+            byte[] receivedPayload = received.getValue();
             assertTrue(actualPayload.length == receivedPayload.length);
             for (int i = 0; i < actualPayload.length; i++)
             {
@@ -1402,6 +1518,220 @@ public class MqttTest {
 
     }
 
+    /*
+    **Tests_SRS_Mqtt_21_022: [**The function shall have the receive task signalled once the delay has passed, if a receive task is registered.**]**
+     */
+    @Test
+    public void signalReceiveTaskSignalsRegisteredTaskAfterDelay(@Mocked final IotHubReceiveTask mockReceiveTask) throws IOException, MqttException
+    {
+        //arrange
+        Mqtt mockMqtt = null;
+        try
+        {
+            baseConstructorExpectations(true);
+            mockMqtt = instantiateMqtt(true);
+            Deencapsulation.invoke(mockMqtt, "signalReceiveTask", 100L);
+            Deencapsulation.invoke(mockMqtt, "setReceiveTask", mockReceiveTask);
+
+            //act
+            Deencapsulation.invoke(mockMqtt, "signalReceiveTask", 200L);
+
+            //assert
+            new Verifications()
+            {
+                {
+                    mockReceiveTask.signal(anyLong);
+                    times = 1;
+                    mockReceiveTask.signal(200L);
+                }
+            };
+        }
+        finally
+        {
+            testCleanUp(mockMqtt);
+        }
+    }
+
+    /*
+    **Tests_SRS_Mqtt_21_006: [**The message shall be added at the end of the queue of the subscription whose topic prefix starts its topic. If that queue is full, the function shall drop the message and log it, rather than block the thread paho delivers the acknowledgements on.**]**
+     */
+    /*
+    **Tests_SRS_Mqtt_21_007: [**The function shall signal the receive task, if one is registered, once the message is queued.**]**
+     */
+    @Test
+    public void messageArrivedKeepsMessagesOnSameTopicInOrderAndSignalsReceiveTask(@Mocked final IotHubReceiveTask mockReceiveTask) throws IOException, MqttException
+    {
+        //arrange
+        Mqtt mockMqtt = null;
+        try
+        {
+            final byte[] firstPayload = {0x61};
+            final byte[] secondPayload = {0x62};
+            baseConstructorExpectations(true);
+            baseConnectExpectation();
+
+            new NonStrictExpectations()
+            {
+                {
+                    mockMqttMessage.getPayload();
+                    returns(firstPayload, secondPayload);
+                }
+            };
+
+            mockMqtt = instantiateMqtt(true);
+            BlockingQueue<Map.Entry<String, byte[]>> queue = Deencapsulation.invoke(mockMqtt, "addReceiveQueue", mockParseTopic);
+            Deencapsulation.invoke(mockMqtt, "setReceiveTask", mockReceiveTask);
+            mockMqtt.connect();
+
+            //act
+            mockMqtt.messageArrived(mockParseTopic, new MqttMessage(firstPayload));
+            mockMqtt.messageArrived(mockParseTopic, new MqttMessage(secondPayload));
+            mockMqtt.messageArrived("otherTopic", new MqttMessage(secondPayload));
+
+            //assert
+            assertEquals(2, queue.size());
+            assertSame(firstPayload, queue.poll().getValue());
+            assertSame(secondPayload, queue.poll().getValue());
+            new Verifications()
+            {
+                {
+                    mockReceiveTask.signal();
+                    times = 2;
+                }
+            };
+        }
+        finally
+        {
+            testCleanUp(mockMqtt);
+        }
+
+    }
+
+    /*
+    **Tests_SRS_Mqtt_21_006: [**The message shall be added at the end of the queue of the subscription whose topic prefix starts its topic. If that queue is full, the function shall drop the message and log it, rather than block the thread paho delivers the acknowledgements on.**]**
+     */
+    @Test (timeout = 5000)
+    public void messageArrivedDropsMessageWithoutBlockingIfQueueIsFull() throws IOException, MqttException
+    {
+        //arrange
+        Mqtt mockMqtt = null;
+        try
+        {
+            final byte[] payload = {0x61};
+            baseConstructorExpectations(true);
+            baseConnectExpectation();
+
+            mockMqtt = instantiateMqtt(true);
+            BlockingQueue<Map.Entry<String, byte[]>> queue = Deencapsulation.invoke(mockMqtt, "addReceiveQueue", mockParseTopic);
+            mockMqtt.connect();
+            for (int i = 0; i < Mqtt.MAX_RECEIVED_MESSAGES; i++)
+            {
+                mockMqtt.messageArrived(mockParseTopic, new MqttMessage(payload));
+            }
+
+            //act
+            mockMqtt.messageArrived(mockParseTopic, new MqttMessage(payload));
+
+            //assert
+            assertEquals(Mqtt.MAX_RECEIVED_MESSAGES, queue.size());
+        }
+        finally
+        {
+            testCleanUp(mockMqtt);
+        }
+    }
+
+    /*
+    **Tests_SRS_Mqtt_21_011: [**The function shall publish the message with the context, and return without waiting for its acknowledgement.**]**
+     */
+    /*
+    **Tests_SRS_Mqtt_21_012: [**The function shall give the message its room in the in-flight window back.**]**
+     */
+    /*
+    **Tests_SRS_Mqtt_21_013: [**The function shall tell the delivery listener, if one is registered, that the message published with the context was acknowledged.**]**
+     */
+    @Test
+    public void deliveryCompleteFreesWindowAndTellsListener(@Mocked final MqttDeliveryListener mockListener) throws IOException, MqttException
+    {
+        //arrange
+        Mqtt mockMqtt = null;
+        try
+        {
+            final Object context = new Object();
+            baseConstructorExpectations(true);
+            baseConnectExpectation();
+            basePublishExpectations();
+
+            final byte[] payload = {0x61, 0x62, 0x63};
+            mockMqtt = instantiateMqtt(true);
+            mockMqtt.connect();
+            mockMqtt.setMaxInFlight(1);
+            mockMqtt.setDeliveryListener(mockListener);
+            mockMqtt.publish(mockParseTopic, payload, context);
+
+            Mqtt.MqttConnectionInfo info = Deencapsulation.getField(mockMqtt, "info");
+            Semaphore window = Deencapsulation.getField(info, "inFlightWindow");
+            assertEquals(0, window.availablePermits());
+
+            final List<Object> userContexts = new ArrayList<>();
+            new Verifications()
+            {
+                {
+                    mockMqttAsyncClient.publish(mockParseTopic, mockMqttMessage, withCapture(userContexts), null);
+                    times = 1;
+                    mockMqttDeliveryToken.waitForCompletion();
+                    times = 0;
+                }
+            };
+            new NonStrictExpectations()
+            {
+                {
+                    mockMqttDeliveryToken.getUserContext();
+                    result = userContexts.get(0);
+                }
+            };
+
+            //act
+            mockMqtt.deliveryComplete(mockMqttDeliveryToken);
+
+            //assert
+            assertEquals(1, window.availablePermits());
+            new Verifications()
+            {
+                {
+                    mockListener.messageSent(context);
+                    times = 1;
+                }
+            };
+        }
+        finally
+        {
+            testCleanUp(mockMqtt);
+        }
+    }
+
+    /*
+    **Tests_SRS_Mqtt_21_009: [**If the window is less than 1 or greater than the 10 messages paho keeps in flight, the function shall throw an InvalidParameterException.**]**
+     */
+    @Test(expected = InvalidParameterException.class)
+    public void setMaxInFlightThrowsIfAbovePahoLimit() throws IOException, MqttException
+    {
+        //arrange
+        Mqtt mockMqtt = null;
+        try
+        {
+            baseConstructorExpectations(true);
+            mockMqtt = instantiateMqtt(true);
+
+            //act
+            mockMqtt.setMaxInFlight(11);
+        }
+        finally
+        {
+            testCleanUp(mockMqtt);
+        }
+    }
+
     /*
     **Tests_SRS_Mqtt_25_026: [**The function shall notify all its concrete classes by calling abstract method onReconnect at the entry of the function**]**
      */
@@ -1409,7 +1739,7 @@ public class MqttTest {
     **Tests_SRS_Mqtt_25_029: [**The function shall notify all its concrete classes by calling abstract method onReconnectComplete at the exit of the function**]**
      */
     @Test
-    public void connectionLostAttemptsToReconnect() throws IOException, MqttException
+    public void connectionLostAttemptsToReconnect() throws IOException, MqttException, InterruptedException
     {
         //arrange
         Mqtt mockMqtt = null;
@@ -1434,30 +1764,24 @@ public class MqttTest {
                     mockMqttConnectionOptions.setUserName(anyString);
                     mockMqttConnectionOptions.setPassword(password.toCharArray());
 
-                    mockMqttAsyncClient.isConnected();
-                    result = false;
                     mockMqttAsyncClient.isConnected();
                     result = false;
                     mockMqttAsyncClient.connect(mockMqttConnectionOptions);
                     result = mockMqttToken;
                     mockMqttToken.waitForCompletion();
-
-                    mockMqttAsyncClient.isConnected();
-                    result = true;
-
                 }
             };
 
+            mockMqtt = instantiateMqtt(true);
+            setConnectionState(mockMqtt, Mqtt.ConnectionState.CONNECTED);
+
             //act
-            try
-            {
-                mockMqtt = instantiateMqtt(true);
-                mockMqtt.connectionLost(t);
-            }
-            catch (Exception e)
-            {
-                System.out.print("Completed throwing exception - " + e.getCause() + e.getMessage());
-            }
+            mockMqtt.connectionLost(t);
+            joinReconnectSupervisor(mockMqtt);
+
+            //assert
+            assertFalse(mockMqtt.isReconnecting());
+            assertEquals(Mqtt.ConnectionState.CONNECTED, getConnectionState(mockMqtt));
         }
         finally
         {
@@ -1470,7 +1794,7 @@ public class MqttTest {
     **Tests_SRS_Mqtt_25_027: [**The function shall attempt to reconnect to the IoTHub in a loop with exponential backoff until it succeeds**]**
      */
     @Test
-    public void connectionLostAttemptsToReconnectAgainIfConnectFails() throws IOException, MqttException
+    public void connectionLostAttemptsToReconnectAgainIfConnectFails() throws IOException, MqttException, InterruptedException
     {
         //arrange
         Mqtt mockMqtt = null;
@@ -1494,44 +1818,216 @@ public class MqttTest {
                     mockMqttConnectionOptions.setUserName(anyString);
                     mockMqttConnectionOptions.setPassword(password.toCharArray());
 
-                    mockMqttAsyncClient.isConnected();
-                    result = false;
                     mockMqttAsyncClient.isConnected();
                     result = false;
                     mockMqttAsyncClient.connect(mockMqttConnectionOptions);
                     result = mockMqttException;
 
-                    mockMqttAsyncClient.isConnected();
-                    result = false;
-
                     mockMqttAsyncClient.isConnected();
                     result = false;
                     mockMqttAsyncClient.connect(mockMqttConnectionOptions);
                     result = mockMqttToken;
                     mockMqttToken.waitForCompletion();
+                }
+            };
 
-                    mockMqttAsyncClient.isConnected();
-                    result = true;
+            mockMqtt = instantiateMqtt(true);
+            setConnectionState(mockMqtt, Mqtt.ConnectionState.CONNECTED);
+
+            //act
+            mockMqtt.connectionLost(t);
+            joinReconnectSupervisor(mockMqtt);
+
+            //assert
+            assertFalse(mockMqtt.isReconnecting());
+            assertEquals(Mqtt.ConnectionState.CONNECTED, getConnectionState(mockMqtt));
+        }
+        finally
+        {
+            testCleanUp(mockMqtt);
+        }
+
+    }
+
+    /*
+    **Tests_SRS_Mqtt_21_016: [**The function shall reconnect on a supervisor thread, started once per loss of an open connection, and return without waiting on the lock of the connection.**]**
+     */
+    /*
+    **Tests_SRS_Mqtt_21_019: [**The function shall return true if the connection was lost and the reconnect supervisor is reconnecting it, and false otherwise.**]**
+     */
+    @Test
+    public void connectionLostReconnectsOnceWithoutWaitingOnLock() throws IOException, MqttException, InterruptedException
+    {
+        //arrange
+        baseConstructorExpectations(true);
+        new NonStrictExpectations()
+        {
+            {
+                mockMqttAsyncClient.isConnected();
+                result = false;
+                mockMqttAsyncClient.connect(mockMqttConnectionOptions);
+                result = mockMqttToken;
+            }
+        };
+        Mqtt mockMqtt = instantiateMqtt(true);
+        setConnectionState(mockMqtt, Mqtt.ConnectionState.CONNECTED);
+        Object lock = Deencapsulation.getField(mockMqtt, "MQTT_LOCK");
+
+        try
+        {
+            //act
+            synchronized (lock)
+            {
+                mockMqtt.connectionLost(new Throwable());
+                mockMqtt.connectionLost(new Throwable());
+
+                //assert
+                assertTrue(mockMqtt.isReconnecting());
+            }
+            joinReconnectSupervisor(mockMqtt);
 
+            assertFalse(mockMqtt.isReconnecting());
+            new Verifications()
+            {
+                {
+                    mockMqttAsyncClient.connect(mockMqttConnectionOptions);
+                    times = 1;
                 }
             };
+        }
+        finally
+        {
+            testCleanUp(mockMqtt);
+        }
+    }
 
+    /*
+    **Tests_SRS_Mqtt_21_016: [**The function shall reconnect on a supervisor thread, started once per loss of an open connection, and return without waiting on the lock of the connection.**]**
+     */
+    @Test
+    public void connectionLostDoesNothingIfConnectionIsNotOpen() throws IOException, MqttException
+    {
+        //arrange
+        baseConstructorExpectations(true);
+        Mqtt mockMqtt = instantiateMqtt(true);
+
+        try
+        {
             //act
-            try
+            mockMqtt.connectionLost(new Throwable());
+
+            //assert
+            assertFalse(mockMqtt.isReconnecting());
+            Mqtt.MqttConnectionInfo info = Deencapsulation.getField(mockMqtt, "info");
+            assertNull(Deencapsulation.getField(info, "supervisor"));
+            new Verifications()
             {
-                mockMqtt = instantiateMqtt(true);
-                mockMqtt.connectionLost(t);
+                {
+                    mockMqttAsyncClient.connect((MqttConnectOptions) any);
+                    times = 0;
+                }
+            };
+        }
+        finally
+        {
+            testCleanUp(mockMqtt);
+        }
+    }
+
+    /*
+    **Tests_SRS_Mqtt_21_017: [**The function shall stop the reconnect supervisor of the connection, if one is running.**]**
+     */
+    @Test
+    public void disconnectStopsReconnectSupervisor() throws IOException, MqttException, InterruptedException
+    {
+        //arrange
+        baseConstructorExpectations(true);
+        new NonStrictExpectations()
+        {
+            {
+                mockMqttAsyncClient.isConnected();
+                result = false;
+                mockMqttAsyncClient.connect(mockMqttConnectionOptions);
+                result = mockMqttException;
             }
-            catch (Exception e)
+        };
+        Mqtt mockMqtt = instantiateMqtt(true);
+        setConnectionState(mockMqtt, Mqtt.ConnectionState.CONNECTED);
+        mockMqtt.connectionLost(new Throwable());
+        Mqtt.MqttConnectionInfo info = Deencapsulation.getField(mockMqtt, "info");
+        Thread supervisor = Deencapsulation.getField(info, "supervisor");
+
+        try
+        {
+            //act
+            mockMqtt.disconnect();
+
+            //assert
+            supervisor.join(5000);
+            assertFalse(supervisor.isAlive());
+            assertFalse(mockMqtt.isReconnecting());
+            assertEquals(Mqtt.ConnectionState.DISCONNECTED, getConnectionState(mockMqtt));
+        }
+        finally
+        {
+            testCleanUp(mockMqtt);
+        }
+    }
+
+    /*
+    **Tests_SRS_Mqtt_25_048: [**If as many messages as the in-flight window are waiting for their acknowledgement, publish shall throw an IllegalStateException at once, without waiting for an acknowledgement.**]**
+     */
+    @Test (expected = IllegalStateException.class)
+    public void publishThrowsAtOnceIfWindowIsFull() throws IOException, MqttException
+    {
+        //arrange
+        baseConstructorExpectations(true);
+        new NonStrictExpectations()
+        {
             {
-                System.out.print("Completed throwing exception - " + e.getCause() + e.getMessage());
+                mockMqttAsyncClient.isConnected();
+                result = true;
             }
+        };
+        Mqtt mockMqtt = instantiateMqtt(true);
+        mockMqtt.setMaxInFlight(1);
+        Mqtt.MqttConnectionInfo info = Deencapsulation.getField(mockMqtt, "info");
+        Semaphore window = Deencapsulation.getField(info, "inFlightWindow");
+        window.drainPermits();
+        setConnectionState(mockMqtt, Mqtt.ConnectionState.CONNECTED);
+
+        try
+        {
+            //act
+            mockMqtt.publish(mockParseTopic, new byte[] {1}, null);
         }
         finally
         {
             testCleanUp(mockMqtt);
         }
+    }
+
+    private static void setConnectionState(Mqtt mqtt, Mqtt.ConnectionState state)
+    {
+        Mqtt.MqttConnectionInfo info = Deencapsulation.getField(mqtt, "info");
+        AtomicReference<Mqtt.ConnectionState> connectionState = Deencapsulation.getField(info, "state");
+        connectionState.set(state);
+    }
 
+    private static Mqtt.ConnectionState getConnectionState(Mqtt mqtt)
+    {
+        Mqtt.MqttConnectionInfo info = Deencapsulation.getField(mqtt, "info");
+        AtomicReference<Mqtt.ConnectionState> connectionState = Deencapsulation.getField(info, "state");
+        return connectionState.get();
     }
 
+    private static void joinReconnectSupervisor(Mqtt mqtt) throws InterruptedException
+    {
+        Mqtt.MqttConnectionInfo info = Deencapsulation.getField(mqtt, "info");
+        Thread supervisor = Deencapsulation.getField(info, "supervisor");
+        if (supervisor != null)
+        {
+            supervisor.join(5000);
+        }
+    }
 }
@@ -3,9 +3,13 @@
 
 package tests.unit.com.microsoft.azure.sdk.iot.device.transport.mqtt;
 
+import com.google.gson.JsonObject;
 import com.microsoft.azure.sdk.iot.device.*;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubCallbackPacket;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubOutboundPacket;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubReceiveTask;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubSendTask;
+import com.microsoft.azure.sdk.iot.device.transport.SendQueueLimiter;
 import com.microsoft.azure.sdk.iot.device.transport.mqtt.MqttIotHubConnection;
 import com.microsoft.azure.sdk.iot.device.transport.mqtt.MqttTransport;
 import junit.framework.AssertionFailedError;
@@ -14,12 +18,23 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertThat;
 
 public class MqttTransportTest {
@@ -163,6 +178,27 @@ public class MqttTransportTest {
         };
     }
 
+    // Tests_SRS_MQTTTRANSPORT_21_021: [The function shall signal the send task that a message is waiting to be sent.]
+    @Test
+    public void addMessageSignalsSendTask(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback,
+            @Mocked final IotHubSendTask mockSendTask) throws IOException
+    {
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        transport.setSendTask(mockSendTask);
+        transport.addMessage(mockMsg, mockCallback, null);
+
+        new Verifications()
+        {
+            {
+                mockSendTask.signal();
+                times = 1;
+            }
+        };
+    }
+
     // Tests_SRS_MQTTTRANSPORT_15_008: [If the transport is closed, the function shall throw an IllegalStateException.]
     @Test(expected = IllegalStateException.class)
     public void addMessageFailsIfTransportNotOpened(
@@ -224,60 +260,59 @@ public class MqttTransportTest {
         new Verifications()
         {
             {
-                expectedConnection.sendEvent(mockMsg);
+                expectedConnection.sendEvent(mockMsg, any);
                 times = 2;
             }
         };
     }
 
-    // Tests_SRS_MQTTTRANSPORT_15_010: [For each message being sent, the function shall send the message
-    // and add the IoT Hub status code along with the callback and context to the callback list.]
+    // Tests_SRS_MQTTTRANSPORT_15_010: [For each message that could not be published, the function shall add
+    // the IoT Hub status code along with the callback and context to the callback list.]
+    // Tests_SRS_MQTTTRANSPORT_21_034: [A published message shall be kept in progress, and completed when the IoT Hub acknowledges it.]
+    // Tests_SRS_MQTTTRANSPORT_21_036: [The function shall add the callback of the acknowledged message to the callback list with the OK_EMPTY status, release the room it held in the send queue, and signal the send task to invoke it.]
     @Test
-    public <T extends Queue> void sendMessagesAddsToCallbackQueue(
+    public void sendMessagesCompletesPublishedMessagesOnAcknowledgement(
             @Mocked final Message mockMsg,
             @Mocked final IotHubEventCallback mockCallback,
-            @Mocked final IotHubOutboundPacket mockPacket,
-            @Mocked final IotHubCallbackPacket mockCallbackPacket)
+            @Mocked final IotHubSendTask mockSendTask)
             throws IOException
     {
-        final Queue mockQueue = new MockUp<T>()
-        {
-
-        }.getMockInstance();
-        final Map<String, Object> context = new HashMap<>();
         new NonStrictExpectations()
         {
             {
-                new MqttIotHubConnection(mockConfig);
-                result = mockConnection;
-                new IotHubOutboundPacket(mockMsg, mockCallback, context);
-                result = mockPacket;
-                mockPacket.getCallback();
-                result = mockCallback;
-                mockPacket.getContext();
-                result = context;
-                mockConnection.sendEvent((Message) any);
+                mockConnection.sendEvent((Message) any, any);
                 returns(IotHubStatusCode.OK_EMPTY, IotHubStatusCode.ERROR);
-                new IotHubCallbackPacket(IotHubStatusCode.OK_EMPTY, mockCallback, context);
-                result = mockCallbackPacket;
-                new IotHubCallbackPacket(IotHubStatusCode.ERROR, mockCallback, context);
-                result = mockCallbackPacket;
             }
         };
 
         MqttTransport transport = new MqttTransport(mockConfig);
         transport.open();
-        transport.addMessage(mockMsg, mockCallback, context);
-        transport.addMessage(mockMsg, mockCallback, context);
+        transport.setSendTask(mockSendTask);
+        transport.addMessage(mockMsg, mockCallback, 0);
+        transport.addMessage(mockMsg, mockCallback, 1);
         transport.sendMessages();
 
+        Set<IotHubOutboundPacket> inProgress = Deencapsulation.getField(transport, "inProgressMessages");
+        assertEquals(1, inProgress.size());
+        final IotHubOutboundPacket published = inProgress.iterator().next();
+        transport.invokeCallbacks();
+        transport.messageSent(published);
+        transport.invokeCallbacks();
+
+        assertTrue(inProgress.isEmpty());
         new VerificationsInOrder()
         {
             {
-                new IotHubCallbackPacket(IotHubStatusCode.OK_EMPTY, mockCallback, context);
-                mockQueue.add(mockCallbackPacket);
-                new IotHubCallbackPacket(IotHubStatusCode.ERROR, mockCallback, context);
-                mockQueue.add(mockCallbackPacket);
+                mockCallback.execute(IotHubStatusCode.ERROR, 1);
+                mockSendTask.signal();
+                mockCallback.execute(IotHubStatusCode.OK_EMPTY, 0);
+            }
+        };
+        new Verifications()
+        {
+            {
+                mockConnection.sendEvent(mockMsg, published);
+                times = 1;
             }
         };
     }
@@ -294,7 +329,7 @@ public class MqttTransportTest {
         new NonStrictExpectations()
         {
             {
-                mockConnection.sendEvent((Message) any);
+                mockConnection.sendEvent((Message) any, any);
                 result = new IllegalStateException(anyString);
                 result = IotHubStatusCode.OK_EMPTY;
             }
@@ -310,7 +345,7 @@ public class MqttTransportTest {
         new Verifications()
         {
             {
-                expectedConnection.sendEvent(mockMsg);
+                expectedConnection.sendEvent(mockMsg, any);
                 times = 2;
             }
         };
@@ -336,6 +371,62 @@ public class MqttTransportTest {
         transport.sendMessages();
     }
 
+    // Tests_SRS_MQTTTRANSPORT_21_045: [The function shall hand the properties to the MQTT connection, which publishes them with the next patch of the reported properties.]
+    @Test
+    public void updateReportedPropertiesHandsPropertiesToConnection() throws IOException
+    {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("temperature", 21);
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+
+        transport.updateReportedProperties(properties);
+
+        new Verifications()
+        {
+            {
+                mockConnection.updateReportedProperties(properties);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_046: [The function shall return the desired properties kept by the MQTT connection.]
+    @Test
+    public void getDesiredPropertiesReturnsConnectionDesiredProperties() throws IOException
+    {
+        final JsonObject desired = new JsonObject();
+        new NonStrictExpectations()
+        {
+            {
+                mockConnection.getDesiredProperties();
+                result = desired;
+            }
+        };
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+
+        assertTrue(transport.getDesiredProperties() == desired);
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_044: [If the transport is closed, the function shall throw an IllegalStateException.]
+    @Test(expected = IllegalStateException.class)
+    public void updateReportedPropertiesFailsIfTransportClosed() throws IOException
+    {
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        transport.close();
+        transport.updateReportedProperties(new HashMap<String, Object>());
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_044: [If the transport is closed, the function shall throw an IllegalStateException.]
+    @Test(expected = IllegalStateException.class)
+    public void getDesiredPropertiesFailsIfTransportNeverOpened() throws IOException
+    {
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.getDesiredProperties();
+    }
+
     // Tests_SRS_MQTTTRANSPORT_15_013: [The function shall invoke all callbacks on the callback queue.]
     @Test
     public void invokeCallbacksInvokesAllCallbacks(
@@ -377,6 +468,68 @@ public class MqttTransportTest {
         };
     }
 
+    // Tests_SRS_MQTTTRANSPORT_21_026: [The function shall skip callback packets with no callback, such as those of messages replayed from the send journal.]
+    @Test
+    public void invokeCallbacksSkipsPacketsWithoutCallback(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback,
+            @Mocked final IotHubCallbackPacket mockCallbackPacket)
+            throws IOException
+    {
+        final Map<String, Object> context = new HashMap<>();
+        new NonStrictExpectations()
+        {
+            {
+                new MqttIotHubConnection(mockConfig);
+                result = mockConnection;
+                mockCallbackPacket.getStatus();
+                result = IotHubStatusCode.OK_EMPTY;
+                mockCallbackPacket.getCallback();
+                returns(null, mockCallback);
+                mockCallbackPacket.getContext();
+                result = context;
+            }
+        };
+
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        transport.addMessage(mockMsg, null, null);
+        transport.addMessage(mockMsg, mockCallback, context);
+        transport.sendMessages();
+        transport.invokeCallbacks();
+
+        final IotHubEventCallback expectedCallback = mockCallback;
+        new Verifications()
+        {
+            {
+                expectedCallback.execute(IotHubStatusCode.OK_EMPTY, context);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_024: [The function shall open the send journal, if one is configured, and replay the messages it holds.]
+    // Tests_SRS_MQTTTRANSPORT_21_025: [The function shall close the send journal, if one is open, which forces it to the disk.]
+    @Test
+    public void openAndCloseDriveTheSendJournal(
+            @Mocked final SendQueueLimiter mockLimiter)
+            throws IOException
+    {
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        transport.close();
+
+        new VerificationsInOrder()
+        {
+            {
+                mockLimiter.openJournal((Queue<IotHubOutboundPacket>) any);
+                times = 1;
+                mockLimiter.closeJournal();
+                times = 1;
+            }
+        };
+    }
+
     // Tests_SRS_MQTTTRANSPORT_15_014: [If the transport is closed, the function shall throw an IllegalStateException.]
     @Test(expected = IllegalStateException.class)
     public void invokeCallbacksFailsIfTransportNeverOpened() throws IOException
@@ -521,6 +674,8 @@ public class MqttTransportTest {
                 result = mockCallback;
                 mockConfig.getMessageContext();
                 result = context;
+                mockConnection.receiveMessage();
+                result = null;
             }
         };
 
@@ -553,7 +708,7 @@ public class MqttTransportTest {
                 mockConfig.getMessageContext();
                 result = context;
                 mockConnection.receiveMessage();
-                result = mockMsg;
+                returns(mockMsg, (Object) null);
             }
         };
 
@@ -572,6 +727,85 @@ public class MqttTransportTest {
         };
     }
 
+    // Tests_SRS_MQTTTRANSPORT_21_030: [The function shall save the receive task, hand it to the MQTT connection if one is open, and return true.]
+    @Test
+    public void setReceiveTaskHandsTaskToConnection(@Mocked final IotHubReceiveTask mockReceiveTask) throws IOException
+    {
+        MqttTransport transport = new MqttTransport(mockConfig);
+        assertTrue(transport.setReceiveTask(mockReceiveTask));
+        transport.open();
+
+        new Verifications()
+        {
+            {
+                mockConnection.setReceiveTask(mockReceiveTask);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_031: [The function shall consume every message received so far, since the receive task is signalled once for all the messages that arrive while it is queued or running.]
+    @Test
+    public void handleMessageInvokesCallbackForEveryReceivedMessage(
+            @Mocked final MessageCallback mockCallback,
+            @Mocked final Message mockMsg) throws IOException
+    {
+        final Object context = new Object();
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getMessageCallback();
+                result = mockCallback;
+                mockConfig.getMessageContext();
+                result = context;
+                mockConnection.receiveMessage();
+                returns(mockMsg, mockMsg, null);
+            }
+        };
+
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        transport.handleMessage();
+
+        new Verifications()
+        {
+            {
+                mockCallback.execute(mockMsg, context);
+                times = 2;
+                mockConnection.receiveMessage();
+                times = 3;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_041: [The function shall hand the messages received for the device twin
+    // to it, whether or not a message callback is registered.]
+    @Test
+    public void handleMessageReceivesDeviceTwinWithoutMessageCallback() throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.getMessageCallback();
+                result = null;
+            }
+        };
+
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        transport.handleMessage();
+
+        new Verifications()
+        {
+            {
+                mockConnection.receiveDeviceTwin();
+                times = 1;
+                mockConnection.receiveMessage();
+                times = 0;
+            }
+        };
+    }
+
     // Tests_SRS_MQTTTRANSPORT_15_018: [If the MQTT connection is closed,
     // the function shall throw an IllegalStateException.]
     @Test(expected = IllegalStateException.class)
@@ -591,4 +825,398 @@ public class MqttTransportTest {
         transport.close();
         transport.handleMessage();
     }
-}
\ No newline at end of file
+
+    // Tests_SRS_MQTTTRANSPORT_21_028: [The function shall reserve room for each packet of the batch and add it to the transport queue, in order.]
+    // Tests_SRS_MQTTTRANSPORT_21_029: [The function shall publish the messages of a batch still waiting back to back.]
+    @Test
+    public void sendMessagesPublishesBatchBackToBack(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                new MqttIotHubConnection(mockConfig);
+                result = mockConnection;
+                mockConnection.sendEventBatch((List<Message>) any, (List<?>) any);
+                result = Arrays.asList(IotHubStatusCode.OK_EMPTY, IotHubStatusCode.ERROR);
+            }
+        };
+        List<IotHubOutboundPacket> batch = Arrays.asList(
+                new IotHubOutboundPacket(mockMsg, mockCallback, 0),
+                new IotHubOutboundPacket(mockMsg, mockCallback, 1));
+
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        transport.addMessageBatch(batch);
+        transport.sendMessages();
+        transport.messageSent(batch.get(0));
+        transport.invokeCallbacks();
+
+        new VerificationsInOrder()
+        {
+            {
+                mockConnection.sendEventBatch(Arrays.asList(mockMsg, mockMsg), (List<?>) any);
+                times = 1;
+                mockCallback.execute(IotHubStatusCode.ERROR, 1);
+                mockCallback.execute(IotHubStatusCode.OK_EMPTY, 0);
+            }
+        };
+        new Verifications()
+        {
+            {
+                mockConnection.sendEvent((Message) any, any);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_038: [If the MQTT connection is being reconnected, the function
+    // shall stop sending, and leave the buffered messages to the send task to send again.]
+    // Tests_SRS_MQTTTRANSPORT_21_040: [If the in-flight window is full, the function shall stop sending
+    // without waiting, and leave the buffered messages to be sent once a message is acknowledged.]
+    @Test
+    public void sendMessagesStopsWhileConnectionIsReconnecting(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConnection.sendEvent((Message) any, any);
+                result = new IllegalStateException();
+            }
+        };
+
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        transport.addMessage(mockMsg, mockCallback, 0);
+        transport.addMessage(mockMsg, mockCallback, 1);
+        transport.sendMessages();
+
+        assertFalse(transport.isEmpty());
+        new Verifications()
+        {
+            {
+                mockConnection.sendEvent((Message) any, any);
+                times = 1;
+                mockCallback.execute((IotHubStatusCode) any, any);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_043: [The function shall invoke the callbacks without holding the lock that adding a message takes.]
+    @Test
+    public void invokeCallbacksLetsDispatchedCallbackSendWhileDispatcherIsFull(
+            @Mocked final Message mockMsg)
+            throws IOException, InterruptedException
+    {
+        final MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        final CountDownLatch dispatcherFull = new CountDownLatch(1);
+        final CountDownLatch resent = new CountDownLatch(1);
+        IotHubEventCallback resendOnCallback = new IotHubEventCallback()
+        {
+            public void execute(IotHubStatusCode responseStatus, Object callbackContext)
+            {
+                try
+                {
+                    dispatcherFull.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                transport.addMessage(mockMsg, null, null);
+                resent.countDown();
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 1);
+        Queue<IotHubCallbackPacket> callbackList = Deencapsulation.getField(transport, "callbackList");
+        for (int i = 0; i < 3; i++)
+        {
+            callbackList.add(new IotHubCallbackPacket(IotHubStatusCode.OK_EMPTY, dispatcher.wrap(resendOnCallback), i));
+        }
+
+        Thread sendTaskThread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                transport.invokeCallbacks();
+            }
+        };
+        sendTaskThread.start();
+        // the first callback runs, the second one waits in the dispatcher, and the third one cannot be dispatched.
+        while (sendTaskThread.getState() != Thread.State.WAITING && sendTaskThread.isAlive())
+        {
+            Thread.sleep(10);
+        }
+        dispatcherFull.countDown();
+
+        try
+        {
+            assertTrue(resent.await(5, TimeUnit.SECONDS));
+            sendTaskThread.join(5000);
+            assertFalse(sendTaskThread.isAlive());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_042: [A message that could not be sent shall be put back at the head of the waiting list, so that messages are sent in the order they were added.]
+    @Test
+    public void sendMessagesKeepsSendOrderWhenWindowFills(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback)
+            throws IOException
+    {
+        final List<Object> sent = new ArrayList<>();
+        new NonStrictExpectations()
+        {
+            {
+                mockConnection.sendEvent((Message) any, any);
+                result = new Delegate()
+                {
+                    IotHubStatusCode sendEvent(Message message, Object context)
+                    {
+                        // the window holds two messages.
+                        if (sent.size() == 2)
+                        {
+                            throw new IllegalStateException("The in-flight window is full.");
+                        }
+                        sent.add(((IotHubOutboundPacket) context).getContext());
+                        return IotHubStatusCode.OK_EMPTY;
+                    }
+                };
+            }
+        };
+
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        for (int i = 0; i < 4; i++)
+        {
+            transport.addMessage(mockMsg, mockCallback, i);
+        }
+        transport.sendMessages();
+        List<IotHubOutboundPacket> inProgress = new ArrayList<>((Set<IotHubOutboundPacket>) Deencapsulation.getField(transport, "inProgressMessages"));
+        sent.clear();
+        transport.messageSent(inProgress.get(0));
+        transport.messageSent(inProgress.get(1));
+        transport.sendMessages();
+
+        assertEquals(Arrays.<Object>asList(2, 3), sent);
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_033: [The function shall buffer the messages still waiting for their acknowledgement to be sent again, since the closed connection drops them, ahead of the messages waiting to be sent and in the order they were published.]
+    @Test
+    public void closePutsMessagesWaitingForAcknowledgementAheadOfWaitingMessages(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConnection.sendEvent((Message) any, any);
+                returns(IotHubStatusCode.OK_EMPTY, IotHubStatusCode.OK_EMPTY);
+                result = new IllegalStateException();
+            }
+        };
+
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        for (int i = 0; i < 3; i++)
+        {
+            transport.addMessage(mockMsg, mockCallback, i);
+        }
+        transport.sendMessages();
+        transport.close();
+
+        Queue<IotHubOutboundPacket> waitingList = Deencapsulation.getField(transport, "waitingList");
+        assertEquals(0, waitingList.poll().getContext());
+        assertEquals(1, waitingList.poll().getContext());
+        assertEquals(2, waitingList.poll().getContext());
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_039: [The messages of a batch left unsent when the MQTT connection
+    // was lost or the in-flight window filled up shall be buffered to be sent again next time.]
+    @Test
+    public void sendMessagesBuffersBatchMessagesLeftUnsent(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                new MqttIotHubConnection(mockConfig);
+                result = mockConnection;
+                mockConnection.sendEventBatch((List<Message>) any, (List<?>) any);
+                result = Arrays.asList(IotHubStatusCode.OK_EMPTY);
+            }
+        };
+        List<IotHubOutboundPacket> batch = Arrays.asList(
+                new IotHubOutboundPacket(mockMsg, mockCallback, 0),
+                new IotHubOutboundPacket(mockMsg, mockCallback, 1));
+
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        transport.addMessageBatch(batch);
+        transport.sendMessages();
+        transport.sendMessages();
+        transport.messageSent(batch.get(0));
+        transport.messageSent(batch.get(1));
+        transport.invokeCallbacks();
+
+        new VerificationsInOrder()
+        {
+            {
+                mockConnection.sendEventBatch(Arrays.asList(mockMsg, mockMsg), (List<?>) any);
+                times = 1;
+                mockConnection.sendEventBatch(Arrays.asList(mockMsg), (List<?>) any);
+                times = 1;
+            }
+        };
+        new Verifications()
+        {
+            {
+                mockCallback.execute(IotHubStatusCode.OK_EMPTY, any);
+                times = 2;
+                mockCallback.execute(IotHubStatusCode.ERROR, any);
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_027: [If the transport is closed, the function shall throw an IllegalStateException.]
+    @Test(expected = IllegalStateException.class)
+    public void addMessageBatchFailsIfTransportClosed(@Mocked final Message mockMsg)
+    {
+        MqttTransport transport = new MqttTransport(mockConfig);
+
+        transport.addMessageBatch(Arrays.asList(new IotHubOutboundPacket(mockMsg, null, null)));
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_032: [The function shall be told by the MQTT connection of the acknowledgement of each message it publishes.]
+    @Test
+    public void openHandsTransportToConnectionAsDeliveryListener() throws IOException
+    {
+        final MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+
+        new Verifications()
+        {
+            {
+                mockConnection.setDeliveryListener(transport);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_035: [If the acknowledged message is not in progress, the function shall do nothing.]
+    @Test
+    public void messageSentIgnoresMessageNotInProgress(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback,
+            @Mocked final IotHubSendTask mockSendTask)
+            throws IOException
+    {
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        transport.setSendTask(mockSendTask);
+
+        transport.messageSent(new IotHubOutboundPacket(mockMsg, mockCallback, null));
+        transport.messageSent("not a packet");
+
+        assertTrue(transport.isEmpty());
+        new Verifications()
+        {
+            {
+                mockSendTask.signal();
+                times = 0;
+            }
+        };
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_033: [The function shall buffer the messages still waiting for their acknowledgement to be sent again, since the closed connection drops them, ahead of the messages waiting to be sent and in the order they were published.]
+    // Tests_SRS_MQTTTRANSPORT_15_019: [The function shall return true if the waiting list,
+    // in progress list and callback list are all empty, and false otherwise.]
+    @Test
+    public void closeBuffersMessagesWaitingForAcknowledgement(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConnection.sendEvent((Message) any, any);
+                result = IotHubStatusCode.OK_EMPTY;
+            }
+        };
+
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        transport.addMessage(mockMsg, mockCallback, null);
+        transport.sendMessages();
+        assertFalse(transport.isEmpty());
+
+        transport.close();
+
+        Set<IotHubOutboundPacket> inProgress = Deencapsulation.getField(transport, "inProgressMessages");
+        Queue<IotHubOutboundPacket> waitingList = Deencapsulation.getField(transport, "waitingList");
+        assertTrue(inProgress.isEmpty());
+        assertEquals(1, waitingList.size());
+    }
+
+    // Tests_SRS_MQTTTRANSPORT_21_037: [If the configuration asks for QoS 0 telemetry, a sent message shall not be held in progress, but completed at once with the status of handing it to the MQTT connection.]
+    @Test
+    public void sendMessagesCompletesQos0MessagesAtOnce(
+            @Mocked final Message mockMsg,
+            @Mocked final IotHubEventCallback mockCallback,
+            @Mocked final SendQueueLimiter mockLimiter)
+            throws IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockConfig.isMqttTelemetryQos0();
+                result = true;
+                mockConnection.sendEvent((Message) any, any);
+                returns(IotHubStatusCode.OK_EMPTY, IotHubStatusCode.ERROR);
+            }
+        };
+
+        MqttTransport transport = new MqttTransport(mockConfig);
+        transport.open();
+        transport.addMessage(mockMsg, mockCallback, 0);
+        transport.addMessage(mockMsg, mockCallback, 1);
+        transport.sendMessages();
+
+        Set<IotHubOutboundPacket> inProgress = Deencapsulation.getField(transport, "inProgressMessages");
+        assertTrue(inProgress.isEmpty());
+        transport.invokeCallbacks();
+
+        new VerificationsInOrder()
+        {
+            {
+                mockCallback.execute(IotHubStatusCode.OK_EMPTY, 0);
+                mockCallback.execute(IotHubStatusCode.ERROR, 1);
+            }
+        };
+        new Verifications()
+        {
+            {
+                mockLimiter.release((IotHubOutboundPacket) any);
+                times = 2;
+            }
+        };
+    }
+}
@@ -45,6 +45,11 @@ public class AmqpSendHandler extends BaseHandler
     protected final String userName;
     protected final String sasToken;
     protected org.apache.qpid.proton.message.Message protonMessage;
+
+    /** The smallest buffer the message is encoded into. */
+    private static final int MIN_ENCODE_BUFFER_BYTES = 1024;
+    /** The room left, on top of the body and application properties, for the header and properties of the encoded message. */
+    private static final int ENCODE_OVERHEAD_BYTES = 512;
     private int nextTag = 0;
 
     protected final IotHubServiceClientProtocol iotHubServiceClientProtocol;
@@ -254,7 +259,7 @@ public class AmqpSendHandler extends BaseHandler
         // Codes_SRS_SERVICE_SDK_JAVA_AMQPSENDHANDLER_12_019: [The event handler shall encode the message and copy to the byte buffer]
         if (snd.getCredit() > 0)
         {
-            byte[] msgData = new byte[1024];
+            byte[] msgData = new byte[estimateEncodedSize(this.protonMessage)];
             int length;
             while(true)
             {
@@ -280,4 +285,32 @@ public class AmqpSendHandler extends BaseHandler
             snd.getSession().getConnection().close();
         }
     }
+
+    /**
+     * Estimates the size of the encoded message from its body and application
+     * properties, so that it is encoded in a single pass. The device client
+     * sizes its buffers the same way; the two modules share no code besides
+     * the released web socket layer, so the estimate is kept in both.
+     *
+     * @param message the message to encode.
+     * @return the size of the buffer to encode the message into.
+     */
+    private static int estimateEncodedSize(org.apache.qpid.proton.message.Message message)
+    {
+        long size = ENCODE_OVERHEAD_BYTES;
+        if (message.getBody() instanceof Data && ((Data) message.getBody()).getValue() != null)
+        {
+            size += ((Data) message.getBody()).getValue().getLength();
+        }
+        if (message.getApplicationProperties() != null && message.getApplicationProperties().getValue() != null)
+        {
+            for (Object entry : message.getApplicationProperties().getValue().entrySet())
+            {
+                // the key, the value, and the type codes and lengths of both.
+                size += String.valueOf(((Map.Entry) entry).getKey()).length()
+                        + String.valueOf(((Map.Entry) entry).getValue()).length() + 10;
+            }
+        }
+        return (int) Math.min(Math.max(size, MIN_ENCODE_BUFFER_BYTES), Integer.MAX_VALUE - 8);
+    }
 }
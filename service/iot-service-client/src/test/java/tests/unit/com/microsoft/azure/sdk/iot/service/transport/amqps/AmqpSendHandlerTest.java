@@ -7,8 +7,10 @@ package com.microsoft.azure.sdk.iot.service.transport.amqps;
 
 import com.microsoft.azure.sdk.iot.service.sdk.IotHubServiceClientProtocol;
 import com.microsoft.azure.sdk.iot.deps.ws.impl.WebSocketImpl;
+import mockit.Delegate;
 import mockit.Expectations;
 import mockit.Mocked;
+import mockit.NonStrictExpectations;
 import mockit.Verifications;
 import mockit.integration.junit4.JMockit;
 import org.apache.qpid.proton.Proton;
@@ -438,6 +440,118 @@ public class AmqpSendHandlerTest
         amqpSendHandler.onLinkFlow(event);
     }
 
+    // Tests_SRS_SERVICE_SDK_JAVA_AMQPSENDHANDLER_12_018: [The event handler shall encode the message and copy to the byte buffer]
+    @Test
+    public void onLinkFlow_large_body_encoded_in_one_pass()
+    {
+        // Arrange
+        final int bodyLength = 4 * 1024 * 1024;
+        // the body, its section header, and the message properties.
+        final int encodedLength = bodyLength + 200;
+        AmqpSendHandler amqpSendHandler = new AmqpSendHandler("aaa", "bbb", "ccc", IotHubServiceClientProtocol.AMQPS);
+        amqpSendHandler.protonMessage = message;
+        new NonStrictExpectations()
+        {
+            {
+                event.getLink();
+                result = sender;
+                sender.getCredit();
+                result = 1;
+                message.getBody();
+                result = data;
+                data.getValue();
+                result = binary;
+                binary.getLength();
+                result = bodyLength;
+                message.getApplicationProperties();
+                result = null;
+                message.encode((byte[]) any, 0, anyInt);
+                result = new Delegate()
+                {
+                    int encode(byte[] buffer, int offset, int length)
+                    {
+                        if (length < encodedLength)
+                        {
+                            throw new BufferOverflowException();
+                        }
+                        return encodedLength;
+                    }
+                };
+            }
+        };
+        // Act
+        amqpSendHandler.onLinkFlow(event);
+        // Assert
+        new Verifications()
+        {
+            {
+                message.encode((byte[]) any, 0, anyInt);
+                times = 1;
+                sender.send((byte[]) any, 0, encodedLength);
+                times = 1;
+            }
+        };
+    }
+
+    // Tests_SRS_SERVICE_SDK_JAVA_AMQPSENDHANDLER_12_018: [The event handler shall encode the message and copy to the byte buffer]
+    @Test
+    public void onLinkFlow_application_properties_encoded_in_one_pass(@Mocked final ApplicationProperties applicationProperties)
+    {
+        // Arrange
+        final Map<String, String> values = new HashMap<>();
+        int propertiesLength = 0;
+        for (int i = 0; i < 200; i++)
+        {
+            String key = String.format("property-%040d", i);
+            String value = String.format("value-%090d", i);
+            values.put(key, value);
+            // the type code and length of the key and of the value.
+            propertiesLength += key.length() + value.length() + 4;
+        }
+        final int encodedLength = propertiesLength + 200;
+        AmqpSendHandler amqpSendHandler = new AmqpSendHandler("aaa", "bbb", "ccc", IotHubServiceClientProtocol.AMQPS);
+        amqpSendHandler.protonMessage = message;
+        new NonStrictExpectations()
+        {
+            {
+                event.getLink();
+                result = sender;
+                sender.getCredit();
+                result = 1;
+                message.getBody();
+                result = null;
+                message.getApplicationProperties();
+                result = applicationProperties;
+                applicationProperties.getValue();
+                result = values;
+                message.encode((byte[]) any, 0, anyInt);
+                result = new Delegate()
+                {
+                    int encode(byte[] buffer, int offset, int length)
+                    {
+                        if (length < encodedLength)
+                        {
+                            throw new BufferOverflowException();
+                        }
+                        return encodedLength;
+                    }
+                };
+            }
+        };
+        // Act
+        amqpSendHandler.onLinkFlow(event);
+        // Assert
+        new Verifications()
+        {
+            {
+                message.encode((byte[]) any, 0, anyInt);
+                times = 1;
+                sender.send((byte[]) any, 0, encodedLength);
+                times = 1;
+            }
+        };
+    }
+
     private void createProtonObjects()
     {
         String exceptionMessage = "Not expected function called";